@@ -0,0 +1,34 @@
+--
+-- Tigase XMPP Server - The instant messaging server
+-- Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+--
+-- This program is free software: you can redistribute it and/or modify
+-- it under the terms of the GNU Affero General Public License as published by
+-- the Free Software Foundation, version 3 of the License.
+--
+-- This program is distributed in the hope that it will be useful,
+-- but WITHOUT ANY WARRANTY; without even the implied warranty of
+-- MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+-- GNU Affero General Public License for more details.
+--
+-- You should have received a copy of the GNU Affero General Public License
+-- along with this program. Look for COPYING file in the top folder.
+-- If not, see http://www.gnu.org/licenses/.
+--
+
+-- QUERY START:
+CREATE procedure Tig_OfflineMessages_GetMessagesPage("to" varchar(2049), "after_msg_id" bigint, "limit" int)
+PARAMETER STYLE JAVA
+LANGUAGE JAVA
+READS SQL DATA
+DYNAMIC RESULT SETS 1
+EXTERNAL NAME 'tigase.db.derby.MsgRepositoryStoredProcedures.getMessagesPage';
+-- QUERY END:
+
+-- QUERY START:
+CREATE procedure Tig_OfflineMessages_DeleteMessagesUpTo("to" varchar(2049), "msg_id" bigint)
+PARAMETER STYLE JAVA
+LANGUAGE JAVA
+MODIFIES SQL DATA
+EXTERNAL NAME 'tigase.db.derby.MsgRepositoryStoredProcedures.deleteMessagesUpTo';
+-- QUERY END:
@@ -16,3 +16,10 @@
 -- If not, see http://www.gnu.org/licenses/.
 --
 
+run 'database/derby-server-8.5.0-schema.sql';
+
+run 'database/derby-server-8.5.0-sp.sql';
+
+-- LOAD FILE: database/derby-server-8.5.0-schema.sql
+
+-- LOAD FILE: database/derby-server-8.5.0-sp.sql
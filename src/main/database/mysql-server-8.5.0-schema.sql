@@ -28,6 +28,9 @@ begin
     if not exists (select 1 from information_schema.STATISTICS where TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'tig_offline_messages' and INDEX_NAME = 'tig_offline_messages_receiver_sha1_msg_type_index') then
         create index tig_offline_messages_receiver_sha1_msg_type_index on tig_offline_messages (receiver_sha1, msg_type);
     end if;
+    if not exists (select 1 from information_schema.STATISTICS where TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'tig_offline_messages' and INDEX_NAME = 'tig_offline_messages_receiver_sha1_msg_id_index') then
+        create index tig_offline_messages_receiver_sha1_msg_id_index on tig_offline_messages (receiver_sha1, msg_id);
+    end if;
     if exists (select 1 from information_schema.STATISTICS where TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'tig_offline_messages' and INDEX_NAME = 'tig_offline_messages_receiver_sha1_index') then
         drop index tig_offline_messages_receiver_sha1_index on tig_offline_messages;
     end if;
@@ -22,6 +22,12 @@ drop procedure if exists Tig_OfflineMessages_AddMessage;
 -- QUERY START:
 drop procedure if exists Tig_OfflineMessages_DeleteMessages;
 -- QUERY END:
+-- QUERY START:
+drop procedure if exists Tig_OfflineMessages_GetMessagesPage;
+-- QUERY END:
+-- QUERY START:
+drop procedure if exists Tig_OfflineMessages_DeleteMessagesUpTo;
+-- QUERY END:
 
 delimiter //
 
@@ -53,4 +59,22 @@ delete from tig_offline_messages where receiver_sha1 = sha1(lower(_to));
 end //
 -- QUERY END:
 
+-- QUERY START:
+create procedure Tig_OfflineMessages_GetMessagesPage(_to varchar(2049) charset utf8, _after_msg_id bigint, _limit int)
+begin
+    select message, msg_id
+    from tig_offline_messages
+    where receiver_sha1 = sha1(lower(_to)) and msg_id > _after_msg_id
+    order by msg_id
+    limit _limit;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_OfflineMessages_DeleteMessagesUpTo(_to varchar(2049) charset utf8, _msg_id bigint)
+begin
+    delete from tig_offline_messages where receiver_sha1 = sha1(lower(_to)) and msg_id <= _msg_id;
+end //
+-- QUERY END:
+
 delimiter ;
\ No newline at end of file
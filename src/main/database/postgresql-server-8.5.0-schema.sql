@@ -23,4 +23,13 @@ if exists (select 1 where (select to_regclass('public.tig_offline_messages_recei
     create index tig_offline_messages_receiver_msg_type_index on tig_offline_messages (lower(receiver), msg_type);
 end if;
 end$$;
--- QUERY END:
\ No newline at end of file
+-- QUERY END:
+
+-- QUERY START:
+do $$
+begin
+if exists (select 1 where (select to_regclass('public.tig_offline_messages_receiver_msg_id_index')) is null) then
+    create index tig_offline_messages_receiver_msg_id_index on tig_offline_messages (lower(receiver), msg_id);
+end if;
+end$$;
+-- QUERY END:
@@ -63,4 +63,26 @@ begin
     delete from tig_offline_messages where lower(receiver) = lower(_to)
 end;
 $$ LANGUAGE 'plpgsql';
--- QUERY END:
\ No newline at end of file
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_OfflineMessages_GetMessagesPage(_to varchar(2049), _after_msg_id bigint, _limit int) returns table(
+    "message" text, "msg_id" bigint
+) as $$
+begin
+    return query select om.message, om.msg_id
+        from tig_offline_messages om
+        where lower(om.receiver) = lower(_to) and om.msg_id > _after_msg_id
+        order by om.msg_id
+        limit _limit;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_OfflineMessages_DeleteMessagesUpTo(_to varchar(2049), _msg_id bigint) returns void as $$
+begin
+    delete from tig_offline_messages where lower(receiver) = lower(_to) and msg_id <= _msg_id;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
@@ -21,3 +21,9 @@ if not exists (select 1 from sys.indexes where object_id = object_id('dbo.tig_of
     create index IX_tig_offline_messages_receiver_sha1_msg_type on [dbo].[tig_offline_messages] (receiver_sha1, msg_type);
 -- QUERY END:
 GO
+
+-- QUERY START:
+if not exists (select 1 from sys.indexes where object_id = object_id('dbo.tig_offline_messages') and name = 'IX_tig_offline_messages_receiver_sha1_msg_id' )
+    create index IX_tig_offline_messages_receiver_sha1_msg_id on [dbo].[tig_offline_messages] (receiver_sha1, msg_id);
+-- QUERY END:
+GO
@@ -71,4 +71,44 @@ begin
     set nocount off;
 end
 -- QUERY END:
-GO
\ No newline at end of file
+GO
+
+-- QUERY START:
+if exists (select 1 from sys.objects where type = 'P' and name = 'Tig_OfflineMessages_GetMessagesPage')
+    drop procedure [dbo].[Tig_OfflineMessages_GetMessagesPage];
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure [dbo].[Tig_OfflineMessages_GetMessagesPage]
+    @_to nvarchar(2049),
+    @_after_msg_id bigint,
+    @_limit int
+as
+begin
+    select top (@_limit) om.message, om.msg_id
+        from tig_offline_messages om
+        where om.receiver_sha1 = HASHBYTES('SHA1', lower(@_to)) and om.msg_id > @_after_msg_id
+        order by om.msg_id;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+if exists (select 1 from sys.objects where type = 'P' and name = 'Tig_OfflineMessages_DeleteMessagesUpTo')
+    drop procedure [dbo].[Tig_OfflineMessages_DeleteMessagesUpTo];
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure [dbo].[Tig_OfflineMessages_DeleteMessagesUpTo]
+    @_to nvarchar(2049),
+    @_msg_id bigint
+as
+begin
+    set nocount on;
+    delete from tig_offline_messages where receiver_sha1 = HASHBYTES('SHA1', lower(@_to)) and msg_id <= @_msg_id;
+    set nocount off;
+end
+-- QUERY END:
+GO
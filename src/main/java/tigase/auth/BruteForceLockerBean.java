@@ -27,7 +27,6 @@ import tigase.kernel.beans.Initializable;
 import tigase.kernel.beans.Inject;
 import tigase.kernel.beans.UnregisterAware;
 import tigase.kernel.beans.config.ConfigField;
-import tigase.map.ClusterMapFactory;
 import tigase.server.Command;
 import tigase.server.DataForm;
 import tigase.server.Packet;
@@ -64,7 +63,6 @@ public class BruteForceLockerBean
 	private static final String LOCK_TIME_KEY = "brute-force-lock-time";
 	private static final String LOCK_PERIOD_TIME_KEY = "brute-force-period-time";
 	private static final String LOCK_MODE_KEY = "brute-force-mode";
-	private static final String MAP_TYPE = "brute-force-invalid-logins";
 
 	public enum Mode {
 		Ip,
@@ -93,11 +91,15 @@ public class BruteForceLockerBean
 	private final Logger log = Logger.getLogger(this.getClass().getName());
 	private final Map<String, StatHolder> otherStatHolders = new ConcurrentHashMap<>();
 	private final StatHolder statHolder = new StatHolder();
+	// statistics collected since last emit of statistics to other nodes
+	private volatile StatHolder statHolderDelta = new StatHolder();
 	@ConfigField(desc = "Allows storing detailed, per IP/JID statistics of blocked attempts")
 	private boolean detailedStatistics = false;
 	@Inject
 	private EventBus eventBus;
-	private Map<Key, Value> map;
+	@ConfigField(desc = "Number of shards of invalid logins store")
+	private int shards = 16;
+	private BruteForceLockerStore store = new BruteForceLockerStore(shards);
 	@Inject
 	private SessionManager sessionManager;
 
@@ -127,53 +129,20 @@ public class BruteForceLockerBean
 			}
 			return;
 		}
-		if (map == null) {
-			log.warning("Brute Force Locker is no initialized yet!");
-			return;
-		}
-
 		final Key key = createKey(session, ip, jid);
-		Value value = map.get(key);
-
-		if (value == null) {
-			value = new Value(session != null ? session.getDomain().getVhost().toString() : null, ip, jid);
-			value.setBadLoginCounter(0);
-
-			if (log.isLoggable(Level.FINER)) {
-				log.log(Level.FINER,"Entry didn't exists. Create new one.");
-			}
-		}
-
-		if (value.getInvalidateAtTime() < currentTime) {
-			if (log.isLoggable(Level.FINER)) {
-				log.log(Level.FINER,"Entry exists and is old, reset counter.");
-			}
-			value.setBadLoginCounter(0);
-		}
-
-		value.setBadLoginCounter(value.getBadLoginCounter() + 1);
-
 		BruteForceLockerVHostExtension extension = session != null ? session.getDomain().getExtension(BruteForceLockerVHostExtension.class) : null;
 
 		final long lockAfterFails = extension == null ? 3 : extension.getLockAccountAfterFailedAttempt();
-		if (value.getBadLoginCounter() <= lockAfterFails) {
-			final long periodTime =
-					(extension == null ? 10 : extension.getPeriodTime()) * 1000;
-			value.setInvalidateAtTime(currentTime + periodTime);
-		} else {
-			final long lockTime = (extension == null ? 10 : extension.getLockTime()) * 1000;
-			value.setInvalidateAtTime(currentTime + lockTime);
-		}
+		final long periodTime = (extension == null ? 10 : extension.getPeriodTime()) * 1000;
+		final long lockTime = (extension == null ? 10 : extension.getLockTime()) * 1000;
+		final int badLoginCounter = store.addInvalidLogin(key, ip, jid, currentTime, lockAfterFails, periodTime,
+														  lockTime);
 
 		if (log.isLoggable(Level.FINEST)) {
-			log.finest(
-					"New invalidate time for " + key + " == " + value.getInvalidateAtTime() + "; getBadLoginCounter " +
-							"== " + value.getBadLoginCounter());
+			log.finest("New bad login counter for " + key + " == " + badLoginCounter);
 		}
 
-		map.put(key, value);
-
-		addToStatistic(value);
+		addToStatistic(ip, jid);
 	}
 
 	public boolean canUserBeDisabled(XMPPResourceConnection session, String ip, BareJID jid) {
@@ -183,9 +152,9 @@ public class BruteForceLockerBean
 			return false;
 		}
 
-		Value value = map.get(key);
+		final int badLoginCounter = store.getBadLoginCounter(key, 0);
 
-		if (value == null) {
+		if (badLoginCounter < 0) {
 			return false;
 		}
 
@@ -196,16 +165,19 @@ public class BruteForceLockerBean
 		if (disableAfterFails == 0) {
 			return false;
 		} else {
-			return value.getBadLoginCounter() > disableAfterFails;
+			return badLoginCounter > disableAfterFails;
 		}
 	}
 
+	/**
+	 * Removes all invalid logins entries on this node and on other nodes of the cluster.
+	 */
 	public void clearAll() {
-		if (map == null) {
-			log.warning("Brute Force Locker is no initialized yet!");
-			return;
+		store.clear();
+		if (eventBus != null) {
+			String clusterNode = sessionManager == null ? null : sessionManager.getComponentId().getDomain();
+			eventBus.fire(new ClearAllEvent(clusterNode));
 		}
-		map.clear();
 	}
 
 	public void clearOutdated() {
@@ -213,28 +185,20 @@ public class BruteForceLockerBean
 	}
 
 	public void clearOutdated(final long currentTime) {
-		if (map == null) {
-			log.warning("Brute Force Locker is no initialized yet!");
-			return;
+		int removed = store.removeOutdated(currentTime);
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Removed {0} outdated entries", removed);
 		}
-
-		final HashSet<Key> toRemove = new HashSet<>();
-
-		map.forEach((key, value) -> {
-			if (value.getInvalidateAtTime() < currentTime) {
-				toRemove.add(key);
-			}
-		});
-		toRemove.forEach(key -> map.remove(key));
 	}
 
 	@Override
 	public void getStatistics(String compName, StatisticsList list) {
 		clearOutdated();
 		final String keyName = compName + "/BruteForceLocker";
-		ArrayList<Value> l = new ArrayList<>(this.map.values());
-		for (Value value : l) {
-			list.add(keyName, "Present locks: " + value.jid + " from " + value.ip, value.badLoginCounter, Level.FINER);
+		list.add(keyName, "Invalid logins entries", store.size(), Level.FINE);
+		if (list.checkLevel(Level.FINER)) {
+			store.forEach(entry -> list.add(keyName, "Present locks: " + entry.jid + " from " + entry.ip,
+											entry.badLoginCounter, Level.FINER));
 		}
 
 		final StatHolder tmp = new StatHolder();
@@ -258,8 +222,6 @@ public class BruteForceLockerBean
 
 	@Override
 	public void initialize() {
-		this.map = ClusterMapFactory.get().createMap(MAP_TYPE, Key.class, Value.class);
-		assert this.map != null : "Distributed Map is NULL!";
 		assert this.sessionManager != null : "SessionManager is NULL!";
 
 		if (eventBus != null) {
@@ -278,7 +240,30 @@ public class BruteForceLockerBean
 			return;
 		}
 
-		this.otherStatHolders.put(event.getNodeName(), event.getStatHolder());
+		if (event.isDelta()) {
+			StatHolder holder = this.otherStatHolders.computeIfAbsent(event.getNodeName(), node -> new StatHolder());
+			event.getStatHolder().ips.forEach(holder::addIP);
+			event.getStatHolder().jids.forEach(holder::addJID);
+		} else {
+			this.otherStatHolders.put(event.getNodeName(), event.getStatHolder());
+		}
+	}
+
+	@HandleEvent(filter = HandleEvent.Type.remote)
+	public void handleInvalidLoginsDeltaEvent(InvalidLoginsDeltaEvent event) {
+		InvalidLoginsDelta delta = event.getDelta();
+		if (delta == null) {
+			return;
+		}
+		final long currentTime = System.currentTimeMillis();
+		for (InvalidLoginsDelta.Item item : delta.getItems()) {
+			store.merge(item.ip, item.jid, item.domain, item.count, item.invalidateAtTime, currentTime);
+		}
+	}
+
+	@HandleEvent(filter = HandleEvent.Type.remote)
+	public void handleClearAllEvent(ClearAllEvent event) {
+		store.clear();
 	}
 
 	public boolean isLoginAllowed(XMPPResourceConnection session, final String ip, final BareJID jid) {
@@ -293,22 +278,24 @@ public class BruteForceLockerBean
 			}
 			return true;
 		}
-		if (map == null) {
-			log.warning("Brute Force Locker is no initialized yet!");
-			return false;
-		}
-
 		final Key key = createKey(session, ip, jid);
-		Value value = map.get(key);
+		final int badLoginCounter = store.getBadLoginCounter(key, currentTime);
 
-		if (value == null) {
+		if (badLoginCounter < 0) {
 			if (log.isLoggable(Level.FINEST)) {
-				log.finest("No entry for " + key + ". Return true.");
+				log.finest("No entry for " + key + " or entry was too old. Return true.");
 			}
 			return true;
 		}
 
-		return isLoginAllowed(session, key, value, currentTime);
+		BruteForceLockerVHostExtension extension = session != null ? session.getDomain().getExtension(BruteForceLockerVHostExtension.class) : null;
+		long lockAfterFails = extension == null ? 3 : extension.getLockAccountAfterFailedAttempt();
+		boolean r = badLoginCounter <= lockAfterFails;
+		if (log.isLoggable(Level.FINEST)) {
+			log.finest("Entry exist. lockAfterFails=" + lockAfterFails + ", badLoginCounter=" + badLoginCounter +
+							   ", result=" + r);
+		}
+		return r;
 	}
 
 	@Override
@@ -318,22 +305,46 @@ public class BruteForceLockerBean
 
 	@Override
 	public void everyHour() {
-
+		// full statistics are sent from time to time, so other nodes recover from missed deltas
+		String clusterNode = sessionManager.getComponentId().getDomain();
+		eventBus.fire(new StatisticsEmitEvent(clusterNode, this.statHolder, false));
 	}
 
 	@Override
 	public void everyMinute() {
+		StatHolder delta = this.statHolderDelta;
+		this.statHolderDelta = new StatHolder();
+		if (delta.ips.isEmpty() && delta.jids.isEmpty()) {
+			return;
+		}
 		String clusterNode = sessionManager.getComponentId().getDomain();
-		eventBus.fire(new StatisticsEmitEvent(clusterNode, this.statHolder));
+		eventBus.fire(new StatisticsEmitEvent(clusterNode, delta, true));
 	}
 
 	@Override
 	public void everySecond() {
+		clearOutdated();
+		List<BruteForceLockerStore.Change> changes = store.drainChanges();
+		if (changes.isEmpty() || eventBus == null) {
+			return;
+		}
+		String clusterNode = sessionManager == null ? null : sessionManager.getComponentId().getDomain();
+		eventBus.fire(new InvalidLoginsDeltaEvent(clusterNode, new InvalidLoginsDelta(changes)));
+	}
 
+	public int getShards() {
+		return shards;
 	}
 
-	void setMap(HashMap<Key, Value> map) {
-		this.map = map;
+	public void setShards(int shards) {
+		if (this.shards != shards) {
+			this.store = new BruteForceLockerStore(shards);
+		}
+		this.shards = shards;
+	}
+
+	BruteForceLockerStore getStore() {
+		return store;
 	}
 
 	final Key createKey(XMPPResourceConnection session, String ip, BareJID jid) {
@@ -356,32 +367,15 @@ public class BruteForceLockerBean
 		}
 	}
 
-	private void addToStatistic(Value v) {
-		if (v.ip != null) {
-			this.statHolder.addIP(v.ip);
+	private void addToStatistic(String ip, BareJID jid) {
+		StatHolder delta = this.statHolderDelta;
+		if (ip != null) {
+			this.statHolder.addIP(ip);
+			delta.addIP(ip);
 		}
-		if (v.jid != null) {
-			this.statHolder.addJID(v.jid);
-		}
-	}
-
-	private boolean isLoginAllowed(final XMPPResourceConnection session, final Key key, final Value value,
-								   final long currentTime) {
-		if (value.getInvalidateAtTime() < currentTime) {
-			map.remove(key);
-			if (log.isLoggable(Level.FINEST)) {
-				log.finest("Entry existed, but was too old. Entry removed. Return true.");
-			}
-			return true;
-		} else {
-			BruteForceLockerVHostExtension extension = session != null ? session.getDomain().getExtension(BruteForceLockerVHostExtension.class) : null;
-			long lockAfterFails = extension == null ? 3 : extension.getLockAccountAfterFailedAttempt();
-			boolean r = value.badLoginCounter <= lockAfterFails;
-			if (log.isLoggable(Level.FINEST)) {
-				log.finest("Entry exist. lockAfterFails=" + lockAfterFails + ", value" + ".badLoginCounter=" +
-								   value.badLoginCounter + ", result=" + r);
-			}
-			return r;
+		if (jid != null) {
+			this.statHolder.addJID(jid);
+			delta.addJID(jid);
 		}
 	}
 
@@ -433,6 +427,10 @@ public class BruteForceLockerBean
 			this.domain = encoded[2];
 		}
 
+		public String getDomain() {
+			return domain;
+		}
+
 		public String getIp() {
 			return ip;
 		}
@@ -468,6 +466,124 @@ public class BruteForceLockerBean
 
 	}
 
+	/**
+	 * Changes of invalid logins counters made on a cluster node since last delta was sent.
+	 */
+	public static class InvalidLoginsDelta
+			implements TypesConverter.Parcelable {
+
+		private final List<Item> items = new ArrayList<>();
+
+		public InvalidLoginsDelta() {
+		}
+
+		InvalidLoginsDelta(List<BruteForceLockerStore.Change> changes) {
+			for (BruteForceLockerStore.Change change : changes) {
+				items.add(new Item(change.ip, change.jid, change.domain, change.count, change.invalidateAtTime));
+			}
+		}
+
+		public List<Item> getItems() {
+			return items;
+		}
+
+		@Override
+		public String[] encodeToStrings() {
+			String[] r = new String[items.size() * 5];
+			int idx = 0;
+			for (Item item : items) {
+				r[idx++] = item.ip;
+				r[idx++] = item.jid;
+				r[idx++] = item.domain;
+				r[idx++] = String.valueOf(item.count);
+				r[idx++] = String.valueOf(item.invalidateAtTime);
+			}
+			return r;
+		}
+
+		@Override
+		public void fillFromString(String[] encoded) {
+			try {
+				items.clear();
+				for (int i = 0; i + 4 < encoded.length; i += 5) {
+					items.add(new Item(encoded[i], encoded[i + 1], encoded[i + 2], Integer.parseInt(encoded[i + 3]),
+									   Long.parseLong(encoded[i + 4])));
+				}
+			} catch (Exception e) {
+				throw new RuntimeException("Cannot decode parcel: " + Arrays.toString(encoded), e);
+			}
+		}
+
+		public static class Item {
+
+			final int count;
+			final String domain;
+			final long invalidateAtTime;
+			final String ip;
+			final String jid;
+
+			Item(String ip, String jid, String domain, int count, long invalidateAtTime) {
+				this.ip = ip;
+				this.jid = jid;
+				this.domain = domain;
+				this.count = count;
+				this.invalidateAtTime = invalidateAtTime;
+			}
+		}
+	}
+
+	public static class ClearAllEvent
+			implements Serializable, EventBusEvent {
+
+		private String nodeName;
+
+		public ClearAllEvent() {
+		}
+
+		public ClearAllEvent(String nodeName) {
+			this.nodeName = nodeName;
+		}
+
+		public String getNodeName() {
+			return nodeName;
+		}
+
+		public void setNodeName(String nodeName) {
+			this.nodeName = nodeName;
+		}
+	}
+
+	public static class InvalidLoginsDeltaEvent
+			implements Serializable, EventBusEvent {
+
+		private InvalidLoginsDelta delta;
+		private String nodeName;
+
+		public InvalidLoginsDeltaEvent() {
+		}
+
+		public InvalidLoginsDeltaEvent(String nodeName, InvalidLoginsDelta delta) {
+			this.nodeName = nodeName;
+			this.delta = delta;
+		}
+
+		public InvalidLoginsDelta getDelta() {
+			return delta;
+		}
+
+		public void setDelta(InvalidLoginsDelta delta) {
+			this.delta = delta;
+		}
+
+		public String getNodeName() {
+			return nodeName;
+		}
+
+		public void setNodeName(String nodeName) {
+			this.nodeName = nodeName;
+		}
+	}
+
 	public static class LoginLockedException
 			extends Exception {
 
@@ -571,6 +687,9 @@ public class BruteForceLockerBean
 	public static class StatisticsEmitEvent
 			implements Serializable, EventBusEvent {
 
+		/** If set, statistics contain only changes since previous event sent by the node */
+		private boolean delta;
+
 		private String nodeName;
 
 		private StatHolder statHolder;
@@ -579,8 +698,21 @@ public class BruteForceLockerBean
 		}
 
 		public StatisticsEmitEvent(String nodeName, StatHolder statHolder) {
+			this(nodeName, statHolder, false);
+		}
+
+		public StatisticsEmitEvent(String nodeName, StatHolder statHolder, boolean delta) {
 			this.nodeName = nodeName;
 			this.statHolder = statHolder;
+			this.delta = delta;
+		}
+
+		public boolean isDelta() {
+			return delta;
+		}
+
+		public void setDelta(boolean delta) {
+			this.delta = delta;
 		}
 
 		public String getNodeName() {
@@ -0,0 +1,472 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.auth;
+
+import tigase.xmpp.jid.BareJID;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Store of invalid login counters used by {@link BruteForceLockerBean}.
+ * <br>
+ * Entries are identified by 64-bit hashes of (ip, jid, domain) keys, so the store does not keep key strings. Hashes
+ * are calculated with a random seed, which makes it impractical to craft a key colliding with a key of another
+ * user. Entries are split between shards, each with its own lock, hash table and hierarchical timing wheel, so
+ * removal of outdated entries touches only entries which expire and not the whole store.
+ * <br>
+ * Changes made by local logins are collected and may be retrieved with {@link #drainChanges()} to be sent to other
+ * cluster nodes, which apply them with {@link #merge(String, String, String, int, long, long)}.
+ */
+final class BruteForceLockerStore {
+
+	private static final int LEVELS = 3;
+	private static final int SLOT_BITS = 6;
+	private static final int SLOTS = 1 << SLOT_BITS;
+	private static final int SLOT_MASK = SLOTS - 1;
+	private static final long TICK = 1000;
+
+	private final long seed;
+	private final int shardMask;
+	private final Shard[] shards;
+
+	BruteForceLockerStore(int shards) {
+		int count = 1;
+		while (count < shards) {
+			count <<= 1;
+		}
+		this.shards = new Shard[count];
+		for (int i = 0; i < count; i++) {
+			this.shards[i] = new Shard();
+		}
+		this.shardMask = count - 1;
+		this.seed = new SecureRandom().nextLong();
+	}
+
+	/**
+	 * Registers invalid login for a key.
+	 *
+	 * @return value of invalid logins counter after update
+	 */
+	int addInvalidLogin(BruteForceLockerBean.Key key, String ip, BareJID jid, long currentTime, long lockAfterFails,
+						long periodTime, long lockTime) {
+		long hash = hash(key.getIp(), key.getJid(), key.getDomain());
+		Shard shard = shard(hash);
+		synchronized (shard) {
+			Entry entry = shard.get(hash);
+			if (entry == null) {
+				entry = new Entry(hash, ip, jid);
+				shard.put(entry);
+			}
+			if (entry.invalidateAtTime < currentTime) {
+				entry.badLoginCounter = 0;
+			}
+			entry.badLoginCounter++;
+			long invalidateAtTime = currentTime + (entry.badLoginCounter <= lockAfterFails ? periodTime : lockTime);
+			entry.invalidateAtTime = invalidateAtTime;
+			shard.schedule(entry, currentTime);
+
+			Change change = shard.changes.get(hash);
+			if (change == null) {
+				change = new Change(key.getIp(), key.getJid(), key.getDomain());
+				shard.changes.put(hash, change);
+			}
+			change.count++;
+			change.invalidateAtTime = invalidateAtTime;
+			return entry.badLoginCounter;
+		}
+	}
+
+	void clear() {
+		for (Shard shard : shards) {
+			synchronized (shard) {
+				shard.clear();
+			}
+		}
+	}
+
+	/**
+	 * Returns changes made by local logins since last call of this method.
+	 */
+	List<Change> drainChanges() {
+		List<Change> result = new ArrayList<>();
+		for (Shard shard : shards) {
+			synchronized (shard) {
+				if (!shard.changes.isEmpty()) {
+					result.addAll(shard.changes.values());
+					shard.changes.clear();
+				}
+			}
+		}
+		return result;
+	}
+
+	void forEach(Consumer<Entry> consumer) {
+		List<Entry> entries = new ArrayList<>();
+		for (Shard shard : shards) {
+			synchronized (shard) {
+				shard.forEach(entries::add);
+			}
+		}
+		entries.forEach(consumer);
+	}
+
+	/**
+	 * Returns invalid logins counter for a key.
+	 *
+	 * @param currentTime if greater than <code>0</code> then outdated entry is removed and not returned
+	 *
+	 * @return value of the counter or <code>-1</code> if there is no entry for the key
+	 */
+	int getBadLoginCounter(BruteForceLockerBean.Key key, long currentTime) {
+		long hash = hash(key.getIp(), key.getJid(), key.getDomain());
+		Shard shard = shard(hash);
+		synchronized (shard) {
+			Entry entry = shard.get(hash);
+			if (entry == null) {
+				return -1;
+			}
+			if (currentTime > 0 && entry.invalidateAtTime < currentTime) {
+				shard.remove(entry);
+				return -1;
+			}
+			return entry.badLoginCounter;
+		}
+	}
+
+	/**
+	 * Applies change of invalid logins counter made on other cluster node.
+	 */
+	void merge(String ip, String jid, String domain, int count, long invalidateAtTime, long currentTime) {
+		if (invalidateAtTime < currentTime) {
+			return;
+		}
+		long hash = hash(ip, jid, domain);
+		Shard shard = shard(hash);
+		synchronized (shard) {
+			Entry entry = shard.get(hash);
+			if (entry == null) {
+				entry = new Entry(hash, null, null);
+				shard.put(entry);
+			}
+			if (entry.invalidateAtTime < currentTime) {
+				entry.badLoginCounter = 0;
+			}
+			entry.badLoginCounter += count;
+			entry.invalidateAtTime = Math.max(entry.invalidateAtTime, invalidateAtTime);
+			shard.schedule(entry, currentTime);
+		}
+	}
+
+	/**
+	 * Removes entries outdated at passed time.
+	 *
+	 * @return number of removed entries
+	 */
+	int removeOutdated(long currentTime) {
+		int removed = 0;
+		for (Shard shard : shards) {
+			synchronized (shard) {
+				removed += shard.advance(currentTime);
+			}
+		}
+		return removed;
+	}
+
+	int shardsCount() {
+		return shards.length;
+	}
+
+	int size() {
+		int size = 0;
+		for (Shard shard : shards) {
+			synchronized (shard) {
+				size += shard.size;
+			}
+		}
+		return size;
+	}
+
+	long hash(String ip, String jid, String domain) {
+		long h = seed;
+		h = hash(h, ip);
+		h = hash(h, jid);
+		h = hash(h, domain);
+		// final mix of MurmurHash3
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static long hash(long h, String str) {
+		if (str == null) {
+			return Long.rotateLeft(h * 0x9e3779b97f4a7c15L, 31);
+		}
+		for (int i = 0; i < str.length(); i++) {
+			h = Long.rotateLeft((h ^ str.charAt(i)) * 0x9e3779b97f4a7c15L, 31);
+		}
+		// length separates parts, so ("ab", "c") and ("a", "bc") differ
+		return Long.rotateLeft((h ^ str.length()) * 0xc2b2ae3d27d4eb4fL, 27);
+	}
+
+	private Shard shard(long hash) {
+		return shards[(int) (hash >>> 32) & shardMask];
+	}
+
+	/**
+	 * Change of invalid logins counter made by local logins.
+	 */
+	static final class Change {
+
+		final String domain;
+		final String ip;
+		final String jid;
+		int count;
+		long invalidateAtTime;
+
+		Change(String ip, String jid, String domain) {
+			this.ip = ip;
+			this.jid = jid;
+			this.domain = domain;
+		}
+	}
+
+	static final class Entry {
+
+		// IP and JID of the invalid login which created the entry, used only for statistics (null if created by other node)
+		final String ip;
+		final BareJID jid;
+		private final long key;
+		int badLoginCounter;
+		long invalidateAtTime;
+		private Entry hashNext;
+		private Entry wheelNext;
+		private Entry wheelPrev;
+		private int wheelSlot = -1;
+
+		private Entry(long key, String ip, BareJID jid) {
+			this.key = key;
+			this.ip = ip;
+			this.jid = jid;
+		}
+	}
+
+	/**
+	 * Part of the store guarded by its own lock. Entries are kept in a chained hash table and in a hierarchical timing
+	 * wheel with {@link #LEVELS} levels of {@link #SLOTS} slots each. Slot of the first level covers a single
+	 * {@link #TICK}, slot of each next level covers whole previous level. Entries of a slot of a higher level are moved
+	 * to lower levels when the wheel reaches the slot. Expiration time of an entry may be extended after it was
+	 * scheduled, in such case it is scheduled again when its slot is processed.
+	 */
+	private static final class Shard {
+
+		private final Map<Long, Change> changes = new HashMap<>();
+		private final Entry[] wheel = new Entry[LEVELS * SLOTS];
+		private long currentTick = Long.MIN_VALUE;
+		private int size;
+		private Entry[] table = new Entry[16];
+
+		private int advance(long currentTime) {
+			final long targetTick = currentTime / TICK;
+			if (currentTick == Long.MIN_VALUE || targetTick <= currentTick) {
+				return 0;
+			}
+			int removed = 0;
+			if (size == 0) {
+				currentTick = targetTick;
+				return 0;
+			}
+			if (targetTick - currentTick >= (1L << (SLOT_BITS * LEVELS))) {
+				// time moved past range of the wheel, reschedule everything
+				List<Entry> entries = new ArrayList<>(size);
+				forEach(entries::add);
+				currentTick = targetTick;
+				for (Entry entry : entries) {
+					unlink(entry);
+					if (entry.invalidateAtTime < currentTime) {
+						remove(entry);
+						removed++;
+					} else {
+						schedule(entry, currentTime);
+					}
+				}
+				return removed;
+			}
+			while (currentTick < targetTick) {
+				currentTick++;
+				if ((currentTick & SLOT_MASK) == 0) {
+					cascade(1, (int) ((currentTick >>> SLOT_BITS) & SLOT_MASK), currentTime);
+					if (((currentTick >>> SLOT_BITS) & SLOT_MASK) == 0) {
+						cascade(2, (int) ((currentTick >>> (2 * SLOT_BITS)) & SLOT_MASK), currentTime);
+					}
+				}
+				int slot = (int) (currentTick & SLOT_MASK);
+				Entry entry = wheel[slot];
+				wheel[slot] = null;
+				while (entry != null) {
+					Entry next = entry.wheelNext;
+					entry.wheelNext = null;
+					entry.wheelPrev = null;
+					entry.wheelSlot = -1;
+					if (entry.invalidateAtTime < currentTime) {
+						remove(entry);
+						removed++;
+					} else {
+						schedule(entry, currentTime);
+					}
+					entry = next;
+				}
+			}
+			return removed;
+		}
+
+		private void cascade(int level, int slot, long currentTime) {
+			int idx = level * SLOTS + slot;
+			Entry entry = wheel[idx];
+			wheel[idx] = null;
+			while (entry != null) {
+				Entry next = entry.wheelNext;
+				entry.wheelNext = null;
+				entry.wheelPrev = null;
+				entry.wheelSlot = -1;
+				schedule(entry, currentTime);
+				entry = next;
+			}
+		}
+
+		private void clear() {
+			table = new Entry[16];
+			size = 0;
+			Arrays.fill(wheel, null);
+			changes.clear();
+		}
+
+		private void forEach(Consumer<Entry> consumer) {
+			for (Entry head : table) {
+				for (Entry entry = head; entry != null; entry = entry.hashNext) {
+					consumer.accept(entry);
+				}
+			}
+		}
+
+		private Entry get(long key) {
+			for (Entry entry = table[index(key, table.length)]; entry != null; entry = entry.hashNext) {
+				if (entry.key == key) {
+					return entry;
+				}
+			}
+			return null;
+		}
+
+		private static int index(long key, int length) {
+			return (int) key & (length - 1);
+		}
+
+		private void put(Entry entry) {
+			if (size >= table.length * 3 / 4) {
+				Entry[] old = table;
+				table = new Entry[old.length * 2];
+				for (Entry head : old) {
+					Entry e = head;
+					while (e != null) {
+						Entry next = e.hashNext;
+						int idx = index(e.key, table.length);
+						e.hashNext = table[idx];
+						table[idx] = e;
+						e = next;
+					}
+				}
+			}
+			int idx = index(entry.key, table.length);
+			entry.hashNext = table[idx];
+			table[idx] = entry;
+			size++;
+		}
+
+		private void remove(Entry entry) {
+			unlink(entry);
+			int idx = index(entry.key, table.length);
+			Entry prev = null;
+			for (Entry e = table[idx]; e != null; prev = e, e = e.hashNext) {
+				if (e == entry) {
+					if (prev == null) {
+						table[idx] = e.hashNext;
+					} else {
+						prev.hashNext = e.hashNext;
+					}
+					e.hashNext = null;
+					size--;
+					return;
+				}
+			}
+		}
+
+		private void schedule(Entry entry, long currentTime) {
+			if (currentTick == Long.MIN_VALUE) {
+				currentTick = currentTime / TICK;
+			}
+			// entry is outdated when current time is greater than its invalidation time
+			long expireTick = Math.max(entry.invalidateAtTime / TICK + 1, currentTick + 1);
+			long delta = expireTick - currentTick;
+			int idx;
+			if (delta < SLOTS) {
+				idx = (int) (expireTick & SLOT_MASK);
+			} else if (delta < (1L << (2 * SLOT_BITS))) {
+				idx = SLOTS + (int) ((expireTick >>> SLOT_BITS) & SLOT_MASK);
+			} else {
+				long tick = Math.min(expireTick, currentTick + (1L << (3 * SLOT_BITS)) - (1L << (2 * SLOT_BITS)));
+				idx = 2 * SLOTS + (int) ((tick >>> (2 * SLOT_BITS)) & SLOT_MASK);
+			}
+			if (entry.wheelSlot == idx) {
+				return;
+			}
+			unlink(entry);
+			entry.wheelSlot = idx;
+			entry.wheelNext = wheel[idx];
+			if (entry.wheelNext != null) {
+				entry.wheelNext.wheelPrev = entry;
+			}
+			wheel[idx] = entry;
+		}
+
+		private void unlink(Entry entry) {
+			if (entry.wheelSlot < 0) {
+				return;
+			}
+			if (entry.wheelPrev == null) {
+				wheel[entry.wheelSlot] = entry.wheelNext;
+			} else {
+				entry.wheelPrev.wheelNext = entry.wheelNext;
+			}
+			if (entry.wheelNext != null) {
+				entry.wheelNext.wheelPrev = entry.wheelPrev;
+			}
+			entry.wheelNext = null;
+			entry.wheelPrev = null;
+			entry.wheelSlot = -1;
+		}
+	}
+}
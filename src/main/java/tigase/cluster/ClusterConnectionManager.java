@@ -32,6 +32,7 @@ import tigase.db.comp.RepositoryChangeListenerIfc;
 import tigase.eventbus.EventBus;
 import tigase.eventbus.EventBusEvent;
 import tigase.eventbus.events.StartupFinishedEvent;
+import tigase.io.AdaptiveCompressionPolicy;
 import tigase.kernel.beans.Bean;
 import tigase.kernel.beans.Inject;
 import tigase.kernel.beans.config.ConfigField;
@@ -97,6 +98,10 @@ public class ClusterConnectionManager
 
 	public static final String COMPRESS_STREAM_PROP_KEY = "compress-stream";
 
+	public static final String COMPRESS_STREAM_ADAPTIVE_PROP_KEY = "compress-stream-adaptive";
+
+	public static final String COMPRESS_STREAM_DICTIONARY_PROP_KEY = "compress-stream-dictionary";
+
 	public static final String CONNECT_ALL_PAR = "--cluster-connect-all";
 
 	public static final String CONNECT_ALL_PROP_KEY = "connect-all";
@@ -130,6 +135,11 @@ public class ClusterConnectionManager
 	private ClusterControllerIfc clusterController = null;
 	@ConfigField(desc = "Compress stream", alias = COMPRESS_STREAM_PROP_KEY)
 	private boolean compress_stream = COMPRESS_STREAM_PROP_VAL;
+	@ConfigField(desc = "Adjust stream compression level to link throughput, CPU usage and compression ratio", alias = COMPRESS_STREAM_ADAPTIVE_PROP_KEY)
+	private boolean compress_stream_adaptive = false;
+	@ConfigField(desc = "Use preset dictionary for adaptive stream compression (enable only when all nodes run adaptive compression)", alias = COMPRESS_STREAM_DICTIONARY_PROP_KEY)
+	private boolean compress_stream_dictionary = false;
+	private final AdaptiveCompressionPolicy compressionPolicy = new AdaptiveCompressionPolicy();
 	@ConfigField(desc = "Connect to all nodes", alias = CONNECT_ALL_PROP_KEY)
 	private boolean connect_all = CONNECT_ALL_PROP_VAL;
 	// private long packetsSent = 0;
@@ -337,6 +347,12 @@ public class ClusterConnectionManager
 		maxNodesWithinLastWeek = maxNodes.getMaxValueInRange(7).orElse(-1);
 	}
 
+	@Override
+	public synchronized void everyMinute() {
+		super.everyMinute();
+		connectionSelector.everyMinute();
+	}
+
 	@Override
 	public synchronized void everyHour() {
 		super.everyHour();
@@ -391,6 +407,15 @@ public class ClusterConnectionManager
 		}
 	}
 
+	@Override
+	public void processOutPackets(Queue<Packet> packets) {
+		Packet packet;
+
+		while ((packet = packets.poll()) != null) {
+			processOutPacket(packet);
+		}
+	}
+
 	@Override
 	public void processPacket(Packet packet) {
 		if (log.isLoggable(Level.FINEST)) {
@@ -501,7 +526,11 @@ public class ClusterConnectionManager
 				new Object[]{serv.getRemoteAddress(), serv.connectionType().toString(), serv.getUniqueId()});
 		if (compress_stream) {
 			log.log(Level.CONFIG, "Starting stream compression for: {0}", serv.getUniqueId());
-			serv.startZLib(Deflater.BEST_COMPRESSION);
+			if (compress_stream_adaptive) {
+				serv.startZLib(compressionPolicy, compress_stream_dictionary);
+			} else {
+				serv.startZLib(Deflater.BEST_COMPRESSION);
+			}
 		}
 		switch (serv.connectionType()) {
 			case connect:
@@ -710,6 +739,7 @@ public class ClusterConnectionManager
 		list.add(getName(), "Average compression ratio", ioStatsGetter.getAverageCompressionRatio(), Level.FINE);
 		list.add(getName(), "Average decompression ratio", ioStatsGetter.getAverageDecompressionRatio(), Level.FINE);
 		list.add(getName(), "Waiting to send", ioStatsGetter.getWaitingToSend(), Level.FINE);
+		connectionSelector.getStatistics(getName(), list);
 
 		list.add(getName(), "Max daily cluster nodes count in last month", maxNodes, Level.INFO);
 		list.add(getName(), "Max nodes count within last week", maxNodesWithinLastWeek, Level.INFO);
@@ -835,7 +865,10 @@ public class ClusterConnectionManager
 
 		XMPPIOService<Object> serv = connectionSelector.selectConnection(p, conns);
 		if (serv != null) {
-			return super.writePacketToSocket(serv, p);
+			long start = System.nanoTime();
+			boolean result = super.writePacketToSocket(serv, p);
+			connectionSelector.packetWritten(p, serv, System.nanoTime() - start);
+			return result;
 		} else {
 			log.log(Level.WARNING, "No cluster connection to send a packet: {0}", p);
 
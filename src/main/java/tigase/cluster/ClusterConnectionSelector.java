@@ -24,14 +24,33 @@ import tigase.kernel.beans.Inject;
 import tigase.kernel.beans.config.ConfigField;
 import tigase.server.Packet;
 import tigase.server.Priority;
+import tigase.stats.LatencyHistogram;
+import tigase.stats.StatisticsList;
 import tigase.xmpp.XMPPIOService;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
 
 /**
  * Advanced implementation of ClusterConnectionSelectorIfc which separates packets with priority CLUSTER or higher from
  * other packets in cluster connections by using separate connections for them
+ * <br>
+ * Connections to the cluster node are split into lanes, each used for packets within a range of priorities, so a big
+ * stanza or a burst of packets with lower priority do not delay cluster commands sent over the other lane. Lanes are
+ * configured with <code>lanes</code> property as a list of <code>name:priority:connections</code> items, ie.
+ * <code>[ 'system:SYSTEM:2', 'normal:HIGH:0', 'bulk:LOW:1' ]</code>, where <code>priority</code> is the highest
+ * priority of packets sent over the lane (it handles all packets up to the priority of the next lane) and
+ * <code>connections</code> is the number of connections used by the lane (<code>0</code> means connections left by
+ * other lanes). Within a lane connection is selected by hash code of the packet, so packets for the same user are
+ * always sent over the same connection and their order is preserved. If there are not enough connections to the node
+ * for a lane, packets are sent over all connections.
+ * <br>
+ * If lanes are not configured, <code>cluster-sys-connections-per-node</code> connections are used for packets with
+ * priority CLUSTER or higher and remaining connections for other packets.
  *
  * @author andrzej
  */
@@ -41,33 +60,113 @@ public class ClusterConnectionSelector
 
 	protected static final String CLUSTER_SYS_CONNECTIONS_PER_NODE_PROP_KEY = "cluster-sys-connections-per-node";
 
+	private static final Priority[] PRIORITIES = Priority.values();
+
 	@ConfigField(desc = "Number of cluster connetions per node", alias = "cluster-connections-per-node")
 	private int allConns = ClusterConnectionManager.CLUSTER_CONNECTIONS_PER_NODE_VAL;
 	@Inject(nullAllowed = true)
 	private ClusterConnectionHandler handler;
+	// lane used for packets with priority, indexed by priority ordinal
+	private volatile Lane[] laneForPriority;
+	@ConfigField(desc = "Cluster connection lanes", alias = "lanes")
+	private String[] lanes = null;
+	// lanes in order of connections used by them
+	private volatile Lane[] lanesOrder;
 	@ConfigField(desc = "Number of system connections per node", alias = "cluster-sys-connections-per-node")
 	private int sysConns = 2;
 
+	public ClusterConnectionSelector() {
+		initLanes();
+	}
+
+	@Override
+	public void everyMinute() {
+		for (Lane lane : lanesOrder) {
+			lane.everyMinute();
+		}
+	}
+
+	public String[] getLanes() {
+		return lanes;
+	}
+
+	public void setLanes(String[] lanes) {
+		this.lanes = lanes;
+		initLanes();
+	}
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		for (Lane lane : lanesOrder) {
+			lane.getStatistics(compName, list);
+		}
+	}
+
+	public int getSysConns() {
+		return sysConns;
+	}
+
+	public void setSysConns(int sysConns) {
+		this.sysConns = sysConns;
+		initLanes();
+	}
+
+	@Override
+	public void packetWritten(Packet packet, XMPPIOService<Object> serv, long nanos) {
+		laneForPacket(packet).writeHistogram.record(nanos);
+	}
+
 	@Override
 	public XMPPIOService<Object> selectConnection(Packet p, ClusterConnection conn) {
 		if (conn == null) {
 			return null;
 		}
 
-		int code = Math.abs(handler.hashCodeForPacket(p));
 		List<XMPPIOService<Object>> conns = conn.getConnections();
-		if (conns.size() > 0) {
-			if (conns.size() > sysConns) {
-				if (p.getPriority() != null && p.getPriority().ordinal() <= Priority.CLUSTER.ordinal()) {
-					return conns.get(code % sysConns);
-				} else {
-					return conns.get(sysConns + (code % (conns.size() - sysConns)));
-				}
+		int size = conns.size();
+		if (size == 0) {
+			return null;
+		}
+
+		int code = Math.abs(handler.hashCodeForPacket(p));
+		Lane lane = laneForPacket(p);
+		XMPPIOService<Object> result;
+		// finding connections used by the lane
+		Lane[] order = lanesOrder;
+		int flexible = 0;
+		int fixed = 0;
+		for (Lane l : order) {
+			if (l.connections > 0) {
+				fixed += l.connections;
 			} else {
-				return conns.get(code % conns.size());
+				++flexible;
 			}
 		}
-		return null;
+		int remaining = Math.max(0, size - fixed);
+		int offset = 0;
+		int laneSize = 0;
+		int flexibleIdx = 0;
+		for (Lane l : order) {
+			if (l.connections > 0) {
+				laneSize = Math.min(l.connections, Math.max(0, size - offset));
+			} else {
+				laneSize = remaining / flexible + (flexibleIdx < remaining % flexible ? 1 : 0);
+				++flexibleIdx;
+			}
+			if (l == lane) {
+				break;
+			}
+			offset += laneSize;
+		}
+		if (laneSize > 0) {
+			result = conns.get(offset + (code % laneSize));
+		} else {
+			result = conns.get(code % size);
+		}
+
+		lane.packets.increment();
+		lane.maxWaitingToSend.accumulateAndGet(result.waitingToSendSize(), Math::max);
+		return result;
 	}
 
 	@Override
@@ -78,10 +177,89 @@ public class ClusterConnectionSelector
 	@Override
 	public void setProperties(Map<String, Object> props) {
 		if (props.containsKey(CLUSTER_SYS_CONNECTIONS_PER_NODE_PROP_KEY)) {
-			sysConns = (Integer) props.get(CLUSTER_SYS_CONNECTIONS_PER_NODE_PROP_KEY);
+			setSysConns((Integer) props.get(CLUSTER_SYS_CONNECTIONS_PER_NODE_PROP_KEY));
 		}
 		if (props.containsKey(ClusterConnectionManager.CLUSTER_CONNECTIONS_PER_NODE_PROP_KEY)) {
 			allConns = (Integer) props.get(ClusterConnectionManager.CLUSTER_CONNECTIONS_PER_NODE_PROP_KEY);
 		}
 	}
+
+	private void initLanes() {
+		List<Lane> order = new ArrayList<>();
+		if (lanes == null || lanes.length == 0) {
+			order.add(new Lane("system", Priority.SYSTEM, sysConns));
+			order.add(new Lane("normal", Priority.HIGH, 0));
+		} else {
+			for (String item : lanes) {
+				String[] parts = item.split(":");
+				if (parts.length != 3) {
+					throw new IllegalArgumentException("Invalid cluster connection lane: " + item);
+				}
+				order.add(new Lane(parts[0].trim(), Priority.valueOf(parts[1].trim()),
+								   Integer.parseInt(parts[2].trim())));
+			}
+		}
+		if (order.stream().noneMatch(lane -> lane.connections <= 0)) {
+			// connections not used by any lane would be wasted
+			Lane last = order.remove(order.size() - 1);
+			order.add(new Lane(last.name, last.priority, 0));
+		}
+
+		Lane[] forPriority = new Lane[PRIORITIES.length];
+		for (Priority priority : PRIORITIES) {
+			Lane selected = null;
+			for (Lane lane : order) {
+				if (lane.priority.ordinal() <= priority.ordinal() &&
+						(selected == null || selected.priority.ordinal() < lane.priority.ordinal())) {
+					selected = lane;
+				}
+			}
+			if (selected == null) {
+				// priority is higher than priority of any lane
+				for (Lane lane : order) {
+					if (selected == null || selected.priority.ordinal() > lane.priority.ordinal()) {
+						selected = lane;
+					}
+				}
+			}
+			forPriority[priority.ordinal()] = selected;
+		}
+		lanesOrder = order.toArray(new Lane[order.size()]);
+		laneForPriority = forPriority;
+	}
+
+	private Lane laneForPacket(Packet p) {
+		Priority priority = p.getPriority();
+		return laneForPriority[(priority == null ? Priority.NORMAL : priority).ordinal()];
+	}
+
+	private static class Lane {
+
+		private final int connections;
+		private final AtomicInteger maxWaitingToSend = new AtomicInteger();
+		private final String name;
+		private final LongAdder packets = new LongAdder();
+		private final Priority priority;
+		private final LatencyHistogram writeHistogram;
+		private int lastMinuteMaxWaitingToSend = 0;
+
+		private Lane(String name, Priority priority, int connections) {
+			this.name = name;
+			this.priority = priority;
+			this.connections = connections;
+			this.writeHistogram = new LatencyHistogram("Lane " + name + " write", Level.FINER);
+		}
+
+		private void everyMinute() {
+			lastMinuteMaxWaitingToSend = maxWaitingToSend.getAndSet(0);
+			writeHistogram.everyMinute();
+		}
+
+		private void getStatistics(String compName, StatisticsList list) {
+			list.add(compName, "Lane " + name + " packets", packets.sum(), Level.FINE);
+			list.add(compName, "Lane " + name + " max waiting to send last minute", lastMinuteMaxWaitingToSend,
+					 Level.FINE);
+			writeHistogram.getStatistics(compName, list);
+		}
+	}
 }
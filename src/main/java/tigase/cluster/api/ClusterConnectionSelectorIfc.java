@@ -19,6 +19,7 @@ package tigase.cluster.api;
 
 import tigase.cluster.ClusterConnection;
 import tigase.server.Packet;
+import tigase.stats.StatisticsList;
 import tigase.xmpp.XMPPIOService;
 
 import java.util.Map;
@@ -40,4 +41,26 @@ public interface ClusterConnectionSelectorIfc {
 
 	void setProperties(Map<String, Object> props);
 
+	/**
+	 * Method called every minute to allow selector to update its statistics
+	 */
+	default void everyMinute() {
+	}
+
+	/**
+	 * Method adds statistics of connection selection to the list
+	 */
+	default void getStatistics(String compName, StatisticsList list) {
+	}
+
+	/**
+	 * Method called after packet was passed to the selected connection
+	 *
+	 * @param packet packet which was sent
+	 * @param serv connection selected for the packet
+	 * @param nanos time spent on passing packet to the connection (and writing it to the socket if possible)
+	 */
+	default void packetWritten(Packet packet, XMPPIOService<Object> serv, long nanos) {
+	}
+
 }
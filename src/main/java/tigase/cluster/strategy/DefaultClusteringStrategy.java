@@ -55,6 +55,7 @@ public class DefaultClusteringStrategy<E extends ConnectionRecordIfc>
 	private static final Logger log = Logger.getLogger(DefaultClusteringStrategy.class.getName());
 	private static final String PRESENCE_TYPE_INITIAL = "initial";
 	private static final String PRESENCE_TYPE_KEY = "presence-type";
+	private static final String PRESENCE_TYPE_LOGOUT = "logout";
 	private static final String PRESENCE_TYPE_UPDATE = "update";
 	private static final String USER_CONNECTED_CMD = "user-connected-sm-cmd";
 	private static final String USER_PRESENCE_CMD = "user-presence-sm-cmd";
@@ -150,6 +151,7 @@ public class DefaultClusteringStrategy<E extends ConnectionRecordIfc>
 			presence.setAttribute("type", StanzaType.unavailable.name());
 
 			Map<String, String> params = prepareConnectionParams(conn);
+			params.put(PRESENCE_TYPE_KEY, PRESENCE_TYPE_LOGOUT);
 			List<JID> cl_nodes = getNodesConnected();
 
 			if ((cl_nodes != null) && (cl_nodes.size() > 0)) {
@@ -261,7 +263,27 @@ public class DefaultClusteringStrategy<E extends ConnectionRecordIfc>
 		return rec;
 	}
 
-	private List<JID> selectNodes(JID fromNode, Set<JID> visitedNodes) {
+	/**
+	 * Method called when user connected to other cluster node.
+	 *
+	 * @param node cluster node on which user is connected.
+	 * @param rec connection record of the user connection.
+	 */
+	protected void remoteUserConnected(JID node, ConnectionRecordIfc rec) {
+		// Do nothing
+	}
+
+	/**
+	 * Method called when user disconnected from other cluster node.
+	 *
+	 * @param node cluster node from which user disconnected.
+	 * @param rec connection record of the user connection.
+	 */
+	protected void remoteUserDisconnected(JID node, ConnectionRecordIfc rec) {
+		// Do nothing
+	}
+
+	protected List<JID> selectNodes(JID fromNode, Set<JID> visitedNodes) {
 		List<JID> result = null;
 		List<JID> cl_nodes_list = getNodesConnected();
 		int size = cl_nodes_list.size();
@@ -343,6 +365,8 @@ public class DefaultClusteringStrategy<E extends ConnectionRecordIfc>
 			// Queue<Packet> results = new ArrayDeque<Packet>(10);
 			ConnectionRecordIfc rec = getConnectionRecord(fromNode, data);
 
+			remoteUserConnected(fromNode, rec);
+
 			// strategy.usersConnected(results, rec);
 			// addOutPackets(results);
 			// There is one more thing....
@@ -397,6 +421,9 @@ public class DefaultClusteringStrategy<E extends ConnectionRecordIfc>
 			}
 
 			ConnectionRecordIfc rec = getConnectionRecord(fromNode, data);
+			if (PRESENCE_TYPE_LOGOUT.equals(data.get(PRESENCE_TYPE_KEY))) {
+				remoteUserDisconnected(fromNode, rec);
+			}
 			XMPPSession session = sm.getXMPPSessions().get(rec.getUserJid().getBareJID());
 			Element elem = packets.poll();
 
@@ -55,7 +55,7 @@ public abstract class DefaultClusteringStrategyAbstract<E extends ConnectionReco
 	private static final String ERROR_FORWARDING_KEY = "error-forwarding";
 
 	private static final Logger log = Logger.getLogger(DefaultClusteringStrategyAbstract.class.getName());
-	private static final String PACKET_FORWARD_CMD = "packet-forward-sm-cmd";
+	protected static final String PACKET_FORWARD_CMD = "packet-forward-sm-cmd";
 	@Inject
 	protected ClusterControllerIfc cluster = null;
 	protected String comp = "sess-man";
@@ -171,20 +171,8 @@ public abstract class DefaultClusteringStrategyAbstract<E extends ConnectionReco
 				log.log(Level.FINEST, "Forwarding packet {0} to nodes: {1}", new Object[]{packet, toNodes});
 			}
 
-			Map<String, String> data = null;
+			Map<String, String> data = prepareForwardData(packet, conn, toNodes);
 
-			if (conn != null || packet.getPacketFrom() != null || packet.getStableId() != null) {
-				data = new LinkedHashMap<String, String>();
-				if (conn != null) {
-					data.put(SESSION_FOUND_KEY, sm.getComponentId().toString());
-				}
-				if (packet.getPacketFrom() != null) {
-					data.put(PacketForwardCmd.PACKET_FROM_KEY, packet.getPacketFrom().toString());
-				}
-				if (packet.getStableId() != null) {
-					data.put(PacketForwardCmd.STABLE_ID_KEY, packet.getStableId());
-				}
-			}
 			cluster.sendToNodes(PACKET_FORWARD_CMD, data, packet.getElement(), sm.getComponentId(), null,
 								toNodes.toArray(new JID[toNodes.size()]));
 		} else {
@@ -196,6 +184,33 @@ public abstract class DefaultClusteringStrategyAbstract<E extends ConnectionReco
 		return result;
 	}
 
+	/**
+	 * Method prepares data sent to other cluster nodes together with the forwarded packet.
+	 *
+	 * @param packet to be forwarded
+	 * @param conn user session for the packet on this node or <code>null</code>
+	 * @param toNodes cluster nodes to which the packet will be sent
+	 *
+	 * @return data for the forwarded packet or <code>null</code> if there is no data to send.
+	 */
+	protected Map<String, String> prepareForwardData(Packet packet, XMPPResourceConnection conn, List<JID> toNodes) {
+		Map<String, String> data = null;
+
+		if (conn != null || packet.getPacketFrom() != null || packet.getStableId() != null) {
+			data = new LinkedHashMap<String, String>();
+			if (conn != null) {
+				data.put(SESSION_FOUND_KEY, sm.getComponentId().toString());
+			}
+			if (packet.getPacketFrom() != null) {
+				data.put(PacketForwardCmd.PACKET_FROM_KEY, packet.getPacketFrom().toString());
+			}
+			if (packet.getStableId() != null) {
+				data.put(PacketForwardCmd.STABLE_ID_KEY, packet.getStableId());
+			}
+		}
+		return data;
+	}
+
 	/**
 	 * Method attempts to send the packet to the next cluster node. Returns true on successful attempt and false on
 	 * failure. The true result does not mean that the packet has been delivered though. Only that it was sent. The send
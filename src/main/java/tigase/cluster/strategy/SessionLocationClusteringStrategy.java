@@ -0,0 +1,294 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.cluster.strategy;
+
+import tigase.cluster.api.ClusterCommandException;
+import tigase.cluster.api.CommandListenerAbstract;
+import tigase.kernel.beans.config.ConfigField;
+import tigase.server.Packet;
+import tigase.server.Priority;
+import tigase.stats.StatisticsList;
+import tigase.xml.Element;
+import tigase.xmpp.StanzaType;
+import tigase.xmpp.XMPPResourceConnection;
+import tigase.xmpp.XMPPSession;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static tigase.cluster.api.SessionManagerClusteredIfc.SESSION_FOUND_KEY;
+
+/**
+ * Clustering strategy which forwards packets directly to cluster nodes on which recipient is connected instead of
+ * passing them through all cluster nodes one by one.
+ * <br>
+ * Each node keeps {@link SessionLocationDirectory} updated with notifications about users connecting to and
+ * disconnecting from other nodes (sent by {@link DefaultClusteringStrategy} anyway) and with snapshots of connected
+ * users exchanged as Bloom filters when nodes connect to each other. Packet is sent to the first node returned by the
+ * directory, which passes it to the next node with user session (if any). If no node has a session for the recipient
+ * (directory was not accurate) the packet is sent back to the first node to be processed as a packet for an offline
+ * user. If the directory is not complete, ie. because some node runs a different strategy, packets for users not
+ * found in the directory are passed through all nodes, as done by {@link DefaultClusteringStrategy}.
+ * <br>
+ * To enable, set <code>'sess-man' () { 'strategy' (class: tigase.cluster.strategy.SessionLocationClusteringStrategy)
+ * {} }</code> on all cluster nodes.
+ */
+public class SessionLocationClusteringStrategy<E extends ConnectionRecordIfc>
+		extends DefaultClusteringStrategy<E> {
+
+	private static final String DIRECTORY_ROUTED_KEY = "directory-routed";
+	private static final String FILTER_HASHES_KEY = "hashes";
+	private static final String FILTER_KEY = "filter";
+	private static final Logger log = Logger.getLogger(SessionLocationClusteringStrategy.class.getName());
+	private static final String SESSION_DIRECTORY_CMD = "session-directory-sm-cmd";
+
+	private final SessionLocationDirectory directory = new SessionLocationDirectory();
+	private long directedForwards = 0;
+	private long directoryHits = 0;
+	private long directoryMisses = 0;
+	@ConfigField(desc = "Interval of sending snapshots of local users to other nodes (in minutes)", alias = "directory-refresh-interval")
+	private long directoryRefreshInterval = 10;
+	private long finishedForwards = 0;
+	private long hops = 0;
+	private long minutesSinceRefresh = 0;
+	private long ringForwards = 0;
+	private long skippedForwards = 0;
+
+	public SessionLocationClusteringStrategy() {
+		super();
+		addCommandListener(new SessionDirectoryCommand(SESSION_DIRECTORY_CMD));
+	}
+
+	@Override
+	public void everyMinute() {
+		super.everyMinute();
+		if (directoryRefreshInterval > 0 && ++minutesSinceRefresh >= directoryRefreshInterval) {
+			minutesSinceRefresh = 0;
+			sendSnapshot(getNodesConnected());
+		}
+	}
+
+	public SessionLocationDirectory getDirectory() {
+		return directory;
+	}
+
+	@Override
+	public String getInfo() {
+		return "session location directory strategy";
+	}
+
+	@Override
+	public List<JID> getNodesForPacketForward(JID fromNode, Set<JID> visitedNodes, Packet packet) {
+		if (visitedNodes != null || isPresenceBroadcast(packet) || !isSuitableForForward(packet) ||
+				isIqResponseToNode(packet)) {
+			return super.getNodesForPacketForward(fromNode, visitedNodes, packet);
+		}
+
+		List<JID> connected = getNodesConnected();
+		JID node = selectDirectoryNode(packet, connected, null);
+		if (node != null) {
+			++directedForwards;
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Directory node found: {0}, for packet: {1}", new Object[]{node, packet});
+			}
+			return Collections.singletonList(node);
+		}
+		if (directory.isComplete(connected)) {
+			// recipient is not connected to any other node
+			++skippedForwards;
+			++finishedForwards;
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "No directory node found, not forwarding packet: {0}", packet);
+			}
+			return null;
+		}
+		++ringForwards;
+		return super.getNodesForPacketForward(fromNode, null, packet);
+	}
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		super.getStatistics(compName, list);
+		list.add(comp, prefix + "Directed forwards", directedForwards, Level.FINE);
+		list.add(comp, prefix + "Ring forwards", ringForwards, Level.FINE);
+		list.add(comp, prefix + "Skipped forwards", skippedForwards, Level.FINE);
+		list.add(comp, prefix + "Average hops", finishedForwards > 0 ? (float) hops / finishedForwards : 0,
+				 Level.FINE);
+		list.add(comp, prefix + "Directory hits", directoryHits, Level.FINE);
+		list.add(comp, prefix + "Directory misses", directoryMisses, Level.FINE);
+		long checked = directoryHits + directoryMisses;
+		list.add(comp, prefix + "Directory accuracy", checked > 0 ? (100f * directoryHits) / checked : 100f,
+				 Level.FINE);
+		list.add(comp, prefix + "Directory users", directory.size(), Level.FINER);
+		list.add(comp, prefix + "Directory complete", String.valueOf(directory.isComplete(getNodesConnected())),
+				 Level.FINER);
+	}
+
+	@Override
+	public void nodeConnected(JID node) {
+		super.nodeConnected(node);
+		sendSnapshot(Collections.singletonList(node));
+	}
+
+	@Override
+	public void nodeDisconnected(JID node) {
+		super.nodeDisconnected(node);
+		directory.nodeDisconnected(node);
+	}
+
+	@Override
+	public boolean sendToNextNode(JID fromNode, Set<JID> visitedNodes, Map<String, String> data, Packet packet) {
+		if (data == null || data.get(DIRECTORY_ROUTED_KEY) == null) {
+			boolean result = super.sendToNextNode(fromNode, visitedNodes, data, packet);
+			if (!result) {
+				finishForward(fromNode, visitedNodes);
+			}
+			return result;
+		}
+
+		final JID localNode = sm.getComponentId();
+		final boolean origin = localNode.equals(fromNode);
+		if (!origin) {
+			if (localNode.toString().equals(data.get(SESSION_FOUND_KEY))) {
+				++directoryHits;
+			} else {
+				++directoryMisses;
+			}
+		}
+
+		List<JID> connected = getNodesConnected();
+		JID next = selectDirectoryNode(packet, connected, visitedNodes);
+		if (next == null && !origin) {
+			if (data.get(SESSION_FOUND_KEY) != null) {
+				// packet was delivered, there is no need to send it back to the first node
+				finishForward(fromNode, visitedNodes);
+				return false;
+			}
+			if (directory.isComplete(connected)) {
+				next = fromNode;
+			} else {
+				// directory is not complete, packet has to visit all remaining nodes
+				data.remove(DIRECTORY_ROUTED_KEY);
+				return super.sendToNextNode(fromNode, visitedNodes, data, packet);
+			}
+		}
+		if (next == null) {
+			finishForward(fromNode, visitedNodes);
+			return false;
+		}
+
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Sending packet: {0}, to next directory node: {1}, visitedNodes: {2}",
+					new Object[]{packet, next, visitedNodes});
+		}
+		cluster.sendToNodes(PACKET_FORWARD_CMD, data, packet.getElement(), fromNode, visitedNodes, next);
+		return true;
+	}
+
+	@Override
+	protected Map<String, String> prepareForwardData(Packet packet, XMPPResourceConnection conn, List<JID> toNodes) {
+		Map<String, String> data = super.prepareForwardData(packet, conn, toNodes);
+		if (toNodes.size() == 1 && packet.getStanzaTo() != null && !isPresenceBroadcast(packet) &&
+				directory.getNodes(packet.getStanzaTo().getBareJID()).contains(toNodes.get(0))) {
+			if (data == null) {
+				data = new LinkedHashMap<>();
+			}
+			data.put(DIRECTORY_ROUTED_KEY, "true");
+		}
+		return data;
+	}
+
+	@Override
+	protected void remoteUserConnected(JID node, ConnectionRecordIfc rec) {
+		directory.addConnection(rec.getUserJid().getBareJID(), rec.getUserJid().getResource(), node);
+	}
+
+	@Override
+	protected void remoteUserDisconnected(JID node, ConnectionRecordIfc rec) {
+		directory.removeConnection(rec.getUserJid().getBareJID(), rec.getUserJid().getResource(), node);
+	}
+
+	private void finishForward(JID fromNode, Set<JID> visitedNodes) {
+		++finishedForwards;
+		if (visitedNodes != null) {
+			// first node is in visited nodes, so returning to it is not counted
+			hops += visitedNodes.size() - 1 + (sm.getComponentId().equals(fromNode) ? 1 : 0);
+		}
+	}
+
+	private boolean isPresenceBroadcast(Packet packet) {
+		return (packet.getElemName() == "presence") && (packet.getType() != StanzaType.error) &&
+				(packet.getStanzaFrom() != null) && (packet.getStanzaTo() == null);
+	}
+
+	private JID selectDirectoryNode(Packet packet, List<JID> connected, Set<JID> visitedNodes) {
+		JID to = packet.getStanzaTo();
+		if (to == null) {
+			return null;
+		}
+		for (JID node : directory.getNodes(to.getBareJID())) {
+			if (connected.contains(node) && (visitedNodes == null || !visitedNodes.contains(node)) &&
+					!sm.getComponentId().equals(node)) {
+				return node;
+			}
+		}
+		return null;
+	}
+
+	private void sendSnapshot(List<JID> nodes) {
+		if (nodes == null || nodes.isEmpty() || sm.getXMPPSessions() == null) {
+			return;
+		}
+		Set<BareJID> users = new HashSet<>();
+		for (Map.Entry<BareJID, XMPPSession> e : sm.getXMPPSessions().entrySet()) {
+			if (e.getValue().getActiveResourcesSize() > 0) {
+				users.add(e.getKey());
+			}
+		}
+		SessionLocationDirectory.NodeFilter filter = SessionLocationDirectory.NodeFilter.create(users);
+		Map<String, String> data = new LinkedHashMap<>();
+		data.put(FILTER_HASHES_KEY, String.valueOf(filter.getHashes()));
+		data.put(FILTER_KEY, filter.encode());
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Sending snapshot of {0} local users to nodes: {1}", new Object[]{users.size(), nodes});
+		}
+		cluster.sendToNodes(SESSION_DIRECTORY_CMD, data, sm.getComponentId(), nodes.toArray(new JID[nodes.size()]));
+	}
+
+	private class SessionDirectoryCommand
+			extends CommandListenerAbstract {
+
+		public SessionDirectoryCommand(String name) {
+			super(name, Priority.CLUSTER);
+		}
+
+		@Override
+		public void executeCommand(JID fromNode, Set<JID> visitedNodes, Map<String, String> data,
+								   Queue<Element> packets) throws ClusterCommandException {
+			try {
+				int hashes = Integer.parseInt(data.get(FILTER_HASHES_KEY));
+				directory.setSnapshot(fromNode, SessionLocationDirectory.NodeFilter.decode(data.get(FILTER_KEY), hashes));
+			} catch (RuntimeException ex) {
+				log.log(Level.WARNING, "Invalid session directory snapshot received from node: " + fromNode, ex);
+			}
+		}
+	}
+}
@@ -0,0 +1,257 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.cluster.strategy;
+
+import tigase.util.Base64;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Eventually consistent directory of cluster nodes on which users are connected.
+ * <br>
+ * Directory is built from two sources:
+ * <ul>
+ * <li>notifications about users connected and disconnected on other cluster nodes, which are stored exactly, per
+ * resource,</li>
+ * <li>snapshots of users connected to the cluster node sent by that node as a Bloom filter when nodes connect to each
+ * other (and refreshed periodically). Users removed after the snapshot was created are remembered until the next
+ * snapshot is received.</li>
+ * </ul>
+ * Directory may return nodes on which user is not connected anymore (ie. due to Bloom filter false positives), so a
+ * packet forwarded to the node returned by the directory has to be handled as usual if there is no session on that
+ * node. Negative answer is reliable only if directory is complete, which means that snapshots from all connected nodes
+ * were received.
+ */
+public class SessionLocationDirectory {
+
+	private final Map<JID, NodeFilter> filters = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<BareJID, Map<String, JID>> locations = new ConcurrentHashMap<>();
+
+	/**
+	 * Records user connection on a remote cluster node.
+	 *
+	 * @param userId bare JID of the user
+	 * @param resource resource of the user connection
+	 * @param node cluster node on which user is connected
+	 */
+	public void addConnection(BareJID userId, String resource, JID node) {
+		// maps with resources are not modified, so they may be read without locking
+		locations.compute(userId, (jid, resources) -> {
+			Map<String, JID> result = resources == null ? new HashMap<>(4) : new HashMap<>(resources);
+			result.put(resource, node);
+			return result;
+		});
+		NodeFilter filter = filters.get(node);
+		if (filter != null) {
+			filter.removed.remove(userId);
+		}
+	}
+
+	/**
+	 * Removes all information about users connected to the cluster node.
+	 *
+	 * @param node disconnected cluster node
+	 */
+	public void nodeDisconnected(JID node) {
+		filters.remove(node);
+		for (BareJID userId : locations.keySet()) {
+			locations.computeIfPresent(userId, (jid, resources) -> {
+				if (!resources.containsValue(node)) {
+					return resources;
+				}
+				Map<String, JID> result = new HashMap<>(resources);
+				result.values().removeIf(node::equals);
+				return result.isEmpty() ? null : result;
+			});
+		}
+	}
+
+	/**
+	 * Records user disconnection from a remote cluster node.
+	 *
+	 * @param userId bare JID of the user
+	 * @param resource resource of the user connection
+	 * @param node cluster node from which user disconnected
+	 */
+	public void removeConnection(BareJID userId, String resource, JID node) {
+		boolean[] connected = new boolean[]{false};
+		locations.computeIfPresent(userId, (jid, resources) -> {
+			Map<String, JID> result = new HashMap<>(resources);
+			result.remove(resource, node);
+			connected[0] = result.containsValue(node);
+			return result.isEmpty() ? null : result;
+		});
+		NodeFilter filter = filters.get(node);
+		if (!connected[0] && filter != null && filter.mightContain(userId)) {
+			filter.removed.add(userId);
+		}
+	}
+
+	/**
+	 * Replaces snapshot of users connected to the cluster node.
+	 *
+	 * @param node cluster node
+	 * @param filter snapshot of users connected to the node
+	 */
+	public void setSnapshot(JID node, NodeFilter filter) {
+		filters.put(node, filter);
+	}
+
+	/**
+	 * Returns cluster nodes on which user may be connected.
+	 *
+	 * @param userId bare JID of the user
+	 *
+	 * @return set of cluster nodes, empty if user is not connected to any of known nodes
+	 */
+	public Set<JID> getNodes(BareJID userId) {
+		Set<JID> result = null;
+		Map<String, JID> resources = locations.get(userId);
+		if (resources != null) {
+			result = new LinkedHashSet<>(resources.values());
+		}
+		for (Map.Entry<JID, NodeFilter> e : filters.entrySet()) {
+			if (e.getValue().mightContain(userId) && !e.getValue().removed.contains(userId)) {
+				if (result == null) {
+					result = new LinkedHashSet<>();
+				}
+				result.add(e.getKey());
+			}
+		}
+		return result == null ? Collections.emptySet() : result;
+	}
+
+	public boolean hasSnapshot(JID node) {
+		return filters.containsKey(node);
+	}
+
+	/**
+	 * Checks if directory has snapshots from all of passed nodes, so it knows about all users connected to them.
+	 *
+	 * @param nodes connected cluster nodes
+	 *
+	 * @return <code>true</code> if negative answers of the directory may be trusted
+	 */
+	public boolean isComplete(Collection<JID> nodes) {
+		for (JID node : nodes) {
+			if (!filters.containsKey(node)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public int size() {
+		return locations.size();
+	}
+
+	/**
+	 * Bloom filter with bare JIDs of users connected to the cluster node.
+	 */
+	public static class NodeFilter {
+
+		private static final int BITS_PER_ITEM = 10;
+		private static final int HASHES = 7;
+		private static final int MIN_BITS = 1024;
+
+		private final long[] bits;
+		private final int hashes;
+		private final Set<BareJID> removed = ConcurrentHashMap.newKeySet();
+
+		public static NodeFilter create(Collection<BareJID> users) {
+			int size = Math.max(MIN_BITS, users.size() * BITS_PER_ITEM);
+			NodeFilter filter = new NodeFilter(new long[(size + 63) / 64], HASHES);
+			for (BareJID userId : users) {
+				filter.add(userId);
+			}
+			return filter;
+		}
+
+		public static NodeFilter decode(String data, int hashes) {
+			ByteBuffer buf = ByteBuffer.wrap(Base64.decode(data));
+			long[] bits = new long[buf.remaining() / 8];
+			buf.asLongBuffer().get(bits);
+			return new NodeFilter(bits, hashes);
+		}
+
+		private static long hash(BareJID userId) {
+			// 64-bit FNV-1a
+			String str = userId.toString();
+			long h = 0xcbf29ce484222325L;
+			for (int i = 0; i < str.length(); i++) {
+				h ^= str.charAt(i);
+				h *= 0x100000001b3L;
+			}
+			return h;
+		}
+
+		private static long mix(long h) {
+			h ^= h >>> 33;
+			h *= 0xff51afd7ed558ccdL;
+			h ^= h >>> 33;
+			h *= 0xc4ceb9fe1a85ec53L;
+			h ^= h >>> 33;
+			return h;
+		}
+
+		private NodeFilter(long[] bits, int hashes) {
+			this.bits = bits;
+			this.hashes = hashes;
+		}
+
+		public String encode() {
+			ByteBuffer buf = ByteBuffer.allocate(bits.length * 8);
+			buf.asLongBuffer().put(bits);
+			return Base64.encode(buf.array());
+		}
+
+		public int getHashes() {
+			return hashes;
+		}
+
+		public boolean mightContain(BareJID userId) {
+			if (bits.length == 0) {
+				return false;
+			}
+			long h1 = hash(userId);
+			long h2 = mix(h1) | 1;
+			long size = bits.length * 64L;
+			for (int i = 0; i < hashes; i++) {
+				long idx = Math.floorMod(h1 + i * h2, size);
+				if ((bits[(int) (idx >>> 6)] & (1L << idx)) == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private void add(BareJID userId) {
+			long h1 = hash(userId);
+			long h2 = mix(h1) | 1;
+			long size = bits.length * 64L;
+			for (int i = 0; i < hashes; i++) {
+				long idx = Math.floorMod(h1 + i * h2, size);
+				bits[(int) (idx >>> 6)] |= (1L << idx);
+			}
+		}
+	}
+}
@@ -0,0 +1,337 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db;
+
+import tigase.stats.LatencyHistogram;
+import tigase.stats.StatisticsList;
+import tigase.stats.StatisticsProviderIfc;
+import tigase.xmpp.jid.BareJID;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Executes statements on a set of database connections asynchronously, returning {@link CompletableFuture} for each
+ * of them.
+ * <br>
+ * Each connection is checked out for a single statement execution and returned as soon as it is finished, so a
+ * slow query blocks only the connection which executes it, instead of every request of users which hash to the same
+ * connection. A connection may execute up to {@link #PIPELINE_DEPTH_PROP_KEY} independent statements at the same
+ * time, but never two executions of the same prepared statement as they would only wait for each other on the
+ * statement lock. Whether pipelined statements are really executed in parallel depends on the JDBC driver, as some
+ * drivers serialize all calls on a single connection.
+ * <br>
+ * Statements which cannot be executed at once wait in a bounded queue and fail with {@link SQLTimeoutException} if
+ * no connection was available for {@link #MAX_WAIT_PROP_KEY} milliseconds. Order of execution of statements is not
+ * guaranteed, so dependent statements should be chained on the returned future.
+ */
+public class AsyncStatementExecutor
+		implements StatisticsProviderIfc {
+
+	public static final String MAX_QUEUE_SIZE_PROP_KEY = "tigase.db.async.max-queue-size";
+	public static final String MAX_WAIT_PROP_KEY = "tigase.db.async.max-wait";
+	public static final String PIPELINE_DEPTH_PROP_KEY = "tigase.db.async.pipeline-depth";
+	private static final Logger log = Logger.getLogger(AsyncStatementExecutor.class.getName());
+	private static final long STATISTICS_PERIOD = TimeUnit.MINUTES.toNanos(1);
+	// waiting tasks which cannot be executed at once are skipped, but the queue is not scanned further than this
+	private static final int MAX_SCAN = 64;
+	private static final AtomicInteger threadCounter = new AtomicInteger();
+
+	private final LatencyHistogram executionHistogram = new LatencyHistogram("Async execution time", Level.FINE);
+	private final LongAdder executed = new LongAdder();
+	private final ThreadPoolExecutor executor;
+	private final LongAdder failed = new LongAdder();
+	private final List<Lane> lanes;
+	private final int maxQueueSize;
+	private final long maxWait;
+	private final int pipelineDepth;
+	private final LatencyHistogram queueHistogram = new LatencyHistogram("Async queue time", Level.FINE);
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder timedOut = new LongAdder();
+	private final ArrayDeque<Task<?>> waiting = new ArrayDeque<>();
+	private int inFlight = 0;
+	private long lastRotation = System.nanoTime();
+	private boolean stopped = false;
+
+	public AsyncStatementExecutor(List<DataRepository> repositories) {
+		this(repositories, Integer.getInteger(PIPELINE_DEPTH_PROP_KEY, 2),
+			 Integer.getInteger(MAX_QUEUE_SIZE_PROP_KEY, 10000), Long.getLong(MAX_WAIT_PROP_KEY, 30000));
+	}
+
+	/**
+	 * @param repositories single connection repositories used for execution of statements
+	 * @param pipelineDepth maximal number of statements executed at once on a single connection
+	 * @param maxQueueSize maximal number of statements waiting for a connection
+	 * @param maxWait maximal time in milliseconds which statement may wait for a connection
+	 */
+	public AsyncStatementExecutor(List<DataRepository> repositories, int pipelineDepth, int maxQueueSize,
+								  long maxWait) {
+		if (repositories.isEmpty()) {
+			throw new IllegalArgumentException("At least one repository is required");
+		}
+		this.pipelineDepth = Math.max(1, pipelineDepth);
+		this.maxQueueSize = maxQueueSize;
+		this.maxWait = maxWait;
+		this.lanes = new ArrayList<>(repositories.size());
+		for (DataRepository repo : repositories) {
+			lanes.add(new Lane(repo));
+		}
+		// every in-flight statement has its own thread, so tasks are never queued inside of the executor
+		int threads = lanes.size() * this.pipelineDepth;
+		this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+											   r -> {
+												   Thread t = new Thread(r, "jdbc-async-" +
+														   threadCounter.incrementAndGet());
+												   t.setDaemon(true);
+												   return t;
+											   });
+		this.executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Executes task with a prepared statement for the given key on the first available connection.
+	 *
+	 * @param user_id user for which statement is executed, passed to {@link DataRepository#getPreparedStatement(BareJID,
+	 * String)}
+	 * @param stIdKey key of the prepared statement
+	 * @param task task which sets parameters and executes the statement, called with the statement locked
+	 *
+	 * @return future completed with the result of the task or failed with an exception thrown by the task,
+	 * {@link SQLTransientException} if too many statements are waiting for execution or {@link SQLTimeoutException}
+	 * if statement waited too long for a connection
+	 */
+	public <T> CompletableFuture<T> execute(BareJID user_id, String stIdKey, DataRepository.StatementTask<T> task) {
+		Task<T> item = new Task<>(user_id, stIdKey, task);
+		synchronized (this) {
+			if (stopped) {
+				item.future.completeExceptionally(new SQLTransientException("Executor is stopped"));
+				return item.future;
+			}
+			if (waiting.size() >= maxQueueSize) {
+				rejected.increment();
+				item.future.completeExceptionally(
+						new SQLTransientException("Too many statements waiting for execution: " + waiting.size()));
+				return item.future;
+			}
+			waiting.offer(item);
+			dispatch();
+			if (item.lane != null) {
+				return item.future;
+			}
+		}
+		if (maxWait > 0) {
+			CompletableFuture.delayedExecutor(maxWait, TimeUnit.MILLISECONDS).execute(() -> timeout(item));
+		}
+		return item.future;
+	}
+
+	/**
+	 * Adds repository to the connections used for execution of statements, ie. when connection pool was extended.
+	 *
+	 * @param repo single connection repository
+	 */
+	public synchronized void addRepository(DataRepository repo) {
+		if (stopped) {
+			return;
+		}
+		for (Lane lane : lanes) {
+			if (lane.repo == repo) {
+				return;
+			}
+		}
+		lanes.add(new Lane(repo));
+		int threads = lanes.size() * pipelineDepth;
+		// maximum pool size cannot be lower than core pool size
+		executor.setMaximumPoolSize(threads);
+		executor.setCorePoolSize(threads);
+		dispatch();
+	}
+
+	public synchronized int getQueueSize() {
+		return waiting.size();
+	}
+
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		synchronized (this) {
+			// data sources are not notified every minute, so histograms are rotated when statistics are collected
+			long now = System.nanoTime();
+			if (now - lastRotation >= STATISTICS_PERIOD) {
+				lastRotation = now;
+				queueHistogram.everyMinute();
+				executionHistogram.everyMinute();
+			}
+			list.add(compName, "Async waiting statements", waiting.size(), Level.FINE);
+			list.add(compName, "Async executing statements", inFlight, Level.FINE);
+		}
+		list.add(compName, "Async executed statements", executed.sum(), Level.FINE);
+		list.add(compName, "Async failed statements", failed.sum(), Level.FINE);
+		list.add(compName, "Async rejected statements", rejected.sum(), Level.FINE);
+		list.add(compName, "Async timed out statements", timedOut.sum(), Level.FINE);
+		queueHistogram.getStatistics(compName, list);
+		executionHistogram.getStatistics(compName, list);
+	}
+
+	/**
+	 * Stops executor, statements waiting for a connection are failed and statements which are executed are allowed
+	 * to finish.
+	 */
+	public void stop() {
+		List<Task<?>> pending;
+		synchronized (this) {
+			stopped = true;
+			pending = new ArrayList<>(waiting);
+			waiting.clear();
+		}
+		for (Task<?> task : pending) {
+			task.future.completeExceptionally(new SQLTransientException("Executor is stopped"));
+		}
+		executor.shutdown();
+	}
+
+	private void dispatch() {
+		int scanned = 0;
+		Iterator<Task<?>> it = waiting.iterator();
+		while (it.hasNext() && inFlight < lanes.size() * pipelineDepth && scanned++ < MAX_SCAN) {
+			Task<?> task = it.next();
+			if (task.future.isDone()) {
+				// cancelled by the caller while waiting
+				it.remove();
+				continue;
+			}
+			Lane lane = checkout(task.stIdKey);
+			if (lane != null) {
+				it.remove();
+				task.lane = lane;
+				executor.execute(task);
+			}
+		}
+	}
+
+	private Lane checkout(String stIdKey) {
+		Lane result = null;
+		for (Lane lane : lanes) {
+			if (lane.executing.size() < pipelineDepth && !lane.executing.contains(stIdKey) &&
+					(result == null || lane.executing.size() < result.executing.size())) {
+				result = lane;
+				if (lane.executing.isEmpty()) {
+					break;
+				}
+			}
+		}
+		if (result != null) {
+			result.executing.add(stIdKey);
+			inFlight++;
+		}
+		return result;
+	}
+
+	private synchronized void release(Lane lane, String stIdKey) {
+		lane.executing.remove(stIdKey);
+		inFlight--;
+		dispatch();
+	}
+
+	private void timeout(Task<?> task) {
+		synchronized (this) {
+			if (!waiting.remove(task)) {
+				return;
+			}
+		}
+		timedOut.increment();
+		task.future.completeExceptionally(
+				new SQLTimeoutException("No connection available for " + maxWait + "ms to execute " + task.stIdKey));
+	}
+
+	private static class Lane {
+
+		private final Set<String> executing = new HashSet<>();
+		private final DataRepository repo;
+
+		private Lane(DataRepository repo) {
+			this.repo = repo;
+		}
+	}
+
+	private class Task<T>
+			implements Runnable {
+
+		private final long enqueueTime = System.nanoTime();
+		private final CompletableFuture<T> future = new CompletableFuture<>();
+		private final String stIdKey;
+		private final DataRepository.StatementTask<T> task;
+		private final BareJID user_id;
+		private Lane lane;
+
+		private Task(BareJID user_id, String stIdKey, DataRepository.StatementTask<T> task) {
+			this.user_id = user_id;
+			this.stIdKey = stIdKey;
+			this.task = task;
+		}
+
+		@Override
+		public void run() {
+			long start = System.nanoTime();
+			queueHistogram.record(start - enqueueTime);
+			T result = null;
+			Throwable error = null;
+			try {
+				PreparedStatement stmt = lane.repo.getPreparedStatement(user_id, stIdKey);
+				synchronized (stmt) {
+					result = task.execute(stmt);
+				}
+			} catch (SQLException | RuntimeException ex) {
+				error = ex;
+			} finally {
+				executionHistogram.record(System.nanoTime() - start);
+				// connection is returned before the future is completed, so it is available for chained statements
+				release(lane, stIdKey);
+			}
+			if (error == null) {
+				executed.increment();
+				future.complete(result);
+			} else {
+				failed.increment();
+				if (log.isLoggable(Level.FINEST)) {
+					log.log(Level.FINEST, "Execution of " + stIdKey + " failed", error);
+				}
+				future.completeExceptionally(error);
+			}
+		}
+	}
+}
@@ -23,6 +23,7 @@ import tigase.xmpp.jid.BareJID;
 import java.sql.*;
 import java.util.Calendar;
 import java.util.TimeZone;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * The interface defines a generic data repository for storing arbitrary data in any application specific form. This
@@ -200,6 +201,30 @@ public interface DataRepository
 	 */
 	PreparedStatement getPreparedStatement(int hashCode, String stIdKey) throws SQLException;
 
+	/**
+	 * Executes task with a prepared statement for a given key asynchronously. Statement is locked during execution of
+	 * the task, so it may set parameters and execute the statement without additional synchronization.
+	 * <br>
+	 * Default implementation executes task in the calling thread, pools of connections execute it on the first
+	 * available connection.
+	 *
+	 * @param user_id user for selection of connection to use.
+	 * @param stIdKey is a statement identification key.
+	 * @param task task which executes the statement and returns its result.
+	 *
+	 * @return future completed with the result of the task or failed with an exception thrown by the task.
+	 */
+	default <T> CompletableFuture<T> executeAsync(BareJID user_id, String stIdKey, StatementTask<T> task) {
+		try {
+			PreparedStatement stmt = getPreparedStatement(user_id, stIdKey);
+			synchronized (stmt) {
+				return CompletableFuture.completedFuture(task.execute(stmt));
+			}
+		} catch (SQLException | RuntimeException ex) {
+			return CompletableFuture.failedFuture(ex);
+		}
+	}
+
 	/**
 	 * Returns a DB connection string or DB connection URI.
 	 *
@@ -251,5 +276,11 @@ public interface DataRepository
 		}
 	}
 
-}
+	@FunctionalInterface
+	interface StatementTask<T> {
+
+		T execute(PreparedStatement stmt) throws SQLException;
 
+	}
+
+}
@@ -20,6 +20,7 @@ package tigase.db;
 import tigase.db.jdbc.DataRepositoryImpl;
 import tigase.db.util.DBInitForkJoinPoolCache;
 import tigase.db.util.JDBCPasswordObfuscator;
+import tigase.kernel.beans.UnregisterAware;
 import tigase.stats.StatisticsList;
 import tigase.stats.StatisticsProviderIfc;
 import tigase.util.Version;
@@ -34,6 +35,7 @@ import java.util.ArrayDeque;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ForkJoinTask;
@@ -47,17 +49,38 @@ import java.util.logging.Logger;
 */
 @Repository.Meta(supportedUris = {"jdbc:[^:]+:.*"})
 public class DataRepositoryPool
-		implements DataRepository, DataSourcePool<DataRepository>, StatisticsProviderIfc {
+		implements DataRepository, DataSourcePool<DataRepository>, StatisticsProviderIfc, UnregisterAware {
 
 	private static final Logger log = Logger.getLogger(DataRepositoryPool.class.getName());
 
 	// ~--- fields ---------------------------------------------------------------
+	private volatile AsyncStatementExecutor asyncExecutor = null;
 	private dbTypes database = null;
 	private CopyOnWriteArrayList<DataRepository> repoPool = new CopyOnWriteArrayList<DataRepository>();
 	private String resource_uri = null;
 
 	public void addRepo(DataRepository repo) {
-		repoPool.addIfAbsent(repo);
+		if (repoPool.addIfAbsent(repo)) {
+			AsyncStatementExecutor executor;
+			synchronized (this) {
+				executor = asyncExecutor;
+			}
+			if (executor != null) {
+				executor.addRepository(repo);
+			}
+		}
+	}
+
+	@Override
+	public void beforeUnregister() {
+		AsyncStatementExecutor executor;
+		synchronized (this) {
+			executor = asyncExecutor;
+			asyncExecutor = null;
+		}
+		if (executor != null) {
+			executor.stop();
+		}
 	}
 
 	@Override
@@ -194,6 +217,28 @@ public class DataRepositoryPool
 		return null;
 	}
 
+	/**
+	 * Executes task on the first available connection of the pool instead of the connection selected by hash of the
+	 * user. Connections added to the pool later are used for execution as well.
+	 */
+	@Override
+	public <T> CompletableFuture<T> executeAsync(BareJID user_id, String stIdKey, StatementTask<T> task) {
+		AsyncStatementExecutor executor = asyncExecutor;
+		if (executor == null) {
+			synchronized (this) {
+				if (asyncExecutor == null) {
+					if (repoPool.isEmpty()) {
+						log.log(Level.WARNING, "repo is NULL, pool empty? - {0}", repoPool.size());
+						return CompletableFuture.failedFuture(new SQLException("Connection pool is empty"));
+					}
+					asyncExecutor = new AsyncStatementExecutor(repoPool);
+				}
+				executor = asyncExecutor;
+			}
+		}
+		return executor.execute(user_id, stIdKey, task);
+	}
+
 	@Override
 	public String getResourceUri() {
 		if (resource_uri == null && !repoPool.isEmpty()) {
@@ -216,6 +261,10 @@ public class DataRepositoryPool
 				((StatisticsProviderIfc) repo).getStatistics(compName, list);
 			}
 		}
+		AsyncStatementExecutor executor = asyncExecutor;
+		if (executor != null) {
+			executor.getStatistics(compName, list);
+		}
 	}
 
 	@Override
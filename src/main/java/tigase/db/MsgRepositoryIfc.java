@@ -50,4 +50,37 @@ public interface MsgRepositoryIfc<T extends DataSource>
 	int deleteMessagesToJID(List<String> db_ids, XMPPResourceConnection session)
 			throws UserNotFoundException;
 
+	/**
+	 * Loads a single page of messages for the user of the session ordered by the database id of the message. Each
+	 * loaded message is passed to the processor together with its database id. Database id of every loaded row,
+	 * including rows which could not be parsed, is passed to {@link MsgRepository.OfflineMessagesProcessor#rowLoaded},
+	 * so the id of the last row may be used to load the next page.
+	 *
+	 * @param session user session
+	 * @param afterId database id of the last row of the previous page or {@code 0} to load the first page
+	 * @param limit maximal number of rows to load
+	 * @param proc processor receiving database ids of loaded rows
+	 *
+	 * @return queue of loaded messages (empty if there are no more messages) or {@code null} if repository does not
+	 * support paged loading
+	 */
+	default Queue<Element> loadMessagesPageToJID(XMPPResourceConnection session, long afterId, int limit,
+												 MsgRepository.OfflineMessagesProcessor proc)
+			throws UserNotFoundException, TigaseDBException {
+		return null;
+	}
+
+	/**
+	 * Removes messages for the user of the session with database id lower or equal to passed id.
+	 *
+	 * @param session user session
+	 * @param msgId database id of the last message to remove
+	 *
+	 * @return number of removed messages
+	 */
+	default int deleteMessagesUpToId(XMPPResourceConnection session, long msgId)
+			throws UserNotFoundException, TigaseDBException {
+		return 0;
+	}
+
 }
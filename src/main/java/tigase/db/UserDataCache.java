@@ -0,0 +1,527 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db;
+
+import tigase.stats.StatisticsList;
+import tigase.stats.StatisticsProviderIfc;
+import tigase.xmpp.jid.BareJID;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+/**
+ * Cache of user data kept by user repositories, bounded by estimated memory used by cached data instead of number of
+ * entries.
+ * <br>
+ * Data is grouped per user and inside of it per subnode, so all data of a user or of a subnode with all its children
+ * can be invalidated at once and lookups do not build a key string. Users are the unit of eviction, which is done
+ * using W-TinyLFU policy: new users are kept in a small LRU window and then they compete for a place in the main
+ * space with the least recently used user of the main space. User which was accessed more often (according to
+ * a compact frequency sketch) wins, so a burst of users accessed only once does not evict frequently used data.
+ * <br>
+ * Cache is split into segments with separate locks and eviction policies to limit contention. Data of a user is
+ * kept for at most <code>ttl</code> since the user was added to the cache, so changes made by other cluster nodes are
+ * visible after that time.
+ */
+public class UserDataCache
+		implements StatisticsProviderIfc {
+
+	// estimated memory used by objects of the cache, used to compute weight of a user
+	private static final int NODE_WEIGHT = 128;
+	private static final int SUBNODE_WEIGHT = 64;
+	private static final int VALUE_WEIGHT = 64;
+
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final Segment[] segments;
+	private final long ttl;
+
+	static long sizeOf(String str) {
+		return str == null ? 0 : 2L * str.length();
+	}
+
+	/**
+	 * @param maxWeight maximal estimated memory in bytes used by the cached data
+	 * @param ttl maximal time in milliseconds for which data of a user is cached
+	 */
+	public UserDataCache(long maxWeight, long ttl) {
+		this(maxWeight, ttl, Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 4)));
+	}
+
+	UserDataCache(long maxWeight, long ttl, int segmentsCount) {
+		this.ttl = TimeUnit.MILLISECONDS.toNanos(ttl);
+		this.segments = new Segment[segmentsCount];
+		for (int i = 0; i < segmentsCount; i++) {
+			segments[i] = new Segment(Math.max(1, maxWeight / segmentsCount));
+		}
+	}
+
+	/**
+	 * Returns cached value or <code>null</code> if value is not cached.
+	 */
+	public String get(BareJID user, String subnode, String key) {
+		String value = segment(user).get(user, subnode, key);
+		if (value == null) {
+			misses.increment();
+		} else {
+			hits.increment();
+		}
+		return value;
+	}
+
+	/**
+	 * Returns stamp which has to be passed to {@link #putLoaded(BareJID, String, String, String, long)} when value
+	 * loaded from the repository is added to the cache.
+	 */
+	public long getStamp(BareJID user) {
+		return segment(user).getStamp();
+	}
+
+	/**
+	 * Caches value which was stored in the repository.
+	 */
+	public void put(BareJID user, String subnode, String key, String value) {
+		segment(user).put(user, subnode, key, value, -1);
+	}
+
+	/**
+	 * Caches value which was loaded from the repository. Value is not cached if data of the user was changed since
+	 * the stamp was retrieved, as the loaded value could be already outdated.
+	 */
+	public void putLoaded(BareJID user, String subnode, String key, String value, long stamp) {
+		segment(user).put(user, subnode, key, value, stamp);
+	}
+
+	public void remove(BareJID user, String subnode, String key) {
+		segment(user).remove(user, subnode, key);
+	}
+
+	/**
+	 * Removes cached data of the subnode and of all its children.
+	 */
+	public void removeSubnode(BareJID user, String subnode) {
+		if (subnode != null) {
+			segment(user).removeSubnode(user, subnode);
+		}
+	}
+
+	public void removeUser(BareJID user) {
+		segment(user).removeUser(user);
+	}
+
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			size += segment.size();
+		}
+		return size;
+	}
+
+	public long getWeight() {
+		long weight = 0;
+		for (Segment segment : segments) {
+			weight += segment.weight();
+		}
+		return weight;
+	}
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		list.add(compName, "User data cache users", size(), Level.FINE);
+		list.add(compName, "User data cache weight", getWeight(), Level.FINE);
+		list.add(compName, "User data cache hits", hits.sum(), Level.FINE);
+		list.add(compName, "User data cache misses", misses.sum(), Level.FINE);
+		list.add(compName, "User data cache evictions", evictions.sum(), Level.FINE);
+	}
+
+	private Segment segment(BareJID user) {
+		int h = user.hashCode();
+		h ^= (h >>> 16);
+		return segments[h & (segments.length - 1)];
+	}
+
+	private enum Region {
+		WINDOW,
+		PROBATION,
+		PROTECTED
+	}
+
+	/**
+	 * Counts how often users are accessed using Count-Min sketch with 4 bit counters, which are halved periodically,
+	 * so the frequency reflects recent accesses.
+	 */
+	static final class FrequencySketch {
+
+		private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL,
+											 0xcbf29ce484222325L};
+		private static final long RESET_MASK = 0x7777777777777777L;
+
+		private final int mask;
+		private final int sampleSize;
+		private final long[] table;
+		private int additions = 0;
+
+		FrequencySketch(int expectedSize) {
+			int size = Integer.highestOneBit(Math.max(16, Math.min(expectedSize, 1 << 24)) - 1) << 1;
+			this.table = new long[size];
+			this.mask = size - 1;
+			this.sampleSize = 10 * size;
+		}
+
+		int frequency(int hash) {
+			int frequency = Integer.MAX_VALUE;
+			for (int i = 0; i < 4; i++) {
+				int idx = index(hash, i);
+				int offset = counterOffset(hash, i);
+				frequency = Math.min(frequency, (int) ((table[idx] >>> offset) & 0xfL));
+			}
+			return frequency;
+		}
+
+		void increment(int hash) {
+			boolean added = false;
+			for (int i = 0; i < 4; i++) {
+				int idx = index(hash, i);
+				int offset = counterOffset(hash, i);
+				if (((table[idx] >>> offset) & 0xfL) != 0xfL) {
+					table[idx] += 1L << offset;
+					added = true;
+				}
+			}
+			if (added && ++additions == sampleSize) {
+				for (int i = 0; i < table.length; i++) {
+					table[i] = (table[i] >>> 1) & RESET_MASK;
+				}
+				additions /= 2;
+			}
+		}
+
+		private int counterOffset(int hash, int i) {
+			// each long holds 16 counters, each row uses a different group of 4 of them
+			return ((i << 2) + ((hash >>> (i << 3)) & 3)) << 2;
+		}
+
+		private int index(int hash, int i) {
+			long h = (hash + SEEDS[i]) * SEEDS[i];
+			h += h >>> 32;
+			return (int) h & mask;
+		}
+	}
+
+	private static final class Node {
+
+		private final Map<String, Map<String, String>> data = new HashMap<>();
+		private final long expires;
+		private final int hash;
+		private final BareJID user;
+		private Node next;
+		private Node prev;
+		private Region region = Region.WINDOW;
+		private long weight = NODE_WEIGHT;
+
+		private Node(BareJID user, int hash, long expires) {
+			this.user = user;
+			this.hash = hash;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * List of nodes in LRU order, the least recently used is the first one.
+	 */
+	private static final class NodeList {
+
+		private Node head;
+		private Node tail;
+		private long weight;
+
+		private void addLast(Node node) {
+			node.prev = tail;
+			node.next = null;
+			if (tail == null) {
+				head = node;
+			} else {
+				tail.next = node;
+			}
+			tail = node;
+			weight += node.weight;
+		}
+
+		private void moveToLast(Node node) {
+			if (tail != node) {
+				remove(node);
+				addLast(node);
+			}
+		}
+
+		private void remove(Node node) {
+			if (node.prev == null) {
+				head = node.next;
+			} else {
+				node.prev.next = node.next;
+			}
+			if (node.next == null) {
+				tail = node.prev;
+			} else {
+				node.next.prev = node.prev;
+			}
+			node.prev = null;
+			node.next = null;
+			weight -= node.weight;
+		}
+	}
+
+	private final class Segment {
+
+		private final Map<BareJID, Node> nodes = new HashMap<>();
+		private final long maxProtectedWeight;
+		private final long maxWeight;
+		private final long maxWindowWeight;
+		private final NodeList probation = new NodeList();
+		private final NodeList protect = new NodeList();
+		private final FrequencySketch sketch;
+		private final NodeList window = new NodeList();
+		private long stamp = 0;
+
+		private Segment(long maxWeight) {
+			this.maxWeight = maxWeight;
+			this.maxWindowWeight = Math.max(1, maxWeight / 100);
+			this.maxProtectedWeight = (maxWeight - maxWindowWeight) * 8 / 10;
+			// sized for users with about 1kB of cached data
+			this.sketch = new FrequencySketch((int) Math.min(Integer.MAX_VALUE, maxWeight / 1024));
+		}
+
+		private synchronized String get(BareJID user, String subnode, String key) {
+			int hash = spread(user);
+			sketch.increment(hash);
+			Node node = nodes.get(user);
+			if (node == null) {
+				return null;
+			}
+			if (node.expires - System.nanoTime() < 0) {
+				removeNode(node);
+				return null;
+			}
+			onAccess(node);
+			Map<String, String> subnodeData = node.data.get(subnode);
+			return subnodeData == null ? null : subnodeData.get(key);
+		}
+
+		private synchronized long getStamp() {
+			return stamp;
+		}
+
+		private synchronized void put(BareJID user, String subnode, String key, String value, long loadedStamp) {
+			if (loadedStamp < 0) {
+				stamp++;
+			} else if (loadedStamp != stamp) {
+				return;
+			}
+			if (value == null) {
+				remove(user, subnode, key);
+				return;
+			}
+			Node node = nodes.get(user);
+			if (node != null && node.expires - System.nanoTime() < 0) {
+				removeNode(node);
+				node = null;
+			}
+			if (node == null) {
+				int hash = spread(user);
+				node = new Node(user, hash, System.nanoTime() + ttl);
+				nodes.put(user, node);
+				window.addLast(node);
+			} else {
+				onAccess(node);
+			}
+			Map<String, String> subnodeData = node.data.get(subnode);
+			long delta = 0;
+			if (subnodeData == null) {
+				subnodeData = new HashMap<>();
+				node.data.put(subnode, subnodeData);
+				delta += SUBNODE_WEIGHT + sizeOf(subnode);
+			}
+			String prev = subnodeData.put(key, value);
+			delta += prev == null ? VALUE_WEIGHT + sizeOf(key) + sizeOf(value) : sizeOf(value) - sizeOf(prev);
+			updateWeight(node, delta);
+			evict();
+		}
+
+		private synchronized void remove(BareJID user, String subnode, String key) {
+			stamp++;
+			Node node = nodes.get(user);
+			if (node == null) {
+				return;
+			}
+			Map<String, String> subnodeData = node.data.get(subnode);
+			if (subnodeData == null) {
+				return;
+			}
+			String prev = subnodeData.remove(key);
+			if (prev != null) {
+				long delta = -(VALUE_WEIGHT + sizeOf(key) + sizeOf(prev));
+				if (subnodeData.isEmpty()) {
+					node.data.remove(subnode);
+					delta -= SUBNODE_WEIGHT + sizeOf(subnode);
+				}
+				updateWeight(node, delta);
+			}
+		}
+
+		private synchronized void removeSubnode(BareJID user, String subnode) {
+			stamp++;
+			Node node = nodes.get(user);
+			if (node == null) {
+				return;
+			}
+			String prefix = subnode + "/";
+			long delta = 0;
+			for (Iterator<Map.Entry<String, Map<String, String>>> it = node.data.entrySet().iterator();
+				 it.hasNext(); ) {
+				Map.Entry<String, Map<String, String>> e = it.next();
+				String name = e.getKey();
+				if (name != null && (name.equals(subnode) || name.startsWith(prefix))) {
+					delta -= SUBNODE_WEIGHT + sizeOf(name);
+					for (Map.Entry<String, String> value : e.getValue().entrySet()) {
+						delta -= VALUE_WEIGHT + sizeOf(value.getKey()) + sizeOf(value.getValue());
+					}
+					it.remove();
+				}
+			}
+			updateWeight(node, delta);
+		}
+
+		private synchronized void removeUser(BareJID user) {
+			stamp++;
+			Node node = nodes.get(user);
+			if (node != null) {
+				removeNode(node);
+			}
+		}
+
+		private synchronized int size() {
+			return nodes.size();
+		}
+
+		private synchronized long weight() {
+			return window.weight + probation.weight + protect.weight;
+		}
+
+		private NodeList list(Node node) {
+			switch (node.region) {
+				case WINDOW:
+					return window;
+				case PROBATION:
+					return probation;
+				default:
+					return protect;
+			}
+		}
+
+		private void onAccess(Node node) {
+			switch (node.region) {
+				case WINDOW:
+				case PROTECTED:
+					list(node).moveToLast(node);
+					break;
+				case PROBATION:
+					probation.remove(node);
+					node.region = Region.PROTECTED;
+					protect.addLast(node);
+					while (protect.weight > maxProtectedWeight && protect.head != node) {
+						Node demoted = protect.head;
+						protect.remove(demoted);
+						demoted.region = Region.PROBATION;
+						probation.addLast(demoted);
+					}
+					break;
+			}
+		}
+
+		private void updateWeight(Node node, long delta) {
+			node.weight += delta;
+			list(node).weight += delta;
+		}
+
+		private void evict() {
+			// users leaving the window become candidates for the main space
+			List<Node> candidates = new ArrayList<>();
+			while (window.weight > maxWindowWeight && window.head != null) {
+				Node candidate = window.head;
+				window.remove(candidate);
+				candidate.region = Region.PROBATION;
+				probation.addLast(candidate);
+				candidates.add(candidate);
+			}
+			Iterator<Node> it = candidates.iterator();
+			while (weight() > maxWeight) {
+				Node candidate = null;
+				while (it.hasNext() && candidate == null) {
+					Node next = it.next();
+					if (next.region == Region.PROBATION && nodes.get(next.user) == next) {
+						candidate = next;
+					}
+				}
+				Node victim = probation.head;
+				if (victim == candidate) {
+					victim = null;
+				}
+				if (candidate != null && victim != null) {
+					// admission: candidate replaces the victim only if it is used more often
+					if (sketch.frequency(candidate.hash) > sketch.frequency(victim.hash)) {
+						evictNode(victim);
+					} else {
+						evictNode(candidate);
+					}
+				} else if (candidate != null) {
+					evictNode(candidate);
+				} else if (victim != null) {
+					evictNode(victim);
+				} else if (protect.head != null) {
+					evictNode(protect.head);
+				} else if (window.head != null) {
+					evictNode(window.head);
+				} else {
+					break;
+				}
+			}
+		}
+
+		private void evictNode(Node node) {
+			removeNode(node);
+			evictions.increment();
+		}
+
+		private void removeNode(Node node) {
+			list(node).remove(node);
+			nodes.remove(node.user);
+		}
+
+		private int spread(BareJID user) {
+			int h = user.hashCode() * 0x9e3779b9;
+			return h ^ (h >>> 16);
+		}
+	}
+}
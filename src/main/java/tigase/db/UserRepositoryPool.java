@@ -19,10 +19,10 @@ package tigase.db;
 
 import org.jspecify.annotations.NonNull;
 import tigase.annotations.TigaseDeprecated;
-import tigase.util.cache.SimpleCache;
+import tigase.stats.StatisticsList;
+import tigase.stats.StatisticsProviderIfc;
 import tigase.xmpp.jid.BareJID;
 
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -40,16 +40,25 @@ import java.util.logging.Logger;
  * @author <a href="mailto:artur.hefczyc@tigase.org">Artur Hefczyc</a>
 */
 public class UserRepositoryPool
-		implements UserRepository, RepositoryPool<UserRepository> {
+		implements UserRepository, RepositoryPool<UserRepository>, StatisticsProviderIfc {
 
+	/**
+	 * Maximal estimated memory in megabytes used by cached user data.
+	 */
+	public static final String USER_REPO_CACHE_SIZE_PROP_KEY = "user-repo-cache-size";
+	public static final long USER_REPO_CACHE_SIZE_PROP_VAL = 64;
 	private static final Logger log = Logger.getLogger(UserRepositoryPool.class.getName());
 
-	private IRepoCache<String, Object> cache = null;
+	private UserDataCache cache = null;
 	private LinkedBlockingQueue<UserRepository> repoPool = new LinkedBlockingQueue<UserRepository>();
 
 	@Override
 	public void addDataList(BareJID user, String subnode, String key, String[] list)
 			throws UserNotFoundException, TigaseDBException {
+		if (cache != null) {
+			cache.remove(user, subnode, key);
+		}
+
 		UserRepository repo = takeRepo();
 
 		if (repo != null) {
@@ -85,17 +94,25 @@ public class UserRepositoryPool
 	@Override
 	public String getData(BareJID user, String subnode, String key, String def)
 			throws UserNotFoundException, TigaseDBException {
-		String data = (String) cache.get(user + "/" + subnode + "/" + key);
+		if (cache != null) {
+			String data = cache.get(user, subnode, key);
 
-		if (data != null) {
-			return data;
+			if (data != null) {
+				return data;
+			}
 		}
 
+		long stamp = cache != null ? cache.getStamp(user) : 0;
 		UserRepository repo = takeRepo();
 
 		if (repo != null) {
 			try {
-				return repo.getData(user, subnode, key, def);
+				String data = repo.getData(user, subnode, key, def);
+				// default value is returned as is if there is no value in the repository
+				if (cache != null && data != null && data != def) {
+					cache.putLoaded(user, subnode, key, data, stamp);
+				}
+				return data;
 			} finally {
 				addRepo(repo);
 			}
@@ -108,48 +125,12 @@ public class UserRepositoryPool
 
 	@Override
 	public String getData(BareJID user, String subnode, String key) throws UserNotFoundException, TigaseDBException {
-		String data = (String) cache.get(user + "/" + subnode + "/" + key);
-
-		if (data != null) {
-			return data;
-		}
-
-		UserRepository repo = takeRepo();
-
-		if (repo != null) {
-			try {
-				return repo.getData(user, subnode, key);
-			} finally {
-				addRepo(repo);
-			}
-		} else {
-			log.log(Level.WARNING, "repo is NULL, pool empty? - {0}", repoPool.size());
-		}
-
-		return null;
+		return getData(user, subnode, key, null);
 	}
 
 	@Override
 	public String getData(BareJID user, String key) throws UserNotFoundException, TigaseDBException {
-		String data = (String) cache.get(user + "/" + key);
-
-		if (data != null) {
-			return data;
-		}
-
-		UserRepository repo = takeRepo();
-
-		if (repo != null) {
-			try {
-				return repo.getData(user, key);
-			} finally {
-				addRepo(repo);
-			}
-		} else {
-			log.log(Level.WARNING, "repo is NULL, pool empty? - {0}", repoPool.size());
-		}
-
-		return null;
+		return getData(user, null, key, null);
 	}
 
 	@Override
@@ -166,6 +147,7 @@ public class UserRepositoryPool
 		} else {
 			log.log(Level.WARNING, "repo is NULL, pool empty? - {0}", repoPool.size());
 		}
+
 		return null;
 	}
 
@@ -259,6 +241,13 @@ public class UserRepositoryPool
 		return null;
 	}
 
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		if (cache != null) {
+			cache.getStatistics(compName, list);
+		}
+	}
+
 	@Override
 	@Deprecated
 	@TigaseDeprecated(since = "8.2.0", removeIn = "9.0.0", note = "Support for multi-level nodes will be removed")
@@ -367,15 +356,23 @@ public class UserRepositoryPool
 	public void initRepository(String resource_uri, Map<String, String> params) throws DBInitException {
 		if (resource_uri.contains("cacheRepo=off")) {
 			log.fine("Disabling cache.");
-			cache = new RepoNoCache();
+			cache = null;
 		} else {
-			cache = new RepoCache(10000, 60 * 1000);
+			long cacheSize = USER_REPO_CACHE_SIZE_PROP_VAL;
+			if (params != null && params.get(USER_REPO_CACHE_SIZE_PROP_KEY) != null) {
+				cacheSize = Long.parseLong(params.get(USER_REPO_CACHE_SIZE_PROP_KEY));
+			} else if (Long.getLong(USER_REPO_CACHE_SIZE_PROP_KEY) != null) {
+				cacheSize = Long.getLong(USER_REPO_CACHE_SIZE_PROP_KEY);
+			}
+			cache = new UserDataCache(cacheSize * 1024 * 1024, 60 * 1000);
 		}
 	}
 
 	@Override
 	public void removeData(BareJID user, String subnode, String key) throws UserNotFoundException, TigaseDBException {
-		cache.remove(user + "/" + subnode + "/" + key);
+		if (cache != null) {
+			cache.remove(user, subnode, key);
+		}
 
 		UserRepository repo = takeRepo();
 
@@ -392,7 +389,9 @@ public class UserRepositoryPool
 
 	@Override
 	public void removeData(BareJID user, String key) throws UserNotFoundException, TigaseDBException {
-		cache.remove(user + "/" + key);
+		if (cache != null) {
+			cache.remove(user, null, key);
+		}
 
 		UserRepository repo = takeRepo();
 
@@ -409,7 +408,9 @@ public class UserRepositoryPool
 
 	@Override
 	public void removeSubnode(BareJID user, String subnode) throws UserNotFoundException, TigaseDBException {
-		cache.remove(user + "/" + subnode);
+		if (cache != null) {
+			cache.removeSubnode(user, subnode);
+		}
 
 		UserRepository repo = takeRepo();
 
@@ -426,6 +427,10 @@ public class UserRepositoryPool
 
 	@Override
 	public void removeUser(BareJID user) throws UserNotFoundException, TigaseDBException {
+		if (cache != null) {
+			cache.removeUser(user);
+		}
+
 		UserRepository repo = takeRepo();
 
 		if (repo != null) {
@@ -454,7 +459,9 @@ public class UserRepositoryPool
 			log.log(Level.WARNING, "repo is NULL, pool empty? - {0}", repoPool.size());
 		}
 
-		cache.put(user + "/" + subnode + "/" + key, value);
+		if (cache != null) {
+			cache.put(user, subnode, key, value);
+		}
 	}
 
 	@Override
@@ -471,12 +478,18 @@ public class UserRepositoryPool
 			log.log(Level.WARNING, "repo is NULL, pool empty? - {0}", repoPool.size());
 		}
 
-		cache.put(user + "/" + key, value);
+		if (cache != null) {
+			cache.put(user, null, key, value);
+		}
 	}
 
 	@Override
 	public void setDataList(BareJID user, String subnode, String key, String[] list)
 			throws UserNotFoundException, TigaseDBException {
+		if (cache != null) {
+			cache.remove(user, subnode, key);
+		}
+
 		UserRepository repo = takeRepo();
 
 		if (repo != null) {
@@ -525,76 +538,4 @@ public class UserRepositoryPool
 
 		V remove(Object key);
 	}
-
-	private class RepoNoCache implements IRepoCache<String, Object> {
-
-		@Override
-		public Object get(Object key) {
-			return null;
-		}
-
-		@Override
-		public Object put(String key, Object value) {
-			return null;
-		}
-
-		@Override
-		public Object remove(Object key) {
-			return null;
-		}
-	}
-
-	private class RepoCache
-			extends SimpleCache<String, Object> implements IRepoCache<String, Object> {
-
-		public RepoCache(int maxsize, long cache_time) {
-			super(maxsize, cache_time);
-		}
-
-		@Override
-		public Object get(Object key) {
-			if (cache_off) {
-				return null;
-			}
-
-			synchronized (this) {
-				return super.get(key);
-			}
-		}
-
-		@Override
-		public Object put(String key, Object value) {
-			if (cache_off) {
-				return null;
-			}
-
-			synchronized (this) {
-				return super.put(key, value);
-			}
-		}
-
-		@Override
-		public Object remove(Object key) {
-			if (cache_off) {
-				return null;
-			}
-
-			synchronized (this) {
-				Object val = super.remove(key);
-				String strk = key.toString();
-				Iterator<String> ks = keySet().iterator();
-
-				while (ks.hasNext()) {
-					String k = ks.next().toString();
-
-					if (k.startsWith(strk)) {
-						ks.remove();
-					}    // end of if (k.startsWith(strk))
-				}      // end of while (ks.hasNext())
-
-				return val;
-			}
-		}
-	}
 }
-
@@ -22,6 +22,7 @@ import tigase.kernel.beans.config.ConfigField;
 import tigase.stats.ComponentStatisticsProvider;
 import tigase.stats.StatisticsInvocationHandler;
 import tigase.stats.StatisticsList;
+import tigase.stats.StatisticsProviderIfc;
 
 import java.lang.reflect.Proxy;
 import java.util.Collection;
@@ -117,6 +118,10 @@ public abstract class MDPoolBeanWithStatistics<S extends Repository, T extends M
 		handlers.values().forEach(handler -> {
 			handler.getStatistics(compName, null, list);
 		});
+		repos.entrySet()
+				.stream()
+				.filter(e -> e.getValue() instanceof StatisticsProviderIfc)
+				.forEach(e -> ((StatisticsProviderIfc) e.getValue()).getStatistics(compName + "/" + e.getKey(), list));
 	}
 
 	public void setStatisticsEnabled(boolean value) {
@@ -38,24 +38,44 @@ public abstract class AbstractSDComponentRepositoryBean<Item extends RepositoryI
 		extends SDRepositoryBean<ComponentRepositoryDataSourceAware<Item, DataSource>>
 		implements ComponentRepository<Item> {
 
+	private RepositoryChangeListenerIfc<Item> repoChangeListener;
+
 	@Override
 	public void setRepository(ComponentRepositoryDataSourceAware<Item, DataSource> repository) {
 		ComponentRepositoryDataSourceAware<Item, DataSource> oldRepo = getRepository();
 		super.setRepository(repository);
-		if (oldRepo != getRepository() && oldRepo != null) {
-			oldRepo.destroy();
+		if (oldRepo != getRepository()) {
+			// listener is kept by the bean, so it needs to be moved to the new repository instance
+			if (repoChangeListener != null) {
+				if (oldRepo != null) {
+					oldRepo.removeRepoChangeListener(repoChangeListener);
+				}
+				if (getRepository() != null) {
+					getRepository().addRepoChangeListener(repoChangeListener);
+				}
+			}
+			if (oldRepo != null) {
+				oldRepo.destroy();
+			}
 		}
 	}
 
 	@Override
 	public void addRepoChangeListener(RepositoryChangeListenerIfc<Item> repoChangeListener) {
-		getRepository().addRepoChangeListener(repoChangeListener);
+		this.repoChangeListener = repoChangeListener;
+		if (getRepository() != null) {
+			getRepository().addRepoChangeListener(repoChangeListener);
+		}
 	}
 
 	@Override
 	public void removeRepoChangeListener(RepositoryChangeListenerIfc<Item> repoChangeListener) {
-		getRepository().removeRepoChangeListener(repoChangeListener);
-
+		if (this.repoChangeListener == repoChangeListener) {
+			this.repoChangeListener = null;
+		}
+		if (getRepository() != null) {
+			getRepository().removeRepoChangeListener(repoChangeListener);
+		}
 	}
 
 	@Override
@@ -124,6 +124,25 @@ public class MsgRepositoryStoredProcedures {
 		}
 	}
 
+	public static void deleteMessagesUpTo(String receiver, Long msgId) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			String receiverSha1 = Algorithms.hexDigest(receiver.toString(), "", "SHA");
+			PreparedStatement stmt = conn.prepareStatement(
+					"delete from tig_offline_messages where receiver_sha1 = ? and msg_id <= ?");
+			stmt.setString(1, receiverSha1);
+			stmt.setLong(2, msgId);
+			stmt.executeUpdate();
+		} catch (NoSuchAlgorithmException e) {
+			throw new SQLException(e);
+		} finally {
+			conn.close();
+		}
+	}
+
 	public static void deleteMessagesByIds(String receiver, String msgId1, String msgId2, String msgId3, String msgId4,
 										   ResultSet[] data) throws SQLException {
 		Connection conn = DriverManager.getConnection("jdbc:default:connection");
@@ -247,6 +266,29 @@ public class MsgRepositoryStoredProcedures {
 		}
 	}
 
+	public static void getMessagesPage(String receiver, Long afterMsgId, Integer limit, ResultSet[] data)
+			throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			String receiverSha1 = Algorithms.hexDigest(receiver.toString(), "", "SHA");
+			PreparedStatement stmt = conn.prepareStatement(
+					"select om.message, om.msg_id" + " from tig_offline_messages om" +
+							" where om.receiver_sha1 = ? and om.msg_id > ?" + " order by om.msg_id");
+			stmt.setString(1, receiverSha1);
+			stmt.setLong(2, afterMsgId);
+			stmt.setMaxRows(limit);
+
+			data[0] = stmt.executeQuery();
+		} catch (NoSuchAlgorithmException e) {
+			throw new SQLException(e);
+		} finally {
+			conn.close();
+		}
+	}
+
 	public static void getMessagesCount(String receiver, ResultSet[] data) throws SQLException {
 		Connection conn = DriverManager.getConnection("jdbc:default:connection");
 
@@ -22,6 +22,12 @@ import tigase.annotations.TigaseDeprecated;
 import tigase.db.*;
 import tigase.db.util.JDBCPasswordObfuscator;
 import tigase.db.util.RepositoryVersionAware;
+import tigase.kernel.beans.UnregisterAware;
+import tigase.kernel.beans.config.ConfigField;
+import tigase.stats.StatisticsList;
+import tigase.stats.StatisticsProviderIfc;
+import tigase.sys.ShutdownHook;
+import tigase.sys.TigaseRuntime;
 import tigase.util.cache.SimpleCache;
 import tigase.xmpp.jid.BareJID;
 
@@ -30,6 +36,7 @@ import java.sql.*;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -44,7 +51,8 @@ import java.util.logging.Logger;
 @Repository.Meta(supportedUris = {"jdbc:[^:]+:.*"})
 @Repository.SchemaId(id = Schema.SERVER_SCHEMA_ID, name = Schema.SERVER_SCHEMA_NAME)
 public class JDBCRepository
-		implements AuthRepository, UserRepository, DataSourceAware<DataRepository>, RepositoryVersionAware {
+		implements AuthRepository, UserRepository, DataSourceAware<DataRepository>, RepositoryVersionAware,
+				   ShutdownHook, StatisticsProviderIfc, UnregisterAware {
 
 	public static final String CURRENT_DB_SCHEMA_VER = "8.0.0";
 
@@ -106,14 +114,24 @@ public class JDBCRepository
 	// ~--- fields ---------------------------------------------------------------
 	private AuthRepository auth = null;
 	private boolean autoCreateUser = false;
+	private final LongAdder bufferedWriteFailures = new LongAdder();
 	// Cache moved to connection pool
 	private IRepoCache<String, Object> cache = null;
 	private DataRepository data_repo = null;
 	private String get_users_query = null;
+	@ConfigField(desc = "Number of buffered user data changes written in a single batch", alias = "write-behind-batch-size")
+	private int writeBehindBatchSize = 100;
+	@ConfigField(desc = "Maximal time in milliseconds for which user data changes may be buffered before they are " +
+			"written to the database, 0 disables buffering", alias = "write-behind-delay")
+	private long writeBehindDelay = 0;
+	@ConfigField(desc = "Maximal number of buffered user data changes", alias = "write-behind-max-pending")
+	private int writeBehindMaxPending = 10000;
+	private volatile UserDataWriteBuffer writeBuffer = null;
 
 	@Override
 	public void addDataList(BareJID user_id, final String subnode, final String key, final String[] list)
 			throws UserNotFoundException, TigaseDBException {
+		flushBufferedData(user_id);
 		try {
 			addDataList(null, user_id, subnode, key, list);
 		} catch (SQLException ex) {
@@ -121,6 +139,15 @@ public class JDBCRepository
 		}
 	}
 
+	@Override
+	public void beforeUnregister() {
+		UserDataWriteBuffer buffer = writeBuffer;
+		if (buffer != null) {
+			TigaseRuntime.getTigaseRuntime().removeShutdownHook(this);
+			buffer.stop();
+		}
+	}
+
 	@Override
 	public void addUser(BareJID user_id) throws UserExistsException, TigaseDBException {
 		try {
@@ -138,6 +165,13 @@ public class JDBCRepository
 	@Override
 	public String getData(BareJID user_id, final String subnode, final String key, final String def)
 			throws UserNotFoundException, TigaseDBException {
+		UserDataWriteBuffer buffer = writeBuffer;
+		if (buffer != null) {
+			Object buffered = buffer.get(user_id, subnode, key);
+			if (buffered != null) {
+				return buffered == UserDataWriteBuffer.REMOVED ? def : (String) buffered;
+			}
+		}
 
 		try {
 			long nid = getNodeNID(null, user_id, subnode);
@@ -196,6 +230,10 @@ public class JDBCRepository
 		Objects.requireNonNull(key);
 
 		log.log(Level.FINEST, "Searching for key: {0}", key);
+		UserDataWriteBuffer buffer = writeBuffer;
+		if (buffer != null) {
+			buffer.flush();
+		}
 		try {
 			ResultSet rs = null;
 
@@ -229,6 +267,7 @@ public class JDBCRepository
 	@Override
 	public Map<String, String> getDataMap(BareJID user_id, String subnode)
 			throws TigaseDBException {
+		flushBufferedData(user_id);
 		try {
 			long nid = getNodeNID(null, user_id, subnode);
 			
@@ -294,6 +333,7 @@ public class JDBCRepository
 		// return cache_res;
 		// } // end of if (result != null)
 
+		flushBufferedData(user_id);
 		try {
 			long nid = getNodeNID(null, user_id, subnode);
 
@@ -339,7 +379,7 @@ public class JDBCRepository
 
 	@Override
 	public String[] getKeys(BareJID user_id, final String subnode) throws UserNotFoundException, TigaseDBException {
-
+		flushBufferedData(user_id);
 		try {
 			long nid = getNodeNID(null, user_id, subnode);
 
@@ -374,15 +414,31 @@ public class JDBCRepository
 		return getKeys(user_id, null);
 	}
 
+	@Override
+	public String getName() {
+		return "JDBC user data write-behind";
+	}
+
 	@Override
 	public String getResourceUri() {
 		return data_repo.getResourceUri();
 	}
 
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		UserDataWriteBuffer buffer = writeBuffer;
+		if (buffer != null) {
+			list.add(compName, "Buffered user data changes", buffer.size(), Level.FINE);
+			list.add(compName, "Buffered user data dropped changes", buffer.getDropped(), Level.FINE);
+		}
+		list.add(compName, "Buffered user data write failures", bufferedWriteFailures.sum(), Level.FINE);
+	}
+
 	@Override
 	@Deprecated
 	@TigaseDeprecated(since = "8.2.0", removeIn = "9.0.0", note = "Support for multi-level nodes will be removed")
 	public String[] getSubnodes(BareJID user_id, final String subnode) throws UserNotFoundException, TigaseDBException {
+		flushBufferedData(user_id);
 		try {
 			long nid = getNodeNID(null, user_id, subnode);
 			if (nid > 0) {
@@ -635,7 +691,12 @@ public class JDBCRepository
 	@Override
 	public void removeData(BareJID user_id, final String subnode, final String key)
 			throws UserNotFoundException, TigaseDBException {
-		removeData(null, user_id, subnode, key);
+		UserDataWriteBuffer buffer = getWriteBuffer();
+		if (buffer != null) {
+			buffer.put(user_id, subnode, key, null);
+		} else {
+			removeData(null, user_id, subnode, key);
+		}
 	}
 
 	// Implementation of tigase.db.AuthRepository
@@ -650,6 +711,7 @@ public class JDBCRepository
 		if (subnode == null) {
 			return;
 		}    // end of if (subnode == null)
+		flushBufferedData(user_id);
 		try {
 			String[] subnodes = getSubnodes(user_id, subnode);
 			if (subnodes != null && subnodes.length > 0) {
@@ -683,6 +745,10 @@ public class JDBCRepository
 		if (log.isLoggable(Level.FINEST)) {
 			log.log(Level.FINEST, "Removing user: {0}", user_id);
 		}
+		UserDataWriteBuffer buffer = writeBuffer;
+		if (buffer != null) {
+			buffer.discard(user_id);
+		}
 		try {
 			stmt = data_repo.createStatement(user_id);
 
@@ -718,6 +784,19 @@ public class JDBCRepository
 	@Override
 	public void setData(BareJID user_id, final String subnode, final String key, final String value)
 			throws UserNotFoundException, TigaseDBException {
+		UserDataWriteBuffer buffer = getWriteBuffer();
+		if (buffer != null) {
+			try {
+				// checked at once, so a missing user is still reported to the caller
+				getUserUID(null, user_id, autoCreateUser);
+			} catch (SQLException e) {
+				log.log(Level.WARNING, "Error setting data , user_id: " + user_id + ", subnode: " + subnode + ", key: " +
+						key + ", value: " + value, e);
+				return;
+			}
+			buffer.put(user_id, subnode, key, value);
+			return;
+		}
 		long uid = -2;
 		long nid = -2;
 		DataRepository repo = data_repo.takeRepoHandle(user_id);
@@ -771,6 +850,17 @@ public class JDBCRepository
 		}
 	}
 
+	@Override
+	public String shutdown() {
+		UserDataWriteBuffer buffer = writeBuffer;
+		if (buffer == null) {
+			return null;
+		}
+		int pending = buffer.size();
+		buffer.stop();
+		return "== Written " + pending + " buffered user data changes\n";
+	}
+
 	@Override
 	public void setData(BareJID user_id, final String key, final String value)
 			throws UserNotFoundException, TigaseDBException {
@@ -781,6 +871,7 @@ public class JDBCRepository
 	public void setDataList(BareJID user_id, final String subnode, final String key, final String[] list)
 			throws UserNotFoundException, TigaseDBException {
 
+		flushBufferedData(user_id);
 		// Transactions may not yet work properly but at least let's make sure
 		// both calls below are executed exclusively on the same DB connection
 		DataRepository repo = data_repo.takeRepoHandle(user_id);
@@ -967,6 +1058,155 @@ public class JDBCRepository
 		}
 	}
 
+	private UserDataWriteBuffer getWriteBuffer() {
+		if (writeBehindDelay <= 0) {
+			return null;
+		}
+		UserDataWriteBuffer buffer = writeBuffer;
+		if (buffer == null) {
+			synchronized (this) {
+				if (writeBuffer == null) {
+					writeBuffer = new UserDataWriteBuffer(this::writeBufferedData, writeBehindDelay,
+														  writeBehindBatchSize, writeBehindMaxPending);
+					TigaseRuntime.getTigaseRuntime().addShutdownHook(this);
+				}
+				buffer = writeBuffer;
+			}
+		}
+		return buffer;
+	}
+
+	/**
+	 * Writes buffered changes of the user before queries which do not check the write buffer.
+	 */
+	private void flushBufferedData(BareJID user_id) {
+		UserDataWriteBuffer buffer = writeBuffer;
+		if (buffer != null) {
+			buffer.flush(user_id);
+		}
+	}
+
+	/**
+	 * Writes buffered changes grouped by the connection selected for the user.
+	 *
+	 * @return users whose changes were not written because of a database error and should be retried
+	 */
+	Set<BareJID> writeBufferedData(Map<BareJID, Map<UserDataWriteBuffer.DataKey, Object>> changes) {
+		Set<BareJID> failed = new HashSet<>();
+		Map<DataRepository, List<BareJID>> usersByRepo = new IdentityHashMap<>();
+		for (BareJID user_id : changes.keySet()) {
+			usersByRepo.computeIfAbsent(data_repo.takeRepoHandle(user_id), repo -> new ArrayList<>()).add(user_id);
+		}
+		for (Map.Entry<DataRepository, List<BareJID>> e : usersByRepo.entrySet()) {
+			DataRepository repo = e.getKey();
+			synchronized (repo) {
+				try {
+					writeBufferedData(repo, e.getValue(), changes, failed);
+				} finally {
+					data_repo.releaseRepoHandle(repo);
+				}
+			}
+		}
+		return failed;
+	}
+
+	private void writeBufferedData(DataRepository repo, List<BareJID> users,
+								   Map<BareJID, Map<UserDataWriteBuffer.DataKey, Object>> changes,
+								   Set<BareJID> failed) {
+		List<BareJID> written = new ArrayList<>(users.size());
+		List<PairsChange> updates = new ArrayList<>();
+		List<PairsChange> removals = new ArrayList<>();
+		for (BareJID user_id : users) {
+			// changes of a single user are collected separately, so failure of the user does not affect other users
+			List<PairsChange> userUpdates = new ArrayList<>();
+			List<PairsChange> userRemovals = new ArrayList<>();
+			try {
+				long uid = getUserUID(repo, user_id, autoCreateUser);
+				for (Map.Entry<UserDataWriteBuffer.DataKey, Object> change : changes.get(user_id).entrySet()) {
+					String subnode = change.getKey().subnode;
+					long nid = getNodeNID(repo, user_id, subnode);
+					if (change.getValue() == UserDataWriteBuffer.REMOVED) {
+						if (nid > 0) {
+							userRemovals.add(new PairsChange(uid, nid, change.getKey().key, null));
+						}
+						continue;
+					}
+					if (nid < 0) {
+						try {
+							nid = createNodePath(repo, user_id, subnode);
+						} catch (SQLException e) {
+							// node could be created at the same time by other cluster node
+							nid = getNodeNID(repo, uid, subnode);
+						}
+					}
+					userUpdates.add(new PairsChange(uid, nid, change.getKey().key, (String) change.getValue()));
+				}
+			} catch (UserNotFoundException ex) {
+				// user does not exist (ie. was removed), so there is no point in retrying
+				bufferedWriteFailures.increment();
+				log.log(Level.FINE, "Dropping buffered data of not existing user {0}", user_id);
+				continue;
+			} catch (SQLException ex) {
+				bufferedWriteFailures.increment();
+				failed.add(user_id);
+				log.log(Level.WARNING, "Error preparing buffered data of user " + user_id, ex);
+				continue;
+			}
+			written.add(user_id);
+			updates.addAll(userUpdates);
+			removals.addAll(userRemovals);
+		}
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Writing buffered data, users: {0}, updates: {1}, removals: {2}",
+					new Object[]{written.size(), updates.size(), removals.size()});
+		}
+
+		try {
+			executeBufferedData(repo, updates, removals);
+		} catch (SQLException ex) {
+			// all statements are idempotent, so changes of all users of the batch may be written again
+			bufferedWriteFailures.add(written.size());
+			failed.addAll(written);
+			log.log(Level.WARNING, "Error writing buffered data of " + written.size() + " users", ex);
+		}
+	}
+
+	private void executeBufferedData(DataRepository repo, List<PairsChange> updates, List<PairsChange> removals)
+			throws SQLException {
+
+		if (!removals.isEmpty()) {
+			PreparedStatement remove_key_data_st = repo.getPreparedStatement(null, REMOVE_KEY_DATA_QUERY);
+			synchronized (remove_key_data_st) {
+				for (PairsChange change : removals) {
+					remove_key_data_st.setLong(1, change.nid());
+					remove_key_data_st.setString(2, change.key());
+					remove_key_data_st.addBatch();
+				}
+				remove_key_data_st.executeBatch();
+			}
+		}
+		if (!updates.isEmpty()) {
+			PreparedStatement update_pairs_sp = repo.getPreparedStatement(null, UPDATE_PAIRS_QUERY);
+			synchronized (update_pairs_sp) {
+				for (PairsChange change : updates) {
+					update_pairs_sp.setLong(1, change.nid());
+					update_pairs_sp.setLong(2, change.uid());
+					update_pairs_sp.setString(3, change.key());
+					switch (data_repo.getDatabaseType()) {
+						case derby:
+							// see setData()
+							update_pairs_sp.setCharacterStream(4, new StringReader(change.value()));
+							break;
+						default:
+							update_pairs_sp.setString(4, change.value());
+					}
+					update_pairs_sp.addBatch();
+				}
+				update_pairs_sp.executeBatch();
+			}
+		}
+	}
+
 	private long addNode(DataRepository repo, long uid, long parent_nid, String node_name) throws SQLException {
 		ResultSet rs = null;
 		PreparedStatement node_add_sp = null;
@@ -1283,6 +1523,8 @@ public class JDBCRepository
 		return result;
 	}
 
+	private record PairsChange(long uid, long nid, String key, String value) {}
+
 	public interface IRepoCache<K,V> {
 
 		V get(Object key);
@@ -0,0 +1,312 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.jdbc;
+
+import tigase.xmpp.jid.BareJID;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Buffer of user data changes which are written to the database in batches instead of a separate query for each
+ * change.
+ * <br>
+ * Only the last value set for the same user, subnode and key is kept, so repeated changes of the same item (ie.
+ * presence or last activity) are written only once. Buffered changes are written after at most <code>delay</code>
+ * milliseconds, at once if <code>batchSize</code> changes are waiting, and by the calling thread if there are
+ * <code>maxPending</code> changes waiting, so the caller is slowed down instead of growing the buffer without limit.
+ * <br>
+ * Changes are kept in the buffer until they are written, so {@link #get(BareJID, String, String)} returns the value
+ * which was set even while it is being written. Changes of users which could not be written because of a failure are
+ * kept for the next write, up to {@link #MAX_RETRIES} times.
+ */
+class UserDataWriteBuffer {
+
+	/**
+	 * Marker of a removed item.
+	 */
+	static final Object REMOVED = new Object();
+	/**
+	 * Maximal number of retries of writing changes of a user, changes are dropped if the last retry failed as well.
+	 */
+	static final int MAX_RETRIES = 3;
+
+	private static final Logger log = Logger.getLogger(UserDataWriteBuffer.class.getName());
+
+	private final int batchSize;
+	private final long delay;
+	private final ReentrantLock flushLock = new ReentrantLock();
+	private final int maxPending;
+	private final Map<BareJID, Map<DataKey, Object>> pending = new HashMap<>();
+	private final Map<BareJID, Integer> retries = new HashMap<>();
+	private final ScheduledExecutorService scheduler;
+	private final Writer writer;
+	private long dropped = 0;
+	private boolean flushScheduled = false;
+	private int size = 0;
+	private boolean stopped = false;
+
+	UserDataWriteBuffer(Writer writer, long delay, int batchSize, int maxPending) {
+		this.writer = writer;
+		this.delay = delay;
+		this.batchSize = Math.max(1, batchSize);
+		this.maxPending = Math.max(this.batchSize, maxPending);
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "jdbc-write-behind");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Adds change to the buffer.
+	 *
+	 * @param value new value or <code>null</code> if item was removed
+	 */
+	void put(BareJID user, String subnode, String key, String value) {
+		boolean flushNow = false;
+		synchronized (this) {
+			if (stopped) {
+				flushNow = true;
+			}
+			Object prev = pending.computeIfAbsent(user, u -> new LinkedHashMap<>())
+					.put(new DataKey(subnode, key), value == null ? REMOVED : value);
+			if (prev == null) {
+				size++;
+				if (size >= maxPending) {
+					flushNow = true;
+				} else if (size == batchSize && !stopped) {
+					scheduler.execute(this::flush);
+				}
+			}
+			if (!flushScheduled && !flushNow) {
+				flushScheduled = true;
+				scheduler.schedule(this::scheduledFlush, delay, TimeUnit.MILLISECONDS);
+			}
+		}
+		if (flushNow) {
+			flush();
+		}
+	}
+
+	/**
+	 * Returns buffered value for the item.
+	 *
+	 * @return <code>null</code> if there is no buffered change, {@link #REMOVED} if item was removed or a new value
+	 */
+	synchronized Object get(BareJID user, String subnode, String key) {
+		Map<DataKey, Object> userPending = pending.get(user);
+		return userPending == null ? null : userPending.get(new DataKey(subnode, key));
+	}
+
+	synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Returns number of changes dropped because they could not be written.
+	 */
+	synchronized long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * Drops buffered changes of the user, ie. when user is removed.
+	 */
+	void discard(BareJID user) {
+		flushLock.lock();
+		try {
+			synchronized (this) {
+				Map<DataKey, Object> userPending = pending.remove(user);
+				if (userPending != null) {
+					size -= userPending.size();
+				}
+				retries.remove(user);
+			}
+		} finally {
+			flushLock.unlock();
+		}
+	}
+
+	/**
+	 * Writes all buffered changes.
+	 */
+	void flush() {
+		flushLock.lock();
+		try {
+			Map<BareJID, Map<DataKey, Object>> snapshot = new HashMap<>();
+			synchronized (this) {
+				if (size == 0) {
+					return;
+				}
+				for (Map.Entry<BareJID, Map<DataKey, Object>> e : pending.entrySet()) {
+					snapshot.put(e.getKey(), new LinkedHashMap<>(e.getValue()));
+				}
+			}
+			write(snapshot);
+		} finally {
+			flushLock.unlock();
+		}
+	}
+
+	/**
+	 * Writes buffered changes of the user, so the following queries will see them in the database.
+	 */
+	void flush(BareJID user) {
+		synchronized (this) {
+			if (!pending.containsKey(user)) {
+				return;
+			}
+		}
+		flushLock.lock();
+		try {
+			Map<BareJID, Map<DataKey, Object>> snapshot = new HashMap<>();
+			synchronized (this) {
+				Map<DataKey, Object> userPending = pending.get(user);
+				if (userPending == null) {
+					return;
+				}
+				snapshot.put(user, new LinkedHashMap<>(userPending));
+			}
+			write(snapshot);
+		} finally {
+			flushLock.unlock();
+		}
+	}
+
+	/**
+	 * Writes all buffered changes and stops background writing, changes added later are written at once.
+	 */
+	void stop() {
+		synchronized (this) {
+			stopped = true;
+		}
+		scheduler.shutdown();
+		flush();
+	}
+
+	private void scheduledFlush() {
+		flush();
+		synchronized (this) {
+			flushScheduled = size > 0 && !stopped;
+			if (flushScheduled) {
+				scheduler.schedule(this::scheduledFlush, delay, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	private void write(Map<BareJID, Map<DataKey, Object>> snapshot) {
+		Set<BareJID> failed;
+		try {
+			failed = writer.write(snapshot);
+		} catch (RuntimeException ex) {
+			log.log(Level.WARNING, "Error writing buffered user data", ex);
+			failed = snapshot.keySet();
+		}
+		synchronized (this) {
+			for (Map.Entry<BareJID, Map<DataKey, Object>> e : snapshot.entrySet()) {
+				BareJID user = e.getKey();
+				Map<DataKey, Object> userPending = pending.get(user);
+				if (userPending == null) {
+					continue;
+				}
+				boolean drop = false;
+				if (failed.contains(user)) {
+					if (retries.merge(user, 1, Integer::sum) <= MAX_RETRIES) {
+						// changes are kept for the next flush
+						continue;
+					}
+					drop = true;
+				}
+				retries.remove(user);
+				int removed = 0;
+				for (Iterator<Map.Entry<DataKey, Object>> it = e.getValue().entrySet().iterator(); it.hasNext(); ) {
+					Map.Entry<DataKey, Object> written = it.next();
+					// item changed again while it was written is kept for the next flush
+					if (userPending.remove(written.getKey(), written.getValue())) {
+						removed++;
+					}
+				}
+				size -= removed;
+				if (drop) {
+					dropped += removed;
+					log.log(Level.WARNING, "Dropping {0} buffered changes of user {1} after {2} failed retries",
+							new Object[]{removed, user, MAX_RETRIES});
+				}
+				if (userPending.isEmpty()) {
+					pending.remove(e.getKey());
+				}
+			}
+		}
+	}
+
+	@FunctionalInterface
+	interface Writer {
+
+		/**
+		 * Writes changes to the database.
+		 *
+		 * @return users whose changes were not written and should be retried
+		 */
+		Set<BareJID> write(Map<BareJID, Map<DataKey, Object>> changes);
+
+	}
+
+	static final class DataKey {
+
+		final String key;
+		final String subnode;
+
+		DataKey(String subnode, String key) {
+			this.subnode = subnode;
+			this.key = key;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof DataKey)) {
+				return false;
+			}
+			DataKey dataKey = (DataKey) o;
+			return Objects.equals(subnode, dataKey.subnode) && key.equals(dataKey.key);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * Objects.hashCode(subnode) + key.hashCode();
+		}
+
+		@Override
+		public String toString() {
+			return subnode + "/" + key;
+		}
+	}
+}
@@ -28,9 +28,8 @@ import tigase.xml.Element;
 import tigase.xml.XMLUtils;
 import tigase.xmpp.impl.Privacy;
 import tigase.xmpp.impl.VCardTemp;
-import tigase.xmpp.impl.roster.RosterAbstract;
 import tigase.xmpp.impl.roster.RosterElement;
-import tigase.xmpp.impl.roster.RosterFlat;
+import tigase.xmpp.impl.roster.RosterIncremental;
 import tigase.xmpp.jid.BareJID;
 
 import java.io.BufferedWriter;
@@ -185,10 +184,9 @@ public class Exporter {
 
 		writer.append(">");
 		// roster
-		String rosterStr = userRepository.getData(user, null, RosterAbstract.ROSTER, null);
-		if (rosterStr != null) {
-			Map<BareJID, RosterElement> roster = new LinkedHashMap<>();
-			RosterFlat.parseRosterUtil(rosterStr, roster, null);
+		// reads roster stored as separate items as well as stored as a single value
+		Map<BareJID, RosterElement> roster = new RosterIncremental().loadStoredRoster(userRepository, user);
+		if (!roster.isEmpty()) {
 			writer.append("<query xmlns='jabber:iq:roster'>");
 			for (RosterElement re : roster.values()) {
 				Element rosterItem = re.getRosterItem();
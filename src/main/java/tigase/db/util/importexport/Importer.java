@@ -307,6 +307,8 @@ public class Importer {
 				.collect(Collectors.joining());
 		UserRepository userRepository = repositoryHolder.getRepository(
 				UserRepository.class, user.getDomain());
+		// roster stored as separate items is replaced and will be converted again from the imported roster
+		userRepository.removeSubnode(user, RosterAbstract.ROSTER);
 		if (rosterStr.isEmpty()) {
 			userRepository.removeData(user, RosterAbstract.ROSTER);
 		} else {
@@ -37,7 +37,9 @@ import tigase.xml.Element;
 import tigase.xmpp.jid.JID;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.logging.Level;
 
 @Bean(name = EventPublisherModule.ID, active = true)
@@ -166,10 +168,22 @@ public class EventPublisherModule
 			return;
 		}
 
-		Element eventElement = serializer.serialize(event);
-		eventElement.setAttribute("serialized", "true");
+		final List<Subscription> binarySubscribers = new ArrayList<>();
+		final List<Subscription> xmlSubscribers = new ArrayList<>();
+		for (Subscription subscription : subscribers) {
+			if (subscription.isBinaryCodecSupported()) {
+				binarySubscribers.add(subscription);
+			} else {
+				xmlSubscribers.add(subscription);
+			}
+		}
 
-		publishEvent(packageName, eventName, eventElement, subscribers);
+		if (!binarySubscribers.isEmpty()) {
+			publishSerializedEvent(packageName, eventName, event, true, binarySubscribers);
+		}
+		if (!xmlSubscribers.isEmpty()) {
+			publishSerializedEvent(packageName, eventName, event, false, xmlSubscribers);
+		}
 	}
 
 	protected Collection<Subscription> getSubscribers(String packageName, String eventName, Object event) {
@@ -187,6 +201,14 @@ public class EventPublisherModule
 		return subscribers;
 	}
 
+	private void publishSerializedEvent(String packageName, String eventName, Object event, boolean binary,
+										Collection<Subscription> subscribers) {
+		Element eventElement = serializer.serialize(event, binary);
+		eventElement.setAttribute("serialized", "true");
+
+		publishEvent(packageName, eventName, eventElement, subscribers);
+	}
+
 	private void publishEvent(Element pubsubEventElem, String from, JID toJID) throws TigaseStringprepException {
 		Packet message = Packet.packetInstance(new Element("message", new String[]{"to", "from", "id"},
 														   new String[]{toJID.toString(), from, nextStanzaID()}));
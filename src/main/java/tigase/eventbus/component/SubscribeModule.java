@@ -26,11 +26,13 @@ import tigase.eventbus.component.stores.AffiliationStore;
 import tigase.eventbus.component.stores.Subscription;
 import tigase.eventbus.component.stores.SubscriptionStore;
 import tigase.eventbus.impl.EventBusImplementation;
+import tigase.eventbus.impl.EventBusSerializer;
 import tigase.eventbus.impl.EventName;
 import tigase.kernel.beans.Bean;
 import tigase.kernel.beans.Initializable;
 import tigase.kernel.beans.Inject;
 import tigase.kernel.beans.UnregisterAware;
+import tigase.kernel.beans.config.ConfigField;
 import tigase.server.Packet;
 import tigase.server.Permissions;
 import tigase.util.stringprep.TigaseStringprepException;
@@ -54,6 +56,9 @@ public class SubscribeModule
 	@Inject
 	private AffiliationStore affiliationStore;
 
+	@ConfigField(desc = "Request binary serialization of events sent by other cluster nodes", alias = "binary-events")
+	private boolean binaryEvents = true;
+
 	@Inject
 	private EventBusComponent component;
 
@@ -154,6 +159,9 @@ public class SubscribeModule
 
 		if (service != null) {
 			subscribeElem.addChild(new Element("service", service));
+		} else if (binaryEvents) {
+			// events for this node may be sent in binary form
+			subscribeElem.addAttribute(EventBusSerializer.CODEC_ATTR_NAME, EventBusSerializer.BINARY_CODEC);
 		}
 
 		return subscribeElem;
@@ -193,7 +201,16 @@ public class SubscribeModule
 			Subscription subscription = new Subscription(jid);
 			subscription.setInClusterSubscription(true);
 			subscription.setServiceJID(JID.jidInstanceNS(service));
-
+			subscription.setBinaryCodecSupported(
+					EventBusSerializer.BINARY_CODEC.equals(subscribe.getAttributeStaticStr(EventBusSerializer.CODEC_ATTR_NAME)));
+
+			// node may be restarted with different version, so support of codec of existing subscriptions is updated
+			for (Subscription existing : subscriptionStore.getSubscribersJIDs(parsedName.getPackage(),
+																			   parsedName.getName())) {
+				if (existing.equals(subscription)) {
+					existing.setBinaryCodecSupported(subscription.isBinaryCodecSupported());
+				}
+			}
 			subscriptionStore.addSubscription(parsedName.getPackage(), parsedName.getName(), subscription);
 
 			localEventBus.fire(new NewRemoteSubscriptionEvent(parsedName, subscription));
@@ -22,6 +22,7 @@ import tigase.xmpp.jid.JID;
 public class Subscription {
 
 	private final JID jid;
+	private volatile boolean binaryCodecSupported;
 	private boolean inClusterSubscription;
 	private JID serviceJID;
 
@@ -78,6 +79,17 @@ public class Subscription {
 		return result;
 	}
 
+	/**
+	 * Returns <code>true</code> if subscriber is able to decode events serialized with binary codec.
+	 */
+	public boolean isBinaryCodecSupported() {
+		return binaryCodecSupported;
+	}
+
+	public void setBinaryCodecSupported(boolean binaryCodecSupported) {
+		this.binaryCodecSupported = binaryCodecSupported;
+	}
+
 	public boolean isInClusterSubscription() {
 		return inClusterSubscription;
 	}
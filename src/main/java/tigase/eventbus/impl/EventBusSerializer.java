@@ -20,21 +20,67 @@ package tigase.eventbus.impl;
 import tigase.kernel.BeanUtils;
 import tigase.kernel.DefaultTypesConverter;
 import tigase.kernel.TypesConverter;
+import tigase.util.Base64;
+import tigase.xml.DomBuilderHandler;
 import tigase.xml.Element;
+import tigase.xml.SimpleParser;
+import tigase.xml.SingletonFactory;
 import tigase.xml.XMLUtils;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
 
-import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Modifier;
+import java.io.*;
+import java.lang.reflect.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Serializer of event objects sent between cluster nodes.
+ * <br>
+ * Events are serialized to XML (one child element per field) or, if the receiving side supports it, to a compact
+ * binary form (see {@link #BINARY_CODEC}) which is sent as Base64 encoded CData of the <code>event</code> element.
+ * Fields of event classes and their accessors are resolved once per class and cached.
+ */
 public class EventBusSerializer
 		implements Serializer {
 
-	private static final Logger log = Logger.getLogger(EventBusSerializer.class.getName());
-	private static final String ELEM_NAME = "event";
+	/**
+	 * Name of the binary codec, which is set as value of the <code>codec</code> attribute of serialized event.
+	 */
+	public static final String BINARY_CODEC = "bin1";
+	public static final String CODEC_ATTR_NAME = "codec";
 	private static final String CLASS_ATTR_NAME = "class";
+	private static final String ELEM_NAME = "event";
+	private static final Logger log = Logger.getLogger(EventBusSerializer.class.getName());
+
+	private static final byte TAG_END = 0;
+	private static final byte TAG_STRING = 1;
+	private static final byte TAG_INT = 2;
+	private static final byte TAG_LONG = 3;
+	private static final byte TAG_BOOLEAN = 4;
+	private static final byte TAG_DOUBLE = 5;
+	private static final byte TAG_FLOAT = 6;
+	private static final byte TAG_SHORT = 7;
+	private static final byte TAG_BYTE = 8;
+	private static final byte TAG_CHAR = 9;
+	private static final byte TAG_JID = 10;
+	private static final byte TAG_BAREJID = 11;
+	private static final byte TAG_ELEMENT = 12;
+	private static final byte TAG_CONVERTED = 13;
+	private static final byte VERSION = 1;
+
+	private static final ClassValue<ClassSchema> schemas = new ClassValue<ClassSchema>() {
+		@Override
+		protected ClassSchema computeValue(Class<?> type) {
+			return new ClassSchema(type);
+		}
+	};
+
 	private TypesConverter typesConverter = new DefaultTypesConverter();
 
 	public <T> T deserialize(final Element element) {
@@ -46,39 +92,33 @@ public class EventBusSerializer
 			if (className == null) {
 				return null;
 			}
-			final Class<?> cls = Class.forName(className);
-			final Object result = cls.newInstance();
+			if (BINARY_CODEC.equals(element.getAttributeStaticStr(CODEC_ATTR_NAME))) {
+				String data = element.getCData();
+				return data == null ? null : deserializeBinary(Base64.decode(data));
+			}
 
-			Field[] fields = BeanUtils.getAllFields(cls);
-			for (final Field f : fields) {
-				if (Modifier.isTransient(f.getModifiers())) {
-					continue;
-				}
-				if (Modifier.isFinal(f.getModifiers())) {
-					continue;
-				}
-				if (Modifier.isStatic(f.getModifiers())) {
-					continue;
-				}
+			final ClassSchema schema = schemas.get(Class.forName(className));
+			final Object result = schema.newInstance();
 
+			for (final FieldAccessor f : schema.fields) {
 				try {
 					Object value;
-					Element v = element.getChild(f.getName());
+					Element v = element.getChild(f.name);
 					if (v == null) {
 						continue;
 					}
 
-					if (Element.class.isAssignableFrom(f.getType())) {
+					if (f.tag == TAG_ELEMENT) {
 						if (v.getChildren().size() > 0) {
 							value = v.getChildren().get(0);
 						} else {
 							value = null;
 						}
 					} else {
-						value = typesConverter.convert(XMLUtils.unescape(v.getCData()), f.getType(),
-													   f.getGenericType());
+						value = typesConverter.convert(XMLUtils.unescape(v.getCData()), f.field.getType(),
+													   f.field.getGenericType());
 					}
-					BeanUtils.setValue(result, f, value);
+					f.set(result, value);
 				} catch (IllegalAccessException | InvocationTargetException caught) {
 					log.log(Level.WARNING, "Error while deserializing", caught);
 				}
@@ -86,38 +126,67 @@ public class EventBusSerializer
 			return (T) result;
 		} catch (ClassNotFoundException e) {
 			return null;
-		} catch (InstantiationException | IllegalAccessException e) {
+		} catch (InstantiationException | IllegalAccessException | InvocationTargetException | IOException e) {
 			log.log(Level.WARNING, "Error while deserializing", e);
 			return null;
 		}
 	}
 
-	public Element serialize(final Object object) {
-		final Class<?> cls = object.getClass();
-		Element e = new Element(ELEM_NAME);
-		e.setAttribute(CLASS_ATTR_NAME, cls.getName());
+	/**
+	 * Creates event object from its binary form created by {@link #serializeBinary(Object)}.
+	 *
+	 * @param data serialized event
+	 *
+	 * @return event object or <code>null</code> if class of the event is not available
+	 */
+	public <T> T deserializeBinary(final byte[] data)
+			throws IOException, InstantiationException, IllegalAccessException, InvocationTargetException {
+		final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		if (in.readByte() != VERSION) {
+			throw new IOException("Unsupported version of serialized event");
+		}
+		final Class<?> cls;
+		try {
+			cls = Class.forName(readString(in));
+		} catch (ClassNotFoundException e) {
+			return null;
+		}
+		final ClassSchema schema = schemas.get(cls);
+		final Object result = schema.newInstance();
 
-		Field[] fields = BeanUtils.getAllFields(cls);
-		for (final Field f : fields) {
-			if (Modifier.isTransient(f.getModifiers())) {
+		byte tag;
+		while ((tag = in.readByte()) != TAG_END) {
+			final String name = readString(in);
+			final FieldAccessor f = schema.fieldsByName.get(name);
+			final Object value = readValue(in, tag, f);
+			if (f == null) {
+				// field was removed or renamed, value is skipped
 				continue;
 			}
-			if (Modifier.isFinal(f.getModifiers())) {
-				continue;
-			}
-			if (Modifier.isStatic(f.getModifiers())) {
-				continue;
+			try {
+				f.set(result, value);
+			} catch (IllegalArgumentException | IllegalAccessException | InvocationTargetException caught) {
+				log.log(Level.WARNING, "Error while deserializing", caught);
 			}
+		}
+		return (T) result;
+	}
+
+	public Element serialize(final Object object) {
+		final Class<?> cls = object.getClass();
+		Element e = new Element(ELEM_NAME);
+		e.setAttribute(CLASS_ATTR_NAME, cls.getName());
 
+		for (final FieldAccessor f : schemas.get(cls).fields) {
 			try {
-				final Object value = BeanUtils.getValue(object, f);
+				final Object value = f.get(object);
 
 				if (value == null) {
 					continue;
 				}
 
-				Element v = new Element(f.getName());
-				if (Element.class.isAssignableFrom(f.getType())) {
+				Element v = new Element(f.name);
+				if (f.tag == TAG_ELEMENT) {
 					v.addChild((Element) value);
 				} else {
 					String x = typesConverter.toString(value);
@@ -132,4 +201,322 @@ public class EventBusSerializer
 		return e;
 	}
 
+	/**
+	 * Serializes event to <code>event</code> element using XML or binary form.
+	 *
+	 * @param object event to serialize
+	 * @param binary if <code>true</code> event will be serialized to binary form
+	 *
+	 * @return element with serialized event
+	 */
+	public Element serialize(final Object object, boolean binary) {
+		if (!binary) {
+			return serialize(object);
+		}
+		Element e = new Element(ELEM_NAME);
+		e.setAttribute(CLASS_ATTR_NAME, object.getClass().getName());
+		e.setAttribute(CODEC_ATTR_NAME, BINARY_CODEC);
+		e.setCData(Base64.encode(serializeBinary(object)));
+		return e;
+	}
+
+	/**
+	 * Serializes event to binary form. Each not null field is written as a type tag, name of the field and value.
+	 * Names of fields are included so events may be exchanged between nodes with different versions of event classes.
+	 *
+	 * @param object event to serialize
+	 *
+	 * @return serialized event
+	 */
+	public byte[] serializeBinary(final Object object) {
+		final Class<?> cls = object.getClass();
+		final ByteArrayOutputStream buf = new ByteArrayOutputStream(256);
+		final DataOutputStream out = new DataOutputStream(buf);
+		try {
+			out.writeByte(VERSION);
+			writeString(out, cls.getName());
+			for (final FieldAccessor f : schemas.get(cls).fields) {
+				try {
+					final Object value = f.get(object);
+					if (value == null) {
+						continue;
+					}
+					out.writeByte(f.tag);
+					writeString(out, f.name);
+					writeValue(out, f.tag, value);
+				} catch (IllegalAccessException | InvocationTargetException caught) {
+					log.log(Level.WARNING, "Error while serializing", caught);
+				}
+			}
+			out.writeByte(TAG_END);
+		} catch (IOException ex) {
+			// should not happen as data is written to memory
+			throw new UncheckedIOException(ex);
+		}
+		return buf.toByteArray();
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		final byte[] data = new byte[(int) readVarLong(in)];
+		in.readFully(data);
+		return new String(data, StandardCharsets.UTF_8);
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		final byte[] data = value.getBytes(StandardCharsets.UTF_8);
+		writeVarLong(out, data.length);
+		out.write(data);
+	}
+
+	private static long readVarLong(DataInputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			final byte b = in.readByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed variable length value");
+	}
+
+	// numbers are written using 7 bits per byte, so small values (ie. lengths) take one or two bytes
+	private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	private static long readZigZag(DataInputStream in) throws IOException {
+		final long value = readVarLong(in);
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	// signed numbers are mapped to unsigned ones, so small negative values are also short
+	private static void writeZigZag(DataOutputStream out, long value) throws IOException {
+		writeVarLong(out, (value << 1) ^ (value >> 63));
+	}
+
+	private Object readValue(DataInputStream in, byte tag, FieldAccessor f) throws IOException {
+		switch (tag) {
+			case TAG_STRING:
+				return readString(in);
+			case TAG_INT:
+				return (int) readZigZag(in);
+			case TAG_LONG:
+				return readZigZag(in);
+			case TAG_BOOLEAN:
+				return in.readBoolean();
+			case TAG_DOUBLE:
+				return in.readDouble();
+			case TAG_FLOAT:
+				return in.readFloat();
+			case TAG_SHORT:
+				return in.readShort();
+			case TAG_BYTE:
+				return in.readByte();
+			case TAG_CHAR:
+				return in.readChar();
+			case TAG_JID:
+				return JID.jidInstanceNS(readString(in));
+			case TAG_BAREJID:
+				return BareJID.bareJIDInstanceNS(readString(in));
+			case TAG_ELEMENT:
+				return parseElement(readString(in));
+			case TAG_CONVERTED:
+				String value = readString(in);
+				return f == null ? null : typesConverter.convert(value, f.field.getType(), f.field.getGenericType());
+			default:
+				throw new IOException("Unknown type of serialized value: " + tag);
+		}
+	}
+
+	private void writeValue(DataOutputStream out, byte tag, Object value) throws IOException {
+		switch (tag) {
+			case TAG_STRING:
+				writeString(out, (String) value);
+				break;
+			case TAG_INT:
+				writeZigZag(out, (Integer) value);
+				break;
+			case TAG_LONG:
+				writeZigZag(out, (Long) value);
+				break;
+			case TAG_BOOLEAN:
+				out.writeBoolean((Boolean) value);
+				break;
+			case TAG_DOUBLE:
+				out.writeDouble((Double) value);
+				break;
+			case TAG_FLOAT:
+				out.writeFloat((Float) value);
+				break;
+			case TAG_SHORT:
+				out.writeShort((Short) value);
+				break;
+			case TAG_BYTE:
+				out.writeByte((Byte) value);
+				break;
+			case TAG_CHAR:
+				out.writeChar((Character) value);
+				break;
+			case TAG_JID:
+			case TAG_BAREJID:
+			case TAG_ELEMENT:
+				writeString(out, value.toString());
+				break;
+			default:
+				writeString(out, typesConverter.toString(value));
+				break;
+		}
+	}
+
+	private static Element parseElement(String data) {
+		final SimpleParser parser = SingletonFactory.getParserInstance();
+		final DomBuilderHandler domHandler = new DomBuilderHandler();
+		final char[] chars = data.toCharArray();
+		parser.parse(domHandler, chars, 0, chars.length);
+		return domHandler.getParsedElements().poll();
+	}
+
+	private static byte tagFor(Class<?> type) {
+		if (type == String.class) {
+			return TAG_STRING;
+		}
+		if (type == int.class || type == Integer.class) {
+			return TAG_INT;
+		}
+		if (type == long.class || type == Long.class) {
+			return TAG_LONG;
+		}
+		if (type == boolean.class || type == Boolean.class) {
+			return TAG_BOOLEAN;
+		}
+		if (type == double.class || type == Double.class) {
+			return TAG_DOUBLE;
+		}
+		if (type == float.class || type == Float.class) {
+			return TAG_FLOAT;
+		}
+		if (type == short.class || type == Short.class) {
+			return TAG_SHORT;
+		}
+		if (type == byte.class || type == Byte.class) {
+			return TAG_BYTE;
+		}
+		if (type == char.class || type == Character.class) {
+			return TAG_CHAR;
+		}
+		if (type == JID.class) {
+			return TAG_JID;
+		}
+		if (type == BareJID.class) {
+			return TAG_BAREJID;
+		}
+		if (Element.class.isAssignableFrom(type)) {
+			return TAG_ELEMENT;
+		}
+		return TAG_CONVERTED;
+	}
+
+	/**
+	 * Serialized fields of the event class with resolved accessors.
+	 */
+	private static class ClassSchema {
+
+		private final Constructor<?> constructor;
+		private final FieldAccessor[] fields;
+		private final Map<String, FieldAccessor> fieldsByName = new HashMap<>();
+
+		private ClassSchema(Class<?> cls) {
+			List<FieldAccessor> accessors = new ArrayList<>();
+			for (final Field f : BeanUtils.getAllFields(cls)) {
+				if (Modifier.isTransient(f.getModifiers())) {
+					continue;
+				}
+				if (Modifier.isFinal(f.getModifiers())) {
+					continue;
+				}
+				if (Modifier.isStatic(f.getModifiers())) {
+					continue;
+				}
+				FieldAccessor accessor = new FieldAccessor(f);
+				accessors.add(accessor);
+				fieldsByName.putIfAbsent(accessor.name, accessor);
+			}
+			fields = accessors.toArray(new FieldAccessor[0]);
+
+			Constructor<?> c;
+			try {
+				c = cls.getDeclaredConstructor();
+				c.setAccessible(true);
+			} catch (NoSuchMethodException | RuntimeException ex) {
+				c = null;
+			}
+			constructor = c;
+		}
+
+		private Object newInstance() throws InstantiationException, IllegalAccessException, InvocationTargetException {
+			if (constructor == null) {
+				throw new InstantiationException("No default constructor");
+			}
+			return constructor.newInstance();
+		}
+	}
+
+	/**
+	 * Accessor of a single field using getter and setter methods if they exist.
+	 */
+	private static class FieldAccessor {
+
+		private final Field field;
+		private final Method getter;
+		private final String name;
+		private final Method setter;
+		// set if field has no setter methods at all, so value may be set directly
+		private final boolean setDirectly;
+		private final byte tag;
+
+		private FieldAccessor(Field field) {
+			this.field = field;
+			this.name = field.getName();
+			this.tag = tagFor(field.getType());
+			this.getter = BeanUtils.prepareGetterMethod(field);
+			this.setter = BeanUtils.prepareSetterMethod(field);
+			if (getter == null || setter == null) {
+				field.setAccessible(true);
+			}
+			boolean hasSetters = false;
+			if (setter == null) {
+				String setterName = "set" + BeanUtils.prepareAccessorMainPartName(name);
+				for (Method m : field.getDeclaringClass().getMethods()) {
+					if (m.getName().equals(setterName)) {
+						hasSetters = true;
+						break;
+					}
+				}
+			}
+			this.setDirectly = setter == null && !hasSetters;
+		}
+
+		private Object get(Object bean) throws IllegalAccessException, InvocationTargetException {
+			if (getter != null) {
+				return getter.invoke(bean);
+			}
+			return field.get(bean);
+		}
+
+		private void set(Object bean, Object value) throws IllegalAccessException, InvocationTargetException {
+			if (setter != null) {
+				setter.invoke(bean, value);
+			} else if (setDirectly) {
+				field.set(bean, value);
+			} else {
+				BeanUtils.setValue(bean, field, value);
+			}
+		}
+	}
+
 }
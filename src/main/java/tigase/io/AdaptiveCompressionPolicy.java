@@ -0,0 +1,189 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.io;
+
+import tigase.sys.TigaseRuntime;
+
+import java.util.function.Supplier;
+import java.util.zip.Deflater;
+
+/**
+ * Policy selecting deflate level used by {@link AdaptiveZLibIO} based on the link throughput, CPU usage and
+ * compression ratio observed during the last measurement window.
+ * <br>
+ * Rules are checked in the following order:
+ * <ul>
+ * <li>if CPU usage is high, compression is disabled on fast links and set to the fastest level on others (if it was
+ * enabled),</li>
+ * <li>if data does not compress well, compression is disabled (and after a few windows fastest level is tried again
+ * to measure compression ratio),</li>
+ * <li>on fast links (ie. within a data center) fastest level is used, as bandwidth is cheaper than CPU,</li>
+ * <li>if CPU usage is moderate, default level is used,</li>
+ * <li>otherwise best compression is used.</li>
+ * </ul>
+ * Compression is never switched off in the stream - level {@link Deflater#NO_COMPRESSION} produces stored blocks, so
+ * the other side does not need to know about level changes.
+ */
+public class AdaptiveCompressionPolicy {
+
+	private static final long CPU_SAMPLE_INTERVAL = 1000;
+	// the same as Deflater.DEFAULT_COMPRESSION, but reported as a real level
+	private static final int DEFAULT_LEVEL = 6;
+	private static final long MIN_SAMPLE_BYTES = 4096;
+
+	private final Supplier<Float> cpuUsageSupplier;
+	private float cpuHigh = 80f;
+	private float cpuModerate = 50f;
+	private volatile float cpuUsage = 0f;
+	private volatile long cpuUsageTime = 0;
+	private long fastLinkThroughput = 5 * 1024 * 1024;
+	private int initialLevel = Deflater.BEST_SPEED;
+	private float poorRatio = 0.85f;
+	private int probeWindows = 12;
+	private long window = 5000;
+
+	public AdaptiveCompressionPolicy() {
+		this(() -> TigaseRuntime.getTigaseRuntime().getCPUUsage());
+	}
+
+	/**
+	 * @param cpuUsageSupplier supplier of CPU usage in percents
+	 */
+	public AdaptiveCompressionPolicy(Supplier<Float> cpuUsageSupplier) {
+		this.cpuUsageSupplier = cpuUsageSupplier;
+	}
+
+	public float getCpuHigh() {
+		return cpuHigh;
+	}
+
+	public void setCpuHigh(float cpuHigh) {
+		this.cpuHigh = cpuHigh;
+	}
+
+	public float getCpuModerate() {
+		return cpuModerate;
+	}
+
+	public void setCpuModerate(float cpuModerate) {
+		this.cpuModerate = cpuModerate;
+	}
+
+	/**
+	 * Returns current CPU usage. Value is cached for a second as it is requested by each compressed connection.
+	 *
+	 * @return CPU usage in percents
+	 */
+	public float getCpuUsage() {
+		long now = System.currentTimeMillis();
+		if (now - cpuUsageTime > CPU_SAMPLE_INTERVAL) {
+			cpuUsageTime = now;
+			cpuUsage = cpuUsageSupplier.get();
+		}
+		return cpuUsage;
+	}
+
+	public long getFastLinkThroughput() {
+		return fastLinkThroughput;
+	}
+
+	/**
+	 * @param fastLinkThroughput throughput (in bytes per second of uncompressed data) above which link is treated as
+	 * fast
+	 */
+	public void setFastLinkThroughput(long fastLinkThroughput) {
+		this.fastLinkThroughput = fastLinkThroughput;
+	}
+
+	public int getInitialLevel() {
+		return initialLevel;
+	}
+
+	public void setInitialLevel(int initialLevel) {
+		this.initialLevel = initialLevel;
+	}
+
+	public float getPoorRatio() {
+		return poorRatio;
+	}
+
+	/**
+	 * @param poorRatio ratio of compressed to uncompressed size above which compression is not worth its CPU cost
+	 */
+	public void setPoorRatio(float poorRatio) {
+		this.poorRatio = poorRatio;
+	}
+
+	public int getProbeWindows() {
+		return probeWindows;
+	}
+
+	public void setProbeWindows(int probeWindows) {
+		this.probeWindows = probeWindows;
+	}
+
+	public long getWindow() {
+		return window;
+	}
+
+	/**
+	 * @param window length of measurement window in milliseconds
+	 */
+	public void setWindow(long window) {
+		this.window = window;
+	}
+
+	/**
+	 * Selects deflate level for the next measurement window.
+	 *
+	 * @param currentLevel level used during the last window
+	 * @param windowsAtLevel number of windows for which current level is used
+	 * @param uncompressedBytes number of bytes passed for compression during the last window
+	 * @param compressedBytes number of bytes produced by compression during the last window
+	 * @param elapsed length of the last window in milliseconds
+	 * @param cpuUsage CPU usage in percents
+	 *
+	 * @return deflate level
+	 */
+	public int selectLevel(int currentLevel, int windowsAtLevel, long uncompressedBytes, long compressedBytes,
+						   long elapsed, float cpuUsage) {
+		final long throughput = elapsed > 0 ? (uncompressedBytes * 1000) / elapsed : 0;
+		final boolean fastLink = throughput >= fastLinkThroughput;
+
+		if (cpuUsage >= cpuHigh) {
+			return fastLink || currentLevel == Deflater.NO_COMPRESSION ? Deflater.NO_COMPRESSION : Deflater.BEST_SPEED;
+		}
+		if (uncompressedBytes < MIN_SAMPLE_BYTES) {
+			// not enough data to measure anything
+			return currentLevel;
+		}
+		if (currentLevel == Deflater.NO_COMPRESSION) {
+			return windowsAtLevel < probeWindows ? Deflater.NO_COMPRESSION : Deflater.BEST_SPEED;
+		}
+		if ((float) compressedBytes / uncompressedBytes > poorRatio) {
+			return Deflater.NO_COMPRESSION;
+		}
+		if (fastLink) {
+			return Deflater.BEST_SPEED;
+		}
+		if (cpuUsage >= cpuModerate) {
+			return DEFAULT_LEVEL;
+		}
+		return Deflater.BEST_COMPRESSION;
+	}
+}
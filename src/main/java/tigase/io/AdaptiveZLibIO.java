@@ -0,0 +1,364 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.io;
+
+import tigase.stats.StatisticsList;
+import tigase.util.IOListener;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * ZLib compression layer which changes deflate level during the connection lifetime using
+ * {@link AdaptiveCompressionPolicy}.
+ * <br>
+ * Compressed stream is a standard zlib stream, so data sent with this layer may be read by {@link ZLibIO} unless the
+ * preset dictionary is used. Data compressed with or without {@link #XMPP_DICTIONARY} may be read by this layer.
+ */
+public class AdaptiveZLibIO
+		implements IOInterface {
+
+	/**
+	 * Dictionary with common fragments of XMPP and cluster stanzas. The most common fragments are at the end, as
+	 * shorter distances are encoded using fewer bits.
+	 */
+	public static final byte[] XMPP_DICTIONARY = ("<iq type=\"result\"/><iq type=\"error\"><error type=\"cancel\">" +
+			"<feature-not-implemented xmlns=\"urn:ietf:params:xml:ns:xmpp-stanzas\"/>" +
+			"<service-unavailable xmlns=\"urn:ietf:params:xml:ns:xmpp-stanzas\"/></error>" +
+			"<query xmlns=\"jabber:iq:roster\"><item jid=\"\" subscription=\"both\"/></query>" +
+			"<query xmlns=\"http://jabber.org/protocol/disco#info\"/><pubsub xmlns=\"http://jabber.org/protocol/pubsub\">" +
+			"<event xmlns=\"http://jabber.org/protocol/pubsub#event\"><items node=\"\"><item id=\"\">" +
+			"<delay xmlns=\"urn:xmpp:delay\" stamp=\"\"/><stanza-id xmlns=\"urn:xmpp:sid:0\" id=\"\" by=\"\"/>" +
+			"<c xmlns=\"http://jabber.org/protocol/caps\" hash=\"sha-1\" node=\"\" ver=\"\"/>" +
+			"<x xmlns=\"vcard-temp:x:update\"><photo></photo></x><show>away</show><show>chat</show>" +
+			"<status></status><priority>0</priority><presence type=\"unavailable\" xmlns=\"jabber:client\"/>" +
+			"<active xmlns=\"http://jabber.org/protocol/chatstates\"/><body></body><thread></thread>" +
+			"<message type=\"chat\" xmlns=\"jabber:client\" id=\"\" from=\"\" to=\"\">" +
+			"<presence xmlns=\"jabber:client\" from=\"\" to=\"\"><iq type=\"set\" xmlns=\"jabber:client\" id=\"\">" +
+			"<iq type=\"get\" xmlns=\"jabber:client\" id=\"\"><par name=\"connectionId\">" +
+			"<par name=\"userId\"><par name=\"resource\"><par name=\"xmppSessionId\"><par name=\"auth-time\">" +
+			"<par name=\"packet-from\"><par name=\"stable-id\"><par name=\"session-found\"><par name=\"presence-type\">" +
+			"<method-call name=\"user-presence-sm-cmd\"><method-call name=\"user-connected-sm-cmd\">" +
+			"<method-call name=\"packet-forward-sm-cmd\"><cluster xmlns=\"tigase:cluster\" type=\"set\" id=\"\" " +
+			"from=\"sess-man@\" to=\"sess-man@\"><control><visited-nodes><node-id>sess-man@</node-id></visited-nodes>" +
+			"</method-call><first-node>sess-man@</first-node></control><data>").getBytes(StandardCharsets.UTF_8);
+
+	private static final int XMPP_DICTIONARY_ID = adler32(XMPP_DICTIONARY);
+
+	private static final Logger log = Logger.getLogger(AdaptiveZLibIO.class.getName());
+
+	private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+	private final Inflater inflater = new Inflater();
+	private final IOInterface io;
+	private final AdaptiveCompressionPolicy policy;
+	private long compressedTotal = 0;
+	private long decompressedTotal = 0;
+	private int level;
+	private int levelChanges = 0;
+	private IOListener listener = null;
+	private long receivedTotal = 0;
+	private long uncompressedTotal = 0;
+	private long windowCompressed = 0;
+	private long windowStart = System.currentTimeMillis();
+	private long windowUncompressed = 0;
+	private int windowsAtLevel = 0;
+
+	private static int adler32(byte[] data) {
+		Adler32 adler = new Adler32();
+		adler.update(data);
+		return (int) adler.getValue();
+	}
+
+	/**
+	 * @param ioi underlying IO layer
+	 * @param policy policy selecting deflate level
+	 * @param useDictionary if {@link #XMPP_DICTIONARY} should be used for compression. Dictionary has to be supported
+	 * by the other side, so it may be used only if the other side also uses this layer.
+	 */
+	public AdaptiveZLibIO(final IOInterface ioi, final AdaptiveCompressionPolicy policy, final boolean useDictionary) {
+		this.io = ioi;
+		this.policy = policy;
+		this.level = policy.getInitialLevel();
+		deflater.setLevel(level);
+		if (useDictionary) {
+			deflater.setDictionary(XMPP_DICTIONARY);
+		}
+	}
+
+	@Override
+	public int bytesRead() {
+		return io.bytesRead();
+	}
+
+	@Override
+	public long getBytesSent(boolean reset) {
+		return io.getBytesSent(reset);
+	}
+
+	@Override
+	public long getTotalBytesSent() {
+		return io.getTotalBytesSent();
+	}
+
+	@Override
+	public long getBytesReceived(boolean reset) {
+		return io.getBytesReceived(reset);
+	}
+
+	@Override
+	public long getTotalBytesReceived() {
+		return io.getTotalBytesReceived();
+	}
+
+	@Override
+	public long getBuffOverflow(boolean reset) {
+		return io.getBuffOverflow(reset);
+	}
+
+	@Override
+	public long getTotalBuffOverflow() {
+		return io.getTotalBuffOverflow();
+	}
+
+	@Override
+	public boolean checkCapabilities(String caps) {
+		return caps.contains(ZLibIO.ZLIB_CAPS) || io.checkCapabilities(caps);
+	}
+
+	/**
+	 * Compresses data and updates the deflate level if the measurement window has elapsed.
+	 *
+	 * @param input data to compress
+	 *
+	 * @return buffer with compressed data ready to be read
+	 */
+	public ByteBuffer compress(ByteBuffer input) {
+		int inputSize = input.remaining();
+		ByteBuffer output = ByteBuffer.allocate(inputSize + (inputSize >> 4) + 64);
+		deflater.setInput(input);
+		int written;
+		do {
+			// call applying changed level may consume input without flushing it, so deflate is called until
+			// there is nothing more to flush
+			written = deflater.deflate(output, Deflater.SYNC_FLUSH);
+			if (!output.hasRemaining()) {
+				output = grow(output);
+			}
+		} while (written > 0 || !deflater.needsInput());
+		output.flip();
+
+		windowUncompressed += inputSize;
+		windowCompressed += output.remaining();
+		uncompressedTotal += inputSize;
+		compressedTotal += output.remaining();
+		checkLevel();
+
+		return output;
+	}
+
+	/**
+	 * Decompresses data received from the other side.
+	 *
+	 * @param input compressed data
+	 *
+	 * @return buffer with decompressed data ready to be read
+	 */
+	public ByteBuffer decompress(ByteBuffer input) throws IOException {
+		int inputSize = input.remaining();
+		ByteBuffer output = ByteBuffer.allocate(Math.max(256, inputSize * 4));
+		inflater.setInput(input);
+		try {
+			while (true) {
+				inflater.inflate(output);
+				if (inflater.needsDictionary()) {
+					if (inflater.getAdler() != XMPP_DICTIONARY_ID) {
+						throw new IOException("Unknown compression dictionary: " + inflater.getAdler());
+					}
+					inflater.setDictionary(XMPP_DICTIONARY);
+					continue;
+				}
+				if (output.hasRemaining()) {
+					// all available data was decompressed
+					break;
+				}
+				if (listener != null && !listener.checkBufferLimit(output.capacity() * 2)) {
+					throw new IOException("Input buffer size limit exceeded");
+				}
+				output = grow(output);
+			}
+		} catch (DataFormatException ex) {
+			throw new IOException("Invalid compressed data", ex);
+		}
+		output.flip();
+
+		receivedTotal += inputSize;
+		decompressedTotal += output.remaining();
+
+		return output;
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	@Override
+	public int getInputPacketSize() throws IOException {
+		return io.getInputPacketSize();
+	}
+
+	@Override
+	public SocketChannel getSocketChannel() {
+		return io.getSocketChannel();
+	}
+
+	@Override
+	public void getStatistics(StatisticsList list, boolean reset) {
+		if (io != null) {
+			io.getStatistics(list, reset);
+		}
+
+		// the same names as used by ZLibIO, so the values are aggregated together
+		list.add("zlibio", "Average compression rate",
+				 uncompressedTotal > 0 ? (float) compressedTotal / uncompressedTotal : 0f, Level.FINE);
+		list.add("zlibio", "Average decompression rate",
+				 decompressedTotal > 0 ? (float) receivedTotal / decompressedTotal : 0f, Level.FINE);
+		list.add("zlibio", "Compression level", level, Level.FINER);
+		list.add("zlibio", "Compression level changes", levelChanges, Level.FINER);
+	}
+
+	@Override
+	public boolean isConnected() {
+		return io.isConnected();
+	}
+
+	@Override
+	public boolean isRemoteAddress(String addr) {
+		return io.isRemoteAddress(addr);
+	}
+
+	@Override
+	public ByteBuffer read(ByteBuffer buff) throws IOException {
+		ByteBuffer tmpBuffer = io.read(buff);
+
+		if (io.bytesRead() > 0) {
+			ByteBuffer decompressed_buff = decompress(tmpBuffer);
+
+			// The buffer is reused to it needs to be cleared before it can be
+			// used again.
+			tmpBuffer.clear();
+
+			return decompressed_buff;
+		}
+
+		return null;
+	}
+
+	@Override
+	public void releaseInputBuffers() {
+		io.releaseInputBuffers();
+	}
+
+	@Override
+	public void stop() throws IOException {
+		if (log.isLoggable(Level.FINEST)) {
+			log.finest("Stop called..." + toString());
+		}
+
+		io.stop();
+		deflater.end();
+		inflater.end();
+	}
+
+	@Override
+	public String toString() {
+		return "ZLIB(adaptive, level: " + level + "): " + io.toString();
+	}
+
+	@Override
+	public boolean waitingToSend() {
+		return io.waitingToSend();
+	}
+
+	@Override
+	public int waitingToSendSize() {
+		return io.waitingToSendSize();
+	}
+
+	@Override
+	public int write(ByteBuffer buff) throws IOException {
+		if (buff == null) {
+			return io.write(null);
+		}
+
+		if (log.isLoggable(Level.FINER)) {
+			log.log(Level.FINER, "ZLIB - Writing data, remaining: {0}", buff.remaining());
+		}
+
+		return io.write(compress(buff));
+	}
+
+	@Override
+	public void setLogId(String logId) {
+		io.setLogId(logId);
+	}
+
+	public void setIOListener(IOListener listener) {
+		this.listener = listener;
+	}
+
+	private void checkLevel() {
+		long now = System.currentTimeMillis();
+		long elapsed = now - windowStart;
+		if (elapsed < policy.getWindow()) {
+			return;
+		}
+		int newLevel = policy.selectLevel(level, windowsAtLevel, windowUncompressed, windowCompressed, elapsed,
+										  policy.getCpuUsage());
+		if (newLevel != level) {
+			if (log.isLoggable(Level.FINE)) {
+				log.log(Level.FINE, "Changing compression level from {0} to {1}, sent: {2}, compressed: {3} in {4}ms [{5}]",
+						new Object[]{level, newLevel, windowUncompressed, windowCompressed, elapsed, io});
+			}
+			// new level is used for the data passed in the next call
+			deflater.setLevel(newLevel);
+			level = newLevel;
+			windowsAtLevel = 0;
+			++levelChanges;
+		} else {
+			++windowsAtLevel;
+		}
+		windowStart = now;
+		windowUncompressed = 0;
+		windowCompressed = 0;
+	}
+
+	private static ByteBuffer grow(ByteBuffer buffer) {
+		ByteBuffer result = ByteBuffer.allocate(buffer.capacity() * 2);
+		buffer.flip();
+		result.put(buffer);
+		return result;
+	}
+}
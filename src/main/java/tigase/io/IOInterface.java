@@ -60,6 +60,13 @@ public interface IOInterface {
 
 	ByteBuffer read(final ByteBuffer buff) throws IOException;
 
+	/**
+	 * Returns buffers used for reading data to the pool if they do not contain any data, so idle connection does not
+	 * keep them.
+	 */
+	default void releaseInputBuffers() {
+	}
+
 	void stop() throws IOException;
 
 	boolean waitingToSend();
@@ -370,6 +370,11 @@ public class ProxyIO implements IOInterface {
 		
 	}
 	
+	@Override
+	public void releaseInputBuffers() {
+		io.releaseInputBuffers();
+	}
+
 	@Override
 	public void stop() throws IOException {
 		io.stop();
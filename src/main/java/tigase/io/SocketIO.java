@@ -185,15 +185,20 @@ public class SocketIO
 
 	@Override
 	public ByteBuffer read(final ByteBuffer buff) throws IOException {
-		ByteBuffer tmp = IOUtil.getDirectBuffer(buff.remaining());
-		try {
-			bytesRead = channel.read(tmp);
-			tmp.flip();
-			if (bytesRead > 0) {
-				buff.put(tmp);
+		if (buff.isDirect()) {
+			// no need to copy data through a temporary buffer
+			bytesRead = channel.read(buff);
+		} else {
+			ByteBuffer tmp = IOUtil.getDirectBuffer(buff.remaining());
+			try {
+				bytesRead = channel.read(tmp);
+				tmp.flip();
+				if (bytesRead > 0) {
+					buff.put(tmp);
+				}
+			} finally {
+				IOUtil.returnDirectBuffer(tmp);
 			}
-		} finally {
-			IOUtil.returnDirectBuffer(tmp);
 		}
 
 		if (log.isLoggable(Level.FINER)) {
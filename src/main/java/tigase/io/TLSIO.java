@@ -17,6 +17,7 @@
  */
 package tigase.io;
 
+import tigase.net.ByteBufferPool;
 import tigase.stats.StatisticsList;
 
 import javax.net.ssl.SSLEngineResult;
@@ -46,10 +47,17 @@ public class TLSIO
 
 	private static final Logger log = Logger.getLogger(TLSIO.class.getName());
 
+	// empty buffer is never modified, so it may be shared by all instances
+	private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
 	private IOInterface io = null;
 
+	private final ByteOrder order;
+
 	/**
-	 * <code>tlsInput</code> buffer keeps data decoded from tlsWrapper.
+	 * <code>tlsInput</code> buffer keeps data decoded from tlsWrapper. Buffer is taken from
+	 * {@link ByteBufferPool#getInputBuffersPool()} when data is decoded and returned to the pool when all data from it
+	 * were processed.
 	 */
 	private ByteBuffer tlsInput = null;
 
@@ -74,8 +82,7 @@ public class TLSIO
 		io = ioi;
 		tlsWrapper = wrapper;
 		tlsWrapper.setDebugId(toString());
-		tlsInput = ByteBuffer.allocate(tlsWrapper.getAppBuffSize());
-		tlsInput.order(order);
+		this.order = order;
 
 		if (log.isLoggable(Level.FINER)) {
 			log.log(Level.FINER, "TLS Socket created: {0}", io.toString());
@@ -86,7 +93,7 @@ public class TLSIO
 				log.finer("TLS - client mode, starting handshaking now...");
 			}
 
-			write(ByteBuffer.allocate(0));
+			write(EMPTY_BUFFER);
 		} // end of if (tlsWrapper.isClientMode())
 	}
 
@@ -175,21 +182,17 @@ public class TLSIO
 
 			return decodeData(tmpBuffer);
 		} else {
-			if (tlsInput.capacity() > tlsWrapper.getAppBuffSize() && tlsInput.capacity() == tlsInput.remaining()) {
-				if (log.isLoggable(Level.FINE)) {
-					log.log(Level.FINE, "Resizing tlsInput to {0} bytes, capacity: {1}, remaining: {2}; IO: {3}",
-							new Object[]{tlsWrapper.getAppBuffSize(), tlsInput.capacity(), tlsInput.remaining(), toString()});
-				}
-				ByteBuffer bb = ByteBuffer.allocate(tlsWrapper.getAppBuffSize());
-
-				bb.order(tlsInput.order());
-
-				tlsInput = bb;
-			}
+			releaseTlsInput();
 			return null;
 		} // end of else
 	}
 
+	@Override
+	public void releaseInputBuffers() {
+		releaseTlsInput();
+		io.releaseInputBuffers();
+	}
+
 	@Override
 	public void stop() throws IOException {
 		if (log.isLoggable(Level.FINEST)) {
@@ -233,7 +236,7 @@ public class TLSIO
 		while (((stat == TLSStatus.NEED_WRITE) || (stat == TLSStatus.NEED_READ)) && (++loop_cnt < max_loop_runs)) {
 			switch (stat) {
 				case NEED_WRITE:
-					writeBuff(ByteBuffer.allocate(0), loop_cnt);
+					writeBuff(EMPTY_BUFFER, loop_cnt);
 
 					break;
 
@@ -254,7 +257,7 @@ public class TLSIO
 					// I wonder if some real data can be read from the socket here (and we
 					// would
 					// loose the data) or this is just TLS stuff here.....
-					ByteBuffer rbuff = read(ByteBuffer.allocate(tlsWrapper.getNetBuffSize()));
+					readHandshakeData();
 
 					break;
 
@@ -327,10 +330,28 @@ public class TLSIO
 		decodeData(ByteBuffer.wrap(data));
 	}
 
-	private ByteBuffer decodeData(ByteBuffer input) throws IOException {
+	/**
+	 * Reads TLS data needed to continue handshake using a temporary buffer from the pool. Application data is decoded
+	 * to <code>tlsInput</code>, so the temporary buffer is not needed after the read.
+	 */
+	private void readHandshakeData() throws IOException {
+		ByteBuffer buffer = ByteBufferPool.getInputBuffersPool().acquire(tlsWrapper.getNetBuffSize());
+		try {
+			read(buffer);
+		} finally {
+			ByteBufferPool.getInputBuffersPool().release(buffer);
+		}
+	}
+
+	private synchronized ByteBuffer decodeData(ByteBuffer input) throws IOException {
 		TLSStatus stat = null;
 		boolean continueLoop = true;
 
+		if (tlsInput == null) {
+			tlsInput = ByteBufferPool.getInputBuffersPool().acquire(tlsWrapper.getAppBuffSize());
+			tlsInput.order(order);
+		}
+
 		// input.flip();
 		// do_loop:
 		do {
@@ -367,7 +388,7 @@ public class TLSIO
 			// }// end of if (input.hasRemaining())
 			switch (tlsWrapper.getStatus()) {
 				case NEED_WRITE:
-					writeBuff(ByteBuffer.allocate(0), 0);
+					writeBuff(EMPTY_BUFFER, 0);
 
 					break;
 
@@ -433,6 +454,21 @@ public class TLSIO
 		return tlsInput;
 	}
 
+	/**
+	 * Returns <code>tlsInput</code> to the pool if all decoded data were processed. Buffers resized by TLS wrapper are
+	 * dropped by the pool unless they match one of its size classes.
+	 */
+	private synchronized void releaseTlsInput() {
+		if (tlsInput != null && tlsInput.remaining() == tlsInput.capacity()) {
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Releasing tlsInput, capacity: {0}; IO: {1}",
+						new Object[]{tlsInput.capacity(), toString()});
+			}
+			ByteBufferPool.getInputBuffersPool().release(tlsInput);
+			tlsInput = null;
+		}
+	}
+
 	private int writeBuff(ByteBuffer buff, int loop_cnt) throws IOException {
 		int result = 0;
 		int wr = 0;
@@ -455,14 +491,14 @@ public class TLSIO
 				// I wonder if some real data can be read from the socket here (and we
 				// would
 				// loose the data) or this is just TLS stuff here.....
-				ByteBuffer rbuff = read(ByteBuffer.allocate(tlsWrapper.getNetBuffSize()));
+				readHandshakeData();
 				if ((!TLS_WAIT_FOR_HANDSHAKE_NOT_READY) && loop_cnt > 2 && tlsWrapper.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_UNWRAP &&
 						tlsWrapper.getStatus() == TLSStatus.NEED_READ) {
 					throw new IOException("TLS handshake not established!");
 				}
 			}
 
-			ByteBuffer tlsOutput = ByteBuffer.allocate(tlsWrapper.getNetBuffSize());
+			ByteBuffer tlsOutput = ByteBufferPool.getInputBuffersPool().acquire(tlsWrapper.getNetBuffSize());
 
 			// Not sure if this is really needed, I guess not...
 			tlsOutput.clear();
@@ -475,6 +511,11 @@ public class TLSIO
 			tlsOutput.flip();
 			wr = io.write(tlsOutput);
 			result += wr;
+			// if not all data were written, socket keeps reference to the buffer
+			// waiting to write remaining data later, so it cannot be reused
+			if (!tlsOutput.hasRemaining()) {
+				ByteBufferPool.getInputBuffersPool().release(tlsOutput);
+			}
 
 			if (log.isLoggable(Level.FINER)) {
 				log.log(Level.FINER, "TLS - Writing data, remaining: {0}, run {1} of {2}, TLSIO: {3}, tlsWrapper: {4}",
@@ -498,7 +539,7 @@ public class TLSIO
 						new Object[]{buff.remaining(), buff.capacity(), loop_cnt, max_loop_runs, toString(), String.valueOf(tlsWrapper)});
 			}
 
-			writeBuff(ByteBuffer.allocate(0), ++loop_cnt);
+			writeBuff(EMPTY_BUFFER, ++loop_cnt);
 		} // end of if ()
 
 		return result;
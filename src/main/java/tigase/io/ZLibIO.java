@@ -137,6 +137,11 @@ public class ZLibIO
 		return null;
 	}
 
+	@Override
+	public void releaseInputBuffers() {
+		io.releaseInputBuffers();
+	}
+
 	@Override
 	public void stop() throws IOException {
 		if (log.isLoggable(Level.FINEST)) {
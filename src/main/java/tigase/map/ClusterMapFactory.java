@@ -21,58 +21,124 @@ import tigase.eventbus.EventBus;
 import tigase.eventbus.EventBusEvent;
 import tigase.eventbus.EventBusFactory;
 import tigase.eventbus.HandleEvent;
+import tigase.eventbus.component.SubscribeModule;
 import tigase.eventbus.impl.EventName;
 import tigase.kernel.DefaultTypesConverter;
 import tigase.kernel.TypesConverter;
+import tigase.sys.ShutdownHook;
+import tigase.sys.TigaseRuntime;
 
 import java.io.Serializable;
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-public class ClusterMapFactory {
-
+/**
+ * Factory of maps replicated to all cluster nodes.
+ * <br>
+ * Changes of a map may be collected for a short time (see {@link #BATCH_WINDOW_PROP_KEY}) and sent to other nodes
+ * as a single {@link ElementsBatchEvent}, so a burst of updates results in one event per node. Each map keeps a version
+ * vector ({@link DMapVersions}) and when a node connects to the cluster (or detects that it missed some changes)
+ * other nodes send it only changes which it has not seen, instead of replaying the whole content of the map.
+ */
+public class ClusterMapFactory
+		implements ShutdownHook {
+
+	/**
+	 * Name of the system property with time (in milliseconds) for which changes are collected before sending them to
+	 * other nodes. By default it is set to <code>0</code> and each change is sent in a separate event, as done by older
+	 * versions. Older versions ignore {@link ElementsBatchEvent}, so batching should be enabled only when all nodes of
+	 * the cluster are upgraded.
+	 */
+	public static final String BATCH_WINDOW_PROP_KEY = "tigase.cluster-map.batch-window";
+	public static final long BATCH_WINDOW_PROP_VAL = 0;
+	private static final int MAX_BATCH_SIZE = 1000;
 	private final static EventName NEWMAP_EVENT_NAME = new EventName(NewMapCreatedEvent.class);
+	private final static EventName SYNC_REQUEST_EVENT_NAME = new EventName(MapSyncRequestEvent.class);
+	private static final long SYNC_REQUEST_INTERVAL = 1000;
 	private static ClusterMapFactory instance;
 	private final Logger log = Logger.getLogger(this.getClass().getName());
 	private final ConcurrentHashMap<String, DMap> maps = new ConcurrentHashMap<>();
+	private final String nodeId = UUID.randomUUID().toString();
+	private final ConcurrentHashMap<String, PendingChanges> pending = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Long> syncRequested = new ConcurrentHashMap<>();
 	private final TypesConverter typesConverter = new DefaultTypesConverter();
+	private long batchWindow = Long.getLong(BATCH_WINDOW_PROP_KEY, BATCH_WINDOW_PROP_VAL);
+	private ScheduledExecutorService batchExecutor;
+	private boolean shutdownHookAdded = false;
 	private EventBus eventBus;
 	private final DMap.DMapListener mapListener = new DMap.DMapListener() {
 		@Override
 		public void onClear(DMap map) {
-			MapClearEvent event = new MapClearEvent();
-			event.setUid(map.getUid());
-			eventBus.fire(event);
+			PendingChanges changes = getPendingChanges(map);
+			synchronized (changes) {
+				// changes made before clear are not needed anymore
+				changes.clear();
+				MapClearEvent event = new MapClearEvent();
+				event.setUid(map.getUid());
+				event.setNode(nodeId);
+				event.setVersion(map.versions.localClear());
+				eventBus.fire(event);
+			}
 		}
 
 		@Override
 		public void onPut(DMap map, Object key, Object value) {
-			ElementAddEvent event = new ElementAddEvent();
-			event.setUid(map.getUid());
-			event.setKey(typesConverter.toString(key));
-			event.setValue(typesConverter.toString(value));
-			eventBus.fire(event);
+			PendingChanges changes = getPendingChanges(map);
+			if (batchWindow <= 0) {
+				// event is fired while holding the lock, so versions of the node are received in order
+				synchronized (changes) {
+					fireElementAdd(map, key, value, nodeId, map.versions.localPut(key));
+				}
+				return;
+			}
+			synchronized (changes) {
+				changes.put(key, value, map.versions.localPut(key));
+				scheduleFlush(map, changes);
+			}
 		}
 
 		@Override
 		public void onPutAll(DMap map, Map<?, ?> m) {
-			for (Map.Entry<?, ?> en : m.entrySet()) {
-				ElementAddEvent event = new ElementAddEvent();
-				event.setUid(map.getUid());
-				event.setKey(typesConverter.toString(en.getKey()));
-				event.setValue(typesConverter.toString(en.getValue()));
-				eventBus.fire(event);
+			PendingChanges changes = getPendingChanges(map);
+			if (batchWindow <= 0) {
+				synchronized (changes) {
+					for (Map.Entry<?, ?> en : m.entrySet()) {
+						fireElementAdd(map, en.getKey(), en.getValue(), nodeId, map.versions.localPut(en.getKey()));
+					}
+				}
+				return;
+			}
+			synchronized (changes) {
+				for (Map.Entry<?, ?> en : m.entrySet()) {
+					changes.put(en.getKey(), en.getValue(), map.versions.localPut(en.getKey()));
+					scheduleFlush(map, changes);
+				}
 			}
 		}
 
 		@Override
 		public void onRemove(DMap map, Object key) {
-			ElementRemoveEvent event = new ElementRemoveEvent();
-			event.setUid(map.getUid());
-			event.setKey(typesConverter.toString(key));
-			eventBus.fire(event);
+			PendingChanges changes = getPendingChanges(map);
+			if (batchWindow <= 0) {
+				synchronized (changes) {
+					ElementRemoveEvent event = new ElementRemoveEvent();
+					event.setUid(map.getUid());
+					event.setKey(typesConverter.toString(key));
+					event.setNode(nodeId);
+					event.setVersion(map.versions.localRemove(key));
+					eventBus.fire(event);
+				}
+				return;
+			}
+			synchronized (changes) {
+				changes.put(key, PendingChanges.REMOVED, map.versions.localRemove(key));
+				scheduleFlush(map, changes);
+			}
 		}
 	};
 
@@ -91,15 +157,18 @@ public class ClusterMapFactory {
 	public <K, V> Map<K, V> createMap(final String uid, final Class<K> keyClass, final Class<V> valueClass,
 									  final String... params) {
 
+		DMap<K, V> map = maps.computeIfAbsent(uid, (u) -> new DMap<K, V>(uid, this.mapListener, keyClass, valueClass,
+																		  nodeId));
+
 		NewMapCreatedEvent event = new NewMapCreatedEvent();
 		event.setUid(uid);
 		event.setKeyClass(keyClass);
 		event.setValueClass(valueClass);
 		event.setParams(params);
+		event.setNode(nodeId);
+		event.setVector(DMapVersions.vectorToArray(map.versions.getVector()));
 		eventBus.fire(event);
 
-		DMap<K, V> map = maps.computeIfAbsent(uid, (u) -> new DMap<K, V>(uid, this.mapListener, keyClass, valueClass));
-
 		return map;
 	}
 
@@ -110,9 +179,66 @@ public class ClusterMapFactory {
 
 			eventBus.fire(event);
 			this.maps.remove(((DMap) map).getUid(), map);
+			this.pending.remove(((DMap) map).getUid());
+			if (this.maps.isEmpty()) {
+				stopBatchExecutor();
+			}
 		}
 	}
 
+	/**
+	 * Sends all collected changes of the map to other nodes without waiting for the end of the batch window.
+	 *
+	 * @param map distributed map
+	 */
+	public void flush(Map map) {
+		if (map instanceof DMap) {
+			PendingChanges changes = pending.get(((DMap) map).getUid());
+			if (changes != null) {
+				flush((DMap) map, changes);
+			}
+		}
+	}
+
+	@Override
+	public String getName() {
+		return "cluster-map-factory";
+	}
+
+	String getNodeId() {
+		return nodeId;
+	}
+
+	/**
+	 * Sends all collected changes to other nodes and stops the thread sending changes after the end of the batch
+	 * window. The thread is started again if there are new changes to collect.
+	 */
+	@Override
+	public String shutdown() {
+		int flushed = 0;
+		for (Map.Entry<String, PendingChanges> en : pending.entrySet()) {
+			DMap map = maps.get(en.getKey());
+			if (map != null) {
+				synchronized (en.getValue()) {
+					if (!en.getValue().isEmpty()) {
+						flush(map, en.getValue());
+						flushed++;
+					}
+				}
+			}
+		}
+		stopBatchExecutor();
+		return flushed == 0 ? null : "== Sent collected changes of " + flushed + " cluster maps\n";
+	}
+
+	public long getBatchWindow() {
+		return batchWindow;
+	}
+
+	public void setBatchWindow(long batchWindow) {
+		this.batchWindow = batchWindow;
+	}
+
 	private void fireOnMapCreated(Map map, String uid, String... parameters) {
 		MapCreatedEvent event = new MapCreatedEvent(map, uid, parameters);
 		eventBus.fire(event);
@@ -144,6 +270,10 @@ public class ClusterMapFactory {
 			return;
 		}
 		map.clearNoEvent();
+		if (event.getNode() != null) {
+			map.versions.mergeVector(Collections.singletonMap(event.getNode(), event.getVersion()));
+		}
+		map.versions.clear();
 	}
 
 	@HandleEvent(filter = HandleEvent.Type.remote)
@@ -172,6 +302,108 @@ public class ClusterMapFactory {
 		Object value = typesConverter.convert(v, map.valueClass);
 
 		map.putNoEvent(key, value);
+		if (event.getNode() != null) {
+			applyVersion(map, event.getNode(), event.getVersion(), Collections.singletonList(key),
+						 Collections.emptyList());
+		}
+	}
+
+	@HandleEvent(filter = HandleEvent.Type.remote)
+	void onMapElementsBatch(ElementsBatchEvent event) {
+		final String uid = event.getUid();
+		final DMap map = this.maps.get(uid);
+
+		if (map == null) {
+			log.log(Level.FINE, "No map '" + uid + "' created on this node! Ignoring ElementsBatch event.");
+			return;
+		}
+
+		final List<Object> put = new ArrayList<>();
+		final List<Object> removed = new ArrayList<>();
+		final String[] keys = event.getKeys();
+		if (keys != null) {
+			final String[] values = event.getValues();
+			for (int i = 0; i < keys.length; i++) {
+				Object key = typesConverter.convert(keys[i], map.keyClass);
+				map.putNoEvent(key, typesConverter.convert(values[i], map.valueClass));
+				put.add(key);
+			}
+		}
+		if (event.getRemovedKeys() != null) {
+			for (String k : event.getRemovedKeys()) {
+				Object key = typesConverter.convert(k, map.keyClass);
+				map.removeNoEvent(key);
+				removed.add(key);
+			}
+		}
+
+		applyVersion(map, event.getNode(), event.getBaseVersion(), event.getVersion(), put, removed);
+	}
+
+	@HandleEvent(filter = HandleEvent.Type.remote)
+	void onMapElementsSync(ElementsSyncEvent event) {
+		if (!nodeId.equals(event.getTarget())) {
+			return;
+		}
+		final String uid = event.getUid();
+		final DMap map = this.maps.get(uid);
+
+		if (map == null) {
+			log.log(Level.FINE, "No map '" + uid + "' created on this node! Ignoring ElementsSync event.");
+			return;
+		}
+
+		final Map<String, Long> remoteVector = DMapVersions.parseVector(event.getVector());
+		final Set<Object> present = new HashSet<>();
+		final String[] keys = event.getKeys();
+		if (keys != null) {
+			final String[] values = event.getValues();
+			final String[] versions = event.getVersions();
+			for (int i = 0; i < keys.length; i++) {
+				Object key = typesConverter.convert(keys[i], map.keyClass);
+				present.add(key);
+				if (map.versions.applyEntry(key, DMapVersions.Version.parse(versions[i]), false)) {
+					map.putNoEvent(key, typesConverter.convert(values[i], map.valueClass));
+				}
+			}
+		}
+		final String[] removedKeys = event.getRemovedKeys();
+		if (removedKeys != null) {
+			final String[] removedVersions = event.getRemovedVersions();
+			for (int i = 0; i < removedKeys.length; i++) {
+				Object key = typesConverter.convert(removedKeys[i], map.keyClass);
+				if (map.versions.applyEntry(key, DMapVersions.Version.parse(removedVersions[i]), true)) {
+					map.removeNoEvent(key);
+				}
+			}
+		}
+		if (event.isFull()) {
+			for (Object key : new ArrayList<>(map.map.keySet())) {
+				if (!present.contains(key) && map.versions.removeIfCovered(key, remoteVector)) {
+					map.removeNoEvent(key);
+				}
+			}
+		}
+		map.versions.mergeVector(remoteVector);
+	}
+
+	@HandleEvent(filter = HandleEvent.Type.remote)
+	void onMapSyncRequest(MapSyncRequestEvent event) {
+		final DMap map = this.maps.get(event.getUid());
+		if (map != null) {
+			sendSync(map, event.getNode(), DMapVersions.parseVector(event.getVector()));
+		}
+	}
+
+	@HandleEvent
+	void onNewRemoteSubscription(SubscribeModule.NewRemoteSubscriptionEvent event) {
+		// other node is (re)connected and is able to receive synchronization requests
+		if (SYNC_REQUEST_EVENT_NAME.equals(event.getParsedName())) {
+			syncRequested.clear();
+			for (DMap map : maps.values()) {
+				requestSync(map);
+			}
+		}
 	}
 
 	@HandleEvent(filter = HandleEvent.Type.remote)
@@ -187,6 +419,10 @@ public class ClusterMapFactory {
 		String k = event.getKey();
 		Object key = typesConverter.convert(k, map.keyClass);
 		map.removeNoEvent(key);
+		if (event.getNode() != null) {
+			applyVersion(map, event.getNode(), event.getVersion(), Collections.emptyList(),
+						 Collections.singletonList(key));
+		}
 	}
 
 	@HandleEvent(filter = HandleEvent.Type.remote)
@@ -198,12 +434,204 @@ public class ClusterMapFactory {
 
 			String[] parameters = event.getParams();
 
-			DMap map = new DMap(uid, mapListener, keyClass, valueClass);
+			DMap map = new DMap(uid, mapListener, keyClass, valueClass, nodeId);
 			maps.put(uid, map);
 			fireOnMapCreated(map, uid, parameters);
 		} else {
 			DMap map = this.maps.get(uid);
-			mapListener.onPutAll(map, map);
+			if (event.getNode() != null) {
+				sendSync(map, event.getNode(), DMapVersions.parseVector(event.getVector()));
+			} else {
+				// node with older version requires replay of all items
+				for (Object o : map.map.entrySet()) {
+					Map.Entry en = (Map.Entry) o;
+					fireElementAdd(map, en.getKey(), en.getValue(), null, 0);
+				}
+			}
+		}
+	}
+
+	private void applyVersion(DMap map, String node, long version, Collection<Object> put,
+							  Collection<Object> removed) {
+		applyVersion(map, node, version - 1, version, put, removed);
+	}
+
+	private void applyVersion(DMap map, String node, long baseVersion, long version, Collection<Object> put,
+							  Collection<Object> removed) {
+		if (map.versions.applyBatch(node, baseVersion, version, put, removed)) {
+			if (log.isLoggable(Level.FINE)) {
+				log.log(Level.FINE, "Missing changes of map ''{0}'' made by node {1}, requesting synchronization",
+						new Object[]{map.getUid(), node});
+			}
+			requestSync(map);
+		}
+	}
+
+	private void fireElementAdd(DMap map, Object key, Object value, String node, long version) {
+		ElementAddEvent event = new ElementAddEvent();
+		event.setUid(map.getUid());
+		event.setKey(typesConverter.toString(key));
+		event.setValue(typesConverter.toString(value));
+		event.setNode(node);
+		event.setVersion(version);
+		eventBus.fire(event);
+	}
+
+	private void flush(DMap map, PendingChanges changes) {
+		synchronized (changes) {
+			if (changes.isEmpty()) {
+				return;
+			}
+			ElementsBatchEvent event = new ElementsBatchEvent();
+			event.setUid(map.getUid());
+			event.setNode(nodeId);
+			event.setBaseVersion(changes.baseVersion);
+			event.setVersion(changes.version);
+			List<String> keys = new ArrayList<>();
+			List<String> values = new ArrayList<>();
+			List<String> removedKeys = new ArrayList<>();
+			for (Map.Entry<Object, Object> en : changes.changes.entrySet()) {
+				if (en.getValue() == PendingChanges.REMOVED) {
+					removedKeys.add(typesConverter.toString(en.getKey()));
+				} else {
+					keys.add(typesConverter.toString(en.getKey()));
+					values.add(typesConverter.toString(en.getValue()));
+				}
+			}
+			event.setKeys(toArray(keys));
+			event.setValues(toArray(values));
+			event.setRemovedKeys(toArray(removedKeys));
+			changes.clear();
+			// event is fired while holding the lock, so batches are sent in order
+			eventBus.fire(event);
+		}
+	}
+
+	private PendingChanges getPendingChanges(DMap map) {
+		return pending.computeIfAbsent(map.getUid(), uid -> new PendingChanges());
+	}
+
+	private void requestSync(DMap map) {
+		final long now = System.currentTimeMillis();
+		final Long last = syncRequested.get(map.getUid());
+		if (last != null && now - last < SYNC_REQUEST_INTERVAL) {
+			return;
+		}
+		syncRequested.put(map.getUid(), now);
+
+		MapSyncRequestEvent event = new MapSyncRequestEvent();
+		event.setUid(map.getUid());
+		event.setNode(nodeId);
+		event.setVector(DMapVersions.vectorToArray(map.versions.getVector()));
+		eventBus.fire(event);
+	}
+
+	private void scheduleFlush(DMap map, PendingChanges changes) {
+		if (changes.size() >= MAX_BATCH_SIZE) {
+			flush(map, changes);
+		} else if (!changes.scheduled) {
+			changes.scheduled = true;
+			getBatchExecutor().schedule(() -> flush(map, changes), batchWindow, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private synchronized ScheduledExecutorService getBatchExecutor() {
+		if (batchExecutor == null) {
+			batchExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "cluster-map-batch");
+				t.setDaemon(true);
+				return t;
+			});
+			if (!shutdownHookAdded) {
+				shutdownHookAdded = true;
+				TigaseRuntime.getTigaseRuntime().addShutdownHook(this);
+			}
+		}
+		return batchExecutor;
+	}
+
+	private synchronized void stopBatchExecutor() {
+		if (batchExecutor != null) {
+			// already scheduled flushes are still executed
+			batchExecutor.shutdown();
+			batchExecutor = null;
+		}
+	}
+
+	private void sendSync(DMap map, String target, Map<String, Long> remoteVector) {
+		final DMapVersions.Delta<Object> delta = map.versions.delta(remoteVector);
+		if (delta == null) {
+			return;
+		}
+		List<String> keys = new ArrayList<>();
+		List<String> values = new ArrayList<>();
+		List<String> versions = new ArrayList<>();
+		for (Map.Entry<Object, DMapVersions.Version> en : delta.put.entrySet()) {
+			Object value = map.get(en.getKey());
+			if (value == null) {
+				continue;
+			}
+			keys.add(typesConverter.toString(en.getKey()));
+			values.add(typesConverter.toString(value));
+			versions.add(en.getValue().toString());
+		}
+		List<String> removedKeys = new ArrayList<>();
+		List<String> removedVersions = new ArrayList<>();
+		for (Map.Entry<Object, DMapVersions.Version> en : delta.removed.entrySet()) {
+			removedKeys.add(typesConverter.toString(en.getKey()));
+			removedVersions.add(en.getValue().toString());
+		}
+
+		ElementsSyncEvent event = new ElementsSyncEvent();
+		event.setUid(map.getUid());
+		event.setTarget(target);
+		event.setFull(delta.full);
+		event.setVector(DMapVersions.vectorToArray(delta.vector));
+		event.setKeys(toArray(keys));
+		event.setValues(toArray(values));
+		event.setVersions(toArray(versions));
+		event.setRemovedKeys(toArray(removedKeys));
+		event.setRemovedVersions(toArray(removedVersions));
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Sending {0} changed and {1} removed items of map ''{2}'' to node {3}",
+					new Object[]{keys.size(), removedKeys.size(), map.getUid(), target});
+		}
+		eventBus.fire(event);
+	}
+
+	// empty arrays are not sent at all
+	private static String[] toArray(List<String> list) {
+		return list.isEmpty() ? null : list.toArray(new String[0]);
+	}
+
+	private static class PendingChanges {
+
+		private static final Object REMOVED = new Object();
+
+		private final LinkedHashMap<Object, Object> changes = new LinkedHashMap<>();
+		private long baseVersion;
+		private boolean scheduled = false;
+		private long version;
+
+		private void clear() {
+			changes.clear();
+			scheduled = false;
+		}
+
+		private boolean isEmpty() {
+			return changes.isEmpty();
+		}
+
+		private void put(Object key, Object value, long version) {
+			if (changes.isEmpty()) {
+				baseVersion = version - 1;
+			}
+			changes.put(key, value);
+			this.version = version;
+		}
+
+		private int size() {
+			return changes.size();
 		}
 	}
 
@@ -211,8 +639,12 @@ public class ClusterMapFactory {
 			implements Serializable, EventBusEvent {
 
 		private String key;
+		/** Node which made the change, not set by nodes with older version */
+		private String node;
 		private String uid;
 		private String value;
+		/** Version of the change on the <code>node</code> */
+		private long version;
 
 		public String getKey() {
 			return key;
@@ -222,6 +654,14 @@ public class ClusterMapFactory {
 			this.key = key;
 		}
 
+		public String getNode() {
+			return node;
+		}
+
+		public void setNode(String node) {
+			this.node = node;
+		}
+
 		public String getUid() {
 			return uid;
 		}
@@ -237,13 +677,97 @@ public class ClusterMapFactory {
 		public void setValue(String value) {
 			this.value = value;
 		}
+
+		public long getVersion() {
+			return version;
+		}
+
+		public void setVersion(long version) {
+			this.version = version;
+		}
+	}
+
+	/**
+	 * Changes of the map made on a single node. Version of the first change is <code>baseVersion + 1</code> and of the
+	 * last one is <code>version</code>.
+	 */
+	public static class ElementsBatchEvent
+			implements Serializable, EventBusEvent {
+
+		private long baseVersion;
+		private String[] keys;
+		private String node;
+		private String[] removedKeys;
+		private String uid;
+		private String[] values;
+		private long version;
+
+		public long getBaseVersion() {
+			return baseVersion;
+		}
+
+		public void setBaseVersion(long baseVersion) {
+			this.baseVersion = baseVersion;
+		}
+
+		public String[] getKeys() {
+			return keys;
+		}
+
+		public void setKeys(String[] keys) {
+			this.keys = keys;
+		}
+
+		public String getNode() {
+			return node;
+		}
+
+		public void setNode(String node) {
+			this.node = node;
+		}
+
+		public String[] getRemovedKeys() {
+			return removedKeys;
+		}
+
+		public void setRemovedKeys(String[] removedKeys) {
+			this.removedKeys = removedKeys;
+		}
+
+		public String getUid() {
+			return uid;
+		}
+
+		public void setUid(String uid) {
+			this.uid = uid;
+		}
+
+		public long getVersion() {
+			return version;
+		}
+
+		public void setVersion(long version) {
+			this.version = version;
+		}
+
+		public String[] getValues() {
+			return values;
+		}
+
+		public void setValues(String[] values) {
+			this.values = values;
+		}
 	}
 
 	public static class ElementRemoveEvent
 			implements Serializable, EventBusEvent {
 
 		private String key;
+		/** Node which made the change, not set by nodes with older version */
+		private String node;
 		private String uid;
+		/** Version of the change on the <code>node</code> */
+		private long version;
 
 		public String getKey() {
 			return key;
@@ -253,6 +777,14 @@ public class ClusterMapFactory {
 			this.key = key;
 		}
 
+		public String getNode() {
+			return node;
+		}
+
+		public void setNode(String node) {
+			this.node = node;
+		}
+
 		public String getUid() {
 			return uid;
 		}
@@ -260,12 +792,120 @@ public class ClusterMapFactory {
 		public void setUid(String uid) {
 			this.uid = uid;
 		}
+
+		public long getVersion() {
+			return version;
+		}
+
+		public void setVersion(long version) {
+			this.version = version;
+		}
+	}
+
+	/**
+	 * Changes of the map not known to the <code>target</code> node. If <code>full</code> is set, event contains all
+	 * items of the map.
+	 */
+	public static class ElementsSyncEvent
+			implements Serializable, EventBusEvent {
+
+		private boolean full;
+		private String[] keys;
+		private String[] removedKeys;
+		private String[] removedVersions;
+		private String target;
+		private String uid;
+		private String[] values;
+		private String[] vector;
+		private String[] versions;
+
+		public boolean isFull() {
+			return full;
+		}
+
+		public void setFull(boolean full) {
+			this.full = full;
+		}
+
+		public String[] getKeys() {
+			return keys;
+		}
+
+		public void setKeys(String[] keys) {
+			this.keys = keys;
+		}
+
+		public String[] getRemovedKeys() {
+			return removedKeys;
+		}
+
+		public void setRemovedKeys(String[] removedKeys) {
+			this.removedKeys = removedKeys;
+		}
+
+		public String[] getRemovedVersions() {
+			return removedVersions;
+		}
+
+		public void setRemovedVersions(String[] removedVersions) {
+			this.removedVersions = removedVersions;
+		}
+
+		public String getTarget() {
+			return target;
+		}
+
+		public void setTarget(String target) {
+			this.target = target;
+		}
+
+		public String getUid() {
+			return uid;
+		}
+
+		public void setUid(String uid) {
+			this.uid = uid;
+		}
+
+		public String[] getValues() {
+			return values;
+		}
+
+		public void setValues(String[] values) {
+			this.values = values;
+		}
+
+		public String[] getVector() {
+			return vector;
+		}
+
+		public void setVector(String[] vector) {
+			this.vector = vector;
+		}
+
+		public String[] getVersions() {
+			return versions;
+		}
+
+		public void setVersions(String[] versions) {
+			this.versions = versions;
+		}
 	}
 
 	public static class MapClearEvent
 			implements Serializable, EventBusEvent {
 
+		private String node;
 		private String uid;
+		private long version;
+
+		public String getNode() {
+			return node;
+		}
+
+		public void setNode(String node) {
+			this.node = node;
+		}
 
 		public String getUid() {
 			return uid;
@@ -274,6 +914,14 @@ public class ClusterMapFactory {
 		public void setUid(String uid) {
 			this.uid = uid;
 		}
+
+		public long getVersion() {
+			return version;
+		}
+
+		public void setVersion(long version) {
+			this.version = version;
+		}
 	}
 
 	public static class MapDestroyEvent
@@ -290,13 +938,47 @@ public class ClusterMapFactory {
 		}
 	}
 
+	public static class MapSyncRequestEvent
+			implements Serializable, EventBusEvent {
+
+		private String node;
+		private String uid;
+		private String[] vector;
+
+		public String getNode() {
+			return node;
+		}
+
+		public void setNode(String node) {
+			this.node = node;
+		}
+
+		public String getUid() {
+			return uid;
+		}
+
+		public void setUid(String uid) {
+			this.uid = uid;
+		}
+
+		public String[] getVector() {
+			return vector;
+		}
+
+		public void setVector(String[] vector) {
+			this.vector = vector;
+		}
+	}
+
 	public static class NewMapCreatedEvent
 			implements Serializable, EventBusEvent {
 
 		private Class keyClass;
+		private String node;
 		private String[] params;
 		private String uid;
 		private Class valueClass;
+		private String[] vector;
 
 		public Class getKeyClass() {
 			return keyClass;
@@ -330,6 +1012,22 @@ public class ClusterMapFactory {
 			this.valueClass = valueClass;
 		}
 
+		public String getNode() {
+			return node;
+		}
+
+		public void setNode(String node) {
+			this.node = node;
+		}
+
+		public String[] getVector() {
+			return vector;
+		}
+
+		public void setVector(String[] vector) {
+			this.vector = vector;
+		}
+
 	}
 
 }
@@ -20,6 +20,7 @@ package tigase.map;
 import java.util.Collection;
 import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 
 class DMap<K, V>
@@ -30,12 +31,19 @@ class DMap<K, V>
 	final ConcurrentHashMap<K, V> map = new ConcurrentHashMap<K, V>();
 	final String uid;
 	final Class<V> valueClass;
+	final DMapVersions<K> versions;
 
 	public DMap(String uid, DMapListener listener, final Class<K> keyClass, final Class<V> valueClass) {
+		this(uid, listener, keyClass, valueClass, UUID.randomUUID().toString());
+	}
+
+	public DMap(String uid, DMapListener listener, final Class<K> keyClass, final Class<V> valueClass,
+				final String localNode) {
 		this.listener = listener;
 		this.uid = uid;
 		this.keyClass = keyClass;
 		this.valueClass = valueClass;
+		this.versions = new DMapVersions<>(localNode);
 	}
 
 	@Override
@@ -0,0 +1,263 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.map;
+
+import java.util.*;
+
+/**
+ * Version vector of a distributed map used for anti-entropy synchronization between cluster nodes.
+ * <br>
+ * Each node numbers changes of the map made locally with increasing counter. Vector keeps the highest counter of
+ * changes made by each node which were applied to the map on this node. For each entry and for recently removed
+ * entries (tombstones) node and counter of the last change is kept, so a node which was disconnected may receive only
+ * changes which it has not seen yet. If information about removed entries was dropped (too many tombstones or the map
+ * was cleared) and the requesting node may have missed it, the whole content of the map is sent instead.
+ */
+class DMapVersions<K> {
+
+	private static int maxTombstones = 10000;
+
+	private final Map<String, Long> compacted = new HashMap<>();
+	private final Map<K, Version> entries = new HashMap<>();
+	private final String localNode;
+	private final LinkedHashMap<K, Version> tombstones = new LinkedHashMap<>();
+	private final Map<String, Long> vector = new HashMap<>();
+	private long counter = 0;
+
+	static int getMaxTombstones() {
+		return maxTombstones;
+	}
+
+	static void setMaxTombstones(int maxTombstones) {
+		DMapVersions.maxTombstones = maxTombstones;
+	}
+
+	static Map<String, Long> parseVector(String[] data) {
+		Map<String, Long> result = new HashMap<>();
+		if (data != null) {
+			for (String item : data) {
+				Version version = Version.parse(item);
+				result.put(version.node(), version.counter());
+			}
+		}
+		return result;
+	}
+
+	static String[] vectorToArray(Map<String, Long> vector) {
+		String[] result = new String[vector.size()];
+		int i = 0;
+		for (Map.Entry<String, Long> e : vector.entrySet()) {
+			result[i++] = new Version(e.getKey(), e.getValue()).toString();
+		}
+		return result;
+	}
+
+	DMapVersions(String localNode) {
+		this.localNode = localNode;
+	}
+
+	/**
+	 * Applies batch of changes made by other node.
+	 *
+	 * @return <code>true</code> if changes made by the node before this batch were not received
+	 */
+	synchronized boolean applyBatch(String node, long baseVersion, long version, Collection<K> put,
+									Collection<K> removed) {
+		boolean gap = getVersion(node) < baseVersion;
+		Version v = new Version(node, version);
+		for (K key : put) {
+			entries.put(key, v);
+			tombstones.remove(key);
+		}
+		for (K key : removed) {
+			entries.remove(key);
+			addTombstone(key, v);
+		}
+		if (!gap) {
+			// on gap changes made before this batch are still missing and vector is updated during synchronization
+			updateVector(node, version);
+		}
+		return gap;
+	}
+
+	/**
+	 * Applies single entry received during synchronization.
+	 *
+	 * @return <code>true</code> if entry is newer than the known one and should be stored (or removed) in the map
+	 */
+	synchronized boolean applyEntry(K key, Version version, boolean removed) {
+		Version current = entries.get(key);
+		if (current == null) {
+			current = tombstones.get(key);
+		}
+		boolean newer;
+		if (current != null && current.node().equals(version.node())) {
+			newer = current.counter() < version.counter();
+		} else {
+			newer = getVersion(version.node()) < version.counter();
+		}
+		if (!newer) {
+			return false;
+		}
+		if (removed) {
+			entries.remove(key);
+			addTombstone(key, version);
+		} else {
+			entries.put(key, version);
+			tombstones.remove(key);
+		}
+		return true;
+	}
+
+	synchronized void clear() {
+		entries.clear();
+		tombstones.clear();
+		compacted.putAll(vector);
+	}
+
+	/**
+	 * Prepares changes which are not known to the node with version vector <code>remoteVector</code>.
+	 *
+	 * @return changes to send or <code>null</code> if there is nothing to send
+	 */
+	synchronized Delta<K> delta(Map<String, Long> remoteVector) {
+		boolean full = false;
+		for (Map.Entry<String, Long> e : compacted.entrySet()) {
+			if (remoteVector.getOrDefault(e.getKey(), 0L) < e.getValue()) {
+				full = true;
+				break;
+			}
+		}
+		Delta<K> delta = new Delta<>(full, new HashMap<>(vector));
+		for (Map.Entry<K, Version> e : entries.entrySet()) {
+			if (full || remoteVector.getOrDefault(e.getValue().node(), 0L) < e.getValue().counter()) {
+				delta.put.put(e.getKey(), e.getValue());
+			}
+		}
+		if (!full) {
+			for (Map.Entry<K, Version> e : tombstones.entrySet()) {
+				if (remoteVector.getOrDefault(e.getValue().node(), 0L) < e.getValue().counter()) {
+					delta.removed.put(e.getKey(), e.getValue());
+				}
+			}
+		}
+		if (!full && delta.put.isEmpty() && delta.removed.isEmpty()) {
+			return null;
+		}
+		return delta;
+	}
+
+	synchronized Version getEntryVersion(K key) {
+		return entries.get(key);
+	}
+
+	synchronized long getVersion(String node) {
+		return vector.getOrDefault(node, 0L);
+	}
+
+	synchronized Map<String, Long> getVector() {
+		return new HashMap<>(vector);
+	}
+
+	synchronized long localClear() {
+		++counter;
+		updateVector(localNode, counter);
+		clear();
+		return counter;
+	}
+
+	synchronized long localPut(K key) {
+		++counter;
+		updateVector(localNode, counter);
+		entries.put(key, new Version(localNode, counter));
+		tombstones.remove(key);
+		return counter;
+	}
+
+	synchronized long localRemove(K key) {
+		++counter;
+		updateVector(localNode, counter);
+		entries.remove(key);
+		addTombstone(key, new Version(localNode, counter));
+		return counter;
+	}
+
+	synchronized void mergeVector(Map<String, Long> remoteVector) {
+		remoteVector.forEach(this::updateVector);
+	}
+
+	/**
+	 * Removes entry which is not present in the full content of the map sent by other node if that node has seen the
+	 * last change of the entry, which means that the entry was removed later.
+	 *
+	 * @return <code>true</code> if entry should be removed from the map
+	 */
+	synchronized boolean removeIfCovered(K key, Map<String, Long> remoteVector) {
+		Version current = entries.get(key);
+		if (current == null || remoteVector.getOrDefault(current.node(), 0L) < current.counter()) {
+			return false;
+		}
+		entries.remove(key);
+		return true;
+	}
+
+	synchronized int tombstonesSize() {
+		return tombstones.size();
+	}
+
+	private void addTombstone(K key, Version version) {
+		tombstones.remove(key);
+		tombstones.put(key, version);
+		if (tombstones.size() > maxTombstones) {
+			// removals older than known versions are not tracked anymore
+			tombstones.clear();
+			compacted.putAll(vector);
+			compacted.merge(version.node(), version.counter(), Math::max);
+		}
+	}
+
+	private void updateVector(String node, long version) {
+		vector.merge(node, version, Math::max);
+	}
+
+	record Version(String node, long counter) {
+
+		static Version parse(String data) {
+			int idx = data.lastIndexOf('=');
+			return new Version(data.substring(0, idx), Long.parseLong(data.substring(idx + 1)));
+		}
+
+		@Override
+		public String toString() {
+			return node + "=" + counter;
+		}
+	}
+
+	static class Delta<K> {
+
+		final boolean full;
+		final Map<K, Version> put = new HashMap<>();
+		final Map<K, Version> removed = new HashMap<>();
+		final Map<String, Long> vector;
+
+		Delta(boolean full, Map<String, Long> vector) {
+			this.full = full;
+			this.vector = vector;
+		}
+	}
+}
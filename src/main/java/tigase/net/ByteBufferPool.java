@@ -0,0 +1,214 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.net;
+
+import tigase.stats.StatisticsList;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+/**
+ * Shared pool of byte buffers grouped in size classes (powers of two). Buffers are lent to a connection only while
+ * data is read or written, so idle connections do not keep any memory allocated for I/O.
+ * <br>
+ * Each size class keeps a bounded number of free buffers in an array of slots which are taken and returned with
+ * atomic operations, so the pool does not use any lock and does not allocate on the hot path. Requests for buffers
+ * bigger than the biggest size class are served with a newly allocated buffer which is not returned to the pool.
+ * <br>
+ * Buffers returned to the pool must not be used by the caller anymore.
+ */
+public class ByteBufferPool {
+
+	public static final String INPUT_BUFFERS_DIRECT_PROP_KEY = "net-input-buffers-direct";
+	public static final String POOL_SIZE_PROP_KEY = "net-buffers-pool-size";
+	private static final int MAX_PROBES = 8;
+	private static final int MAX_SIZE_CLASS_SHIFT = 16;
+	private static final int MIN_SIZE_CLASS_SHIFT = 9;
+	private static final int POOL_SIZE_PROP_DEF = 128;
+
+	private static final ByteBufferPool directBuffersPool = new ByteBufferPool("direct-buffers", true,
+																			   Integer.getInteger(POOL_SIZE_PROP_KEY,
+																								  POOL_SIZE_PROP_DEF));
+	private static final ByteBufferPool inputBuffersPool = new ByteBufferPool("input-buffers", Boolean.getBoolean(
+			INPUT_BUFFERS_DIRECT_PROP_KEY), Integer.getInteger(POOL_SIZE_PROP_KEY, POOL_SIZE_PROP_DEF));
+
+	private final boolean direct;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final String name;
+	private final LongAdder pooled = new LongAdder();
+	private final LongAdder pooledBytes = new LongAdder();
+	private final LongAdder released = new LongAdder();
+	private final AtomicReferenceArray<ByteBuffer>[] sizeClasses;
+
+	/**
+	 * Returns pool of direct buffers used as temporary buffers for reading from and writing to socket channels.
+	 */
+	public static ByteBufferPool getDirectBuffersPool() {
+		return directBuffersPool;
+	}
+
+	/**
+	 * Returns pool of buffers used for data read from socket before it is decoded. Buffers are allocated on heap unless
+	 * <code>net-input-buffers-direct</code> system property is set to <code>true</code>.
+	 */
+	public static ByteBufferPool getInputBuffersPool() {
+		return inputBuffersPool;
+	}
+
+	/**
+	 * Returns capacity of a buffer which will be returned by the pool for requested size.
+	 *
+	 * @param size requested size of a buffer
+	 *
+	 * @return capacity of a buffer
+	 */
+	public static int capacityFor(int size) {
+		if (size <= (1 << MIN_SIZE_CLASS_SHIFT)) {
+			return 1 << MIN_SIZE_CLASS_SHIFT;
+		}
+		if (size > (1 << MAX_SIZE_CLASS_SHIFT)) {
+			return size;
+		}
+		return Integer.highestOneBit(size - 1) << 1;
+	}
+
+	@SuppressWarnings("unchecked")
+	public ByteBufferPool(String name, boolean direct, int maxBuffersPerSize) {
+		this.name = name;
+		this.direct = direct;
+		this.sizeClasses = new AtomicReferenceArray[MAX_SIZE_CLASS_SHIFT - MIN_SIZE_CLASS_SHIFT + 1];
+		for (int i = 0; i < sizeClasses.length; i++) {
+			sizeClasses[i] = new AtomicReferenceArray<>(Math.max(maxBuffersPerSize, 0));
+		}
+	}
+
+	/**
+	 * Returns cleared buffer with capacity equal or bigger than requested size. Buffer is taken from the pool if
+	 * available, otherwise a new buffer is allocated.
+	 *
+	 * @param size minimal capacity of a buffer
+	 *
+	 * @return buffer ready for writing
+	 */
+	public ByteBuffer acquire(int size) {
+		int capacity = capacityFor(size);
+		AtomicReferenceArray<ByteBuffer> slots = slotsFor(capacity);
+		if (slots != null && slots.length() > 0) {
+			int start = ThreadLocalRandom.current().nextInt(slots.length());
+			for (int i = 0; i < Math.min(MAX_PROBES, slots.length()); i++) {
+				int idx = (start + i) % slots.length();
+				if (slots.get(idx) != null) {
+					ByteBuffer buffer = slots.getAndSet(idx, null);
+					if (buffer != null) {
+						pooled.decrement();
+						pooledBytes.add(-capacity);
+						hits.increment();
+						return buffer;
+					}
+				}
+			}
+		}
+		misses.increment();
+		return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+	}
+
+	/**
+	 * Returns buffer to the pool. Buffers which were not created by the pool or which do not fit into the pool are
+	 * dropped.
+	 *
+	 * @param buffer to return
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer == null || buffer.isDirect() != direct || buffer.isReadOnly()) {
+			return;
+		}
+		int capacity = buffer.capacity();
+		// only buffers of exactly one of size classes could be created by the pool
+		if (capacity != capacityFor(capacity)) {
+			return;
+		}
+		AtomicReferenceArray<ByteBuffer> slots = slotsFor(capacity);
+		if (slots == null || slots.length() == 0) {
+			return;
+		}
+		released.increment();
+		buffer.clear();
+		buffer.order(ByteOrder.BIG_ENDIAN);
+		int start = ThreadLocalRandom.current().nextInt(slots.length());
+		for (int i = 0; i < Math.min(MAX_PROBES, slots.length()); i++) {
+			int idx = (start + i) % slots.length();
+			if (slots.get(idx) == null && slots.compareAndSet(idx, null, buffer)) {
+				pooled.increment();
+				pooledBytes.add(capacity);
+				return;
+			}
+		}
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getPooledBuffers() {
+		return pooled.sum();
+	}
+
+	public long getPooledBytes() {
+		return pooledBytes.sum();
+	}
+
+	public void getStatistics(String compName, StatisticsList list) {
+		if (list.checkLevel(Level.FINE)) {
+			long hits = getHits();
+			long misses = getMisses();
+			list.add(compName, name + " pool hits", hits, Level.FINE);
+			list.add(compName, name + " pool misses", misses, Level.FINE);
+			list.add(compName, name + " pool hit ratio",
+					 (hits + misses) == 0 ? 0f : ((float) hits) / (hits + misses), Level.FINE);
+			list.add(compName, name + " pool released", released.sum(), Level.FINER);
+			list.add(compName, name + " pool buffers", getPooledBuffers(), Level.FINE);
+			list.add(compName, name + " pool bytes", getPooledBytes(), Level.FINE);
+		}
+	}
+
+	public boolean isDirect() {
+		return direct;
+	}
+
+	@Override
+	public String toString() {
+		return "ByteBufferPool[name=" + name + ", direct=" + direct + ", hits=" + getHits() + ", misses=" +
+				getMisses() + ", pooled=" + getPooledBuffers() + "]";
+	}
+
+	private AtomicReferenceArray<ByteBuffer> slotsFor(int capacity) {
+		if (capacity > (1 << MAX_SIZE_CLASS_SHIFT)) {
+			return null;
+		}
+		return sizeClasses[Integer.numberOfTrailingZeros(capacity) - MIN_SIZE_CLASS_SHIFT];
+	}
+}
@@ -42,10 +42,12 @@ import java.security.KeyStore;
 import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
 import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -93,10 +95,29 @@ public abstract class IOService<RefObject>
 
 	private static final Logger log = Logger.getLogger(IOService.class.getName());
 	private static final long MAX_ALLOWED_EMPTY_CALLS = 1000;
+	private static final int OUTPUT_BUFFER_SIZE = 8 * 1024;
+	/**
+	 * Bigger output buffers are not kept for reuse to avoid keeping a lot of memory allocated by threads which sent a
+	 * single very large batch of data.
+	 */
+	private static final int OUTPUT_BUFFER_MAX_REUSED_SIZE = 64 * 1024;
+	/**
+	 * Output buffers are shared by all services handled by the same thread as the buffer is needed only while data is
+	 * written, so idle connections do not keep any output buffer.
+	 */
+	private static final ThreadLocal<ByteBuffer> outputBuffer = new ThreadLocal<>();
+	/**
+	 * Character buffers used for decoding data are shared by all services handled by the same thread in the same way
+	 * as output buffers, as the buffer is empty after each read.
+	 */
+	private static final ThreadLocal<CharBuffer> charBuffer = new ThreadLocal<>();
 
 	private final ReentrantLock readInProgress = new ReentrantLock();
 	private final ReentrantLock writeInProgress = new ReentrantLock();
-	protected CharBuffer cb = CharBuffer.allocate(2048);
+	/**
+	 * Character buffer used for decoding data read from socket. It is set only while data is being read.
+	 */
+	protected CharBuffer cb = null;
 	protected CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
 	protected CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
 	/**
@@ -132,11 +153,18 @@ public abstract class IOService<RefObject>
 	private ConcurrentMap<String, Object> sessionData = new ConcurrentHashMap<String, Object>(4, 0.75f, 4);
 	private IOInterface socketIO = null;
 	/**
-	 * <code>socketInput</code> buffer keeps data read from socket.
+	 * <code>socketInput</code> buffer keeps data read from socket. Buffer is taken from
+	 * {@link ByteBufferPool#getInputBuffersPool()} when data is read and returned to the pool when all data from it
+	 * was processed.
 	 */
 	private ByteBuffer socketInput = null;
 	private int socketInputSize = 2048;
 	private boolean socketServiceReady = false;
+	/**
+	 * Index of selector thread handling this service, used only by <code>inline</code> I/O engine of
+	 * {@link SocketThread}.
+	 */
+	private volatile int socketThreadIdx = -1;
 	private SSLContextContainerIfc sslContextContainer;
 	private boolean stopping = false;
 	private byte[] tlsUniqueId;
@@ -201,8 +229,6 @@ public abstract class IOService<RefObject>
 			throw e;
 		}
 		this.socketInputSize = socketInputSize;
-		socketInput = ByteBuffer.allocate(socketInputSize);
-		socketInput.order(byteOrder());
 
 		Socket sock = socketIO.getSocketChannel().socket();
 
@@ -229,6 +255,7 @@ public abstract class IOService<RefObject>
 						serviceListener.packetsReady(this);
 					}    // end of if (receivedPackets.size() > 0)
 				} finally {
+					releaseInputBuffers();
 					readInProgress.unlock();
 					if (!isConnected()) {
 						// added to sooner detect disconnection of peer - ie. client
@@ -467,6 +494,22 @@ public abstract class IOService<RefObject>
 		((ZLibIO) socketIO).setIOListener(this);
 	}
 
+	/**
+	 * Starts stream compression with deflate level adjusted by <code>policy</code> during the connection lifetime.
+	 *
+	 * @param policy policy selecting deflate level
+	 * @param useDictionary if preset dictionary should be used for compression (supported only if the other side also
+	 * uses adaptive compression)
+	 */
+	public void startZLib(AdaptiveCompressionPolicy policy, boolean useDictionary) {
+		if (socketIO.checkCapabilities(ZLibIO.ZLIB_CAPS)) {
+			throw new IllegalStateException("ZLIB mode is already activated.");
+		}
+		AdaptiveZLibIO zlibIO = new AdaptiveZLibIO(socketIO, policy, useDictionary);
+		zlibIO.setIOListener(this);
+		socketIO = zlibIO;
+	}
+
 	public void stop() {
 		if ((socketIO != null) && socketIO.waitingToSend()) {
 			stopping = true;
@@ -696,6 +739,7 @@ public abstract class IOService<RefObject>
 			log.log(Level.FINEST, "Socket: " + socketIO, thr);
 		}
 		try {
+			ensureInputBuffer();
 			ByteBuffer tmpBuffer = socketIO.read(socketInput);
 
 			if (socketIO.bytesRead() > 0) {
@@ -748,17 +792,18 @@ public abstract class IOService<RefObject>
 
 			// resizeInputBuffer();
 			// Maybe we can shrink the input buffer??
-			if ((socketInput.capacity() > socketInputSize) && (socketInput.remaining() == socketInput.capacity())) {
+			if ((socketInput != null) && (socketInput.capacity() > ByteBufferPool.capacityFor(socketInputSize)) &&
+					(socketInput.remaining() == socketInput.capacity())) {
 
 				// Yes, looks like we can
 				if (log.isLoggable(Level.FINE)) {
 					log.log(Level.FINE, "Resizing socketInput down to {1} bytes. [{0}]",
 							new Object[]{socketIO, socketInputSize});
 				}
-				socketInput = ByteBuffer.allocate(socketInputSize);
-				socketInput.order(byteOrder());
-				cb = CharBuffer.allocate(socketInputSize * 4);
+				ByteBufferPool.getInputBuffersPool().release(socketInput);
+				socketInput = null;
 			}
+			ensureInputBuffer();
 
 			// if (log.isLoggable(Level.FINEST)) {
 			// log.finer("Before read from socket.");
@@ -772,113 +817,11 @@ public abstract class IOService<RefObject>
 			if (socketIO.bytesRead() > 0) {
 				empty_read_call_count = 0;
 
-				char[] result = null;
-
 				// There might be some characters read from the network
 				// but the buffer may still be null or empty because there might
 				// be not enough data to decode TLS or compressed buffer.
 				if (tmpBuffer != null) {
-					if (log.isLoggable(Level.FINEST)) {
-						log.log(Level.FINEST, "Reading network binary data: {1} [{0}]",
-								new Object[]{socketIO, socketIO.bytesRead()});
-					}
-
-					// Restore the partial bytes for multibyte UTF8 characters
-					if (partialCharacterBytes != null) {
-						if (log.isLoggable(Level.FINEST)) {
-							log.log(Level.FINEST, "Reloading partial bytes: {1} [{0}]",
-									new Object[]{socketIO, partialCharacterBytes.length});
-						}
-
-						ByteBuffer oldTmpBuffer = tmpBuffer;
-
-						tmpBuffer = ByteBuffer.allocate(partialCharacterBytes.length + oldTmpBuffer.remaining() + 2);
-						tmpBuffer.order(byteOrder());
-						tmpBuffer.put(partialCharacterBytes);
-						tmpBuffer.put(oldTmpBuffer);
-						tmpBuffer.flip();
-						oldTmpBuffer.clear();
-						partialCharacterBytes = null;
-					}
-
-					// if (log.isLoggable(Level.FINEST)) {
-					// log.finer("Before decoding data");
-					// log.finer("socketInput.capacity()=" + socketInput.capacity());
-					// log.finer("socketInput.remaining()=" + socketInput.remaining());
-					// log.finer("socketInput.limit()=" + socketInput.limit());
-					// log.finer("socketInput.position()=" + socketInput.position());
-					// log.finer("tmpBuffer.capacity()=" + tmpBuffer.capacity());
-					// log.finer("tmpBuffer.remaining()=" + tmpBuffer.remaining());
-					// log.finer("tmpBuffer.limit()=" + tmpBuffer.limit());
-					// log.finer("tmpBuffer.position()=" + tmpBuffer.position());
-					// log.finer("cb.capacity()=" + cb.capacity());
-					// log.finer("cb.remaining()=" + cb.remaining());
-					// log.finer("cb.limit()=" + cb.limit());
-					// log.finer("cb.position()=" + cb.position());
-					// }
-					// tmpBuffer.flip();
-					if (cb.capacity() < tmpBuffer.remaining() * 4) {
-						if (log.isLoggable(Level.FINEST)) {
-							log.log(Level.FINEST, "Resizing character buffer to: {1} [{0}]",
-									new Object[]{socketIO, tmpBuffer.remaining()});
-						}
-						cb = CharBuffer.allocate(tmpBuffer.remaining() * 4);
-					}
-
-					CoderResult cr = decoder.decode(tmpBuffer, cb, false);
-
-					if (cr.isMalformed()) {
-						if (!handleMalformedInput(tmpBuffer, cb)) {
-							throw new MalformedInputException(tmpBuffer.remaining());
-						}
-					}
-					if (cb.remaining() > 0) {
-						cb.flip();
-						result = new char[cb.remaining()];
-						cb.get(result);
-						if (log.isLoggable(Level.FINEST)) {
-							log.log(Level.FINEST, "Decoded character data: {1} [{0}]",
-									new Object[]{socketIO, new String(result)});
-						}
-
-						// if (log.isLoggable(Level.FINEST)) {
-						// log.finer("Just after decoding.");
-						// log.finer("tmpBuffer.capacity()=" + tmpBuffer.capacity());
-						// log.finer("tmpBuffer.remaining()=" + tmpBuffer.remaining());
-						// log.finer("tmpBuffer.limit()=" + tmpBuffer.limit());
-						// log.finer("tmpBuffer.position()=" + tmpBuffer.position());
-						// log.finer("cb.capacity()=" + cb.capacity());
-						// log.finer("cb.remaining()=" + cb.remaining());
-						// log.finer("cb.limit()=" + cb.limit());
-						// log.finer("cb.position()=" + cb.position());
-						// }
-					}
-					if (cr.isUnderflow() && (tmpBuffer.remaining() > 0)) {
-						if (log.isLoggable(Level.FINEST)) {
-							log.log(Level.FINEST, "UTF-8 decoder data underflow: {1} [{0}]",
-									new Object[]{socketIO, tmpBuffer.remaining()});
-						}
-
-						// Save the partial bytes of a multibyte character such that they
-						// can be restored on the next read.
-						partialCharacterBytes = new byte[tmpBuffer.remaining()];
-						tmpBuffer.get(partialCharacterBytes);
-					}
-					tmpBuffer.clear();
-					cb.clear();
-
-					// if (log.isLoggable(Level.FINEST)) {
-					// log.finer("Before return from method.");
-					// log.finer("tmpBuffer.capacity()=" + tmpBuffer.capacity());
-					// log.finer("tmpBuffer.remaining()=" + tmpBuffer.remaining());
-					// log.finer("tmpBuffer.limit()=" + tmpBuffer.limit());
-					// log.finer("tmpBuffer.position()=" + tmpBuffer.position());
-					// log.finer("cb.capacity()=" + cb.capacity());
-					// log.finer("cb.remaining()=" + cb.remaining());
-					// log.finer("cb.limit()=" + cb.limit());
-					// log.finer("cb.position()=" + cb.position());
-					// }
-					return result;
+					return decodeData(tmpBuffer);
 				}
 			} else {
 
@@ -917,6 +860,114 @@ public abstract class IOService<RefObject>
 		return null;
 	}
 
+	/**
+	 * Decodes UTF-8 data read from the socket to characters. Bytes of a multibyte character which is not complete are
+	 * kept and decoded with the next portion of data.
+	 *
+	 * @param tmpBuffer buffer with data read from the socket
+	 *
+	 * @return decoded characters or <code>null</code> if there were not enough data to decode any character
+	 */
+	protected char[] decodeData(ByteBuffer tmpBuffer) throws IOException {
+		char[] result = null;
+
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Reading network binary data: {1} [{0}]",
+					new Object[]{socketIO, socketIO.bytesRead()});
+		}
+
+		// Restore the partial bytes for multibyte UTF8 characters
+		if (partialCharacterBytes != null) {
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Reloading partial bytes: {1} [{0}]",
+						new Object[]{socketIO, partialCharacterBytes.length});
+			}
+
+			ByteBuffer oldTmpBuffer = tmpBuffer;
+
+			tmpBuffer = ByteBuffer.allocate(partialCharacterBytes.length + oldTmpBuffer.remaining() + 2);
+			tmpBuffer.order(byteOrder());
+			tmpBuffer.put(partialCharacterBytes);
+			tmpBuffer.put(oldTmpBuffer);
+			tmpBuffer.flip();
+			oldTmpBuffer.clear();
+			partialCharacterBytes = null;
+		}
+
+		// if (log.isLoggable(Level.FINEST)) {
+		// log.finer("Before decoding data");
+		// log.finer("socketInput.capacity()=" + socketInput.capacity());
+		// log.finer("socketInput.remaining()=" + socketInput.remaining());
+		// log.finer("socketInput.limit()=" + socketInput.limit());
+		// log.finer("socketInput.position()=" + socketInput.position());
+		// log.finer("tmpBuffer.capacity()=" + tmpBuffer.capacity());
+		// log.finer("tmpBuffer.remaining()=" + tmpBuffer.remaining());
+		// log.finer("tmpBuffer.limit()=" + tmpBuffer.limit());
+		// log.finer("tmpBuffer.position()=" + tmpBuffer.position());
+		// log.finer("cb.capacity()=" + cb.capacity());
+		// log.finer("cb.remaining()=" + cb.remaining());
+		// log.finer("cb.limit()=" + cb.limit());
+		// log.finer("cb.position()=" + cb.position());
+		// }
+		// tmpBuffer.flip();
+		cb = getCharBuffer(tmpBuffer.remaining() * 4);
+
+		CoderResult cr = decoder.decode(tmpBuffer, cb, false);
+
+		if (cr.isMalformed()) {
+			if (!handleMalformedInput(tmpBuffer, cb)) {
+				throw new MalformedInputException(tmpBuffer.remaining());
+			}
+		}
+		if (cb.remaining() > 0) {
+			cb.flip();
+			result = new char[cb.remaining()];
+			cb.get(result);
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Decoded character data: {1} [{0}]",
+						new Object[]{socketIO, new String(result)});
+			}
+
+			// if (log.isLoggable(Level.FINEST)) {
+			// log.finer("Just after decoding.");
+			// log.finer("tmpBuffer.capacity()=" + tmpBuffer.capacity());
+			// log.finer("tmpBuffer.remaining()=" + tmpBuffer.remaining());
+			// log.finer("tmpBuffer.limit()=" + tmpBuffer.limit());
+			// log.finer("tmpBuffer.position()=" + tmpBuffer.position());
+			// log.finer("cb.capacity()=" + cb.capacity());
+			// log.finer("cb.remaining()=" + cb.remaining());
+			// log.finer("cb.limit()=" + cb.limit());
+			// log.finer("cb.position()=" + cb.position());
+			// }
+		}
+		if (cr.isUnderflow() && (tmpBuffer.remaining() > 0)) {
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "UTF-8 decoder data underflow: {1} [{0}]",
+						new Object[]{socketIO, tmpBuffer.remaining()});
+			}
+
+			// Save the partial bytes of a multibyte character such that they
+			// can be restored on the next read.
+			partialCharacterBytes = new byte[tmpBuffer.remaining()];
+			tmpBuffer.get(partialCharacterBytes);
+		}
+		tmpBuffer.clear();
+		cb.clear();
+
+		// if (log.isLoggable(Level.FINEST)) {
+		// log.finer("Before return from method.");
+		// log.finer("tmpBuffer.capacity()=" + tmpBuffer.capacity());
+		// log.finer("tmpBuffer.remaining()=" + tmpBuffer.remaining());
+		// log.finer("tmpBuffer.limit()=" + tmpBuffer.limit());
+		// log.finer("tmpBuffer.position()=" + tmpBuffer.position());
+		// log.finer("cb.capacity()=" + cb.capacity());
+		// log.finer("cb.remaining()=" + cb.remaining());
+		// log.finer("cb.limit()=" + cb.limit());
+		// log.finer("cb.position()=" + cb.position());
+		// }
+		return result;
+	}
+
 	protected abstract int receivedPackets();
 
 	protected void writeBytes(ByteBuffer data) {
@@ -1043,10 +1094,102 @@ public abstract class IOService<RefObject>
 		}
 	}
 
+	/**
+	 * Method writes items waiting in the queue to the socket. All items are serialized and encoded using UTF-8 directly
+	 * into a single output buffer reused between calls and written to the socket in a single write operation, instead
+	 * of creating a separate <code>ByteBuffer</code> for each item. Items are removed from the queue only after they
+	 * were written.
+	 *
+	 * @param queue with items waiting to be sent
+	 * @param serializer function converting item to string representation
+	 *
+	 * @return number of items written
+	 */
+	protected <T> int writeData(final Queue<T> queue, final Function<T, String> serializer) {
+		return writeData(queue, (T item, ByteBuffer buffer) -> {
+			String data = serializer.apply(item);
+			return (data == null || data.isEmpty()) ? buffer : encodeToBuffer(buffer, data);
+		});
+	}
+
+	/**
+	 * Method writes items waiting in the queue to the socket in the same way as
+	 * {@link #writeData(Queue, Function)}, but items are written by the encoder as UTF-8 bytes directly to the output
+	 * buffer, without creating a string for each of them.
+	 *
+	 * @param queue with items waiting to be sent
+	 * @param encoder writing item to the output buffer
+	 *
+	 * @return number of items written
+	 */
+	protected <T> int writeData(final Queue<T> queue, final ItemEncoder<T> encoder) {
+		int written = 0;
+
+		writeInProgress.lock();
+		try {
+			ByteBuffer buffer;
+			int count;
+
+			do {
+				buffer = getOutputBuffer();
+				count = 0;
+				for (T item : queue) {
+					buffer = encoder.encode(item, buffer);
+					++count;
+					if (buffer.position() >= OUTPUT_BUFFER_SIZE) {
+						break;
+					}
+				}
+				if (count > 0) {
+					buffer.flip();
+					int length = buffer.remaining();
+					if (length > 0) {
+						if (log.isLoggable(Level.FINEST)) {
+							log.log(Level.FINEST, "Writing batch of {1} items, {2} bytes [{0}]",
+									new Object[]{socketIO, count, length});
+						}
+						socketIO.write(buffer);
+						setLastTransferTime();
+						empty_read_call_count = 0;
+					}
+					releaseOutputBuffer(buffer);
+					for (int i = 0; i < count; i++) {
+						queue.poll();
+					}
+					written += count;
+				}
+			} while (count > 0);
+		} catch (SSLHandshakeException e) {
+			if (log.isLoggable(Level.CONFIG)) {
+				log.log(Level.CONFIG, "Exception starting connection [" + socketIO + "]" + e);
+			}
+			outputBuffer.remove();
+			forceStop();
+		} catch (Exception e) {
+			if (log.isLoggable(Level.FINER)) {
+				log.log(Level.FINER, "Data writing exception [" + socketIO + "]" + e);
+			}
+			outputBuffer.remove();
+			forceStop();
+		} finally {
+			writeInProgress.unlock();
+		}
+
+		return written;
+	}
+
 	protected boolean isSocketServiceReady() {
 		return socketServiceReady;
 	}
 
+	int getSocketThreadIdx() {
+		return socketThreadIdx;
+	}
+
+	void setSocketThreadIdx(int socketThreadIdx) {
+		this.socketThreadIdx = socketThreadIdx;
+	}
+
 	protected void setSocketServiceReady(boolean value) {
 		this.socketServiceReady = value;
 	}
@@ -1056,13 +1199,96 @@ public abstract class IOService<RefObject>
 	}
 
 	protected boolean isInputBufferEmpty() {
-		return (socketInput != null) && (socketInput.remaining() == socketInput.capacity());
+		return (socketInput == null) || (socketInput.remaining() == socketInput.capacity());
 	}
 
 	protected IOInterface getIO() {
 		return socketIO;
 	}
 
+	private ByteBuffer encodeToBuffer(ByteBuffer buffer, String data) throws CharacterCodingException {
+		CharBuffer chars = CharBuffer.wrap(data);
+
+		encoder.reset();
+		while (true) {
+			CoderResult result = chars.hasRemaining() ? encoder.encode(chars, buffer, true) : CoderResult.UNDERFLOW;
+			if (result.isUnderflow()) {
+				result = encoder.flush(buffer);
+				if (result.isUnderflow()) {
+					return buffer;
+				}
+			}
+			if (result.isOverflow()) {
+				int required = buffer.position() + (int) (chars.remaining() * encoder.maxBytesPerChar()) + 16;
+				ByteBuffer tmp = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, required));
+				buffer.flip();
+				tmp.put(buffer);
+				buffer = tmp;
+			} else {
+				result.throwException();
+			}
+		}
+	}
+
+	private void ensureInputBuffer() {
+		if (socketInput == null) {
+			socketInput = ByteBufferPool.getInputBuffersPool().acquire(socketInputSize);
+			socketInput.order(byteOrder());
+		}
+	}
+
+	private CharBuffer getCharBuffer(int size) {
+		CharBuffer buffer = charBuffer.get();
+		if (buffer == null || buffer.capacity() < size) {
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Resizing character buffer to: {1} [{0}]", new Object[]{socketIO, size});
+			}
+			buffer = CharBuffer.allocate(Math.max(size, socketInputSize * 4));
+			if (buffer.capacity() <= OUTPUT_BUFFER_MAX_REUSED_SIZE) {
+				charBuffer.set(buffer);
+			}
+		}
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Method returns buffers used for reading data, so idle connection does not keep them. Input buffer is kept if it
+	 * still contains data which was not processed yet, ie. an incomplete TLS record compacted by TLS layer.
+	 */
+	private void releaseInputBuffers() {
+		cb = null;
+		if (socketIO == null) {
+			return;
+		}
+		if (socketInput != null && socketInput.remaining() == socketInput.capacity()) {
+			ByteBufferPool.getInputBuffersPool().release(socketInput);
+			socketInput = null;
+		}
+		socketIO.releaseInputBuffers();
+	}
+
+	private ByteBuffer getOutputBuffer() {
+		ByteBuffer buffer = outputBuffer.get();
+		if (buffer == null) {
+			buffer = ByteBuffer.allocate(OUTPUT_BUFFER_SIZE);
+			outputBuffer.set(buffer);
+		}
+		buffer.clear();
+		return buffer;
+	}
+
+	private void releaseOutputBuffer(ByteBuffer buffer) {
+		// If not all data were written, socket keeps reference to the buffer
+		// waiting to write remaining data later, so it cannot be reused.
+		if (buffer.hasRemaining() || buffer.capacity() > OUTPUT_BUFFER_MAX_REUSED_SIZE) {
+			outputBuffer.remove();
+		} else {
+			buffer.clear();
+			outputBuffer.set(buffer);
+		}
+	}
+
 	private void resizeInputBuffer() throws IOException {
 		int netSize = socketIO.getInputPacketSize();
 
@@ -1088,10 +1314,15 @@ public abstract class IOService<RefObject>
 				log.log(Level.FINE, "Resizing socketInput to {1} bytes. [{0}]", new Object[]{socketIO, newSize});
 			}
 
-			ByteBuffer b = ByteBuffer.allocate(newSize);
+			ByteBufferPool pool = ByteBufferPool.getInputBuffersPool();
+			// buffer limited by bufferLimit may not match any size class of the pool
+			ByteBuffer b = ByteBufferPool.capacityFor(newSize) == newSize
+						   ? pool.acquire(newSize)
+						   : (pool.isDirect() ? ByteBuffer.allocateDirect(newSize) : ByteBuffer.allocate(newSize));
 
 			b.order(byteOrder());
 			b.put(socketInput);
+			pool.release(socketInput);
 			socketInput = b;
 		} else {
 
@@ -1129,5 +1360,22 @@ public abstract class IOService<RefObject>
 		lastTransferTime = System.currentTimeMillis();
 	}
 
+	/**
+	 * Encoder writing item waiting to be sent to the output buffer.
+	 */
+	@FunctionalInterface
+	protected interface ItemEncoder<T> {
+
+		/**
+		 * Writes item to the buffer.
+		 *
+		 * @param item to write
+		 * @param buffer in write mode
+		 *
+		 * @return buffer with written data, passed one or a new bigger buffer if there was not enough space in it
+		 */
+		ByteBuffer encode(T item, ByteBuffer buffer) throws IOException;
+	}
+
 }    // IOService
 
@@ -24,14 +24,15 @@ import java.nio.ByteBuffer;
  */
 public class IOUtil {
 
-	static {
-	}
-
 	public static ByteBuffer getDirectBuffer(int size) {
-		return ByteBuffer.allocateDirect(size);
+		ByteBuffer buf = ByteBufferPool.getDirectBuffersPool().acquire(size);
+		// buffer from the pool may be bigger than requested
+		buf.limit(size);
+		return buf;
 	}
 
 	public static void returnDirectBuffer(ByteBuffer buf) {
+		ByteBufferPool.getDirectBuffersPool().release(buf);
 	}
 
 }
@@ -18,12 +18,14 @@
 package tigase.net;
 
 import tigase.annotations.TODO;
+import tigase.stats.StatisticsList;
 
 import java.io.IOException;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Set;
 import java.util.concurrent.*;
@@ -33,6 +35,16 @@ import java.util.logging.Logger;
 /**
  * Describe class SocketThread here.
  * <br>
+ * I/O engine used is selected with <code>net-io-engine</code> system property:
+ * <ul>
+ * <li><code>executor</code> (default) - selector threads only detect sockets ready for reading or writing and pass
+ * services to a shared thread pool which reads, parses and dispatches data,</li>
+ * <li><code>inline</code> - each selector thread reads, parses and dispatches data of its own connections, so there is
+ * no hand-off to another thread. New connections are assigned to the least loaded selector and connections are moved
+ * from overloaded selectors to the least loaded one.</li>
+ * </ul>
+ * Number of selector threads may be set with <code>net-selector-threads</code> system property.
+ * <br>
  * Created: Mon Jan 30 12:01:17 2006
  *
  * @author <a href="mailto:artur.hefczyc@tigase.org">Artur Hefczyc</a>
@@ -41,8 +53,18 @@ public class SocketThread
 		implements Runnable {
 
 	public static final int DEF_MAX_THREADS_PER_CPU = 8;
+	public static final String IO_ENGINE_PROP_KEY = "net-io-engine";
+	public static final String SELECTOR_THREADS_PROP_KEY = "net-selector-threads";
 	private static final Logger log = Logger.getLogger(SocketThread.class.getName());
+	private static final long LOAD_WINDOW = TimeUnit.SECONDS.toNanos(1);
 	private static final int MAX_EMPTY_SELECTIONS = 10;
+	private static final int MAX_MOVES_PER_WINDOW = 32;
+	/**
+	 * Selector is considered overloaded if its busy ratio is bigger than this value and also more than
+	 * <code>REBALANCE_THRESHOLD</code> times bigger than the average busy ratio of all selectors.
+	 */
+	private static final float REBALANCE_MIN_BUSY_RATIO = 0.5f;
+	private static final float REBALANCE_THRESHOLD = 1.5f;
 	/**
 	 * Variable <code>completionService</code> keeps reference to server thread pool. There is only one thread pool used
 	 * by all server modules. Each module requiring separate threads for tasks processing must have access to server
@@ -51,6 +73,7 @@ public class SocketThread
 	private static CompletionService<IOService<?>> completionService = null;
 	private static int cpus = Runtime.getRuntime().availableProcessors();
 	private static ThreadPoolExecutor executor = null;
+	private static IOEngine ioEngine = parseIOEngine(System.getProperty(IO_ENGINE_PROP_KEY));
 	private static SocketThread[] socketReadThread = null;
 	private static SocketThread[] socketWriteThread = null;
 
@@ -61,9 +84,15 @@ public class SocketThread
 		if (socketReadThread == null) {
 			int nThreads = (cpus * DEF_MAX_THREADS_PER_CPU) / 2 + 1;
 
-			executor = new ThreadPoolExecutor(nThreads, nThreads, 0L, TimeUnit.MILLISECONDS,
-											  new LinkedBlockingQueue<Runnable>());
-			completionService = new ExecutorCompletionService<IOService<?>>(executor);
+			if (ioEngine == IOEngine.executor) {
+				executor = new ThreadPoolExecutor(nThreads, nThreads, 0L, TimeUnit.MILLISECONDS,
+												  new LinkedBlockingQueue<Runnable>());
+				completionService = new ExecutorCompletionService<IOService<?>>(executor);
+			} else {
+				// selector threads are doing all the work, so there is no point in having more of them than CPUs
+				nThreads = cpus;
+			}
+			nThreads = Integer.getInteger(SELECTOR_THREADS_PROP_KEY, nThreads);
 			socketReadThread = new SocketThread[nThreads];
 			socketWriteThread = new SocketThread[nThreads];
 
@@ -74,10 +103,12 @@ public class SocketThread
 				Thread thrd = new Thread(socketReadThread[i]);
 
 				thrd.setName("socketReadThread-" + i);
+				socketReadThread[i].thread = thrd;
 				thrd.start();
 			}
 
-			log.log(Level.INFO, "{0} socketReadThreads started.", socketReadThread.length);
+			log.log(Level.INFO, "{0} socketReadThreads started, I/O engine: {1}.",
+					new Object[]{socketReadThread.length, ioEngine});
 
 			for (int i = 0; i < socketWriteThread.length; i++) {
 				socketWriteThread[i] = new SocketThread("socketWriteThread-" + i);
@@ -86,6 +117,7 @@ public class SocketThread
 				Thread thrd = new Thread(socketWriteThread[i]);
 
 				thrd.setName("socketWriteThread-" + i);
+				socketWriteThread[i].thread = thrd;
 				thrd.start();
 			}
 
@@ -93,6 +125,10 @@ public class SocketThread
 		}    // end of if (acceptThread == null)
 	}
 
+	private final String name;
+	private volatile boolean busy = false;
+	private long busyTime = 0;
+	private volatile float busyRatio = 0;
 	private Selector clientsSel = null;
 
 	// private boolean selecting = false;
@@ -103,10 +139,20 @@ public class SocketThread
 	// java.nio.channels.spi.AbstractSelectableChannel.removeKey(AbstractSelectableChannel.java:111)
 	private ConcurrentSkipListSet<IOService<?>> forCompletion = new ConcurrentSkipListSet<IOService<?>>(
 			new IOServiceComparator());
+	private int movesLeft = MAX_MOVES_PER_WINDOW;
+	private long movedOut = 0;
+	private long processed = 0;
+	private int queueDepth = 0;
 	private boolean reading = false;
+	private volatile int registered = 0;
+	private long selectedTotal = 0;
 	private boolean stopping = false;
+	private Thread thread = null;
 	private ConcurrentSkipListSet<IOService<?>> waiting = new ConcurrentSkipListSet<IOService<?>>(
 			new IOServiceComparator());
+	private long windowBusyTime = 0;
+	private volatile long windowStart = System.nanoTime();
+	private long wakeups = 0;
 	private boolean writing = false;
 
 	public static void addSocketService(IOService<?> s) {
@@ -116,26 +162,116 @@ public class SocketThread
 		// dead-lock. Let's make sure the service is always processed
 		// by the same thread thus the same Selector.
 		// socketReadThread[incrementAndGet()].addSocketServicePriv(s);
+		int idx = getSocketThreadIdx(s);
 		if (s.waitingToRead()) {
-			socketReadThread[s.hashCode() % socketReadThread.length].addSocketServicePriv(s);
+			socketReadThread[idx].addSocketServicePriv(s);
 		}
 
 		if (s.waitingToSend()) {
-			socketWriteThread[s.hashCode() % socketWriteThread.length].addSocketServicePriv(s);
+			socketWriteThread[idx].addSocketServicePriv(s);
 		}
 	}
 
 
 	public static void removeSocketService(IOService<Object> s) {
 		s.setSocketServiceReady(false);
-		socketReadThread[s.hashCode() % socketReadThread.length].removeSocketServicePriv(s);
-		socketWriteThread[s.hashCode() % socketWriteThread.length].removeSocketServicePriv(s);
+		int idx = getSocketThreadIdx(s);
+		socketReadThread[idx].removeSocketServicePriv(s);
+		socketWriteThread[idx].removeSocketServicePriv(s);
+	}
+
+	public static IOEngine getIOEngine() {
+		return ioEngine;
+	}
+
+	static IOEngine parseIOEngine(String value) {
+		if (value == null) {
+			return IOEngine.executor;
+		}
+		try {
+			return IOEngine.valueOf(value.trim());
+		} catch (IllegalArgumentException ex) {
+			log.log(Level.WARNING, "Unknown I/O engine ''{0}'' set in {1}, supported values: {2}, using {3} instead.",
+					new Object[]{value, IO_ENGINE_PROP_KEY, Arrays.toString(IOEngine.values()), IOEngine.executor});
+			return IOEngine.executor;
+		}
+	}
+
+	public static void getStatistics(String compName, StatisticsList list) {
+		if (!list.checkLevel(Level.FINE)) {
+			return;
+		}
+		if (executor != null) {
+			list.add(compName, "Executor queue size", executor.getQueue().size(), Level.FINE);
+		}
+		float busyRatioSum = 0;
+		long wakeups = 0;
+		for (SocketThread[] threads : new SocketThread[][]{socketReadThread, socketWriteThread}) {
+			for (SocketThread thread : threads) {
+				float ratio = thread.getBusyRatio();
+				busyRatioSum += ratio;
+				wakeups += thread.wakeups;
+				if (list.checkLevel(Level.FINER)) {
+					list.add(compName, thread.name + " queue depth", thread.queueDepth, Level.FINER);
+					list.add(compName, thread.name + " wakeups", thread.wakeups, Level.FINER);
+					list.add(compName, thread.name + " selected keys", thread.selectedTotal, Level.FINER);
+					list.add(compName, thread.name + " busy time [ms]",
+							 TimeUnit.NANOSECONDS.toMillis(thread.busyTime), Level.FINER);
+					list.add(compName, thread.name + " busy ratio", ratio, Level.FINER);
+					list.add(compName, thread.name + " registered", thread.registered, Level.FINER);
+					if (ioEngine == IOEngine.inline) {
+						list.add(compName, thread.name + " processed", thread.processed, Level.FINER);
+						list.add(compName, thread.name + " moved out", thread.movedOut, Level.FINER);
+					}
+				}
+			}
+		}
+		list.add(compName, "Selector wakeups", wakeups, Level.FINE);
+		list.add(compName, "Average selector busy ratio",
+				 busyRatioSum / (socketReadThread.length + socketWriteThread.length), Level.FINE);
+	}
+
+	private static int getSocketThreadIdx(IOService<?> s) {
+		if (ioEngine != IOEngine.inline) {
+			return s.hashCode() % socketReadThread.length;
+		}
+		int idx = s.getSocketThreadIdx();
+		if (idx < 0) {
+			synchronized (s) {
+				idx = s.getSocketThreadIdx();
+				if (idx < 0) {
+					idx = findLeastLoaded();
+					s.setSocketThreadIdx(idx);
+				}
+			}
+		}
+		return idx;
+	}
+
+	/**
+	 * Method finds reading selector with the lowest load. Load is estimated from number of registered connections and
+	 * the busy ratio of the selector thread, so a selector with a few very active connections is not preferred over a
+	 * selector with many idle ones.
+	 */
+	private static int findLeastLoaded() {
+		int result = 0;
+		float best = Float.MAX_VALUE;
+		for (int i = 0; i < socketReadThread.length; i++) {
+			SocketThread thread = socketReadThread[i];
+			float load = (thread.registered + 1) * (1 + 4 * thread.getBusyRatio());
+			if (load < best) {
+				best = load;
+				result = i;
+			}
+		}
+		return result;
 	}
 
 	/**
 	 * Creates a new <code>SocketThread</code> instance.
 	 */
 	private SocketThread(String name) {
+		this.name = name;
 		try {
 			clientsSel = Selector.open();
 		} catch (Exception e) {
@@ -143,7 +279,9 @@ public class SocketThread
 			stopping = true;
 		}    // end of try-catch
 
-		new ResultsListener("ResultsListener-" + name).start();
+		if (ioEngine == IOEngine.executor) {
+			new ResultsListener("ResultsListener-" + name).start();
+		}
 	}
 
 	@SuppressWarnings("unchecked")
@@ -154,9 +292,13 @@ public class SocketThread
 
 		waiting.add((IOService<Object>) s);
 
-		// Calling lazy wakeup to avoid multiple wakeup calls
-		// when lots of new services are added....
-		clientsSel.wakeup();
+		// Selector thread adding service processed inline will register
+		// it before next select, so there is no need to wake it up
+		if (Thread.currentThread() != thread) {
+			// Calling lazy wakeup to avoid multiple wakeup calls
+			// when lots of new services are added....
+			clientsSel.wakeup();
+		}
 
 		// wakeupHelper.wakeup();
 	}
@@ -177,6 +319,9 @@ public class SocketThread
 			try {
 				clientsSel.select();
 
+				long busyStart = System.nanoTime();
+				busy = true;
+				++wakeups;
 				if (log.isLoggable(Level.FINEST)) {
 					log.log(Level.FINEST, "Selector AWAKE: {0}", clientsSel);
 				}
@@ -184,6 +329,9 @@ public class SocketThread
 				Set<SelectionKey> selected = clientsSel.selectedKeys();
 				int selectedKeys = selected.size();
 
+				selectedTotal += selectedKeys;
+				queueDepth = selectedKeys + waiting.size();
+
 				if ((selectedKeys == 0) && (waiting.size() == 0)) {
 					if (log.isLoggable(Level.FINEST)) {
 						log.finest("Selected keys = 0!!! a bug again?");
@@ -262,14 +410,23 @@ public class SocketThread
 					clientsSel.selectNow();
 				}
 
-				addAllWaiting();
-
 				IOService serv = null;
 
-				while ((serv = forCompletion.pollFirst()) != null) {
-					completionService.submit(serv);
+				if (ioEngine == IOEngine.inline) {
+					while ((serv = forCompletion.pollFirst()) != null) {
+						processInline(serv);
+					}
+					addAllWaiting();
+				} else {
+					addAllWaiting();
+
+					while ((serv = forCompletion.pollFirst()) != null) {
+						completionService.submit(serv);
+					}
 				}
 
+				updateLoad(busyStart);
+
 				// clientsSel.selectNow();
 			} catch (CancelledKeyException brokene) {
 
@@ -316,6 +473,10 @@ public class SocketThread
 	}
 
 	public void setMaxThread(int threads) {
+		if (executor == null) {
+			// there is no thread pool if I/O is processed by selector threads
+			return;
+		}
 		executor.setCorePoolSize(threads);
 		executor.setMaximumPoolSize(threads);
 	}
@@ -391,6 +552,85 @@ public class SocketThread
 //  }
 	}
 
+	private float getBusyRatio() {
+		// selector waiting in select() for a long time is not updating its load
+		if (!busy && System.nanoTime() - windowStart > 2 * LOAD_WINDOW) {
+			return 0;
+		}
+		return busyRatio;
+	}
+
+	private void processInline(IOService<?> serv) {
+		IOService<?> service;
+		try {
+			++processed;
+			service = serv.call();
+		} catch (Exception e) {
+			log.log(Level.WARNING, "Protocol execution exception.", e);
+			return;
+		}
+		if (service != null) {
+			if (service.isConnected()) {
+				if (log.isLoggable(Level.FINEST)) {
+					log.log(Level.FINEST, "COMPLETED: {0}", service.getIO());
+				}
+				if (reading) {
+					rebalance(service);
+				}
+				addSocketService(service);
+			} else {
+				if (log.isLoggable(Level.FINEST)) {
+					log.log(Level.FINEST, "REMOVED: {0}", service.getIO());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Moves service to the least loaded selector if this selector is overloaded. Service may be moved safely at this
+	 * point as its key was cancelled and removed from this selector before it was processed.
+	 */
+	private void rebalance(IOService<?> service) {
+		if (movesLeft <= 0 || busyRatio < REBALANCE_MIN_BUSY_RATIO || service.waitingToSend()) {
+			return;
+		}
+		float sum = 0;
+		for (SocketThread thread : socketReadThread) {
+			sum += thread.getBusyRatio();
+		}
+		float avg = sum / socketReadThread.length;
+		if (busyRatio < avg * REBALANCE_THRESHOLD) {
+			return;
+		}
+		int idx = findLeastLoaded();
+		if (socketReadThread[idx] == this || socketReadThread[idx].getBusyRatio() >= avg) {
+			return;
+		}
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Moving {0} from {1} to {2}, busy ratio: {3}, average: {4}",
+					new Object[]{service, name, socketReadThread[idx].name, busyRatio, avg});
+		}
+		service.setSocketThreadIdx(idx);
+		--movesLeft;
+		++movedOut;
+	}
+
+	private void updateLoad(long busyStart) {
+		long now = System.nanoTime();
+		long time = now - busyStart;
+
+		busyTime += time;
+		windowBusyTime += time;
+		registered = clientsSel.keys().size();
+		if (now - windowStart >= LOAD_WINDOW) {
+			busyRatio = ((float) windowBusyTime) / (now - windowStart);
+			windowBusyTime = 0;
+			windowStart = now;
+			movesLeft = MAX_MOVES_PER_WINDOW;
+		}
+		busy = false;
+	}
+
 	// Implementation of java.lang.Runnable
 	private synchronized void recreateSelector() throws IOException {
 		if (log.isLoggable(Level.FINEST)) {
@@ -451,6 +691,11 @@ public class SocketThread
 		}
 	}
 
+	public enum IOEngine {
+		executor,
+		inline
+	}
+
 	private class IOServiceComparator
 			implements Comparator<IOService<?>> {
 
@@ -21,6 +21,7 @@ import tigase.component.ScheduledTask;
 import tigase.kernel.beans.Inject;
 import tigase.kernel.beans.config.ConfigField;
 import tigase.server.filters.PacketFiltersBean;
+import tigase.stats.LatencyHistogram;
 import tigase.stats.StatisticType;
 import tigase.stats.StatisticsContainer;
 import tigase.stats.StatisticsList;
@@ -36,6 +37,7 @@ import java.text.DecimalFormat;
 import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.ToIntFunction;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
@@ -126,6 +128,8 @@ public abstract class AbstractMessageReceiver
 
 	private static final Logger log = Logger.getLogger("tigase.debug.AbstractMessageReceiver");
 
+	private static final ToIntFunction<Packet> PACKET_PRIORITY = packet -> packet.getPriority().ordinal();
+
 	// PriorityQueueAbstract.getPriorityQueue(pr_cache.length, maxQueueSize);
 	@Inject
 	private PacketFiltersBean.IncomingPacketFiltersBean incoming_filters;
@@ -137,6 +141,7 @@ public abstract class AbstractMessageReceiver
 			pr_cache.length);
 	private final List<PriorityQueueAbstract<Packet>> in_queues = new ArrayList<>(pr_cache.length);
 	private final long[] processPacketTimings = new long[100];
+	private final LatencyHistogram processPacketHistogram = new LatencyHistogram("Processing time", Level.FINE);
 	private final Set<Pattern> regexRoutings = new ConcurrentSkipListSet<Pattern>(new PatternComparator());
 	private final ThreadFactory threadFactory = new ThreadFactory() {
 
@@ -152,6 +157,15 @@ public abstract class AbstractMessageReceiver
 	};
 	private final ConcurrentHashMap<String, PacketReceiverTaskIfc> waitingTasks = new ConcurrentHashMap<>(
 			16, 0.75f, 4);
+	/**
+	 * Flags set if a subclass overrides per-packet method without overriding its batch version, in which case the batch
+	 * method calls the per-packet method for each packet instead of adding all of them at once.
+	 */
+	private final boolean addOutPacketOverridden = isOverriddenWithoutBatch(getClass(), "addOutPacket",
+																			 "addOutPackets");
+	private final boolean addPacketOverridden = isOverriddenWithoutBatch(getClass(), "addPacket", "addPackets");
+	private final boolean processOutPacketOverridden = isOverriddenWithoutBatch(getClass(), "processOutPacket",
+																				  "processOutPackets");
 	protected int maxInQueueSize = MAX_QUEUE_SIZE_PROP_VAL;
 	protected int maxOutQueueSize = MAX_QUEUE_SIZE_PROP_VAL;
 	@ConfigField(desc = "Maximum size of internal queues", alias = "max-queue-size")
@@ -160,6 +174,8 @@ public abstract class AbstractMessageReceiver
 	private long last_hour_packets = 0;
 	private long last_minute_packets = 0;
 	private long last_second_packets = 0;
+	@ConfigField(desc = "Maximum number of packets passed at once from the outgoing queue to the next component", alias = "out-queue-batch-size")
+	private int outQueueBatchSize = 32;
 	private int out_queues_size = processingOutThreads();
 	private QueueListener out_thread = null;
 	@ConfigField(desc = "Packet delivery retry count", alias = PACKET_DELIVERY_RETRY_COUNT_PROP_KEY)
@@ -245,6 +261,34 @@ public abstract class AbstractMessageReceiver
 				(!outliers.isEmpty() ? ", outliers: " + outliers.toString() : "");
 	}
 
+	/**
+	 * Checks if method processing a single packet is overridden in a class which does not override (directly or in one
+	 * of its subclasses) the method processing a queue of packets.
+	 */
+	static boolean isOverriddenWithoutBatch(Class<?> cls, String method, String batchMethod) {
+		Class<?> declaringClass = findDeclaringClass(cls, method, Packet.class);
+
+		if (declaringClass == AbstractMessageReceiver.class) {
+			return false;
+		}
+
+		Class<?> batchDeclaringClass = findDeclaringClass(cls, batchMethod, Queue.class);
+
+		return batchDeclaringClass != declaringClass && batchDeclaringClass.isAssignableFrom(declaringClass);
+	}
+
+	private static Class<?> findDeclaringClass(Class<?> cls, String method, Class<?> paramType) {
+		for (Class<?> c = cls; c != null && c != AbstractMessageReceiver.class; c = c.getSuperclass()) {
+			try {
+				c.getDeclaredMethod(method, paramType);
+				return c;
+			} catch (NoSuchMethodException ex) {
+				// method not declared in this class, checking superclass
+			}
+		}
+		return AbstractMessageReceiver.class;
+	}
+
 	public AbstractMessageReceiver() {
 	}
 
@@ -338,16 +382,16 @@ public abstract class AbstractMessageReceiver
 	}
 
 	/**
-	 * This is a convenience method for adding all packets stored in given queue to the component's internal input
-	 * queue.<br> The method calls <code>addPacket(Packet)</code> in a loop for each packet in the queue. If the call
-	 * returns <code>true</code> then the packet is removed from the given queue, otherwise the methods ends the loop
-	 * and returns <code>false</code>. <br> Please note, if the method returns <code>true</code> it means that all the
-	 * packets from the queue passed as a parameter have been successfuly run through the <code>addPacket(Packet)</code>
-	 * method and the queue passed as a parameter should be empty. If the method returns false then at least one packet
-	 * from the parameter queue wasn't successfully run through the <code>addPacket(Packet)</code> method. If the method
-	 * returns <code>false</code> then the queue passed as a parameter is not empty and it contains packet which was
-	 * unseccessfully run through the <code>addPacket(Packet)</code> method and all the packets which were not run at
-	 * all.
+	 * This is a method for adding all packets stored in given queue to the component's internal input queue.<br> Packets
+	 * are grouped by the internal queue selected for them in the same way as <code>addPacket(Packet)</code> does, and
+	 * each group is added to its queue at once, so the thread processing the queue is woken up once per group instead
+	 * of once per packet. Packets added to the internal queue are removed from the given queue. <br> Please note, if
+	 * the method returns <code>true</code> it means that all the packets from the queue passed as a parameter have been
+	 * successfuly added and the queue passed as a parameter should be empty. If the method returns <code>false</code>
+	 * then the queue passed as a parameter is not empty and it contains all the packets which were not added. Order of
+	 * the packets left in the queue is kept only for packets assigned to the same internal queue. <br> If a subclass
+	 * overrides <code>addPacket(Packet)</code> but not this method, packets are added one by one with
+	 * <code>addPacket(Packet)</code>.
 	 *
 	 * @param packets is a <code>Queue</code> of packets for adding to the component internal input queue. All the
 	 * packets are later processed by <code>processPacket(Packet)</code> method in the same exact order if they are
@@ -361,20 +405,27 @@ public abstract class AbstractMessageReceiver
 	 */
 	@Override
 	public boolean addPackets(Queue<Packet> packets) {
-		boolean result = true;
-		Packet p = packets.peek();
-
-		while (p != null) {
-			result = addPacket(p);
-			if (result) {
-				packets.poll();
-			} else {
-				break;
-			}    // end of if (result) else
-			p = packets.peek();
-		}      // end of while ()
+		if (addPacketOverridden) {
+			for (Iterator<Packet> it = packets.iterator(); it.hasNext(); ) {
+				if (addPacket(it.next())) {
+					it.remove();
+				}
+			}
 
-		return result;
+			return packets.isEmpty();
+		}
+
+		statReceivedPacketsOk += putPackets(packets, in_queues, in_queues_size);
+		if (!packets.isEmpty()) {
+			statReceivedPacketsEr += packets.size();
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Packets dropped for unknown reason: {0}", packets);
+			}
+
+			return false;
+		}
+
+		return true;
 	}
 
 	/**
@@ -537,6 +588,7 @@ public abstract class AbstractMessageReceiver
 	public synchronized void everyMinute() {
 		packets_per_minute = statReceivedPacketsOk - last_minute_packets;
 		last_minute_packets = statReceivedPacketsOk;
+		processPacketHistogram.everyMinute();
 		receiverTasks.purge();
 		super.everyMinute();
 	}
@@ -628,6 +680,29 @@ public abstract class AbstractMessageReceiver
 		}    // end of else
 	}
 
+	/**
+	 * Batch version of <code>processOutPacket(Packet)</code> called with a group of packets taken at once from the
+	 * same output queue. By default all packets are passed to the parent component in a single call to
+	 * <code>addPackets(Queue)</code>. If a subclass overrides <code>processOutPacket(Packet)</code> but not this
+	 * method, <code>processOutPacket(Packet)</code> is called for each packet.
+	 *
+	 * @param packets is a queue of output packets, it is empty when the method returns.
+	 */
+	public void processOutPackets(Queue<Packet> packets) {
+		if (parent != null && !processOutPacketOverridden) {
+
+			// packets which could not be added are dropped, the same way as in processOutPacket(Packet)
+			parent.addPackets(packets);
+			packets.clear();
+		} else {
+			Packet packet;
+
+			while ((packet = packets.poll()) != null) {
+				processOutPacket(packet);
+			}
+		}
+	}
+
 	/**
 	 * This is the main <code>Packet</code> processing method. It is called concurrently from many threads so
 	 * implementing it in thread save manner is essential. The method is called for each packet addressed to the
@@ -785,6 +860,7 @@ public abstract class AbstractMessageReceiver
 
 		list.add(getName(), "Average processing time on last " + processPacketTimings.length + " runs [ms]",
 				 prcessingTime, Level.FINE);
+		processPacketHistogram.getStatistics(getName(), list);
 		for (PacketFilterIfc packetFilter : incoming_filters.getFilters()) {
 			packetFilter.getStatistics(list);
 		}
@@ -965,18 +1041,37 @@ public abstract class AbstractMessageReceiver
 		return result;
 	}
 
+	/**
+	 * Adds all packets from the given queue to the component's internal output queues. Packets are grouped by the output
+	 * queue and each group is added at once, see <code>addPackets(Queue)</code> for details. <br> If a subclass
+	 * overrides <code>addOutPacket(Packet)</code> but not this method, packets are added one by one with
+	 * <code>addOutPacket(Packet)</code>.
+	 *
+	 * @param packets is a <code>Queue</code> of packets for adding to the component's output queues.
+	 *
+	 * @return a <code>boolean</code> value of <code>true</code> if all packets has been successfully added and
+	 * <code>false</code> otherwise, in which case not added packets are left in the given queue.
+	 */
 	protected boolean addOutPackets(Queue<Packet> packets) {
-		Packet p = null;
-		boolean result = true;
-
-		while ((p = packets.peek()) != null) {
-			result = addOutPacket(p);
-			if (result) {
-				packets.poll();
-			} else {
-				return false;
-			}    // end of if (result) else
-		}      // end of while ()
+		if (addOutPacketOverridden) {
+			for (Iterator<Packet> it = packets.iterator(); it.hasNext(); ) {
+				if (addOutPacket(it.next())) {
+					it.remove();
+				}
+			}
+
+			return packets.isEmpty();
+		}
+
+		statSentPacketsOk += putPackets(packets, out_queues, out_queues_size);
+		if (!packets.isEmpty()) {
+			statSentPacketsEr += packets.size();
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Packets dropped for unknown reason: {0}", packets);
+			}
+
+			return false;
+		}
 
 		return true;
 	}
@@ -1072,6 +1167,60 @@ public abstract class AbstractMessageReceiver
 		return result;
 	}
 
+	/**
+	 * Moves packets to the given queues grouped by the queue index calculated from <code>hashCodeForPacket(Packet)</code>,
+	 * so each queue receives all its packets in a single call. Packets which were not added because the thread was
+	 * interrupted are moved back to the given queue.
+	 *
+	 * @return number of packets added to queues
+	 */
+	@SuppressWarnings("unchecked")
+	private int putPackets(Queue<Packet> packets, List<PriorityQueueAbstract<Packet>> queues, int queuesSize) {
+		ArrayDeque<Packet>[] batches = new ArrayDeque[queuesSize];
+		Packet packet;
+
+		while ((packet = packets.poll()) != null) {
+			int queueIdx = Math.abs(hashCodeForPacket(packet) % queuesSize);
+
+			if (batches[queueIdx] == null) {
+				batches[queueIdx] = new ArrayDeque<>();
+			}
+			batches[queueIdx].offer(packet);
+		}
+
+		int result = 0;
+
+		for (int i = 0; i < batches.length; i++) {
+			ArrayDeque<Packet> batch = batches[i];
+
+			if (batch == null) {
+				continue;
+			}
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "[{0}] queueIdx={1}, batch of {2} packets",
+						new Object[]{getName(), i, batch.size()});
+			}
+
+			int size = batch.size();
+
+			try {
+				queues.get(i).putAll(batch, PACKET_PRIORITY);
+				result += size;
+			} catch (InterruptedException e) {
+				result += size - batch.size();
+				for (int j = i; j < batches.length; j++) {
+					if (batches[j] != null) {
+						packets.addAll(batches[j]);
+					}
+				}
+
+				return result;
+			}    // end of try-catch
+		}
+
+		return result;
+	}
+
 	private void startThreads() {
 		if (log.isLoggable(Level.CONFIG)) {
 			log.log(Level.CONFIG,
@@ -1341,6 +1490,7 @@ public abstract class AbstractMessageReceiver
 
 			Packet packet = null;
 			Queue<Packet> results = new ArrayDeque<Packet>(2);
+			ArrayDeque<Packet> batch = new ArrayDeque<Packet>();
 
 			while (!threadStopped) {
 				try {
@@ -1358,6 +1508,7 @@ public abstract class AbstractMessageReceiver
 					switch (type) {
 						case IN_QUEUE:
 							long startPPT = System.currentTimeMillis();
+							long startNanos = System.nanoTime();
 
 							// tracer.trace(null, packet.getElemTo(), packet.getElemFrom(),
 							// packet.getFrom(), getName(), type.name(), null, packet);
@@ -1406,6 +1557,7 @@ public abstract class AbstractMessageReceiver
 								long timing = System.currentTimeMillis() - startPPT;
 
 								processPacketTimings[idx] = timing;
+								processPacketHistogram.record(System.nanoTime() - startNanos);
 							}
 
 							break;
@@ -1414,7 +1566,26 @@ public abstract class AbstractMessageReceiver
 
 							// tracer.trace(null, packet.getElemTo(), packet.getElemFrom(),
 							// packet.getTo(), getName(), type.name(), null, packet);
-							if ((packet = filterPacket(packet, outgoing_filters.getFilters())) != null) {
+							if (outQueueBatchSize > 1) {
+
+								// Taking all packets waiting in the queue, so they are passed
+								// to the next component at once
+								batch.clear();
+								batch.offer(packet);
+								packetCounter += queue.drainTo(batch, outQueueBatchSize - 1);
+
+								int size = batch.size();
+
+								for (int i = 0; i < size; i++) {
+									packet = filterPacket(batch.poll(), outgoing_filters.getFilters());
+									if (packet != null) {
+										batch.offer(packet);
+									}
+								}
+								if (!batch.isEmpty()) {
+									processOutPackets(batch);
+								}
+							} else if ((packet = filterPacket(packet, outgoing_filters.getFilters())) != null) {
 								processOutPacket(packet);
 							}
 
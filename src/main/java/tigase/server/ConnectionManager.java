@@ -28,6 +28,7 @@ import tigase.kernel.core.Kernel;
 import tigase.net.*;
 import tigase.server.script.CommandIfc;
 import tigase.server.xmppclient.XMPPIOProcessor;
+import tigase.stats.LatencyHistogram;
 import tigase.stats.StatisticsList;
 import tigase.util.common.TimerTask;
 import tigase.util.repository.DataTypes;
@@ -167,6 +168,7 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 	protected long watchdogTimeout = 29 * MINUTE; // 1 740 000
 	private long bytesReceived = 0;
 	private long bytesSent = 0;
+	private final LatencyHistogram socketWriteHistogram = new LatencyHistogram("Socket write", Level.FINE);
 	@Inject
 	private CertificateContainerIfc certificateContainer;
 	@ConfigField(desc = "Flash cross domain policy file path", alias = XMPPIOService.CROSS_DOMAIN_POLICY_FILE_PROP_KEY)
@@ -314,6 +316,7 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 
 		services_size = tmp;
 		doForAllServices(ioStatsGetter);
+		socketWriteHistogram.everyMinute();
 	}
 
 	@Override
@@ -593,7 +596,10 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 					serv.addPacketToSend(p);
 				}      // end of for ()
 				try {
+					long start = System.nanoTime();
+
 					serv.processWaitingPackets();
+					socketWriteHistogram.record(System.nanoTime() - start);
 					SocketThread.addSocketService(serv);
 				} catch (Exception e) {
 					log.log(Level.WARNING, "Exception during writing packets [" + serv + "]: ", e);
@@ -628,7 +634,10 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 			ios.addPacketToSend(p);
 			if (ios.writeInProgress.tryLock()) {
 				try {
+					long start = System.nanoTime();
+
 					ios.processWaitingPackets();
+					socketWriteHistogram.record(System.nanoTime() - start);
 					SocketThread.addSocketService(ios);
 				} catch (IOException e) {
 					// if there was IOException we need to forceStop this service!
@@ -689,9 +698,14 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 		list.add(getName(), "Bytes sent", bytesSent, Level.FINE);
 		list.add(getName(), "Bytes received", bytesReceived, Level.FINE);
 		list.add(getName(), "Socket overflow", socketOverflow, Level.FINE);
+		socketWriteHistogram.getStatistics(getName(), list);
 		list.add(getName(), "Watchdog runs", watchdogRuns, Level.FINER);
 		list.add(getName(), "Watchdog tests", watchdogTests, Level.FINE);
 		list.add(getName(), "Watchdog stopped", watchdogStopped, Level.FINE);
+		// pools are shared by all connection managers, so they are reported under a common name
+		ByteBufferPool.getDirectBuffersPool().getStatistics("net-buffers", list);
+		ByteBufferPool.getInputBuffersPool().getStatistics("net-buffers", list);
+		SocketThread.getStatistics("socket-threads", list);
 		for (XMPPIOProcessor proc : processors) {
 			proc.getStatistics(list);
 		}
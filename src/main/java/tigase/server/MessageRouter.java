@@ -21,6 +21,7 @@ import tigase.conf.ConfigurationException;
 import tigase.conf.ConfiguratorAbstract;
 import tigase.conf.MonitoringBeanIfc;
 import tigase.conf.SetLoggingCommand;
+import tigase.db.comp.RepositoryChangeListenerIfc;
 import tigase.disco.XMPPService;
 import tigase.kernel.beans.Bean;
 import tigase.kernel.beans.Inject;
@@ -35,6 +36,7 @@ import tigase.sys.NativeMemoryTracking;
 import tigase.sys.TigaseRuntime;
 import tigase.util.stringprep.TigaseStringprepException;
 import tigase.util.updater.UpdatesChecker;
+import tigase.vhosts.VHostItem;
 import tigase.xml.Element;
 import tigase.xmpp.*;
 import tigase.xmpp.impl.PresenceCapabilitiesManager;
@@ -75,8 +77,6 @@ public class MessageRouter
 	// public static final String ITEMS_XMLNS =
 	// "http://jabber.org/protocol/disco#items";
 
-	// TODO: use default logger with TRACE level after switching to slf4j
-	private static final Logger debugLog = Logger.getLogger("tigase.debug.MessageRouter");
 	private static final Logger log = Logger.getLogger(MessageRouter.class.getName());
 
 	private static final String JVM_STATS_GC_STATISTICS = "JVM/GC-statistics";
@@ -103,6 +103,25 @@ public class MessageRouter
 	private MonitoringBeanIfc monitoringBean;
 	private Map<String, MessageReceiver> receivers = new ConcurrentHashMap<>();
 	private ConcurrentHashMap<String, ComponentRegistrator> registrators = new ConcurrentHashMap<>();
+	private volatile RoutingTable routingTable = RoutingTable.EMPTY;
+	private long routingTableRebuilds = 0;
+	private volatile boolean routingTableStale = true;
+	private final RepositoryChangeListenerIfc<VHostItem> vhostsChangeListener = new RepositoryChangeListenerIfc<VHostItem>() {
+		@Override
+		public void itemAdded(VHostItem item) {
+			invalidateRoutingTable();
+		}
+
+		@Override
+		public void itemUpdated(VHostItem item) {
+			invalidateRoutingTable();
+		}
+
+		@Override
+		public void itemRemoved(VHostItem item) {
+			invalidateRoutingTable();
+		}
+	};
 	@Inject
 	private UpdatesChecker updates_checker = null;
 	private Map<String, XMPPService> xmppServices = new ConcurrentHashMap<>();
@@ -188,6 +207,7 @@ public class MessageRouter
 				registr.addComponent(component);
 			}    // end of if (reg != component)
 		}      // end of for ()
+		invalidateRoutingTable();
 	}
 
 	public void addRegistrator(ComponentRegistrator registr) throws ConfigurationException {
@@ -201,12 +221,14 @@ public class MessageRouter
 
 			// } // end of if (comp != registr)
 		}    // end of for (ServerComponent comp : components)
+		invalidateRoutingTable();
 	}
 
 	public void addRouter(MessageReceiver receiver) throws ConfigurationException {
 		log.log(Level.CONFIG, "Adding receiver: " + receiver.getClass().getSimpleName());
 		addComponent(receiver);
 		receivers.put(receiver.getName(), receiver);
+		invalidateRoutingTable();
 	}
 
 	@Override
@@ -262,6 +284,9 @@ public class MessageRouter
 	public void initialize() {
 		super.initialize();
 		updateServiceDiscoveryItem(getName(), null, getDiscoDescription(), "server", "im", false);
+		if (vHostManager != null) {
+			vHostManager.addVHostChangeListener(vhostsChangeListener);
+		}
 	}
 
 	@Override
@@ -360,7 +385,8 @@ public class MessageRouter
 		// 3. component name + "." + default domain name
 		// 4. component name + "." + any virtual host name
 		// TODO: check the efficiency for packets addressed to c2s component
-		ServerComponent comp = getLocalComponent(packet.getTo());
+		final RoutingTable table = getRoutingTable();
+		ServerComponent comp = table.getLocalComponent(packet.getTo());
 
 		if (comp != null) {
 			if (log.isLoggable(Level.FINEST)) {
@@ -402,20 +428,20 @@ public class MessageRouter
 		// to a virtual domains (implement VHostListener and return 'true' from
 		// handlesLocalDomains() method call)
 		String host = packet.getTo().getDomain();
-		ServerComponent[] comps = getComponentsForLocalDomain(host);
+		ServerComponent[] comps = table.getComponentsForLocalDomain(host);
 
 		if (comps == null) {
 
 			// Still no component found, now the most expensive lookup.
 			// Checking regex routings provided by the component.
-			comps = getServerComponentsForRegex(packet.getTo().getBareJID().toString());
+			comps = table.getServerComponentsForRegex(packet.getTo().getBareJID().toString());
 		}
-		if ((comps == null) && !isLocalDomain(host)) {
+		if ((comps == null) && !table.isLocalDomain(host)) {
 
 			// None of the component want to process the packet.
 			// If the packet is addressed to non-local domain then it is processed by
 			// all components dealing with external world, like s2s
-			comps = getComponentsForNonLocalDomain(host);
+			comps = table.getComponentsForNonLocalDomain();
 		}
 
 		// Ok, if any component has been found then process the packet in a standard
@@ -523,6 +549,7 @@ public class MessageRouter
 		if (component instanceof XMPPService) {
 			xmppServices.remove(component.getName());
 		}
+		invalidateRoutingTable();
 	}
 
 	public void removeRegistrator(ComponentRegistrator registr) {
@@ -536,12 +563,14 @@ public class MessageRouter
 
 			// } // end of if (comp != registr)
 		}    // end of for (ServerComponent comp : components)
+		invalidateRoutingTable();
 	}
 
 	public void removeRouter(MessageReceiver receiver) {
 		log.log(Level.CONFIG, "Removing receiver: " + receiver.getClass().getSimpleName());
 		receivers.remove(receiver.getName());
 		removeComponent(receiver);
+		invalidateRoutingTable();
 	}
 
 	@Override
@@ -578,6 +607,7 @@ public class MessageRouter
 	public void getStatistics(StatisticsList list) {
 		super.getStatistics(list);
 		list.add(getName(), "Local hostname", getDefHostName().getDomain(), Level.INFO);
+		list.add(getName(), "Routing table rebuilds", routingTableRebuilds, Level.FINE);
 
 		TigaseRuntime runtime = TigaseRuntime.getTigaseRuntime();
 
@@ -697,6 +727,7 @@ public class MessageRouter
 	@Override
 	public void setConfig(ConfiguratorAbstract config) throws ConfigurationException {
 		components.put(getName(), this);
+		invalidateRoutingTable();
 		this.config = config;
 		addRegistrator(config);
 	}
@@ -711,6 +742,9 @@ public class MessageRouter
 
 	@Override
 	public void beforeUnregister() {
+		if (vHostManager != null) {
+			vHostManager.removeVHostChangeListener(vhostsChangeListener);
+		}
 		stop();
 	}
 
@@ -862,99 +896,48 @@ public class MessageRouter
 	}
 
 	private ServerComponent[] getComponentsForLocalDomain(String domain) {
-		return vHostManager.getComponentsForLocalDomain(domain);
-	}
-
-	private ServerComponent[] getComponentsForNonLocalDomain(String domain) {
-		return vHostManager.getComponentsForNonLocalDomain(domain);
+		return getRoutingTable().getComponentsForLocalDomain(domain);
 	}
 
 	private ServerComponent getLocalComponent(JID jid) {
+		ServerComponent comp = getRoutingTable().getLocalComponent(jid);
 		if (log.isLoggable(Level.FINEST)) {
-			log.log(Level.FINEST, "Called for : {0}", jid);
+			log.log(Level.FINEST, "Component for: {0} found: {1}", new Object[]{jid, comp});
 		}
+		return comp;
+	}
 
-		// Fast lookup in the server components to find a candidate
-		// by the component ID (JID). If the packet is addressed directly
-		// to the component ID then this is where the processing must happen.
-		// Normally the component id is: component name + "@" + default hostname
-		// However the component may "choose" to have any ID.
-		ServerComponent comp = components_byId.get(jid);
-
-		if (comp != null) {
-			return comp;
-		}
-		if (debugLog.isLoggable(Level.FINEST)) {
-			// TODO: use default logger with TRACE level after switching to slf4j
-			debugLog.log(Level.FINEST, "No componentID matches (fast lookup against exact address): " +
-					"{0}, for map: {1}; trying VHost lookup", new Object[]{jid, components_byId.keySet()});
-		}
-
-		// Note, component ID consists of the component name + default hostname
-		// which can be different from a virtual host. There might be many
-		// virtual hosts and the packet can be addressed to the component by
-		// the component name + virtual host name
-		// Code below, tries to find a destination by the component name + any
-		// active virtual hostname.
-		if (jid.getLocalpart() != null) {
-			comp = components.get(jid.getLocalpart());
-			if ((comp != null) &&
-					(isLocalDomain(jid.getDomain()) || jid.getDomain().equals(getDefHostName().getDomain()))) {
-				return comp;
-			}
+	/**
+	 * Method returns routing table for the current state of components and virtual hosts. Table is rebuilt only when
+	 * it is requested after a change, so it is not rebuilt for each of many changes done at once (ie. when virtual
+	 * hosts are loaded from the repository).
+	 */
+	private RoutingTable getRoutingTable() {
+		if (routingTableStale) {
+			return rebuildRoutingTable();
 		}
-		if (debugLog.isLoggable(Level.FINEST)) {
-			// TODO: use default logger with TRACE level after switching to slf4j
-			debugLog.log(Level.FINEST, "No component name matches (VHost lookup against component name): " +
-							"{0}, for map: {1}, for all VHosts: {2}; trying other forms of addressing",
-					new Object[]{jid, components.keySet(), vHostManager.getAllVHosts().size() > 20 ? "[hosts count: " +
-							vHostManager.getAllVHosts().size() + "]" : String.valueOf(vHostManager.getAllVHosts())});
-		}
-
-		// Instead of a component ID built of: component name + "@" domain name
-		// Some components have an ID of: component name + "." domain name
-		// Code below tries to find a packet receiver if the address have the other
-		// type of form.
-		int idx = jid.getDomain().indexOf('.');
-
-		if (idx > 0) {
-			String cmpName = jid.getDomain().substring(0, idx);
-			String basename = jid.getDomain().substring(idx + 1);
-
-			comp = components.get(cmpName);
-			if ((comp != null) && (isLocalDomain(basename) || basename.equals(getDefHostName().getDomain()))) {
-				if (debugLog.isLoggable(Level.FINEST)) {
-					// TODO: use default logger with TRACE level after switching to slf4j
-					debugLog.log(Level.FINEST, "Component matched: {0}, for comp: {1}, basename: {3}",
-							new Object[]{jid, components.keySet(), comp, basename});
-				}
-				return comp;
-			}
-			if (log.isLoggable(Level.FINEST)) {
-				log.log(Level.FINEST, "Component match failed: {0}, for comp: {1}, basename: {3}",
-						new Object[]{jid, components.keySet(), comp, basename});
-			}
-		}
-
-		return null;
+		return routingTable;
 	}
 
-	private ServerComponent[] getServerComponentsForRegex(String id) {
-		LinkedHashSet<ServerComponent> comps = new LinkedHashSet<ServerComponent>();
+	private void invalidateRoutingTable() {
+		routingTableStale = true;
+	}
 
-		for (MessageReceiver mr : receivers.values()) {
-			if (log.isLoggable(Level.FINEST)) {
-				log.finest("Checking routings for: " + mr.getName());
-			}
-			if (mr.isInRegexRoutings(id)) {
-				comps.add(mr);
-			}
+	private synchronized RoutingTable rebuildRoutingTable() {
+		if (!routingTableStale) {
+			return routingTable;
 		}
-		if (comps.size() > 0) {
-			return comps.toArray(new ServerComponent[comps.size()]);
-		} else {
-			return null;
+		// changes done while table is being built will mark it stale again
+		routingTableStale = false;
+		RoutingTable table = new RoutingTable(components, components_byId, vHostManager,
+											  getDefHostName() == null ? null : getDefHostName().getDomain(),
+											  receivers.values().toArray(new MessageReceiver[0]));
+		routingTable = table;
+		++routingTableRebuilds;
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Routing table rebuilt with {0} entries", table.size());
 		}
+		return table;
 	}
 
 	private boolean isDiscoDisabled(ServerComponent comp, JID to) {
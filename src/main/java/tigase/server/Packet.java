@@ -24,10 +24,7 @@ import tigase.xmpp.StanzaType;
 import tigase.xmpp.impl.annotation.Handle;
 import tigase.xmpp.jid.JID;
 
-import java.util.LinkedHashSet;
-import java.util.List;
-import java.util.Optional;
-import java.util.Set;
+import java.util.*;
 
 /**
  * Objects of this class carry a single XMPP packet (stanza). The XMPP stanza is carried as an XML element in DOM
@@ -102,9 +99,12 @@ public class Packet {
 	private String packetToStringSecure = null;
 	private Permissions permissions = Permissions.NONE;
 	private Priority priority = Priority.NORMAL;
-	private Set<String> processorsIds = new LinkedHashSet<String>(4, 0.9f);
+	// bits of processors (by index in ProcessorIds) which processed the packet, higher indexes are kept in processedExt
+	private long processed = 0;
+	private long[] processedExt = null;
 	private boolean routed;
-	private LinkedHashSet<String> skippedProcessorsIds = new LinkedHashSet<String>(4, 0.9f);
+	private long skipped = 0;
+	private long[] skippedExt = null;
 	private JID stanzaFrom = null;
 	private String stanzaId = null;
 	private JID stanzaTo = null;
@@ -595,11 +595,14 @@ public class Packet {
 	 * handles the packet can mark the packet as processed. This is used internally by the session manager to detect
 	 * packets which hasn't been processed by any processor, hence a default action is applied to the packet if
 	 * possible.
+	 * <br>
+	 * Returned set is a view backed by the packet, processor IDs are iterated in order in which processors were
+	 * registered.
 	 *
 	 * @return a <code>Set</code> of stanza processor IDs which handled the packet.
 	 */
 	public Set<String> getProcessorsIds() {
-		return processorsIds;
+		return new ProcessorsIdsView(false);
 	}
 
 	/**
@@ -646,7 +649,7 @@ public class Packet {
 	 * @return a <code>Set</code> of stanza processor IDs which skipped the packet.
 	 */
 	public Set<String> getSkippedProcessorsIds() {
-		return skippedProcessorsIds;
+		return new ProcessorsIdsView(true);
 	}
 
 	/**
@@ -892,7 +895,7 @@ public class Packet {
 	 * @param id is a <code>String</code> instance of the packet processer identifier.
 	 */
 	public void notProcessedBy(String id) {
-		skippedProcessorsIds.add(id);
+		markSkipped(ProcessorIds.register(id));
 	}
 
 	/**
@@ -1019,7 +1022,7 @@ public class Packet {
 	 * @param id is a <code>String</code> instance of the packet processer identifier.
 	 */
 	public void processedBy(String id) {
-		processorsIds.add(id);
+		markProcessed(ProcessorIds.register(id));
 	}
 
 	/**
@@ -1199,7 +1202,7 @@ public class Packet {
 	 * <code>false</code> otherwise.
 	 */
 	public boolean wasProcessed() {
-		return processorsIds.size() > 0;
+		return processed != 0 || processedExt != null;
 	}
 
 	/**
@@ -1209,7 +1212,7 @@ public class Packet {
 	 * @return <code>true</code> if packet was skipped by any processor.
 	 */
 	public boolean wasSkipped() {
-		return skippedProcessorsIds.size() > 0;
+		return skipped != 0 || skippedExt != null;
 	}
 
 	/**
@@ -1221,7 +1224,7 @@ public class Packet {
 	 * specified ID and <code>false</code> otherwise.
 	 */
 	public boolean wasProcessedBy(String id) {
-		return processorsIds.contains(id);
+		return isSet(processed, processedExt, ProcessorIds.indexOf(id));
 	}
 
 	/**
@@ -1247,6 +1250,52 @@ public class Packet {
 				", PRIORITY=" + priority + ", PERMISSION=" + permissions + ", TYPE=" + type + ", STABLE_ID=" + stableId;
 	}
 
+	private static boolean isSet(long bits, long[] ext, int idx) {
+		if (idx < 0) {
+			return false;
+		}
+		if (idx < ProcessorIds.INLINE_BITS) {
+			return (bits & (1L << idx)) != 0;
+		}
+		int word = (idx / ProcessorIds.INLINE_BITS) - 1;
+		return ext != null && word < ext.length && (ext[word] & (1L << idx)) != 0;
+	}
+
+	private static long[] setExt(long[] ext, int idx) {
+		int word = (idx / ProcessorIds.INLINE_BITS) - 1;
+		if (ext == null) {
+			ext = new long[word + 1];
+		} else if (word >= ext.length) {
+			ext = Arrays.copyOf(ext, word + 1);
+		}
+		ext[word] |= 1L << idx;
+		return ext;
+	}
+
+	private boolean markProcessed(int idx) {
+		if (isSet(processed, processedExt, idx)) {
+			return false;
+		}
+		if (idx < ProcessorIds.INLINE_BITS) {
+			processed |= 1L << idx;
+		} else {
+			processedExt = setExt(processedExt, idx);
+		}
+		return true;
+	}
+
+	private boolean markSkipped(int idx) {
+		if (isSet(skipped, skippedExt, idx)) {
+			return false;
+		}
+		if (idx < ProcessorIds.INLINE_BITS) {
+			skipped |= 1L << idx;
+		} else {
+			skippedExt = setExt(skippedExt, idx);
+		}
+		return true;
+	}
+
 	private void setElem(Element elem) {
 		if (elem == null) {
 			throw new NullPointerException();
@@ -1273,4 +1322,83 @@ public class Packet {
 			}
 		}
 	}
+
+	/**
+	 * Set of processor IDs backed by bits of the packet, created only when the set is requested.
+	 */
+	private class ProcessorsIdsView
+			extends AbstractSet<String> {
+
+		private final boolean skippedIds;
+
+		private ProcessorsIdsView(boolean skippedIds) {
+			this.skippedIds = skippedIds;
+		}
+
+		@Override
+		public boolean add(String id) {
+			int idx = ProcessorIds.register(id);
+			return skippedIds ? markSkipped(idx) : markProcessed(idx);
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			return (o instanceof String) && isSet(bits(), ext(), ProcessorIds.indexOf((String) o));
+		}
+
+		@Override
+		public Iterator<String> iterator() {
+			return new Iterator<String>() {
+
+				private int next = nextIndex(0);
+
+				@Override
+				public boolean hasNext() {
+					return next >= 0;
+				}
+
+				@Override
+				public String next() {
+					if (next < 0) {
+						throw new NoSuchElementException();
+					}
+					String id = ProcessorIds.get(next);
+					next = nextIndex(next + 1);
+					return id;
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			int size = Long.bitCount(bits());
+			long[] ext = ext();
+			if (ext != null) {
+				for (long word : ext) {
+					size += Long.bitCount(word);
+				}
+			}
+			return size;
+		}
+
+		private long bits() {
+			return skippedIds ? skipped : processed;
+		}
+
+		private long[] ext() {
+			return skippedIds ? skippedExt : processedExt;
+		}
+
+		private int nextIndex(int from) {
+			long bits = bits();
+			long[] ext = ext();
+			int limit = ProcessorIds.INLINE_BITS * (1 + (ext == null ? 0 : ext.length));
+			for (int idx = from; idx < limit; idx++) {
+				if (isSet(bits, ext, idx)) {
+					return idx;
+				}
+			}
+			return -1;
+		}
+	}
 }
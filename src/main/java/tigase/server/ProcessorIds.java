@@ -0,0 +1,98 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.server;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of packet processor identifiers. Each identifier gets a small, stable index which is used by {@link Packet}
+ * to keep track of processors which processed or skipped the packet in a bitset instead of a set of strings.
+ * <br>
+ * Processors are registered when plugins are added to the session manager, any other identifier passed to {@link
+ * Packet#processedBy(String)} is registered on first use. Indexes are never reused, so number of registered identifiers
+ * is bounded by number of distinct processor identifiers used by the installation.
+ */
+public final class ProcessorIds {
+
+	/**
+	 * Number of identifiers kept directly in <code>long</code> fields of {@link Packet}, identifiers with higher
+	 * indexes are stored in additional words allocated on demand.
+	 */
+	static final int INLINE_BITS = 64;
+
+	private static final ConcurrentHashMap<String, Integer> indexes = new ConcurrentHashMap<>();
+	private static volatile String[] ids = new String[0];
+
+	/**
+	 * Method returns index assigned to the processor identifier registering it if needed.
+	 *
+	 * @param id processor identifier
+	 *
+	 * @return index of the identifier
+	 */
+	public static int register(String id) {
+		Integer idx = indexes.get(id);
+		if (idx != null) {
+			return idx;
+		}
+		synchronized (ProcessorIds.class) {
+			idx = indexes.get(id);
+			if (idx == null) {
+				String[] current = ids;
+				String[] updated = Arrays.copyOf(current, current.length + 1);
+				updated[current.length] = id;
+				// array has to be published before index, so lookup of a registered index never fails
+				ids = updated;
+				idx = current.length;
+				indexes.put(id, idx);
+			}
+			return idx;
+		}
+	}
+
+	/**
+	 * Method returns identifier of the processor with passed index.
+	 *
+	 * @param index index of the identifier
+	 *
+	 * @return processor identifier
+	 */
+	public static String get(int index) {
+		return ids[index];
+	}
+
+	/**
+	 * Method returns index assigned to the processor identifier.
+	 *
+	 * @param id processor identifier
+	 *
+	 * @return index of the identifier or <code>-1</code> if identifier was not registered
+	 */
+	public static int indexOf(String id) {
+		Integer idx = indexes.get(id);
+		return idx == null ? -1 : idx;
+	}
+
+	public static int size() {
+		return ids.length;
+	}
+
+	private ProcessorIds() {
+	}
+}
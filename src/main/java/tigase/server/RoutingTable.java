@@ -0,0 +1,281 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.server;
+
+import tigase.vhosts.VHostListener;
+import tigase.vhosts.VHostManagerIfc;
+import tigase.xmpp.jid.JID;
+
+import java.util.*;
+
+/**
+ * Immutable snapshot of routing data used by {@link MessageRouter} to find components responsible for processing a
+ * packet. It contains components by their IDs and names, local domains (virtual hosts and default hostname) with
+ * components handling packets addressed to them and components handling packets addressed to non-local domains.
+ * <br>
+ * Domains and component names are kept in open addressing tables which allow lookups of a part of the string, so
+ * addresses like <code>pubsub.example.com</code> are resolved without creating substrings. Lookups do not allocate
+ * and arrays of components are shared, so they must not be modified by the caller.
+ * <br>
+ * Instance is never modified after creation. If any of the components or virtual hosts change, a new instance has to
+ * be created.
+ */
+final class RoutingTable {
+
+	static final RoutingTable EMPTY = new RoutingTable(Collections.emptyMap(), Collections.emptyMap(), null, null,
+													   new MessageReceiver[0]);
+
+	private final Map<JID, ServerComponent> componentsById;
+	private final RegionMap<DomainRoute> domains;
+	private final RegionMap<NameRoute> names;
+	private final ServerComponent[] nonLocalComponents;
+	private final MessageReceiver[] receivers;
+
+	/**
+	 * Creates routing table for current state of components and virtual hosts.
+	 *
+	 * @param components map of components by their names
+	 * @param componentsById map of components by their IDs
+	 * @param vHostManager virtual hosts manager providing local domains and components handling them (may be
+	 * {@code null})
+	 * @param defaultDomain default hostname
+	 * @param receivers components with regex routings
+	 */
+	RoutingTable(Map<String, ServerComponent> components, Map<JID, ServerComponent> componentsById,
+				 VHostManagerIfc vHostManager, String defaultDomain, MessageReceiver[] receivers) {
+		this.componentsById = new HashMap<>(componentsById);
+		this.receivers = receivers;
+
+		Map<String, NameRoute> nameRoutes = new HashMap<>();
+		for (Map.Entry<String, ServerComponent> e : components.entrySet()) {
+			ServerComponent comp = e.getValue();
+			ServerComponent[] subdomainComponents = null;
+			if ((comp instanceof VHostListener) && ((VHostListener) comp).handlesNameSubdomains()) {
+				subdomainComponents = new ServerComponent[]{comp};
+			}
+			nameRoutes.put(e.getKey(), new NameRoute(comp, subdomainComponents));
+		}
+		this.names = new RegionMap<>(nameRoutes);
+
+		Map<String, DomainRoute> domainRoutes = new HashMap<>();
+		if (vHostManager != null) {
+			for (JID vhost : vHostManager.getAllVHosts()) {
+				String domain = vhost.getDomain();
+				domainRoutes.put(domain, new DomainRoute(true, vHostManager.getComponentsForLocalDomain(domain)));
+			}
+			this.nonLocalComponents = vHostManager.getComponentsForNonLocalDomain(null);
+		} else {
+			this.nonLocalComponents = null;
+		}
+		if (defaultDomain != null) {
+			domainRoutes.putIfAbsent(defaultDomain, new DomainRoute(false, null));
+		}
+		this.domains = new RegionMap<>(domainRoutes);
+	}
+
+	/**
+	 * Method returns components which should process packet addressed to the local domain or to the component
+	 * subdomain of the local domain (if component handles such subdomains).
+	 *
+	 * @param domain destination domain
+	 *
+	 * @return array of components or {@code null} if domain is not local
+	 */
+	public ServerComponent[] getComponentsForLocalDomain(String domain) {
+		DomainRoute route = domains.get(domain);
+		if (route != null && route.vhost) {
+			return route.components;
+		}
+		int idx = domain.indexOf('.');
+		if (idx > 0) {
+			DomainRoute base = domains.get(domain, idx + 1, domain.length());
+			if (base != null && base.vhost) {
+				NameRoute name = names.get(domain, 0, idx);
+				if (name != null) {
+					return name.subdomainComponents;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Method returns components which should process packets addressed to non-local domains.
+	 *
+	 * @return array of components or {@code null}
+	 */
+	public ServerComponent[] getComponentsForNonLocalDomain() {
+		return nonLocalComponents;
+	}
+
+	/**
+	 * Method returns component addressed directly by the passed JID, which may be component ID, component name at
+	 * local domain or component name subdomain of the local domain.
+	 *
+	 * @param jid destination address
+	 *
+	 * @return component or {@code null} if address is not a component address
+	 */
+	public ServerComponent getLocalComponent(JID jid) {
+		ServerComponent comp = componentsById.get(jid);
+		if (comp != null) {
+			return comp;
+		}
+
+		String domain = jid.getDomain();
+		String localpart = jid.getLocalpart();
+		if (localpart != null && domains.get(domain) != null) {
+			NameRoute name = names.get(localpart);
+			if (name != null) {
+				return name.component;
+			}
+		}
+
+		int idx = domain.indexOf('.');
+		if (idx > 0 && domains.get(domain, idx + 1, domain.length()) != null) {
+			NameRoute name = names.get(domain, 0, idx);
+			if (name != null) {
+				return name.component;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Method returns components with regex routings matching passed address.
+	 *
+	 * @param id destination address
+	 *
+	 * @return array of components or {@code null} if none matches
+	 */
+	public ServerComponent[] getServerComponentsForRegex(String id) {
+		ServerComponent[] result = null;
+		int count = 0;
+		for (MessageReceiver mr : receivers) {
+			if (mr.isInRegexRoutings(id)) {
+				if (result == null) {
+					result = new ServerComponent[receivers.length];
+				}
+				result[count++] = mr;
+			}
+		}
+		return result == null || count == result.length ? result : Arrays.copyOf(result, count);
+	}
+
+	public boolean isLocalDomain(String domain) {
+		DomainRoute route = domains.get(domain);
+		return route != null && route.vhost;
+	}
+
+	public int size() {
+		return domains.size() + names.size() + componentsById.size();
+	}
+
+	private static class DomainRoute {
+
+		private final ServerComponent[] components;
+		private final boolean vhost;
+
+		private DomainRoute(boolean vhost, ServerComponent[] components) {
+			this.vhost = vhost;
+			this.components = components;
+		}
+	}
+
+	private static class NameRoute {
+
+		private final ServerComponent component;
+		private final ServerComponent[] subdomainComponents;
+
+		private NameRoute(ServerComponent component, ServerComponent[] subdomainComponents) {
+			this.component = component;
+			this.subdomainComponents = subdomainComponents;
+		}
+	}
+
+	/**
+	 * Read-only open addressing hash table with string keys which allows lookup of a region of a string. Hash of a
+	 * region is calculated in the same way as {@link String#hashCode()}, so lookups of whole strings use cached hash
+	 * codes.
+	 */
+	static final class RegionMap<V> {
+
+		private final String[] keys;
+		private final int mask;
+		private final int size;
+		private final Object[] values;
+
+		private static int index(int hash, int mask) {
+			return (hash ^ (hash >>> 16)) & mask;
+		}
+
+		RegionMap(Map<String, V> entries) {
+			int capacity = 4;
+			while (capacity < entries.size() * 2) {
+				capacity <<= 1;
+			}
+			this.keys = new String[capacity];
+			this.values = new Object[capacity];
+			this.mask = capacity - 1;
+			this.size = entries.size();
+			for (Map.Entry<String, V> e : entries.entrySet()) {
+				int i = index(e.getKey().hashCode(), mask);
+				while (keys[i] != null) {
+					i = (i + 1) & mask;
+				}
+				keys[i] = e.getKey();
+				values[i] = e.getValue();
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		V get(String key) {
+			for (int i = index(key.hashCode(), mask); ; i = (i + 1) & mask) {
+				String k = keys[i];
+				if (k == null) {
+					return null;
+				}
+				if (k.equals(key)) {
+					return (V) values[i];
+				}
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		V get(String str, int from, int to) {
+			int hash = 0;
+			for (int j = from; j < to; j++) {
+				hash = 31 * hash + str.charAt(j);
+			}
+			final int len = to - from;
+			for (int i = index(hash, mask); ; i = (i + 1) & mask) {
+				String k = keys[i];
+				if (k == null) {
+					return null;
+				}
+				if (k.length() == len && k.regionMatches(0, str, from, len)) {
+					return (V) values[i];
+				}
+			}
+		}
+
+		int size() {
+			return size;
+		}
+	}
+}
@@ -29,11 +29,11 @@ import tigase.xmpp.Authorization;
 import tigase.xmpp.PacketErrorTypeException;
 import tigase.xmpp.impl.roster.RosterAbstract;
 import tigase.xmpp.impl.roster.RosterElement;
+import tigase.xmpp.impl.roster.RosterFactory;
 import tigase.xmpp.impl.roster.RosterFlat;
 import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
 
-import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -142,18 +142,13 @@ public abstract class ActionAbstract
 		}
 
 		try {
-			String roster_str = user_repository.getData(user.getBareJID(), RosterAbstract.ROSTER);
+			RosterAbstract roster_impl = RosterFactory.getRosterImplementation(true);
+			Map<BareJID, RosterElement> roster = (roster_impl != null ? roster_impl : rosterUtil).loadStoredRoster(
+					user_repository, user.getBareJID());
+			RosterElement re = roster.get(contact.getBareJID());
 
-			if (roster_str != null) {
-				Map<BareJID, RosterElement> roster = new LinkedHashMap<BareJID, RosterElement>();
-
-				RosterFlat.parseRosterUtil(roster_str, roster, null);
-
-				RosterElement re = roster.get(contact.getBareJID());
-
-				if (re != null) {
-					return rosterUtil.isSubscribedFrom(re.getSubscription());
-				}
+			if (re != null) {
+				return rosterUtil.isSubscribedFrom(re.getSubscription());
 			}
 		} catch (Exception ex) {
 			log.log(Level.CONFIG, "Problem retrieving user roster: " + user, ex);
@@ -61,6 +61,8 @@ public class JDBCMsgRepository
 	private String MSGS_DELETE_MESSAGES = "{ call Tig_OfflineMessages_DeleteMessages(?) }";
 	@ConfigField(desc = "Query to delete messages by ids", alias = "delete-messages-by-ids-query")
 	private String MSGS_DELETE_MESSAGES_BY_IDS = "{ call Tig_OfflineMessages_DeleteMessagesByIds(?,?,?,?,?) }";
+	@ConfigField(desc = "Query to delete messages up to id", alias = "delete-messages-up-to-query")
+	private String MSGS_DELETE_MESSAGES_UP_TO = "{ call Tig_OfflineMessages_DeleteMessagesUpTo(?,?) }";
 	@ConfigField(desc = "Query to select expired messages", alias = "get-expired-messages-query")
 	private String MSGS_GET_EXPIRED_MESSAGES = "{ call Tig_OfflineMessages_GetExpiredMessages(?) }";
 	@ConfigField(desc = "Query to select expired messages before passed time", alias = "get-expired-messages-before-query")
@@ -69,6 +71,8 @@ public class JDBCMsgRepository
 	private String MSGS_GET_MESSAGES = "{ call Tig_OfflineMessages_GetMessages(?) }";
 	@ConfigField(desc = "Query to load messages by ids", alias = "get-messages-by-ids-query")
 	private String MSGS_GET_MESSAGES_BY_IDS = "{ call Tig_OfflineMessages_GetMessagesByIds(?,?,?,?,?) }";
+	@ConfigField(desc = "Query to load page of messages", alias = "get-messages-page-query")
+	private String MSGS_GET_MESSAGES_PAGE = "{ call Tig_OfflineMessages_GetMessagesPage(?,?,?) }";
 
 //	private static final Map<String, JDBCMsgRepository> repos =
 //			new ConcurrentSkipListMap<String, JDBCMsgRepository>();
@@ -86,9 +90,11 @@ public class JDBCMsgRepository
 			data_repo.initPreparedStatement(MSGS_LIST_MESSAGES, MSGS_LIST_MESSAGES);
 			data_repo.initPreparedStatement(MSGS_GET_MESSAGES, MSGS_GET_MESSAGES);
 			data_repo.initPreparedStatement(MSGS_GET_MESSAGES_BY_IDS, MSGS_GET_MESSAGES_BY_IDS);
+			data_repo.initPreparedStatement(MSGS_GET_MESSAGES_PAGE, MSGS_GET_MESSAGES_PAGE);
 			data_repo.initPreparedStatement(MSGS_DELETE_MESSAGE, MSGS_DELETE_MESSAGE);
 			data_repo.initPreparedStatement(MSGS_DELETE_MESSAGES, MSGS_DELETE_MESSAGES);
 			data_repo.initPreparedStatement(MSGS_DELETE_MESSAGES_BY_IDS, MSGS_DELETE_MESSAGES_BY_IDS);
+			data_repo.initPreparedStatement(MSGS_DELETE_MESSAGES_UP_TO, MSGS_DELETE_MESSAGES_UP_TO);
 			data_repo.initPreparedStatement(MSGS_GET_EXPIRED_MESSAGES, MSGS_GET_EXPIRED_MESSAGES);
 			data_repo.initPreparedStatement(MSGS_GET_EXPIRED_MESSAGES_BEFORE, MSGS_GET_EXPIRED_MESSAGES_BEFORE);
 		} catch (SQLException ex) {
@@ -369,6 +375,77 @@ public class JDBCMsgRepository
 		return result;
 	}
 
+	@Override
+	public Queue<Element> loadMessagesPageToJID(XMPPResourceConnection session, long afterId, int limit,
+												OfflineMessagesProcessor proc) throws UserNotFoundException {
+		Queue<Element> result = null;
+		BareJID to = null;
+
+		ReentrantReadWriteLock.WriteLock lock = null;
+		try {
+			to = session.getBareJID();
+			lock = getLock(to).writeLock();
+			lock.lock();
+
+			ResultSet rs = null;
+			PreparedStatement select_page_st = data_repo.getPreparedStatement(to, MSGS_GET_MESSAGES_PAGE);
+
+			synchronized (select_page_st) {
+				try {
+					select_page_st.setString(1, to.toString());
+					select_page_st.setLong(2, afterId);
+					select_page_st.setInt(3, limit);
+					rs = select_page_st.executeQuery();
+
+					result = parseLoadedMessagesPage(proc, rs, to);
+				} finally {
+					data_repo.release(null, rs);
+				}
+			}
+		} catch (SQLException e) {
+			log.log(Level.WARNING, "Problem getting page of offline messages for user: " + to, e);
+		} catch (NotAuthorizedException ex) {
+			log.log(Level.WARNING, "Session not authorized yet!", ex);
+		} finally {
+			if (lock != null) {
+				lock.unlock();
+			}
+		}
+
+		return result;
+	}
+
+	@Override
+	public int deleteMessagesUpToId(XMPPResourceConnection session, long msgId) throws UserNotFoundException {
+		int affectedRows = 0;
+		BareJID to = null;
+
+		ReentrantReadWriteLock.WriteLock lock = null;
+		try {
+			to = session.getBareJID();
+			lock = getLock(to).writeLock();
+			lock.lock();
+
+			PreparedStatement delete_up_to_st = data_repo.getPreparedStatement(to, MSGS_DELETE_MESSAGES_UP_TO);
+
+			synchronized (delete_up_to_st) {
+				delete_up_to_st.setString(1, to.toString());
+				delete_up_to_st.setLong(2, msgId);
+				affectedRows = delete_up_to_st.executeUpdate();
+			}
+		} catch (SQLException e) {
+			log.log(Level.WARNING, "Problem removing offline messages for user: " + to, e);
+		} catch (NotAuthorizedException ex) {
+			log.log(Level.WARNING, "Session not authorized yet!", ex);
+		} finally {
+			if (lock != null) {
+				lock.unlock();
+			}
+		}
+
+		return affectedRows;
+	}
+
 	@Override
 	public boolean storeMessage(JID from, JID to, Date expired, Element msg, NonAuthUserRepository userRepo)
 			throws UserNotFoundException, TigaseDBException {
@@ -480,6 +557,33 @@ public class JDBCMsgRepository
 		return result;
 	}
 
+	protected Queue<Element> parseLoadedMessagesPage(OfflineMessagesProcessor proc, ResultSet rs, BareJID to)
+			throws SQLException {
+		Queue<Element> result = new LinkedList<Element>();
+		while (rs.next()) {
+			final String msg = rs.getString(1);
+			final long msgId = rs.getLong(2);
+
+			Element msgEl = null;
+			if (msg != null) {
+				DomBuilderHandler domHandler = new DomBuilderHandler();
+
+				parser.parse(domHandler, msg.toCharArray(), 0, msg.length());
+				msgEl = domHandler.getParsedElements().poll();
+			}
+			if (msgEl != null) {
+				proc.stamp(msgEl, String.valueOf(msgId));
+				result.add(msgEl);
+			} else {
+				log.log(Level.WARNING, "Skipping offline message {0} for user {1} which could not be parsed",
+						new Object[]{msgId, to});
+			}
+			// counted even if message was not parsed, so it does not stop loading of next pages
+			proc.rowLoaded(String.valueOf(msgId));
+		}
+		return result;
+	}
+
 	@Override
 	protected void deleteMessage(Long msg_id) {
 		try {
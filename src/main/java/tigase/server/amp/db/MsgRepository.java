@@ -241,6 +241,15 @@ public abstract class MsgRepository<T, S extends DataSource>
 	public interface OfflineMessagesProcessor {
 
 		public void stamp(Element msg, String msgID);
+
+		/**
+		 * Method called for every row loaded by {@link tigase.db.MsgRepositoryIfc#loadMessagesPageToJID}, including
+		 * rows which could not be parsed and are not returned, so loading of next page may start after them.
+		 *
+		 * @param msgID database id of the loaded row
+		 */
+		default void rowLoaded(String msgID) {
+		}
 	}
 
 	public static class MsgDBItem<T>
@@ -440,6 +449,20 @@ public abstract class MsgRepository<T, S extends DataSource>
 			return getRepository(session.getDomainAsJID().getDomain()).loadMessagesToJID(db_ids, session, delete, proc);
 		}
 
+		@Override
+		public Queue<Element> loadMessagesPageToJID(XMPPResourceConnection session, long afterId, int limit,
+													OfflineMessagesProcessor proc)
+				throws UserNotFoundException, TigaseDBException {
+			return getRepository(session.getDomainAsJID().getDomain()).loadMessagesPageToJID(session, afterId, limit,
+																							  proc);
+		}
+
+		@Override
+		public int deleteMessagesUpToId(XMPPResourceConnection session, long msgId)
+				throws UserNotFoundException, TigaseDBException {
+			return getRepository(session.getDomainAsJID().getDomain()).deleteMessagesUpToId(session, msgId);
+		}
+
 		@Override
 		public void setDataSource(DataSource dataSource) {
 
@@ -184,6 +184,18 @@ public class BoshIOService
 		return null;
 	}
 
+	@Override
+	protected boolean isBatchedWriteSupported() {
+		// data written to the socket needs to be wrapped with HTTP headers
+		return false;
+	}
+
+	@Override
+	protected boolean isByteParserSupported() {
+		// received data needs to be stripped of HTTP headers in checkData()
+		return false;
+	}
+
 	@Override
 	public void writeRawData(String data) throws IOException {
 		if ((data != null) && data.startsWith("<body")) {
@@ -17,23 +17,32 @@
  */
 package tigase.server.rtbl;
 
-import tigase.util.Algorithms;
+import tigase.util.cache.LRUConcurrentCache;
 import tigase.xmpp.jid.BareJID;
 
-import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Set;
+import java.util.*;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class RTBL {
 
+	static final int VERDICT_CACHE_SIZE = 10000;
+
 	private static final Logger logger = Logger.getLogger(RTBL.class.getCanonicalName());
+	// digests are reused by the thread checking JIDs, so hashing does not allocate
+	private static final ThreadLocal<Map<String, Hasher>> hashers = ThreadLocal.withInitial(HashMap::new);
+
 	private final RTBLRepository.Key key;
 	private final String hash;
+	private final int digestLength;
 
-	private final CopyOnWriteArraySet<String> blockedHashes;
+	private final BlockedHashes blockedHashes;
+	// replaced (not cleared) when list changes, so a verdict calculated for an old list is never cached in a new one
+	private volatile LRUConcurrentCache<BareJID, Boolean> verdicts = new LRUConcurrentCache<>(VERDICT_CACHE_SIZE);
 
 	public RTBL(RTBLRepository.Key key, String hash) {
 		this(key, hash, new CopyOnWriteArraySet<>());
@@ -42,7 +51,9 @@ public class RTBL {
 	public RTBL(RTBLRepository.Key key, String hash, Set<String> hashes) {
 		this.key = key;
 		this.hash = hash;
-		this.blockedHashes = new CopyOnWriteArraySet<>(hashes);
+		Hasher hasher = hasher(hash);
+		this.digestLength = hasher == null ? 0 : hasher.digestLength();
+		this.blockedHashes = new BlockedHashes(hashes);
 	}
 
 	public RTBL(BareJID jid, String node, String hash, Set<String> hashes) {
@@ -66,24 +77,21 @@ public class RTBL {
 	}
 
 	public boolean isBlocked(BareJID jid) {
-		try {
-			MessageDigest md = MessageDigest.getInstance(hash);
-			if (isBlocked(jid.getDomain(), md)) {
-				return true;
-			}
-			md.reset();
-			if (isBlocked(jid.toString(), md)) {
-				return true;
+		LRUConcurrentCache<BareJID, Boolean> verdicts = this.verdicts;
+		HashIndex index = blockedHashes.index;
+		if (index.isEmpty()) {
+			return false;
+		}
+		Boolean verdict = verdicts.get(jid);
+		if (verdict == null) {
+			Hasher hasher = hasher(hash);
+			if (hasher == null) {
+				return false;
 			}
-		} catch (NoSuchAlgorithmException e) {
-			logger.warning("No hashing mechanism " + hash + " required by RTBL (" + key + ")");
+			verdict = index.contains(hasher.digest(jid.getDomain())) || index.contains(hasher.digest(jid.toString()));
+			verdicts.put(jid, verdict);
 		}
-		return false;
-	}
-
-	private boolean isBlocked(String jid, MessageDigest md) {
-		String hash = Algorithms.bytesToHex(md.digest(jid.getBytes(StandardCharsets.UTF_8)));
-		return blockedHashes.contains(hash);
+		return verdict;
 	}
 
 	public Set<String> getBlocked() {
@@ -94,4 +102,273 @@ public class RTBL {
 	public String toString() {
 		return key.toString() + ", hash: " + hash + ", blocked: " + blockedHashes;
 	}
+
+	private Hasher hasher(String algorithm) {
+		Map<String, Hasher> threadHashers = hashers.get();
+		Hasher hasher = threadHashers.get(algorithm);
+		if (hasher == null) {
+			try {
+				hasher = new Hasher(MessageDigest.getInstance(algorithm));
+				threadHashers.put(algorithm, hasher);
+			} catch (NoSuchAlgorithmException e) {
+				logger.warning("No hashing mechanism " + algorithm + " required by RTBL (" + key + ")");
+			}
+		}
+		return hasher;
+	}
+
+	/**
+	 * Set of blocked hashes in hex form (as published in the blocklist) which keeps binary index of hashes used for
+	 * lookups. Any modification of the set rebuilds the index and invalidates cached verdicts.
+	 */
+	private class BlockedHashes
+			extends AbstractSet<String> {
+
+		private final CopyOnWriteArraySet<String> items;
+		private volatile HashIndex index;
+
+		private BlockedHashes(Set<String> hashes) {
+			this.items = new CopyOnWriteArraySet<>(hashes);
+			this.index = new HashIndex(items, digestLength);
+		}
+
+		@Override
+		public synchronized boolean add(String item) {
+			if (!items.add(item)) {
+				return false;
+			}
+			changed();
+			return true;
+		}
+
+		@Override
+		public synchronized void clear() {
+			if (!items.isEmpty()) {
+				items.clear();
+				changed();
+			}
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			return items.contains(o);
+		}
+
+		@Override
+		public Iterator<String> iterator() {
+			Iterator<String> it = items.iterator();
+			return new Iterator<String>() {
+
+				private String last;
+
+				@Override
+				public boolean hasNext() {
+					return it.hasNext();
+				}
+
+				@Override
+				public String next() {
+					last = it.next();
+					return last;
+				}
+
+				@Override
+				public void remove() {
+					if (last == null) {
+						throw new IllegalStateException();
+					}
+					BlockedHashes.this.remove(last);
+					last = null;
+				}
+			};
+		}
+
+		@Override
+		public synchronized boolean remove(Object o) {
+			if (!items.remove(o)) {
+				return false;
+			}
+			changed();
+			return true;
+		}
+
+		@Override
+		public int size() {
+			return items.size();
+		}
+
+		private void changed() {
+			index = new HashIndex(items, digestLength);
+			verdicts = new LRUConcurrentCache<>(VERDICT_CACHE_SIZE);
+		}
+	}
+
+	/**
+	 * Read-only open addressing set of binary hashes of the same length stored in a single array.
+	 */
+	static final class HashIndex {
+
+		private final int length;
+		private final int mask;
+		private final int size;
+		private final byte[] table;
+		private final boolean[] used;
+
+		private static int hashCode(byte[] digest) {
+			// digests are uniformly distributed, so first bytes are good enough as hash code
+			int h = 0;
+			for (int i = 0; i < Math.min(4, digest.length); i++) {
+				h = (h << 8) | (digest[i] & 0xff);
+			}
+			return h;
+		}
+
+		private static byte[] parseHex(String hex, int length) {
+			if (hex.length() != length * 2) {
+				return null;
+			}
+			byte[] result = new byte[length];
+			for (int i = 0; i < length; i++) {
+				int hi = Character.digit(hex.charAt(i * 2), 16);
+				int lo = Character.digit(hex.charAt(i * 2 + 1), 16);
+				if (hi < 0 || lo < 0) {
+					return null;
+				}
+				result[i] = (byte) ((hi << 4) | lo);
+			}
+			return result;
+		}
+
+		HashIndex(Collection<String> hexHashes, int length) {
+			List<byte[]> digests = new ArrayList<>(hexHashes.size());
+			if (length > 0) {
+				for (String hex : hexHashes) {
+					byte[] digest = parseHex(hex, length);
+					if (digest != null) {
+						digests.add(digest);
+					} else if (logger.isLoggable(Level.FINEST)) {
+						logger.log(Level.FINEST, "Ignoring invalid hash {0} in RTBL", hex);
+					}
+				}
+			}
+			int capacity = 4;
+			while (capacity < digests.size() * 2) {
+				capacity <<= 1;
+			}
+			this.length = length;
+			this.mask = capacity - 1;
+			this.table = new byte[digests.isEmpty() ? 0 : capacity * length];
+			this.used = new boolean[digests.isEmpty() ? 0 : capacity];
+			int count = 0;
+			for (byte[] digest : digests) {
+				int i = hashCode(digest) & mask;
+				while (used[i] && !matches(i, digest)) {
+					i = (i + 1) & mask;
+				}
+				if (!used[i]) {
+					used[i] = true;
+					System.arraycopy(digest, 0, table, i * length, length);
+					count++;
+				}
+			}
+			this.size = count;
+		}
+
+		boolean contains(byte[] digest) {
+			if (size == 0 || digest.length != length) {
+				return false;
+			}
+			for (int i = hashCode(digest) & mask; used[i]; i = (i + 1) & mask) {
+				if (matches(i, digest)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		boolean isEmpty() {
+			return size == 0;
+		}
+
+		int size() {
+			return size;
+		}
+
+		private boolean matches(int slot, byte[] digest) {
+			int offset = slot * length;
+			return Arrays.equals(table, offset, offset + length, digest, 0, length);
+		}
+	}
+
+	/**
+	 * Message digest with reusable input and output buffers, instances must not be shared between threads.
+	 */
+	private static final class Hasher {
+
+		private final MessageDigest md;
+		private final byte[] output;
+		private byte[] input = new byte[256];
+
+		private Hasher(MessageDigest md) {
+			this.md = md;
+			int length = md.getDigestLength();
+			this.output = length > 0 ? new byte[length] : null;
+		}
+
+		int digestLength() {
+			return output == null ? md.digest().length : output.length;
+		}
+
+		/**
+		 * Returns digest of UTF-8 representation of the string. Returned array is reused by subsequent calls.
+		 */
+		byte[] digest(String str) {
+			int len = encode(str);
+			md.reset();
+			md.update(input, 0, len);
+			if (output != null) {
+				try {
+					md.digest(output, 0, output.length);
+					return output;
+				} catch (DigestException ex) {
+					logger.log(Level.FINEST, "Could not calculate digest into reused buffer", ex);
+					md.reset();
+					md.update(input, 0, len);
+				}
+			}
+			return md.digest();
+		}
+
+		private int encode(String str) {
+			int len = 0;
+			int strLen = str.length();
+			for (int i = 0; i < strLen; i++) {
+				if (input.length - len < 4) {
+					input = Arrays.copyOf(input, input.length * 2);
+				}
+				char c = str.charAt(i);
+				if (c < 0x80) {
+					input[len++] = (byte) c;
+				} else if (c < 0x800) {
+					input[len++] = (byte) (0xc0 | (c >> 6));
+					input[len++] = (byte) (0x80 | (c & 0x3f));
+				} else if (Character.isHighSurrogate(c) && i + 1 < strLen &&
+						Character.isLowSurrogate(str.charAt(i + 1))) {
+					int cp = Character.toCodePoint(c, str.charAt(++i));
+					input[len++] = (byte) (0xf0 | (cp >> 18));
+					input[len++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+					input[len++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+					input[len++] = (byte) (0x80 | (cp & 0x3f));
+				} else if (Character.isSurrogate(c)) {
+					// unpaired surrogate is encoded as '?' in the same way as String.getBytes() does
+					input[len++] = (byte) '?';
+				} else {
+					input[len++] = (byte) (0xe0 | (c >> 12));
+					input[len++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+					input[len++] = (byte) (0x80 | (c & 0x3f));
+				}
+			}
+			return len;
+		}
+	}
 }
@@ -240,6 +240,18 @@ public class WebSocketXMPPIOService<RefObject>
 		return null;
 	}
 
+	@Override
+	protected boolean isBatchedWriteSupported() {
+		// each stanza needs to be sent in a separate WebSocket frame
+		return false;
+	}
+
+	@Override
+	protected boolean isByteParserSupported() {
+		// received data needs to be decoded from WebSocket frames in readData()
+		return false;
+	}
+
 	/**
 	 * Custom implementation of writeData function which encodes data in WebSocket protocol frames
 	 *
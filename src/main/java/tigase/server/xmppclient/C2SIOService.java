@@ -162,8 +162,13 @@ public class C2SIOService<RefObject>
 					break;
 			}
 		}
-		log.log(Level.FINER, "Tried Not found SSL/TLS handshake, bb: {0}, contents: {1} , cb: {2}",
-				new String[]{String.valueOf(buffer), Arrays.toString(buffer.array()), String.valueOf(cb.array())});
+		if (log.isLoggable(Level.FINER)) {
+			// buffer may be a direct buffer without a backing array
+			byte[] contents = new byte[buffer.limit()];
+			buffer.duplicate().position(0).get(contents);
+			log.log(Level.FINER, "Tried Not found SSL/TLS handshake, bb: {0}, contents: {1} , cb: {2}",
+					new String[]{String.valueOf(buffer), Arrays.toString(contents), String.valueOf(cb.array())});
+		}
 		return false;
 	}
 
@@ -187,6 +187,10 @@ public class ClientConnectionManager
 		// (String)serv.getSessionData().get(serv.HOSTNAME_KEY);
 		Packet p = null;
 
+		// Packets parsed from a single socket read are passed to the output
+		// queues at once
+		Queue<Packet> packets = new ArrayDeque<>();
+
 		while ((p = serv.getReceivedPackets().poll()) != null) {
 			if (log.isLoggable(Level.FINEST)) {
 				log.log(Level.FINEST, "Processing socket data: {0} from connection: {1}",
@@ -231,7 +235,7 @@ public class ClientConnectionManager
 
 			if (receiver != null) {
 				p.setPacketTo(serv.getDataReceiver());
-				addOutPacket(p);
+				packets.offer(p);
 			} else {
 
 				// Hm, receiver is not set yet..., ignoring
@@ -244,6 +248,11 @@ public class ClientConnectionManager
 
 			// TODO: Implement sending 'req' attributes by the server too
 		}    // end of while ()
+		if (packets.size() == 1) {
+			addOutPacket(packets.poll());
+		} else if (!packets.isEmpty()) {
+			addOutPackets(packets);
+		}
 
 		return null;
 	}
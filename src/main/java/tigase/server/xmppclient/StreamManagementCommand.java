@@ -32,7 +32,8 @@ public enum StreamManagementCommand {
 	ENABLE,
 	ENABLED,
 	MOVE_STREAM,
-	STREAM_MOVED;
+	STREAM_MOVED,
+	WAIT_FOR_ACK;
 
 	public static StreamManagementCommand fromPacket(Packet packet) {
 		return valueof(Command.getFieldValue(packet, "cmd"));
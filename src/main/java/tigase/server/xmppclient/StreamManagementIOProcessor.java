@@ -83,6 +83,7 @@ public class StreamManagementIOProcessor
 	private static final String RESUMPTION_TIMEOUT_PROP_KEY = "resumption-timeout";
 	private static final String RESUMPTION_TIMEOUT_START_KEY = "resumption-timeout-start";
 	private static final String STREAM_ID_KEY = XMLNS + "_stream_id";
+	private static final String WAIT_FOR_ACK_KEY = XMLNS + "_wait-for-ack";
 
 	private static final Element[] FEATURES = {new Element("sm", new String[]{"xmlns"}, new String[]{XMLNS})};
 
@@ -238,6 +239,7 @@ public class StreamManagementIOProcessor
 								new Object[]{service, packet, h, outQueue.waitingForAck()});
 					}
 					outQueue.ack(h);
+					checkWaitingForAck(service, outQueue);
 				} else {
 					if (log.isLoggable(Level.FINE)) {
 						log.log(Level.FINE, "outQueue already null while processing: {1} [{0}]",
@@ -475,11 +477,59 @@ public class StreamManagementIOProcessor
 				connectionManager.processOutPacket(response);
 			}
 			break;
+			case WAIT_FOR_ACK: {
+				if (service == null) {
+					try {
+						connectionManager.processOutPacket(
+								Authorization.ITEM_NOT_FOUND.getResponseMessage(pc, "Connection gone.", false));
+					} catch (PacketErrorTypeException e) {
+						// nothing to do..
+					}
+					return;
+				}
+				OutQueue outQueue = (OutQueue) service.getSessionData().get(OUT_COUNTER_KEY);
+				if (!isEnabled(service) || outQueue == null) {
+					// without stream management there is nothing to wait for
+					connectionManager.processOutPacket(pc.okResult((Element) null, 0));
+					return;
+				}
+				// response is sent when client confirms delivery of enough packets, so we need to ask for an ack
+				Packet previous = (Packet) service.getSessionData().put(WAIT_FOR_ACK_KEY, pc);
+				if (previous != null) {
+					connectionManager.processOutPacket(previous.okResult((Element) null, 0));
+				}
+				try {
+					outQueue.sendingRequest();
+					service.writeRawData("<" + REQ_NAME + " xmlns='" + XMLNS + "' />");
+				} catch (IOException ex) {
+					if (log.isLoggable(Level.FINE)) {
+						log.log(Level.FINE, service.toString() + ", exception during sending <r/> while waiting for ack",
+								ex);
+					}
+				}
+			}
+			break;
 			default:
 				break;
 		}
 	}
 
+	/**
+	 * Method responds to the pending {@link StreamManagementCommand#WAIT_FOR_ACK} command if number of packets waiting
+	 * for ack dropped to the value requested by the sender of the command.
+	 */
+	protected void checkWaitingForAck(XMPPIOService service, OutQueue outQueue) {
+		Packet pc = (Packet) service.getSessionData().get(WAIT_FOR_ACK_KEY);
+		if (pc == null) {
+			return;
+		}
+		String maxUnackedStr = Command.getFieldValue(pc, "max-unacked");
+		int maxUnacked = maxUnackedStr == null ? 0 : Integer.parseInt(maxUnackedStr);
+		if (outQueue.waitingForAck() <= maxUnacked && service.getSessionData().remove(WAIT_FOR_ACK_KEY, pc)) {
+			connectionManager.processOutPacket(pc.okResult((Element) null, 0));
+		}
+	}
+
 	@Override
 	public boolean serviceStopped(XMPPIOService service, boolean streamClosed) {
 		if (!isEnabled(service)) {
@@ -147,6 +147,16 @@ public class S2SConnectionManager
 		return super.addOutPacket(packet);
 	}
 
+	@Override
+	protected boolean addOutPackets(Queue<Packet> packets) {
+		for (Packet packet : packets) {
+			if (packet.getPacketFrom() == null) {
+				packet.setPacketFrom(getComponentId());
+			}
+		}
+		return super.addOutPackets(packets);
+	}
+
 	@Override
 	public void addTimerTask(tigase.util.common.TimerTask task, long delay, TimeUnit unit) {
 		super.addTimerTask(task, delay, unit);
@@ -0,0 +1,203 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.server.xmppsession;
+
+import tigase.server.Packet;
+import tigase.xmpp.*;
+
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Immutable dispatch table used by {@link SessionManager} to find processors which may handle a packet without
+ * calling {@link XMPPProcessorIfc#canHandle(Packet, XMPPResourceConnection)} on every registered processor.
+ * <br>
+ * Processors relying on the default {@link XMPPProcessor#canHandle(Packet, XMPPResourceConnection)} implementation
+ * are indexed by the name of the top level element of each of the supported element paths and by the supported
+ * stanza types. For each (element name, stanza type) pair an array of candidates is precomputed, so lookup of
+ * candidates for a packet requires a single hash lookup and does not allocate. Candidates are then checked against
+ * full element path and XMLNS of the packet. Processors which override <code>canHandle()</code> or which support any
+ * element are always checked using <code>canHandle()</code> method.
+ * <br>
+ * Instance of this class is not modified after creation. A new instance is built every time set of processors
+ * changes.
+ */
+public class ProcessorsDispatchIndex {
+
+	private static final Logger log = Logger.getLogger(ProcessorsDispatchIndex.class.getName());
+
+	private static final Entry[] EMPTY = new Entry[0];
+
+	private static final int NO_TYPE_IDX = StanzaType.values().length;
+
+	private final Map<String, Entry[][]> byElemName;
+	private final Entry[] generic;
+
+	public static ProcessorsDispatchIndex build(Collection<XMPPProcessorIfc> processors) {
+		List<Entry> generic = new ArrayList<>();
+		Map<String, List<IndexedEntry>> indexed = new HashMap<>();
+		for (XMPPProcessorIfc processor : processors) {
+			if (!isIndexable(processor)) {
+				generic.add(new Entry(processor));
+				continue;
+			}
+
+			String[][] paths = processor.supElementNamePaths();
+			String[] xmlnss = processor.supNamespaces();
+			Set<StanzaType> types = processor.supTypes();
+
+			// grouping paths by top level element name, as we need to call processor only once
+			Map<String, List<Integer>> pathsByName = new LinkedHashMap<>();
+			for (int i = 0; i < paths.length; i++) {
+				pathsByName.computeIfAbsent(paths[i][0], key -> new ArrayList<>()).add(i);
+			}
+			for (Map.Entry<String, List<Integer>> e : pathsByName.entrySet()) {
+				List<Integer> idxs = e.getValue();
+				String[][] entryPaths = new String[idxs.size()][];
+				String[] entryXmlnss = new String[idxs.size()];
+				for (int i = 0; i < idxs.size(); i++) {
+					entryPaths[i] = paths[idxs.get(i)];
+					entryXmlnss[i] = xmlnss[idxs.get(i)];
+				}
+				indexed.computeIfAbsent(e.getKey(), key -> new ArrayList<>())
+						.add(new IndexedEntry(processor, entryPaths, entryXmlnss, types));
+			}
+		}
+
+		Entry[] genericArr = generic.toArray(EMPTY);
+		Map<String, Entry[][]> byElemName = new HashMap<>();
+		for (Map.Entry<String, List<IndexedEntry>> e : indexed.entrySet()) {
+			Entry[][] byType = new Entry[NO_TYPE_IDX + 1][];
+			for (int idx = 0; idx <= NO_TYPE_IDX; idx++) {
+				StanzaType type = idx == NO_TYPE_IDX ? null : StanzaType.values()[idx];
+				List<Entry> candidates = new ArrayList<>(Arrays.asList(genericArr));
+				for (IndexedEntry entry : e.getValue()) {
+					if (entry.types == null || (type != null && entry.types.contains(type))) {
+						candidates.add(entry);
+					}
+				}
+				byType[idx] = candidates.toArray(EMPTY);
+			}
+			byElemName.put(e.getKey(), byType);
+		}
+
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Built dispatch index for {0} processors, indexed element names: {1}, generic: {2}",
+					new Object[]{processors.size(), byElemName.keySet(), generic});
+		}
+
+		return new ProcessorsDispatchIndex(byElemName, genericArr);
+	}
+
+	/**
+	 * Method checks if processor may be indexed. Only processors using default implementation of
+	 * <code>canHandle()</code> with a fixed list of element paths may be indexed.
+	 */
+	private static boolean isIndexable(XMPPProcessorIfc processor) {
+		try {
+			if (processor.getClass()
+					.getMethod("canHandle", Packet.class, XMPPResourceConnection.class)
+					.getDeclaringClass() != XMPPProcessor.class) {
+				return false;
+			}
+		} catch (NoSuchMethodException ex) {
+			return false;
+		}
+		String[][] paths = processor.supElementNamePaths();
+		String[] xmlnss = processor.supNamespaces();
+		if (paths == null || xmlnss == null || paths.length != xmlnss.length) {
+			return false;
+		}
+		for (String[] path : paths) {
+			if (path == null || path.length == 0 || path[0] == null || "*".equals(path[0])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private ProcessorsDispatchIndex(Map<String, Entry[][]> byElemName, Entry[] generic) {
+		this.byElemName = byElemName;
+		this.generic = generic;
+	}
+
+	/**
+	 * Method returns array of candidates which may be able to process packet. Returned array must not be modified.
+	 *
+	 * @param packet for which candidates should be returned
+	 *
+	 * @return array of candidates
+	 */
+	public Entry[] getCandidates(Packet packet) {
+		Entry[][] byType = byElemName.get(packet.getElemName());
+		if (byType == null) {
+			return generic;
+		}
+		StanzaType type = packet.getType();
+		return byType[type == null ? NO_TYPE_IDX : type.ordinal()];
+	}
+
+	public static class Entry {
+
+		protected final XMPPProcessorIfc processor;
+
+		private Entry(XMPPProcessorIfc processor) {
+			this.processor = processor;
+		}
+
+		public XMPPProcessorIfc getProcessor() {
+			return processor;
+		}
+
+		public Authorization canHandle(Packet packet, XMPPResourceConnection connection) {
+			return processor.canHandle(packet, connection);
+		}
+
+		@Override
+		public String toString() {
+			return processor.id();
+		}
+	}
+
+	private static class IndexedEntry
+			extends Entry {
+
+		private final String[][] paths;
+		private final Set<StanzaType> types;
+		private final String[] xmlnss;
+
+		private IndexedEntry(XMPPProcessorIfc processor, String[][] paths, String[] xmlnss, Set<StanzaType> types) {
+			super(processor);
+			this.paths = paths;
+			this.xmlnss = xmlnss;
+			this.types = types;
+		}
+
+		@Override
+		public Authorization canHandle(Packet packet, XMPPResourceConnection connection) {
+			// stanza type and top level element name are already matched by the index
+			for (int i = 0; i < paths.length; i++) {
+				if (packet.isXMLNSStaticStr(paths[i], xmlnss[i])) {
+					return Authorization.AUTHORIZED;
+				}
+			}
+			return null;
+		}
+	}
+}
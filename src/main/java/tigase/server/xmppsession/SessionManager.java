@@ -48,6 +48,7 @@ import tigase.kernel.core.Kernel;
 import tigase.server.*;
 import tigase.server.script.CommandIfc;
 import tigase.server.xmppclient.StreamManagementCommand;
+import tigase.stats.LatencyHistogram;
 import tigase.stats.MaxDailyCounterQueue;
 import tigase.stats.StatisticsList;
 import tigase.sys.OnlineJidsReporter;
@@ -164,7 +165,12 @@ public class SessionManager
 	private Map<String, Map<String, Object>> plugin_config = new ConcurrentHashMap<String, Map<String, Object>>(20);
 	@ConfigField(desc = "Factor for number of threads per plugin", alias = SessionManagerConfig.SM_THREADS_FACTOR_PROP_KEY)
 	private int pluginsThreadFactor = 1;
+	@ConfigField(desc = "Use precomputed index to select processors for packet")
+	private boolean processorsDispatchIndexEnabled = true;
+	private volatile ProcessorsDispatchIndex processorsDispatchIndex = ProcessorsDispatchIndex.build(
+			Collections.emptyList());
 	private Map<String, XMPPPostprocessorIfc> postProcessors = new ConcurrentHashMap<String, XMPPPostprocessorIfc>(10);
+	private final LatencyHistogram postprocessHistogram = new LatencyHistogram("Postprocessing", Level.FINE);
 	// private long[] defPrepTime = new long[maxIdx];
 	// private long[] prepTime = new long[maxIdx];
 	// private long[] defForwTime = new long[maxIdx];
@@ -172,6 +178,7 @@ public class SessionManager
 	// private long[] postTime = new long[maxIdx];
 	private Map<String, long[]> postTimes = new ConcurrentSkipListMap<String, long[]>();
 	private Map<String, XMPPPreprocessorIfc> preProcessors = new ConcurrentHashMap<String, XMPPPreprocessorIfc>(10);
+	private final LatencyHistogram preprocessHistogram = new LatencyHistogram("Preprocessing", Level.FINE);
 	private Map<String, XMPPProcessorIfc> processors = new ConcurrentHashMap<String, XMPPProcessorIfc>(32);
 	@Inject(nullAllowed = true)
 	private MessageRouter router;
@@ -193,6 +200,8 @@ public class SessionManager
 	private StaleConnectionCloser staleConnectionCloser = new StaleConnectionCloser();
 	private Map<String, XMPPStopListenerIfc> stopListeners = new ConcurrentHashMap<String, XMPPStopListenerIfc>(10);
 	private int tIdx = 0;
+	@ConfigField(desc = "Factor for number of queues per plugin processing packets using virtual threads")
+	private int virtualThreadsQueuesFactor = 16;
 	private long totalUserConnections = 0;
 	private long totalUserSessions = 0;
 	@Inject
@@ -215,6 +224,17 @@ public class SessionManager
 		return super.addOutPacket(packet);
 	}
 
+	@Override
+	protected boolean addOutPackets(Queue<Packet> packets) {
+		for (Packet packet : packets) {
+			if (packet.getPacketFrom() == null) {
+				packet.setPacketFrom(getComponentId());
+			}
+		}
+
+		return super.addOutPackets(packets);
+	}
+
 	public XMPPImplIfc addPlugin(XMPPImplIfc proc)
 			throws ClassNotFoundException, InstantiationException, IllegalAccessException, TigaseDBException {
 		String version;
@@ -225,6 +245,8 @@ public class SessionManager
 			int queueSize = maxQueueSize / threadsNo;
 
 			boolean requireNewPool = false;
+			boolean virtualThreads = false;
+			boolean workStealing = false;
 			if (proc instanceof XMPPProcessorConcurrencyAwareIfc) {
 				XMPPProcessorConcurrencyAwareIfc procca = (XMPPProcessorConcurrencyAwareIfc) proc;
 				if (threadsNo != procca.getThreadsNo()) {
@@ -241,9 +263,25 @@ public class SessionManager
 				} else {
 					queueSize = maxQueueSize / threadsNo;
 				}
+				if (procca.isVirtualThreads()) {
+					virtualThreads = true;
+					requireNewPool = true;
+				}
+				if (procca.isWorkStealing()) {
+					workStealing = true;
+					requireNewPool = true;
+				}
 			}
 
 			threadsNo = threadsNo * pluginsThreadFactor;
+			if (virtualThreads) {
+				// virtual threads are cheap, so we can use more queues to process packets of
+				// more users in parallel while some of them are waiting for I/O
+				threadsNo = threadsNo * virtualThreadsQueuesFactor;
+				queueSize = Math.max(queueSize / virtualThreadsQueuesFactor, 10);
+				log.log(Level.CONFIG, "Using virtual threads for plugin: {0}, queues: {1}",
+						new Object[]{proc.id(), threadsNo});
+			}
 
 			// If there is not default processors thread pool or the processor does
 			// have thread pool specific settings create a separate thread pool
@@ -257,14 +295,18 @@ public class SessionManager
 					ProcessingThreads<ProcessorWorkerThread> pt = new ProcessingThreads<ProcessorWorkerThread>(worker,
 																											   threadsNo,
 																											   queueSize,
-																											   proc.id());
+																											   proc.id(),
+																											   virtualThreads,
+																											   workStealing);
 
 					workerThreads.put(proc.id(), pt);
 					log.log(Level.CONFIG, "Created thread pool: {0}, queue per thread: {1} for plugin id: {2}",
 							new Object[]{threadsNo, queueSize, proc.id()});
 				}
 			}
+			ProcessorIds.register(proc.id());
 			processors.put(proc.id(), (XMPPProcessorIfc) proc);
+			processorsDispatchIndex = ProcessorsDispatchIndex.build(processors.values());
 			log.log(Level.CONFIG, "Added processor: {0} for plugin id: {1}",
 					new Object[]{proc.getClass().getSimpleName(), proc.id()});
 			loaded = true;
@@ -553,6 +595,7 @@ public class SessionManager
 
 		if (pt != null) {
 			p = processors.remove(plug_id);
+			processorsDispatchIndex = ProcessorsDispatchIndex.build(processors.values());
 			pt.shutdown();
 			if (p != null) {
 				allPlugins.remove(p);
@@ -753,6 +796,7 @@ public class SessionManager
 									 ", Runs: " + proc.getTotalRuns() + ", Lost: " + proc.getDroppedPackets(),
 							 Level.INFO);
 				}
+				proc.getStatistics(getName(), list);
 			}
 			list.add(getName(), "Total queues wait", totalQueuesWait, Level.INFO);
 			list.add(getName(), "Total queues overflow", totalQueuesOverflow, Level.INFO);
@@ -768,6 +812,8 @@ public class SessionManager
 						 "Average " + tmEntry.getKey() + " on last " + entry.getValue().length + " runs [ms]",
 						 calcAverage(entry.getValue()), Level.FINE);
 			}
+			preprocessHistogram.getStatistics(getName(), list);
+			postprocessHistogram.getStatistics(getName(), list);
 		}
 		list.add(getName(), "Maximum user sessions today", maxUserSessionsDaily, Level.INFO);
 		list.add(getName(), "Maximum user sessions yesterday", maxUserSessionsYesterday, Level.INFO);
@@ -833,10 +879,16 @@ public class SessionManager
 		}
 	}
 
+	/**
+	 * Sets default processors threads pool. Value <code>default</code> means that each plugin uses its own thread
+	 * pool, value <code>custom:N</code> creates a shared pool with <code>N</code> threads and value
+	 * <code>virtual:N</code> creates a shared pool with <code>N</code> queues processed by virtual threads.
+	 */
 	public void setSmThreadsPool(String val) {
 		this.smThreadsPool = val;
 		if (!SM_THREADS_POOL_PROP_VAL.equals(val)) {
 			String[] threads_pool_params = val.split(":");
+			boolean virtualThreads = SM_THREADS_POOL_VIRTUAL_PROP_VAL.equals(threads_pool_params[0]);
 			int size = 100;
 			if (threads_pool_params.length > 1) {
 				try {
@@ -851,10 +903,12 @@ public class SessionManager
 			try {
 				ProcessorWorkerThread worker = new ProcessorWorkerThread();
 				ProcessingThreads<ProcessorWorkerThread> pt = new ProcessingThreads<>(worker, size, maxQueueSize,
-																					  defPluginsThreadsPool);
+																					  defPluginsThreadsPool,
+																					  virtualThreads);
 				workerThreads.put(defPluginsThreadsPool, pt);
 				if (isInitializationComplete()) {
-					log.log(Level.CONFIG, "Created a default thread pool: {0}", size);
+					log.log(Level.CONFIG, "Created a default thread pool: {0}, virtual threads: {1}",
+							new Object[]{size, virtualThreads});
 				}
 			} catch (Exception e) {
 				log.log(Level.SEVERE, "");
@@ -930,6 +984,11 @@ public class SessionManager
 	public synchronized void everyMinute() {
 		super.everyMinute();
 		calculateActiveUsers();
+		preprocessHistogram.everyMinute();
+		postprocessHistogram.everyMinute();
+		for (ProcessingThreads<ProcessorWorkerThread> proc : workerThreads.values()) {
+			proc.everyMinute();
+		}
 
 		final Calendar now = Calendar.getInstance();
 		if (now.get(Calendar.YEAR) != lastDailyStatsReset.get(Calendar.YEAR) ||
@@ -1973,6 +2032,8 @@ public class SessionManager
 		// That is needed for preprocessors like privacy lists which should
 		// block certain packets.
 		if (!stop) {
+			long preprocessStart = System.nanoTime();
+
 			for (XMPPPreprocessorIfc preproc : preProcessors.values()) {
 				stop |= preproc.preProcess(packet, conn, naUserRepository, results, plugin_config.get(preproc.id()));
 				if (stop && log.isLoggable(Level.FINEST)) {
@@ -1981,6 +2042,7 @@ public class SessionManager
 					break;
 				}
 			}    // end of for (XMPPPreprocessorIfc preproc: preProcessors)
+			preprocessHistogram.record(System.nanoTime() - preprocessStart);
 		}
 
 		setPermissions(conn, packet);
@@ -2015,6 +2077,8 @@ public class SessionManager
 
 		// walkTm = System.currentTimeMillis() - startTime;
 		if (!stop) {
+			long postprocessStart = System.nanoTime();
+
 			for (XMPPPostprocessorIfc postproc : postProcessors.values()) {
 				String plug_id = postproc.id();
 				long[] postProcTime = null;
@@ -2032,6 +2096,7 @@ public class SessionManager
 				postproc.postProcess(packet, conn, naUserRepository, results, plugin_config.get(postproc.id()));
 				postProcTime[idx] = System.currentTimeMillis() - stTime;
 			}    // end of for (XMPPPostprocessorIfc postproc: postProcessors)
+			postprocessHistogram.record(System.nanoTime() - postprocessStart);
 		}      // end of if (!stop)
 
 		// postTm = System.currentTimeMillis() - startTime;
@@ -2426,6 +2491,14 @@ public class SessionManager
 	}
 
 	private void walk(final Packet packet, final XMPPResourceConnection connection) {
+		if (processorsDispatchIndexEnabled) {
+			for (ProcessorsDispatchIndex.Entry entry : processorsDispatchIndex.getCandidates(packet)) {
+				if (entry.canHandle(packet, connection) == Authorization.AUTHORIZED) {
+					addPacketToProcessor(entry.getProcessor(), packet, connection);
+				}
+			}
+			return;
+		}
 
 		// final Element elem, final Queue<Packet> results) {
 		for (XMPPProcessorIfc proc_t : processors.values()) {
@@ -2433,26 +2506,7 @@ public class SessionManager
 			Authorization result = processor.canHandle(packet, connection);
 
 			if (result == Authorization.AUTHORIZED) {
-				if (log.isLoggable(Level.FINEST)) {
-					log.log(Level.FINEST, "XMPPProcessorIfc: {0} ({1}" + ")" + "Request: " + "{2}, conn: {3}",
-							new Object[]{processor.getClass().getSimpleName(), processor.id(), packet, connection});
-				}
-
-				ProcessingThreads<ProcessorWorkerThread> pt = workerThreads.get(processor.id());
-
-				if (pt == null) {
-					pt = workerThreads.get(defPluginsThreadsPool);
-				}
-				if (pt.addItem(processor, packet, connection)) {
-					packet.processedBy(processor.id());
-				} else {
-					packet.notProcessedBy(processor.id());
-					// proc_t.debugQueue();
-					if (log.isLoggable(Level.FINE)) {
-						log.log(Level.FINE, "Can not add packet: {0} to processor: {1} internal queue full.",
-								new Object[]{packet.toStringSecure(), pt.getName()});
-					}
-				}
+				addPacketToProcessor(processor, packet, connection);
 			} else {
 				if (result != null) {
 
@@ -2463,6 +2517,30 @@ public class SessionManager
 		}    // end of for ()
 	}
 
+	private void addPacketToProcessor(final XMPPProcessorIfc processor, final Packet packet,
+									  final XMPPResourceConnection connection) {
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "XMPPProcessorIfc: {0} ({1}" + ")" + "Request: " + "{2}, conn: {3}",
+					new Object[]{processor.getClass().getSimpleName(), processor.id(), packet, connection});
+		}
+
+		ProcessingThreads<ProcessorWorkerThread> pt = workerThreads.get(processor.id());
+
+		if (pt == null) {
+			pt = workerThreads.get(defPluginsThreadsPool);
+		}
+		if (pt.addItem(processor, packet, connection)) {
+			packet.processedBy(processor.id());
+		} else {
+			packet.notProcessedBy(processor.id());
+			// proc_t.debugQueue();
+			if (log.isLoggable(Level.FINE)) {
+				log.log(Level.FINE, "Can not add packet: {0} to processor: {1} internal queue full.",
+						new Object[]{packet.toStringSecure(), pt.getName()});
+			}
+		}
+	}
+
 	private List<Element> getFeatures(XMPPResourceConnection session) {
 		List<Element> results = new LinkedList<Element>();
 
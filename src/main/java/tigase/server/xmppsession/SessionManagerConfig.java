@@ -46,6 +46,7 @@ public abstract class SessionManagerConfig {
 	protected static final String SKIP_PRIVACY_PROP_KEY = "skip-privacy";
 	protected static final String SM_THREADS_POOL_CUSTOM_PROP_VAL = "custom";
 	protected static final String SM_THREADS_POOL_PROP_VAL = "default";
+	protected static final String SM_THREADS_POOL_VIRTUAL_PROP_VAL = "virtual";
 
 	protected static final String SM_THREADS_FACTOR_PROP_KEY = "sm-threads-factor";
 	protected static final int SM_THREADS_FACTOR_PROP_VAL = 1;
@@ -0,0 +1,132 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.stats;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+
+/**
+ * Histogram of latencies recorded with microsecond resolution, used to report percentiles of a processing stage
+ * instead of its average which hides occasional stalls.
+ * <br>
+ * Values are counted in buckets of logarithmic size (similar to HdrHistogram): values below 64µs have exact buckets and
+ * each following power of 2 is split into 32 buckets, so the reported value is never more than about 3% above the
+ * recorded one. Recording is a single atomic increment, so it may be called concurrently from many threads.
+ * <br>
+ * Values are collected for a minute, then {@link #everyMinute()} makes them available for statistics and starts
+ * collecting new ones, so reported percentiles always describe the last full minute.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 6;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT >> 1;
+	// values up to 2^40µs (about 12 days) are recorded exactly, bigger ones are counted in the last bucket
+	private static final int MAX_VALUE_BITS = 40;
+	private static final int BUCKETS = SUB_BUCKET_COUNT + (MAX_VALUE_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKET_HALF;
+
+	private final AtomicLongArray current = new AtomicLongArray(BUCKETS);
+	private final Level level;
+	private final long[] lastMinute = new long[BUCKETS];
+	private final String name;
+	private long lastMinuteCount = 0;
+
+	static int bucketIndex(long value) {
+		if (value < SUB_BUCKET_COUNT) {
+			return (int) Math.max(0, value);
+		}
+		int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		int idx = SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF + (int) ((value >>> shift) - SUB_BUCKET_HALF);
+		return Math.min(idx, BUCKETS - 1);
+	}
+
+	/**
+	 * Returns the highest value which is counted in the bucket.
+	 */
+	static long bucketValue(int idx) {
+		if (idx < SUB_BUCKET_COUNT) {
+			return idx;
+		}
+		int shift = (idx - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF + 1;
+		long sub = (idx - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+		return ((sub + 1) << shift) - 1;
+	}
+
+	public LatencyHistogram(String name, Level level) {
+		this.name = name;
+		this.level = level;
+	}
+
+	/**
+	 * Records time of a single execution of a measured stage.
+	 *
+	 * @param nanos time in nanoseconds, usually a difference of two {@link System#nanoTime()} calls
+	 */
+	public void record(long nanos) {
+		current.incrementAndGet(bucketIndex(nanos / 1000));
+	}
+
+	public synchronized void everyMinute() {
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			lastMinute[i] = current.getAndSet(i, 0);
+			count += lastMinute[i];
+		}
+		lastMinuteCount = count;
+	}
+
+	public synchronized long getCount() {
+		return lastMinuteCount;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns value in microseconds below which is the given percentage of values recorded during the last minute.
+	 *
+	 * @param percentile percentage of values, ie. <code>99.9</code>
+	 *
+	 * @return value in microseconds or <code>0</code> if nothing was recorded
+	 */
+	public synchronized long getValueAtPercentile(double percentile) {
+		if (lastMinuteCount == 0) {
+			return 0;
+		}
+		long threshold = Math.max(1, (long) Math.ceil(lastMinuteCount * percentile / 100 - 1e-6));
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			count += lastMinute[i];
+			if (count >= threshold) {
+				return bucketValue(i);
+			}
+		}
+		return bucketValue(BUCKETS - 1);
+	}
+
+	public synchronized void getStatistics(String compName, StatisticsList list) {
+		if (list.checkLevel(level)) {
+			list.add(compName, name + " last minute", lastMinuteCount, level);
+			list.add(compName, name + " p50 [us]", getValueAtPercentile(50), level);
+			list.add(compName, name + " p99 [us]", getValueAtPercentile(99), level);
+			list.add(compName, name + " p999 [us]", getValueAtPercentile(99.9), level);
+			list.add(compName, name + " max [us]", getValueAtPercentile(100), level);
+		}
+	}
+}
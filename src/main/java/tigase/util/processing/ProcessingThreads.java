@@ -18,10 +18,14 @@
 package tigase.util.processing;
 
 import tigase.server.Packet;
+import tigase.stats.LatencyHistogram;
+import tigase.stats.StatisticsList;
 import tigase.xmpp.XMPPProcessorIfc;
 import tigase.xmpp.XMPPResourceConnection;
 
 import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -48,16 +52,51 @@ public class ProcessingThreads<E extends WorkerThread> {
 	// private int numQueues = 2;
 	private int numWorkerThreads = 1;
 	private ArrayList<E> workerThreads = null;
+	private long[] lastRuns = null;
+	/** Runs skew calculated for the last minute in {@link #everyMinute()} */
+	private volatile float runsSkew = 1f;
+	private final ConcurrentHashMap<String, LatencyHistogram> processingHistograms = new ConcurrentHashMap<>();
+	private LatencyHistogram queueWaitHistogram = null;
+	private WorkStealingScheduler scheduler = null;
 
-	@SuppressWarnings({"unchecked"})
 	public ProcessingThreads(E worker, int numWorkerThreads, int maxQueueSize, String name)
 			throws ClassNotFoundException, InstantiationException, IllegalAccessException {
+		this(worker, numWorkerThreads, maxQueueSize, name, false);
+	}
 
+	/**
+	 * Creates processing threads. If <code>virtualThreads</code> is set, each queue is processed by a virtual thread
+	 * instead of a platform thread, so it is possible to use a lot more queues for processors which block on I/O.
+	 * Packets of a single user are still processed by a single thread in the order of arrival.
+	 */
+	public ProcessingThreads(E worker, int numWorkerThreads, int maxQueueSize, String name, boolean virtualThreads)
+			throws ClassNotFoundException, InstantiationException, IllegalAccessException {
+		this(worker, numWorkerThreads, maxQueueSize, name, virtualThreads, false);
+	}
+
+	/**
+	 * Creates processing threads. If <code>workStealing</code> is set, packets of each user are kept in a separate
+	 * queue and queues waiting for a busy worker are taken over by idle workers, so a single very active user does not
+	 * delay processing of packets of other users assigned to the same worker. In this mode
+	 * <code>maxQueueSize</code> limits number of packets waiting for a single user.
+	 */
+	@SuppressWarnings({"unchecked"})
+	public ProcessingThreads(E worker, int numWorkerThreads, int maxQueueSize, String name, boolean virtualThreads,
+							 boolean workStealing)
+			throws ClassNotFoundException, InstantiationException, IllegalAccessException {
 		// this.numQueues = numQueues;
 		// this.maxQueueSize = maxQueueSize;
 		this.numWorkerThreads = numWorkerThreads;
 		workerThreads = new ArrayList<E>(numWorkerThreads);
 		this.name = name;
+		lastRuns = new long[numWorkerThreads];
+		queueWaitHistogram = new LatencyHistogram("Processor: " + name + " queue wait", Level.FINE);
+		if (workStealing) {
+			scheduler = new WorkStealingScheduler(numWorkerThreads, maxQueueSize);
+		}
+		// virtual threads are named in the same way as worker threads
+		final ThreadFactory virtualThreadFactory =
+				virtualThreads ? Thread.ofVirtual().name(name + "-proc-", 0).factory() : null;
 
 //  for (int i = 0; i < numQueues; i++) {
 		// LinkedBlockingQueue<QueueItem> queue = new LinkedBlockingQueue<QueueItem>(maxQueueSize);
@@ -68,7 +107,15 @@ public class ProcessingThreads<E extends WorkerThread> {
 			t.setQueueMaxSize(maxQueueSize);
 			t.setDaemon(true);
 			t.setName(name + "-proc-" + j);
-			t.start();
+			t.setProcessingThreads(this);
+			if (scheduler != null) {
+				t.setScheduler(scheduler, j);
+			}
+			if (virtualThreadFactory != null) {
+				t.start(virtualThreadFactory.newThread(t));
+			} else {
+				t.start();
+			}
 			workerThreads.add((E) t);
 			log.log(Level.FINEST, "Created worker thread: {0}, queueSize: {1}",
 					new Object[]{t.getName(), maxQueueSize});
@@ -81,6 +128,26 @@ public class ProcessingThreads<E extends WorkerThread> {
 		boolean ret = false;
 		QueueItem item = new QueueItem(processor, packet, conn);
 
+		if (scheduler != null) {
+			ret = scheduler.offer(getQueueKey(packet, conn), item);
+		} else {
+			ret = addItemToWorker(item, packet, conn);
+		}
+
+		if (!ret) {
+			++droppedPackets;
+
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Packet dropped due to queue overflow: {0}", packet);
+			}
+		}
+
+		return ret;
+	}
+
+	private boolean addItemToWorker(QueueItem item, Packet packet, XMPPResourceConnection conn) {
+		boolean ret = false;
+
 		try {
 			if ((item.getConn() != null) && item.getConn().isAuthorized()) {
 
@@ -128,15 +195,28 @@ public class ProcessingThreads<E extends WorkerThread> {
 			// ret = nullQueue.offer(item, packet.getPriority().ordinal());
 		}
 
-		if (!ret) {
-			++droppedPackets;
+		return ret;
+	}
 
-			if (log.isLoggable(Level.FINEST)) {
-				log.log(Level.FINEST, "Packet dropped due to queue overflow: {0}", packet);
+	/**
+	 * Returns key of a queue for the packet, selected in the same way as a queue in {@link #addItemToWorker}.
+	 */
+	private Object getQueueKey(Packet packet, XMPPResourceConnection conn) {
+		try {
+			if ((conn != null) && conn.isAuthorized()) {
+				return conn.getJID().getBareJID();
+			}
+			if (packet.getPacketFrom() != null) {
+				return packet.getPacketFrom();
 			}
+		} catch (Exception e) {
+			// This should not happen, but just in case use destination address
+		}
+		if (packet.getStanzaTo() != null) {
+			return packet.getStanzaTo().getBareJID();
+		} else {
+			return packet.getTo();
 		}
-
-		return ret;
 	}
 
 	public long getAverageProcessingTime() {
@@ -157,6 +237,82 @@ public class ProcessingThreads<E extends WorkerThread> {
 		}
 	}
 
+	/**
+	 * Adds statistics of single workers and of distribution of load between workers. Skew is a ratio of the highest
+	 * value for a single worker to the average value for all workers, so <code>1.0</code> means that load is evenly
+	 * distributed. Runs skew is calculated for packets processed during the last minute.
+	 */
+	public void getStatistics(String compName, StatisticsList list) {
+		if (!list.checkLevel(Level.FINE) || workerThreads.isEmpty()) {
+			return;
+		}
+		int maxQueue = 0;
+		long totalQueue = 0;
+		long totalStolen = 0;
+		for (int i = 0; i < workerThreads.size(); i++) {
+			WorkerThread workerThread = workerThreads.get(i);
+			int queue = workerThread.size();
+			long runs = workerThread.getRunsCounter();
+			long stolen = workerThread.getStolenCounter();
+			maxQueue = Math.max(maxQueue, queue);
+			totalQueue += queue;
+			totalStolen += stolen;
+			if (list.checkLevel(Level.FINEST)) {
+				list.add(compName, "Processor: " + name + " worker " + i,
+						 ", Queue: " + queue + ", Runs: " + runs + ", Stolen: " + stolen, Level.FINEST);
+			}
+		}
+		int workers = workerThreads.size();
+		list.add(compName, "Processor: " + name + " queue skew",
+				 totalQueue == 0 ? 1f : ((float) maxQueue * workers) / totalQueue, Level.FINE);
+		list.add(compName, "Processor: " + name + " runs skew", runsSkew, Level.FINE);
+		if (scheduler != null) {
+			list.add(compName, "Processor: " + name + " stolen queues", totalStolen, Level.FINE);
+			list.add(compName, "Processor: " + name + " user queues", scheduler.getKeyQueuesCount(), Level.FINER);
+		}
+		queueWaitHistogram.getStatistics(compName, list);
+		for (LatencyHistogram histogram : processingHistograms.values()) {
+			histogram.getStatistics(compName, list);
+		}
+	}
+
+	/**
+	 * Makes latencies recorded and runs skew of packets processed during the last minute available for statistics.
+	 */
+	public void everyMinute() {
+		long maxRuns = 0;
+		long totalRuns = 0;
+		for (int i = 0; i < workerThreads.size(); i++) {
+			long runs = workerThreads.get(i).getRunsCounter();
+			long periodRuns = runs - lastRuns[i];
+			lastRuns[i] = runs;
+			maxRuns = Math.max(maxRuns, periodRuns);
+			totalRuns += periodRuns;
+		}
+		runsSkew = totalRuns == 0 ? 1f : ((float) maxRuns * workerThreads.size()) / totalRuns;
+		queueWaitHistogram.everyMinute();
+		for (LatencyHistogram histogram : processingHistograms.values()) {
+			histogram.everyMinute();
+		}
+	}
+
+	public LatencyHistogram getQueueWaitHistogram() {
+		return queueWaitHistogram;
+	}
+
+	/**
+	 * Returns histogram of processing times of the processor. There is a separate histogram for each processor as
+	 * processing threads may be shared by many processors.
+	 */
+	public LatencyHistogram getProcessingHistogram(String processorId) {
+		LatencyHistogram histogram = processingHistograms.get(processorId);
+		if (histogram == null) {
+			histogram = processingHistograms.computeIfAbsent(processorId, id -> new LatencyHistogram(
+					"Processor: " + id + " processing", Level.FINE));
+		}
+		return histogram;
+	}
+
 	public long getDroppedPackets() {
 		return droppedPackets;
 	}
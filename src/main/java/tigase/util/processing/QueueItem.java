@@ -28,6 +28,7 @@ import tigase.xmpp.XMPPResourceConnection;
 */
 public class QueueItem {
 
+	private final long enqueueTime = System.nanoTime();
 	private XMPPResourceConnection conn;
 	private Packet packet;
 	private XMPPProcessorIfc processor;
@@ -46,6 +47,13 @@ public class QueueItem {
 		this.conn = conn;
 	}
 
+	/**
+	 * Returns value of {@link System#nanoTime()} at the moment when the item was created for adding to a queue.
+	 */
+	public long getEnqueueTime() {
+		return enqueueTime;
+	}
+
 	public XMPPResourceConnection getConn() {
 		return conn;
 	}
@@ -0,0 +1,229 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util.processing;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Scheduler distributing items between workers using separate queue for each key (usually user's bare JID).
+ * <br>
+ * Items with the same key are always processed one by one in the order of arrival, but a queue of a key is not bound
+ * to a single worker. Each queue is scheduled on a home worker selected by hash of the key, and a worker which has
+ * nothing to process takes over whole queues waiting in the backlog of the most loaded worker. This way a single
+ * very active user keeps only one worker busy and packets of other users assigned to the same worker are processed
+ * by idle workers instead of waiting or being dropped.
+ * <br>
+ * Limit of a queue size is applied to a queue of a single key, so only packets of the overactive user are dropped.
+ */
+class WorkStealingScheduler {
+
+	/**
+	 * Number of items of a single key processed before the worker looks at queues of other keys.
+	 */
+	private static final int BATCH_SIZE = 16;
+	/**
+	 * Time after which an idle worker checks if there is anything to steal from other workers.
+	 */
+	private static final long STEAL_INTERVAL = 20;
+
+	private final int maxKeyQueueSize;
+	private final int maxTotalSize;
+	private final ConcurrentHashMap<Object, KeyQueue> queues = new ConcurrentHashMap<>();
+	private final AtomicInteger totalSize = new AtomicInteger();
+	private final WorkerState[] workers;
+
+	WorkStealingScheduler(int numWorkers, int maxQueueSize) {
+		this.maxKeyQueueSize = maxQueueSize;
+		this.maxTotalSize = maxQueueSize * numWorkers;
+		this.workers = new WorkerState[numWorkers];
+		for (int i = 0; i < numWorkers; i++) {
+			workers[i] = new WorkerState();
+		}
+	}
+
+	/**
+	 * Adds item to the queue of the key.
+	 *
+	 * @return <code>false</code> if item was dropped as queue was full
+	 */
+	boolean offer(Object key, QueueItem item) {
+		if (totalSize.get() >= maxTotalSize) {
+			return false;
+		}
+		while (true) {
+			KeyQueue queue = queues.computeIfAbsent(key, KeyQueue::new);
+			WorkerState schedule = null;
+			synchronized (queue) {
+				if (queue.removed) {
+					// queue was emptied and removed in the meantime
+					continue;
+				}
+				if (queue.items.size() >= maxKeyQueueSize) {
+					return false;
+				}
+				queue.items.offer(item);
+				totalSize.incrementAndGet();
+				if (queue.scheduled) {
+					workers[queue.owner].size.incrementAndGet();
+				} else {
+					queue.scheduled = true;
+					queue.owner = selectWorker(key);
+					schedule = workers[queue.owner];
+					schedule.size.incrementAndGet();
+				}
+			}
+			if (schedule != null) {
+				schedule.ready.offerLast(queue);
+			}
+			return true;
+		}
+	}
+
+	void run(WorkerThread worker, int idx) {
+		WorkerState state = workers[idx];
+		while (!worker.isStopped()) {
+			KeyQueue queue;
+			try {
+				queue = state.ready.pollFirst(STEAL_INTERVAL, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException ex) {
+				continue;
+			}
+			if (queue == null) {
+				queue = steal(idx);
+				if (queue == null) {
+					continue;
+				}
+			}
+			state.busy = true;
+			try {
+				processBatch(worker, queue, idx);
+			} finally {
+				state.busy = false;
+			}
+		}
+	}
+
+	int size(int idx) {
+		return workers[idx].size.get();
+	}
+
+	long getStolen(int idx) {
+		return workers[idx].stolen.get();
+	}
+
+	int getKeyQueuesCount() {
+		return queues.size();
+	}
+
+	private void processBatch(WorkerThread worker, KeyQueue queue, int idx) {
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			QueueItem item;
+			synchronized (queue) {
+				item = queue.items.poll();
+				if (item == null) {
+					break;
+				}
+				totalSize.decrementAndGet();
+				workers[queue.owner].size.decrementAndGet();
+			}
+			worker.processItem(item);
+		}
+		synchronized (queue) {
+			if (queue.items.isEmpty()) {
+				queue.scheduled = false;
+				queue.removed = true;
+				queues.remove(queue.key, queue);
+				return;
+			}
+		}
+		// there is more to do for this key, let other keys in the backlog be processed first
+		workers[idx].ready.offerLast(queue);
+	}
+
+	/**
+	 * Home worker of the key or an idle worker if the home worker is already busy.
+	 */
+	private int selectWorker(Object key) {
+		int home = Math.abs(key.hashCode() % workers.length);
+		WorkerState state = workers[home];
+		if (!state.busy && state.ready.isEmpty()) {
+			return home;
+		}
+		for (int i = 1; i < workers.length; i++) {
+			int idx = (home + i) % workers.length;
+			if (!workers[idx].busy && workers[idx].ready.isEmpty()) {
+				return idx;
+			}
+		}
+		return home;
+	}
+
+	private KeyQueue steal(int thief) {
+		int victim = -1;
+		int victimSize = 0;
+		for (int i = 0; i < workers.length; i++) {
+			// there is no point in stealing from a worker which would process queue without waiting
+			if (i != thief && workers[i].busy && !workers[i].ready.isEmpty() && workers[i].size.get() > victimSize) {
+				victim = i;
+				victimSize = workers[i].size.get();
+			}
+		}
+		if (victim < 0) {
+			return null;
+		}
+		// taking from the tail as queue at the head will be processed by its current worker soon
+		KeyQueue queue = workers[victim].ready.pollLast();
+		if (queue == null) {
+			return null;
+		}
+		synchronized (queue) {
+			int size = queue.items.size();
+			workers[queue.owner].size.addAndGet(-size);
+			queue.owner = thief;
+			workers[thief].size.addAndGet(size);
+		}
+		workers[thief].stolen.incrementAndGet();
+		return queue;
+	}
+
+	private static class KeyQueue {
+
+		private final ArrayDeque<QueueItem> items = new ArrayDeque<>();
+		private final Object key;
+		private int owner;
+		private boolean removed = false;
+		private boolean scheduled = false;
+
+		private KeyQueue(Object key) {
+			this.key = key;
+		}
+	}
+
+	private static class WorkerState {
+
+		private final LinkedBlockingDeque<KeyQueue> ready = new LinkedBlockingDeque<>();
+		private final AtomicInteger size = new AtomicInteger();
+		private final AtomicLong stolen = new AtomicLong();
+		private volatile boolean busy = false;
+	}
+}
@@ -32,11 +32,19 @@ public abstract class WorkerThread
 	protected static final Logger log = Logger.getLogger(WorkerThread.class.getName());
 
 	private long averageProcessingTime = 0;
+	private ProcessingThreads<?> processingThreads = null;
 
 	//private PriorityQueueAbstract<QueueItem> queue = null;
 	private LinkedBlockingQueue<QueueItem> queue = null;
+	/**
+	 * Thread executing {@link #run()} method of this worker. It is a different thread than this one if worker is
+	 * executed on a virtual thread.
+	 */
+	private Thread runner = this;
 	private long runsCnt = 0;
-	private boolean stopped = false;
+	private WorkStealingScheduler scheduler = null;
+	private int schedulerIdx = -1;
+	private volatile boolean stopped = false;
 
 	public abstract WorkerThread getNewInstance();
 
@@ -50,36 +58,32 @@ public abstract class WorkerThread
 		return runsCnt;
 	}
 
+	/**
+	 * Checks if this worker is executed on a virtual thread instead of this platform thread.
+	 */
+	public boolean isRunningOnVirtualThread() {
+		return runner != this;
+	}
+
 	public boolean offer(QueueItem item) {
 		return queue.offer(item);
 	}
 
 	@Override
 	public void run() {
-		QueueItem item = null;
+		if (scheduler != null) {
+			scheduler.run(this, schedulerIdx);
+			return;
+		}
 
 		while (!stopped) {
+			QueueItem item;
 			try {
 				item = queue.take();
-
-				long start = System.currentTimeMillis();
-
-				process(item);
-
-				long end = System.currentTimeMillis() - start;
-
-				if (end > 0) {
-					averageProcessingTime = (averageProcessingTime + end) / 2;
-				}
-			} catch (Exception e) {
-				if (!stopped) {
-					log.log(Level.SEVERE,
-							this.getClass().getName() + ",(" + getName() + ") Exception during packet processing: " +
-									item, e);
-				}
+			} catch (InterruptedException e) {
+				continue;
 			}
-
-			++runsCnt;
+			processItem(item);
 		}
 	}
 
@@ -94,16 +98,88 @@ public abstract class WorkerThread
 	}
 
 	public int size() {
-		return queue.size();
+		return scheduler != null ? scheduler.size(schedulerIdx) : queue.size();
+	}
+
+	/**
+	 * Returns number of queues of other workers which were taken over by this worker.
+	 */
+	public long getStolenCounter() {
+		return scheduler != null ? scheduler.getStolen(schedulerIdx) : 0;
 	}
 
 	public void shutdown() {
 		stopped = true;
 		try {
-			this.interrupt();
+			runner.interrupt();
 		} catch (Exception ex) {
 		}
 	}
 
+	/**
+	 * Starts processing of items using the given thread instead of this one. Passed thread must execute
+	 * {@link #run()} method of this worker.
+	 *
+	 * @param runner thread which will execute this worker
+	 */
+	void start(Thread runner) {
+		this.runner = runner;
+		runner.start();
+	}
+
+	boolean isStopped() {
+		return stopped;
+	}
+
+	void processItem(QueueItem item) {
+		try {
+			long start = System.nanoTime();
+
+			if (processingThreads != null) {
+				processingThreads.getQueueWaitHistogram().record(start - item.getEnqueueTime());
+			}
+
+			process(item);
+
+			long time = System.nanoTime() - start;
+
+			if (processingThreads != null) {
+				processingThreads.getProcessingHistogram(item.getProcessor().id()).record(time);
+			}
+
+			long end = time / 1000000;
+
+			if (end > 0) {
+				averageProcessingTime = (averageProcessingTime + end) / 2;
+			}
+		} catch (Exception e) {
+			if (!stopped) {
+				log.log(Level.SEVERE,
+						this.getClass().getName() + ",(" + getName() + ") Exception during packet processing: " + item,
+						e);
+			}
+		}
+
+		++runsCnt;
+	}
+
+	/**
+	 * Sets processing threads to which this worker belongs, latencies are recorded in their histograms.
+	 */
+	void setProcessingThreads(ProcessingThreads<?> processingThreads) {
+		this.processingThreads = processingThreads;
+	}
+
+	/**
+	 * Makes this worker take items from the scheduler shared with other workers instead of its own queue.
+	 *
+	 * @param scheduler shared scheduler
+	 * @param idx index of this worker in the scheduler
+	 */
+	void setScheduler(WorkStealingScheduler scheduler, int idx) {
+		this.scheduler = scheduler;
+		this.schedulerIdx = idx;
+	}
+
 }
 
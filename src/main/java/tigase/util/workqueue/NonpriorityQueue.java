@@ -17,6 +17,7 @@
  */
 package tigase.util.workqueue;
 
+import java.util.Collection;
 import java.util.concurrent.LinkedBlockingQueue;
 
 /**
@@ -37,6 +38,11 @@ public class NonpriorityQueue<E>
 		init(0, maxSize);
 	}
 
+	@Override
+	public int drainTo(Collection<? super E> collection, int maxElements) {
+		return queue.drainTo(collection, maxElements);
+	}
+
 	@Override
 	public final void init(int maxPriority, int maxSize) {
 		queue = new LinkedBlockingQueue<E>(maxSize);
@@ -20,6 +20,9 @@ package tigase.util.workqueue;
 import tigase.annotations.TigaseDeprecated;
 import tigase.sys.TigaseRuntime;
 
+import java.util.Collection;
+import java.util.Queue;
+import java.util.function.ToIntFunction;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -83,12 +86,44 @@ public abstract class PriorityQueueAbstract<E> {
 		return null;
 	}
 
+	/**
+	 * Moves elements waiting in the queue (up to the given number of elements) to the given collection without
+	 * blocking. Elements are moved in the same order in which they would be returned by {@link #take()}. Default
+	 * implementation does not move anything, so the caller should always be ready to process elements one by one.
+	 *
+	 * @param collection to which elements should be added
+	 * @param maxElements maximal number of elements to move
+	 *
+	 * @return number of elements moved to the collection
+	 */
+	public int drainTo(Collection<? super E> collection, int maxElements) {
+		return 0;
+	}
+
 	public abstract void init(int maxPriority, int maxSize);
 
 	public abstract boolean offer(E element, int priority);
 
 	public abstract void put(E element, int priority) throws InterruptedException;
 
+	/**
+	 * Moves all elements from the given queue to this queue waiting for free space if necessary. An element is removed
+	 * from the given queue only after it was added to this queue, so if the method is interrupted the given queue
+	 * contains elements which were not added. Implementations should wake up a consumer waiting for elements once for
+	 * the whole batch instead of once for each element.
+	 *
+	 * @param elements queue of elements to add
+	 * @param priority function returning priority of an element
+	 */
+	public void putAll(Queue<E> elements, ToIntFunction<? super E> priority) throws InterruptedException {
+		E element;
+
+		while ((element = elements.peek()) != null) {
+			put(element, priority.applyAsInt(element));
+			elements.poll();
+		}
+	}
+
 	public abstract void setMaxSize(int maxSize);
 
 	public abstract int[] size();
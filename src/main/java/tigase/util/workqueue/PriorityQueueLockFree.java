@@ -0,0 +1,374 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util.workqueue;
+
+import java.util.Collection;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.ToIntFunction;
+
+/**
+ * Priority queue with the same semantics as {@link PriorityQueueRelaxed} (element which does not fit into queue of
+ * requested priority is added to the queue of the next priority) but without any monitor on the hot path.
+ * <br>
+ * Each priority level is backed by a bounded, array based ring buffer supporting many producers and a single
+ * consumer. Non empty levels are tracked in a bitmap, so the consumer finds the lowest non empty level with a single
+ * read. A consumer waiting for elements is parked and unparked by a producer only if it is actually waiting.
+ * <br>
+ * <strong>Only a single thread may call {@link #take()} on an instance of this queue</strong>, which matches the way
+ * queues are used by {@link tigase.server.AbstractMessageReceiver} where each queue is read by a dedicated thread.
+ */
+public class PriorityQueueLockFree<E>
+		extends PriorityQueueAbstract<E> {
+
+	private static final long FULL_WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+	private final AtomicLong nonEmpty = new AtomicLong();
+	private Level<E>[] levels = null;
+	private volatile Thread waiter = null;
+
+	public PriorityQueueLockFree() {
+	}
+
+	protected PriorityQueueLockFree(int maxPriority, int maxSize) {
+		init(maxPriority, maxSize);
+	}
+
+	@Override
+	public int drainTo(Collection<? super E> collection, int maxElements) {
+		int result = 0;
+
+		while (result < maxElements) {
+			long bits = nonEmpty.get();
+			if (bits == 0) {
+				break;
+			}
+
+			int priority = Long.numberOfTrailingZeros(bits);
+			E e = levels[priority].poll();
+			if (e != null) {
+				collection.add(e);
+				++result;
+			} else {
+				clearIfEmpty(priority);
+			}
+		}
+		return result;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public final void init(int maxPriority, int maxSize) {
+		if (maxPriority > Long.SIZE) {
+			throw new IllegalArgumentException("parameter maxPriority must not be bigger than " + Long.SIZE);
+		}
+		levels = new Level[maxPriority];
+		for (int i = 0; i < levels.length; i++) {
+			levels[i] = new Level<>(maxSize);
+		}
+	}
+
+	@Override
+	public boolean offer(E element, int priority) {
+		checkPriority(priority);
+		for (int i = priority; i < levels.length; i++) {
+			if (levels[i].offer(element)) {
+				signalNotEmpty(i);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public void put(E element, int priority) throws InterruptedException {
+		checkPriority(priority);
+		Level<E> level = levels[priority];
+		while (!level.offer(element)) {
+			// we do not want to use any monitor just to wait for free space,
+			// queue full is an exceptional situation under a very high load
+			LockSupport.parkNanos(this, FULL_WAIT_NANOS);
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+		}
+		signalNotEmpty(priority);
+	}
+
+	@Override
+	public void putAll(Queue<E> elements, ToIntFunction<? super E> priorityFunction) throws InterruptedException {
+		long added = 0;
+		E element;
+
+		try {
+			while ((element = elements.peek()) != null) {
+				int priority = priorityFunction.applyAsInt(element);
+				checkPriority(priority);
+				Level<E> level = levels[priority];
+				if (!level.offer(element)) {
+					// consumer has to know about elements added so far before we start waiting for free space
+					if (added != 0) {
+						signalNotEmptyLevels(added);
+						added = 0;
+					}
+					put(element, priority);
+				}
+				elements.poll();
+				added |= 1L << priority;
+			}
+		} finally {
+			if (added != 0) {
+				signalNotEmptyLevels(added);
+			}
+		}
+	}
+
+	@Override
+	public synchronized void setMaxSize(int maxSize) {
+		for (Level<E> level : levels) {
+			level.setMaxSize(maxSize);
+		}
+	}
+
+	@Override
+	public int[] size() {
+		int[] result = new int[levels.length];
+
+		for (int i = 0; i < result.length; i++) {
+			result[i] = levels[i].size();
+		}
+
+		return result;
+	}
+
+	@Override
+	public E take() throws InterruptedException {
+		while (true) {
+			long bits = nonEmpty.get();
+			if (bits == 0) {
+				waitForElements();
+				continue;
+			}
+
+			int priority = Long.numberOfTrailingZeros(bits);
+			Level<E> level = levels[priority];
+			E e = level.poll();
+			if (e != null) {
+				return e;
+			}
+
+			clearIfEmpty(priority);
+		}
+	}
+
+	@Override
+	public int totalSize() {
+		int result = 0;
+
+		for (int i = 0; i < levels.length; i++) {
+			result += levels[i].size();
+		}
+
+		return result;
+	}
+
+	private void checkPriority(int priority) {
+		if ((priority < 0) || (levels.length <= priority)) {
+			throw new IllegalArgumentException("parameter priority must be " + "between 0 and " + (levels.length - 1));
+		}
+	}
+
+	private void clearIfEmpty(int priority) {
+		// Level looks empty, clearing bit and checking again as producer
+		// might have added element after we have polled
+		long mask = 1L << priority;
+		nonEmpty.getAndUpdate(value -> value & ~mask);
+		if (!levels[priority].isEmpty()) {
+			nonEmpty.getAndUpdate(value -> value | mask);
+		}
+	}
+
+	private void signalNotEmpty(int priority) {
+		signalNotEmptyLevels(1L << priority);
+	}
+
+	private void signalNotEmptyLevels(long mask) {
+		if ((nonEmpty.get() & mask) != mask) {
+			nonEmpty.getAndUpdate(value -> value | mask);
+		}
+		Thread thread = waiter;
+		if (thread != null) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	private void waitForElements() throws InterruptedException {
+		waiter = Thread.currentThread();
+		try {
+			// Checking again after publishing waiter to make sure we will not miss
+			// a signal from producer which has not seen us waiting
+			while (nonEmpty.get() == 0) {
+				LockSupport.park(this);
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+			}
+		} finally {
+			waiter = null;
+		}
+	}
+
+	/**
+	 * Single priority level. It may consist of many ring buffers chained together if maximal size of a queue was
+	 * increased above the capacity of the current ring buffer. In such case consumer drains older ring buffer before
+	 * switching to the newer one.
+	 */
+	private static class Level<E> {
+
+		private Ring<E> consumerRing;
+		private volatile Ring<E> producerRing;
+
+		private Level(int maxSize) {
+			consumerRing = producerRing = new Ring<>(maxSize);
+		}
+
+		boolean isEmpty() {
+			return size() == 0;
+		}
+
+		boolean offer(E element) {
+			while (true) {
+				Ring<E> ring = producerRing;
+				int result = ring.offer(element);
+				if (result != Ring.CLOSED) {
+					return result == Ring.ADDED;
+				}
+				// ring was replaced, retrying with the new one
+			}
+		}
+
+		E poll() {
+			while (true) {
+				Ring<E> ring = consumerRing;
+				E e = ring.poll();
+				if (e != null || ring.next == null || !ring.isDrained()) {
+					return e;
+				}
+				consumerRing = ring.next;
+			}
+		}
+
+		void setMaxSize(int maxSize) {
+			Ring<E> ring = producerRing;
+			if (maxSize <= ring.capacity()) {
+				ring.maxSize = maxSize;
+				return;
+			}
+			Ring<E> newRing = new Ring<>(maxSize);
+			ring.next = newRing;
+			producerRing = newRing;
+			ring.close();
+		}
+
+		int size() {
+			int result = 0;
+			for (Ring<E> ring = consumerRing; ring != null; ring = ring.next) {
+				result += ring.size();
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Bounded ring buffer supporting many producers and a single consumer. Producers claim slots by incrementing the
+	 * tail and then publish an element in the claimed slot, consumer treats an empty slot at the head as end of data.
+	 */
+	private static class Ring<E> {
+
+		static final int ADDED = 0;
+		static final int CLOSED = 2;
+		static final int FULL = 1;
+		private static final long CLOSED_BIT = 1L << 62;
+		private static final int MAX_CAPACITY = 1 << 30;
+
+		private final AtomicReferenceArray<E> buffer;
+		private final int mask;
+		private final AtomicLong tail = new AtomicLong();
+		volatile int maxSize;
+		volatile Ring<E> next = null;
+		private volatile long head = 0;
+
+		Ring(int maxSize) {
+			int capacity = Integer.highestOneBit(Math.min(Math.max(maxSize, 2), MAX_CAPACITY) - 1) << 1;
+			this.buffer = new AtomicReferenceArray<>(capacity);
+			this.mask = capacity - 1;
+			this.maxSize = maxSize;
+		}
+
+		int capacity() {
+			return buffer.length();
+		}
+
+		void close() {
+			long t;
+			do {
+				t = tail.get();
+			} while (!tail.compareAndSet(t, t | CLOSED_BIT));
+		}
+
+		boolean isDrained() {
+			long t = tail.get();
+			return (t & CLOSED_BIT) != 0 && head == (t & ~CLOSED_BIT);
+		}
+
+		int offer(E element) {
+			while (true) {
+				long t = tail.get();
+				if ((t & CLOSED_BIT) != 0) {
+					return CLOSED;
+				}
+				if (t - head >= maxSize) {
+					return FULL;
+				}
+				if (tail.compareAndSet(t, t + 1)) {
+					buffer.set((int) t & mask, element);
+					return ADDED;
+				}
+			}
+		}
+
+		E poll() {
+			long h = head;
+			int idx = (int) h & mask;
+			E e = buffer.get(idx);
+			if (e != null) {
+				buffer.lazySet(idx, null);
+				head = h + 1;
+			}
+			return e;
+		}
+
+		int size() {
+			long t = tail.get() & ~CLOSED_BIT;
+			return (int) Math.max(0, t - head);
+		}
+	}
+}
@@ -17,7 +17,10 @@
  */
 package tigase.util.workqueue;
 
+import java.util.Collection;
+import java.util.Queue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.ToIntFunction;
 import java.util.logging.Logger;
 
 /**
@@ -42,6 +45,28 @@ public class PriorityQueueStrict<E>
 		init(maxPriority, maxSize);
 	}
 
+	@Override
+	public int drainTo(Collection<? super E> collection, int maxElements) {
+		int result = 0;
+
+		synchronized (this) {
+			while ((result < maxElements) && (lowestNonEmpty != Integer.MAX_VALUE)) {
+				LinkedBlockingQueue<E> q = qs[lowestNonEmpty];
+				E e = q.poll();
+
+				if (e != null) {
+					collection.add(e);
+					++result;
+				}
+				if ((e == null) || q.isEmpty()) {
+					lowestNonEmpty = findNextNonEmpty();
+				}
+			}
+		}
+
+		return result;
+	}
+
 	@Override
 	@SuppressWarnings("unchecked")
 	public final void init(int maxPriority, int maxSize) {
@@ -80,6 +105,43 @@ public class PriorityQueueStrict<E>
 		add(element, priority, true);
 	}
 
+	@Override
+	public void putAll(Queue<E> elements, ToIntFunction<? super E> priorityFunction) throws InterruptedException {
+		int lowest = Integer.MAX_VALUE;
+		E element;
+
+		try {
+			while ((element = elements.peek()) != null) {
+				int priority = priorityFunction.applyAsInt(element);
+
+				if (priority < 0) {
+					throw new IllegalArgumentException("parameter priority must be " + "between 0 and " + (qs.length - 1));
+				}
+				if (qs.length <= priority) {
+					priority = qs.length - 1;
+				}
+
+				LinkedBlockingQueue<E> q = qs[priority];
+
+				if (!q.offer(element)) {
+
+					// Consumer has to know about elements added so far before we start waiting for free space
+					if (lowest != Integer.MAX_VALUE) {
+						signalNotEmpty(lowest, true);
+						lowest = Integer.MAX_VALUE;
+					}
+					q.put(element);
+				}
+				elements.poll();
+				lowest = Math.min(lowest, priority);
+			}
+		} finally {
+			if (lowest != Integer.MAX_VALUE) {
+				signalNotEmpty(lowest, true);
+			}
+		}
+	}
+
 	@Override
 	public void setMaxSize(int maxSize) {
 		for (int i = 0; i < qs.length; i++) {
@@ -187,19 +249,27 @@ public class PriorityQueueStrict<E>
 		}
 
 		if (result) {
-			synchronized (this) {
-				if (priority < lowestNonEmpty) {
+			signalNotEmpty(priority, false);
+		}
 
-//        log.finest("[" + owner + "] setting new priority from " +
-//                lowestNonEmpty + ", to: " + priority);
-					lowestNonEmpty = priority;
-				}
+		return result;
+	}
 
+	private void signalNotEmpty(int priority, boolean batch) {
+		synchronized (this) {
+			if (priority < lowestNonEmpty) {
+
+//      log.finest("setting new priority from " + lowestNonEmpty + ", to: " + priority);
+				lowestNonEmpty = priority;
+			}
+
+			// a batch may contain elements for more than one waiting consumer
+			if (batch) {
+				this.notifyAll();
+			} else {
 				this.notify();
 			}
 		}
-
-		return result;
 	}
 
 	private int findNextNonEmpty() {
@@ -23,6 +23,7 @@ import tigase.db.DataSourceHelper;
 import tigase.db.TigaseDBException;
 import tigase.db.comp.AbstractSDComponentRepositoryBean;
 import tigase.db.comp.ComponentRepository;
+import tigase.db.comp.RepositoryChangeListenerIfc;
 import tigase.kernel.beans.Bean;
 import tigase.kernel.beans.Inject;
 import tigase.kernel.beans.RegistrarBean;
@@ -44,6 +45,7 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -66,6 +68,23 @@ public class VHostManager
 
 	@Inject
 	protected VHostComponentRepository repo = null;
+	private final CopyOnWriteArrayList<RepositoryChangeListenerIfc<VHostItem>> changeListeners = new CopyOnWriteArrayList<>();
+	private final RepositoryChangeListenerIfc<VHostItem> repoChangeListener = new RepositoryChangeListenerIfc<VHostItem>() {
+		@Override
+		public void itemAdded(VHostItem item) {
+			changeListeners.forEach(listener -> listener.itemAdded(item));
+		}
+
+		@Override
+		public void itemUpdated(VHostItem item) {
+			changeListeners.forEach(listener -> listener.itemUpdated(item));
+		}
+
+		@Override
+		public void itemRemoved(VHostItem item) {
+			changeListeners.forEach(listener -> listener.itemRemoved(item));
+		}
+	};
 	private long getComponentsForLocalDomainCalls = 0;
 	private long getComponentsForNonLocalDomainCalls = 0;
 	// private ServiceEntity serviceEntity = null;
@@ -89,6 +108,16 @@ public class VHostManager
 		registeredComponentDomains.add(domain);
 	}
 
+	@Override
+	public void addVHostChangeListener(RepositoryChangeListenerIfc<VHostItem> listener) {
+		changeListeners.addIfAbsent(listener);
+	}
+
+	@Override
+	public void removeVHostChangeListener(RepositoryChangeListenerIfc<VHostItem> listener) {
+		changeListeners.remove(listener);
+	}
+
 	@Override
 	public void componentAdded(VHostListener component) {
 		component.setVHostManager(this);
@@ -347,6 +376,16 @@ public class VHostManager
 		return repo;
 	}
 
+	public void setRepo(VHostComponentRepository repo) {
+		if (this.repo != null) {
+			this.repo.removeRepoChangeListener(repoChangeListener);
+		}
+		this.repo = repo;
+		if (repo != null) {
+			repo.addRepoChangeListener(repoChangeListener);
+		}
+	}
+
 	@Bean(name = "vhostRepository", parent = VHostManager.class, active = true)
 	public static class DefVHostRepositoryBean
 			extends AbstractSDComponentRepositoryBean<VHostItem> implements VHostComponentRepository {
@@ -17,6 +17,7 @@
  */
 package tigase.vhosts;
 
+import tigase.db.comp.RepositoryChangeListenerIfc;
 import tigase.server.ServerComponent;
 import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
@@ -136,5 +137,21 @@ public interface VHostManagerIfc {
 	 * Method returns a list of all hosted VHosts.
 	 */
 	List<JID> getAllVHosts();
+
+	/**
+	 * Method registers listener notified when any of the VHosts is added, updated or removed.
+	 *
+	 * @param listener listener to register
+	 */
+	default void addVHostChangeListener(RepositoryChangeListenerIfc<VHostItem> listener) {
+	}
+
+	/**
+	 * Method removes listener registered with {@link #addVHostChangeListener(RepositoryChangeListenerIfc)}.
+	 *
+	 * @param listener listener to remove
+	 */
+	default void removeVHostChangeListener(RepositoryChangeListenerIfc<VHostItem> listener) {
+	}
 }
 
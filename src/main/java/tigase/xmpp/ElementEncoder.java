@@ -0,0 +1,141 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xmpp;
+
+import tigase.xml.Element;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.MalformedInputException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serializer writing XML elements as UTF-8 encoded bytes directly to a byte buffer, so a stanza does not have to be
+ * converted to a string and then encoded before it is written to the socket.
+ * <br>
+ * Output is the same as the result of <code>Element.toString()</code> encoded with UTF-8. Attribute values and
+ * character data are kept by <code>Element</code> already escaped with <code>XMLUtils.escape()</code>, so they are
+ * written as they are. Element which contains both character data and child elements is written using its
+ * <code>toString()</code> method, as order of text and child elements is not available from its public API.
+ */
+public class ElementEncoder {
+
+	private static final int MIN_FREE_SPACE = 64;
+
+	/**
+	 * Writes element to the buffer. If there is not enough space in the buffer, a new bigger buffer is allocated and
+	 * data from the passed buffer are copied to it.
+	 *
+	 * @param element to write
+	 * @param buffer in write mode to which data are written
+	 *
+	 * @return buffer containing written data, passed one or a new bigger buffer
+	 */
+	public static ByteBuffer encode(Element element, ByteBuffer buffer) throws MalformedInputException {
+		List<Element> children = element.getChildren();
+		String cdata = element.getCData();
+		boolean hasChildren = children != null && !children.isEmpty();
+		boolean hasCData = cdata != null && !cdata.isEmpty();
+		if (hasChildren && hasCData) {
+			return writeString(buffer, element.toString());
+		}
+
+		String name = element.getName();
+		buffer = writeAscii(buffer, '<');
+		buffer = writeString(buffer, name);
+		Map<String, String> attributes = element.getAttributes();
+		if (attributes != null) {
+			for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+				buffer = writeAscii(buffer, ' ');
+				buffer = writeString(buffer, attribute.getKey());
+				buffer = writeAscii(buffer, '=');
+				buffer = writeAscii(buffer, '"');
+				buffer = writeString(buffer, attribute.getValue());
+				buffer = writeAscii(buffer, '"');
+			}
+		}
+
+		if (!hasChildren && !hasCData) {
+			buffer = writeAscii(buffer, '/');
+			return writeAscii(buffer, '>');
+		}
+		buffer = writeAscii(buffer, '>');
+		if (hasCData) {
+			buffer = writeString(buffer, cdata);
+		} else {
+			for (Element child : children) {
+				buffer = encode(child, buffer);
+			}
+		}
+		buffer = writeAscii(buffer, '<');
+		buffer = writeAscii(buffer, '/');
+		buffer = writeString(buffer, name);
+		return writeAscii(buffer, '>');
+	}
+
+	private static ByteBuffer ensureCapacity(ByteBuffer buffer, int required) {
+		if (buffer.remaining() >= required) {
+			return buffer;
+		}
+		ByteBuffer tmp = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + required));
+		tmp.order(buffer.order());
+		buffer.flip();
+		tmp.put(buffer);
+		return tmp;
+	}
+
+	private static ByteBuffer writeAscii(ByteBuffer buffer, char c) {
+		buffer = ensureCapacity(buffer, 1);
+		buffer.put((byte) c);
+		return buffer;
+	}
+
+	private static ByteBuffer writeString(ByteBuffer buffer, String data) throws MalformedInputException {
+		final int length = data.length();
+		for (int i = 0; i < length; i++) {
+			if (buffer.remaining() < 4) {
+				// space for at least a few characters, so capacity is not checked for every one of them
+				buffer = ensureCapacity(buffer, Math.max(MIN_FREE_SPACE, (length - i) * 3));
+			}
+			char c = data.charAt(i);
+			if (c < 0x80) {
+				buffer.put((byte) c);
+			} else if (c < 0x800) {
+				buffer.put((byte) (0xC0 | (c >> 6)));
+				buffer.put((byte) (0x80 | (c & 0x3F)));
+			} else if (Character.isSurrogate(c)) {
+				if (!Character.isHighSurrogate(c) || i + 1 >= length || !Character.isLowSurrogate(data.charAt(i + 1))) {
+					throw new MalformedInputException(1);
+				}
+				int cp = Character.toCodePoint(c, data.charAt(++i));
+				buffer.put((byte) (0xF0 | (cp >> 18)));
+				buffer.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+				buffer.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+				buffer.put((byte) (0x80 | (cp & 0x3F)));
+			} else {
+				buffer.put((byte) (0xE0 | (c >> 12)));
+				buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+				buffer.put((byte) (0x80 | (c & 0x3F)));
+			}
+		}
+		return buffer;
+	}
+
+	private ElementEncoder() {
+	}
+}
@@ -0,0 +1,662 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xmpp;
+
+import tigase.xml.SimpleHandler;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Incremental parser of XMPP streams working directly on UTF-8 encoded bytes received from the network, so data does
+ * not have to be decoded to characters before parsing.
+ * <br>
+ * Instance of the parser keeps state of parsing between calls and is meant to be used by a single connection. It
+ * reuses its internal buffers for names, attribute values and character data, so parsing does not allocate anything
+ * except objects created by the handler. Names of commonly used elements and attributes are recognized directly from
+ * bytes and reported as already interned constants.
+ * <br>
+ * Handler is notified in the same way as by <code>SimpleParser</code>, attribute values and character data are
+ * passed without resolving entities. Passed <code>StringBuilder</code> instances are reused by the parser and are
+ * valid only during execution of the callback.
+ */
+public class XMPPByteStreamParser {
+
+	public static final int MAX_ATTRIBS_NUMBER = 50;
+	public static final int MAX_ATTRIBUTE_VALUE_SIZE = 10 * 1024;
+	public static final int MAX_CDATA_SIZE = 1024 * 1024;
+	public static final int MAX_NAME_SIZE = 1024;
+
+	private static final String[] COMMON_NAMES = {"stream:stream", "stream:features", "stream:error", "message",
+												  "presence", "iq", "body", "subject", "thread", "error", "query",
+												  "item", "group", "x", "c", "show", "status", "priority", "delay",
+												  "active", "inactive", "composing", "paused", "gone", "request",
+												  "received", "displayed", "markable", "r", "a", "enable", "enabled",
+												  "resume", "resumed", "ping", "bind", "resource", "jid", "session",
+												  "starttls", "proceed", "auth", "success", "failure", "challenge",
+												  "response", "mechanism", "pubsub", "event", "items", "forwarded",
+												  "result", "stanza-id", "origin-id", "xmlns", "xmlns:stream", "to",
+												  "from", "id", "type", "xml:lang", "version", "node", "ver", "hash",
+												  "name", "subscription", "ask", "stamp", "code", "by", "h", "max",
+												  "location", "affiliation", "role", "nick"};
+	private static final int NAMES_TABLE_MASK = 255;
+	private static final byte[][] NAMES_TABLE_BYTES = new byte[NAMES_TABLE_MASK + 1][];
+	private static final String[] NAMES_TABLE_STRINGS = new String[NAMES_TABLE_MASK + 1];
+
+	private static final int ATTR_EQ = 6;
+	private static final int ATTR_NAME = 5;
+	private static final int ATTR_QUOTE = 7;
+	private static final int ATTR_VALUE = 8;
+	private static final int BANG = 11;
+	private static final int CDATA_SECTION = 14;
+	private static final int COMMENT = 12;
+	private static final int ELEM_NAME = 2;
+	private static final int EMPTY_END = 9;
+	private static final int END_NAME = 3;
+	private static final int END_TAIL = 10;
+	private static final int IN_TAG = 4;
+	private static final int OTHER = 15;
+	private static final int PI = 13;
+	private static final int TAG_OPEN = 1;
+	private static final int TEXT = 0;
+
+	private static final String CDATA_START = "<![CDATA[";
+	private static final String COMMENT_START = "<!--";
+	private static final int SCRATCH_SIZE = 4096;
+	private static final ThreadLocal<byte[]> scratch = ThreadLocal.withInitial(() -> new byte[SCRATCH_SIZE]);
+
+	static {
+		for (String name : COMMON_NAMES) {
+			byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+			int hash = 0;
+			for (byte b : bytes) {
+				hash = 31 * hash + b;
+			}
+			int idx = hash & NAMES_TABLE_MASK;
+			while (NAMES_TABLE_BYTES[idx] != null) {
+				idx = (idx + 1) & NAMES_TABLE_MASK;
+			}
+			NAMES_TABLE_BYTES[idx] = bytes;
+			NAMES_TABLE_STRINGS[idx] = name.intern();
+		}
+	}
+
+	private int attrCount = 0;
+	private final StringBuilder[] attrNames = new StringBuilder[MAX_ATTRIBS_NUMBER + 1];
+	private final StringBuilder[] attrNamesPool = new StringBuilder[MAX_ATTRIBS_NUMBER];
+	private final StringBuilder[] attrValues = new StringBuilder[MAX_ATTRIBS_NUMBER + 1];
+	private final StringBuilder[] attrValuesPool = new StringBuilder[MAX_ATTRIBS_NUMBER];
+	private final StringBuilder cdata = new StringBuilder(64);
+	private int cdataEndBrackets = 0;
+	private String elemName = null;
+	private boolean failed = false;
+	private byte[] name = new byte[32];
+	private int nameHash = 0;
+	private int nameLen = 0;
+	private final StringBuilder other = new StringBuilder(32);
+	private byte quote = 0;
+	private boolean started = false;
+	private int state = TEXT;
+	private int utf8Code = 0;
+	private int utf8Min = 0;
+	private int utf8Remaining = 0;
+
+	/**
+	 * Returns a name represented by bytes using an interned constant for common names.
+	 */
+	static String toName(byte[] bytes, int len, int hash) {
+		int idx = hash & NAMES_TABLE_MASK;
+		byte[] candidate;
+		while ((candidate = NAMES_TABLE_BYTES[idx]) != null) {
+			if (candidate.length == len && equals(candidate, bytes, len)) {
+				return NAMES_TABLE_STRINGS[idx];
+			}
+			idx = (idx + 1) & NAMES_TABLE_MASK;
+		}
+		return new String(bytes, 0, len, StandardCharsets.UTF_8);
+	}
+
+	private static boolean equals(byte[] a, byte[] b, int len) {
+		for (int i = 0; i < len; i++) {
+			if (a[i] != b[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isNameChar(int b) {
+		return isNameStartChar(b) || (b >= '0' && b <= '9') || b == '-' || b == '.' || b < 0;
+	}
+
+	private static boolean isNameStartChar(int b) {
+		return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || b == '_' || b == ':' || b < 0;
+	}
+
+	private static boolean isWhitespace(int b) {
+		return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+	}
+
+	private static boolean isInvalidControlChar(int b) {
+		return b >= 0 && b < 0x20 && b != '\n' && b != '\r' && b != '\t';
+	}
+
+	/**
+	 * Checks if data starts (after optional whitespaces) with <code>&lt;</code>, so it may be an XML stream. Position of
+	 * the buffer is not changed.
+	 */
+	public static boolean isXmlStart(ByteBuffer data) {
+		for (int i = data.position(); i < data.limit(); i++) {
+			byte b = data.get(i);
+			if (b == '<') {
+				return true;
+			}
+			if (!isWhitespace(b)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns <code>true</code> if parser received any data.
+	 */
+	public boolean isStarted() {
+		return started;
+	}
+
+	/**
+	 * Parses all remaining bytes of the buffer. After the call buffer has no remaining bytes, as incomplete data is
+	 * kept in the state of the parser.
+	 */
+	public void parse(Handler handler, ByteBuffer data) {
+		if (data.hasArray()) {
+			parse(handler, data.array(), data.arrayOffset() + data.position(), data.remaining());
+			data.position(data.limit());
+		} else {
+			byte[] buf = scratch.get();
+			while (data.hasRemaining() && !failed) {
+				int len = Math.min(buf.length, data.remaining());
+				data.get(buf, 0, len);
+				parse(handler, buf, 0, len);
+			}
+			data.position(data.limit());
+		}
+	}
+
+	public void parse(Handler handler, byte[] data, int off, int len) {
+		if (len > 0) {
+			started = true;
+		}
+		final int end = off + len;
+		for (int i = off; i < end && !failed; i++) {
+			final byte b = data[i];
+			if (b < 0 || utf8Remaining > 0) {
+				if (!decodeUtf8(b)) {
+					error(handler, "Malformed UTF-8 data");
+					return;
+				}
+				processNonAscii(handler, b);
+				continue;
+			}
+			switch (state) {
+				case TEXT:
+					if (b == '<') {
+						flushCData(handler);
+						state = TAG_OPEN;
+					} else if (isInvalidControlChar(b)) {
+						error(handler, "Not allowed character: " + b);
+					} else {
+						appendCData(handler, (char) b);
+					}
+					break;
+				case TAG_OPEN:
+					if (b == '/') {
+						startName();
+						state = END_NAME;
+					} else if (b == '?') {
+						other.setLength(0);
+						other.append("<?");
+						state = PI;
+					} else if (b == '!') {
+						other.setLength(0);
+						other.append("<!");
+						state = BANG;
+					} else if (isNameStartChar(b)) {
+						startName();
+						appendName(handler, b);
+						state = ELEM_NAME;
+					} else {
+						error(handler, "Not allowed character after '<': " + (char) b);
+					}
+					break;
+				case ELEM_NAME:
+					if (isNameChar(b)) {
+						appendName(handler, b);
+					} else if (isWhitespace(b)) {
+						elemName = toName(name, nameLen, nameHash);
+						state = IN_TAG;
+					} else if (b == '/') {
+						elemName = toName(name, nameLen, nameHash);
+						state = EMPTY_END;
+					} else if (b == '>') {
+						elemName = toName(name, nameLen, nameHash);
+						startElement(handler);
+						state = TEXT;
+					} else {
+						error(handler, "Not allowed character in element name: " + (char) b);
+					}
+					break;
+				case IN_TAG:
+					if (isWhitespace(b)) {
+						break;
+					}
+					if (b == '/') {
+						state = EMPTY_END;
+					} else if (b == '>') {
+						startElement(handler);
+						state = TEXT;
+					} else if (isNameStartChar(b)) {
+						startName();
+						appendName(handler, b);
+						state = ATTR_NAME;
+					} else {
+						error(handler, "Not allowed character in element: " + (char) b);
+					}
+					break;
+				case ATTR_NAME:
+					if (isNameChar(b)) {
+						appendName(handler, b);
+					} else if (isWhitespace(b)) {
+						finishAttrName(handler);
+						state = ATTR_EQ;
+					} else if (b == '=') {
+						finishAttrName(handler);
+						state = ATTR_QUOTE;
+					} else {
+						error(handler, "Not allowed character in attribute name: " + (char) b);
+					}
+					break;
+				case ATTR_EQ:
+					if (b == '=') {
+						state = ATTR_QUOTE;
+					} else if (!isWhitespace(b)) {
+						error(handler, "Missing '=' after attribute name");
+					}
+					break;
+				case ATTR_QUOTE:
+					if (b == '"' || b == '\'') {
+						quote = b;
+						state = ATTR_VALUE;
+					} else if (!isWhitespace(b)) {
+						error(handler, "Missing quote for attribute value");
+					}
+					break;
+				case ATTR_VALUE:
+					if (b == quote) {
+						++attrCount;
+						state = IN_TAG;
+					} else if (b == '<' || isInvalidControlChar(b)) {
+						error(handler, "Not allowed character in attribute value: " + b);
+					} else {
+						appendAttrValue(handler, (char) b);
+					}
+					break;
+				case EMPTY_END:
+					if (b == '>') {
+						startElement(handler);
+						endElement(handler, elemName);
+						state = TEXT;
+					} else {
+						error(handler, "Missing '>' after '/'");
+					}
+					break;
+				case END_NAME:
+					if (isNameChar(b) && (nameLen > 0 || isNameStartChar(b))) {
+						appendName(handler, b);
+					} else if (isWhitespace(b) && nameLen > 0) {
+						state = END_TAIL;
+					} else if (b == '>' && nameLen > 0) {
+						endElement(handler, toName(name, nameLen, nameHash));
+						state = TEXT;
+					} else {
+						error(handler, "Not allowed character in closing element: " + (char) b);
+					}
+					break;
+				case END_TAIL:
+					if (b == '>') {
+						endElement(handler, toName(name, nameLen, nameHash));
+						state = TEXT;
+					} else if (!isWhitespace(b)) {
+						error(handler, "Not allowed character in closing element: " + (char) b);
+					}
+					break;
+				case BANG:
+					appendOther(handler, (char) b);
+					if (other.length() == COMMENT_START.length() && COMMENT_START.contentEquals(other)) {
+						state = COMMENT;
+					} else if (other.length() == CDATA_START.length() && CDATA_START.contentEquals(other)) {
+						cdataEndBrackets = 0;
+						state = CDATA_SECTION;
+					} else if (!isPrefix(other, COMMENT_START) && !isPrefix(other, CDATA_START)) {
+						// declarations are not allowed in XMPP, but we are just skipping them
+						state = OTHER;
+						if (b == '>') {
+							flushOther(handler);
+						}
+					}
+					break;
+				case COMMENT:
+					appendOther(handler, (char) b);
+					if (b == '>' && other.length() >= 7 && other.charAt(other.length() - 2) == '-' &&
+							other.charAt(other.length() - 3) == '-') {
+						flushOther(handler);
+					}
+					break;
+				case PI:
+					appendOther(handler, (char) b);
+					if (b == '>' && other.charAt(other.length() - 2) == '?') {
+						flushOther(handler);
+					}
+					break;
+				case OTHER:
+					appendOther(handler, (char) b);
+					if (b == '>') {
+						flushOther(handler);
+					}
+					break;
+				case CDATA_SECTION:
+					if (b == ']') {
+						++cdataEndBrackets;
+					} else if (b == '>' && cdataEndBrackets >= 2) {
+						cdataEndBrackets -= 2;
+						flushCDataBrackets(handler);
+						state = TEXT;
+					} else if (isInvalidControlChar(b)) {
+						error(handler, "Not allowed character: " + b);
+					} else {
+						flushCDataBrackets(handler);
+						appendEscapedCData(handler, (char) b);
+					}
+					break;
+				default:
+					break;
+			}
+		}
+	}
+
+	/**
+	 * Drops state of the parser, ie. when the stream is restarted.
+	 */
+	public void reset() {
+		state = TEXT;
+		failed = false;
+		started = false;
+		utf8Remaining = 0;
+		cdata.setLength(0);
+		other.setLength(0);
+		clearAttributes();
+		elemName = null;
+		nameLen = 0;
+	}
+
+	private static boolean isPrefix(StringBuilder sb, String str) {
+		if (sb.length() > str.length()) {
+			return false;
+		}
+		for (int i = 0; i < sb.length(); i++) {
+			if (sb.charAt(i) != str.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void processNonAscii(Handler handler, byte b) {
+		switch (state) {
+			case TAG_OPEN:
+				startName();
+				appendName(handler, b);
+				state = ELEM_NAME;
+				break;
+			case IN_TAG:
+				startName();
+				appendName(handler, b);
+				state = ATTR_NAME;
+				break;
+			case ELEM_NAME:
+			case ATTR_NAME:
+			case END_NAME:
+				appendName(handler, b);
+				break;
+			case TEXT:
+				if (utf8Remaining == 0) {
+					appendCodePoint(handler, cdata, MAX_CDATA_SIZE);
+				}
+				break;
+			case ATTR_VALUE:
+				if (utf8Remaining == 0) {
+					appendCodePoint(handler, attrValuesPool[attrCount], MAX_ATTRIBUTE_VALUE_SIZE);
+				}
+				break;
+			case CDATA_SECTION:
+				flushCDataBrackets(handler);
+				if (utf8Remaining == 0) {
+					appendCodePoint(handler, cdata, MAX_CDATA_SIZE);
+				}
+				break;
+			case BANG:
+				state = OTHER;
+				// fall through as non-ASCII character may only be a part of other declaration
+			case COMMENT:
+			case PI:
+			case OTHER:
+				if (utf8Remaining == 0) {
+					appendCodePoint(handler, other, MAX_CDATA_SIZE);
+				}
+				break;
+			default:
+				error(handler, "Not allowed character in element");
+				break;
+		}
+	}
+
+	private boolean decodeUtf8(byte b) {
+		int ub = b & 0xFF;
+		if (utf8Remaining == 0) {
+			if (ub >= 0xC2 && ub <= 0xDF) {
+				utf8Remaining = 1;
+				utf8Code = ub & 0x1F;
+				utf8Min = 0x80;
+			} else if (ub >= 0xE0 && ub <= 0xEF) {
+				utf8Remaining = 2;
+				utf8Code = ub & 0x0F;
+				utf8Min = 0x800;
+			} else if (ub >= 0xF0 && ub <= 0xF4) {
+				utf8Remaining = 3;
+				utf8Code = ub & 0x07;
+				utf8Min = 0x10000;
+			} else {
+				return false;
+			}
+			return true;
+		}
+		if ((ub & 0xC0) != 0x80) {
+			return false;
+		}
+		utf8Code = (utf8Code << 6) | (ub & 0x3F);
+		if (--utf8Remaining == 0) {
+			// overlong encodings, surrogates and code points out of Unicode range
+			return utf8Code >= utf8Min && (utf8Code < 0xD800 || utf8Code > 0xDFFF) && utf8Code <= 0x10FFFF;
+		}
+		return true;
+	}
+
+	private void startName() {
+		nameLen = 0;
+		nameHash = 0;
+	}
+
+	private void appendName(Handler handler, byte b) {
+		if (nameLen == MAX_NAME_SIZE) {
+			error(handler, "Max name size exceeded: " + MAX_NAME_SIZE);
+			return;
+		}
+		if (nameLen == name.length) {
+			byte[] tmp = new byte[Math.min(name.length * 2, MAX_NAME_SIZE)];
+			System.arraycopy(name, 0, tmp, 0, nameLen);
+			name = tmp;
+		}
+		name[nameLen++] = b;
+		nameHash = 31 * nameHash + b;
+	}
+
+	private void finishAttrName(Handler handler) {
+		if (attrCount == MAX_ATTRIBS_NUMBER) {
+			error(handler, "Max attributes number exceeded: " + MAX_ATTRIBS_NUMBER);
+			return;
+		}
+		// builders are created on demand as most of stanzas have only a few attributes
+		if (attrNamesPool[attrCount] == null) {
+			attrNamesPool[attrCount] = new StringBuilder(16);
+			attrValuesPool[attrCount] = new StringBuilder(32);
+		}
+		attrNamesPool[attrCount].setLength(0);
+		attrNamesPool[attrCount].append(toName(name, nameLen, nameHash));
+		attrValuesPool[attrCount].setLength(0);
+	}
+
+	private void appendAttrValue(Handler handler, char chr) {
+		StringBuilder value = attrValuesPool[attrCount];
+		if (value.length() == MAX_ATTRIBUTE_VALUE_SIZE) {
+			error(handler, "Max attribute value size exceeded: " + MAX_ATTRIBUTE_VALUE_SIZE);
+			return;
+		}
+		value.append(chr);
+	}
+
+	private void appendCData(Handler handler, char chr) {
+		if (cdata.length() == MAX_CDATA_SIZE) {
+			error(handler, "Max cdata size exceeded: " + MAX_CDATA_SIZE);
+			return;
+		}
+		cdata.append(chr);
+	}
+
+	private void appendEscapedCData(Handler handler, char chr) {
+		switch (chr) {
+			case '<':
+				cdata.append("&lt;");
+				break;
+			case '>':
+				cdata.append("&gt;");
+				break;
+			case '&':
+				cdata.append("&amp;");
+				break;
+			default:
+				appendCData(handler, chr);
+				break;
+		}
+	}
+
+	private void appendOther(Handler handler, char chr) {
+		if (other.length() == MAX_CDATA_SIZE) {
+			error(handler, "Max cdata size exceeded: " + MAX_CDATA_SIZE);
+			return;
+		}
+		other.append(chr);
+	}
+
+	private void appendCodePoint(Handler handler, StringBuilder sb, int limit) {
+		if (sb.length() >= limit - 1) {
+			error(handler, "Max data size exceeded: " + limit);
+			return;
+		}
+		sb.appendCodePoint(utf8Code);
+	}
+
+	private void flushCDataBrackets(Handler handler) {
+		for (; cdataEndBrackets > 0; cdataEndBrackets--) {
+			appendCData(handler, ']');
+		}
+	}
+
+	private void flushCData(Handler handler) {
+		if (cdata.length() > 0) {
+			handler.elementCData(cdata);
+			cdata.setLength(0);
+		}
+	}
+
+	private void flushOther(Handler handler) {
+		handler.otherXML(other);
+		other.setLength(0);
+		state = TEXT;
+	}
+
+	private void startElement(Handler handler) {
+		if (attrCount == 0) {
+			handler.startElement(elemName, null, null);
+			return;
+		}
+		for (int i = 0; i < attrCount; i++) {
+			attrNames[i] = attrNamesPool[i];
+			attrValues[i] = attrValuesPool[i];
+		}
+		try {
+			handler.startElement(elemName, attrNames, attrValues);
+		} finally {
+			clearAttributes();
+		}
+	}
+
+	private void clearAttributes() {
+		for (int i = 0; i < attrCount; i++) {
+			attrNames[i] = null;
+			attrValues[i] = null;
+		}
+		attrCount = 0;
+	}
+
+	private void endElement(Handler handler, String name) {
+		if (!handler.endElement(name)) {
+			error(handler, "Malformed XML: element close found without open for this element: " + name);
+		}
+	}
+
+	private void error(Handler handler, String message) {
+		if (!failed) {
+			failed = true;
+			handler.error(message);
+		}
+	}
+
+	/**
+	 * Handler of events generated by the parser. Names of elements are passed as <code>String</code> instances,
+	 * interned for commonly used names.
+	 */
+	public interface Handler
+			extends SimpleHandler {
+
+		void startElement(String name, StringBuilder[] attrNames, StringBuilder[] attrValues);
+
+		boolean endElement(String name);
+
+	}
+}
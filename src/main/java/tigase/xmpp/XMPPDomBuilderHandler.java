@@ -39,7 +39,7 @@ import java.util.logging.Logger;
  * @author <a href="mailto:artur.hefczyc@tigase.org">Artur Hefczyc</a>
 */
 public class XMPPDomBuilderHandler<RefObject>
-		implements SimpleHandler {
+		implements SimpleHandler, XMPPByteStreamParser.Handler {
 
 	private static final Logger log = Logger.getLogger("tigase.debug.xmpp.XMPPDomBuilderHandler");
 
@@ -88,11 +88,16 @@ public class XMPPDomBuilderHandler<RefObject>
 
 	@Override
 	public boolean endElement(StringBuilder name) {
+		return endElement(name.toString());
+	}
+
+	@Override
+	public boolean endElement(String name) {
 		if (log.isLoggable(Level.FINEST)) {
 			log.finest("End element name: " + name);
 		}
 
-		String tmp_name = name.toString();
+		String tmp_name = name;
 
 		if (tmp_name.equals(ELEM_STREAM_STREAM)) {
 			// we should not call xmppStreamClosed() as we still may have received 
@@ -125,7 +130,7 @@ public class XMPPDomBuilderHandler<RefObject>
 				}      // end of for (String xmlns: namespaces.keys())
 			}
 		}
-		if (elem.getName() != tmp_name.intern() || (tmp_xmlns != null && !tmp_xmlns.equals(elem.getXMLNS()))) {
+		if (!tmp_name.equals(elem.getName()) || (tmp_xmlns != null && !tmp_xmlns.equals(elem.getXMLNS()))) {
 			return false;
 		}
 
@@ -188,6 +193,11 @@ public class XMPPDomBuilderHandler<RefObject>
 
 	@Override
 	public void startElement(StringBuilder name, StringBuilder[] attr_names, StringBuilder[] attr_values) {
+		startElement(name.toString(), attr_names, attr_values);
+	}
+
+	@Override
+	public void startElement(String name, StringBuilder[] attr_names, StringBuilder[] attr_values) {
 		if (log.isLoggable(Level.FINEST)) {
 			log.finest("Start element name: " + name + ", element attributes names: " + Arrays.toString(attr_names) +
 							   ", element attributes values: " + Arrays.toString(attr_values));
@@ -216,7 +226,7 @@ public class XMPPDomBuilderHandler<RefObject>
 			}      // end of for (String att_name : attnames)
 		}        // end of if (attr_names != null)
 
-		String tmp_name = name.toString();
+		String tmp_name = name;
 
 		if (tmp_name.equals(ELEM_STREAM_STREAM)) {
 			streamClosed = false;
@@ -18,6 +18,7 @@
 package tigase.xmpp;
 
 import tigase.annotations.TigaseDeprecated;
+import tigase.io.AdaptiveCompressionPolicy;
 import tigase.net.IOService;
 import tigase.server.ConnectionManager;
 import tigase.server.Packet;
@@ -31,6 +32,8 @@ import tigase.xml.SingletonFactory;
 import tigase.xmpp.jid.JID;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
 import java.util.Map;
 import java.util.Optional;
@@ -56,6 +59,12 @@ public class XMPPIOService<RefObject>
 
 	public static final String ACK_NAME = "ack";
 
+	/**
+	 * Key name of the system property enabling parsing of XMPP streams directly from received bytes with
+	 * {@link XMPPByteStreamParser} instead of decoding them to characters first.
+	 */
+	public static final String BYTE_PARSER_PROP_KEY = "xmpp-byte-parser";
+
 	public static final String CROSS_DOMAIN_POLICY_FILE_PROP_KEY = "cross-domain-policy-file";
 
 	public static final String CROSS_DOMAIN_POLICY_FILE_PROP_VAL = "etc/cross-domain-policy.xml";
@@ -72,10 +81,18 @@ public class XMPPIOService<RefObject>
 	public static final String STREAM_CLOSING = "stream-closing";
 
 	private static final Logger log = Logger.getLogger(XMPPIOService.class.getName());
+	private static final boolean BYTE_PARSER_ENABLED = Boolean.getBoolean(BYTE_PARSER_PROP_KEY);
 
 	public ReentrantLock writeInProgress = new ReentrantLock();
 	protected SimpleParser parser = SingletonFactory.getParserInstance();
 	protected XMPPIOProcessor[] processors = null;
+	private XMPPByteStreamParser byteParser = null;
+	/**
+	 * Set when stream is restarted on a new transport layer (TLS, compression), so the byte parser drops its state
+	 * before parsing data of the new stream. Parser is reset by the reading thread, as the transport layer may be
+	 * changed by a different thread.
+	 */
+	private volatile boolean byteParserResetRequired = false;
 	private XMPPDomBuilderHandler<RefObject> domHandler = null;
 	private boolean firstPacket = true;
 	private JID authorisedUserJid = null;
@@ -112,6 +129,9 @@ public class XMPPIOService<RefObject>
 		super();
 		domHandler = new XMPPDomBuilderHandler<>(this);
 		getSessionData().put(DOM_HANDLER, domHandler);
+		if (BYTE_PARSER_ENABLED && isByteParserSupported()) {
+			byteParser = new XMPPByteStreamParser();
+		}
 	}
 
 	/**
@@ -232,27 +252,26 @@ public class XMPPIOService<RefObject>
 
 	@Override
 	public void processWaitingPackets() throws IOException {
-		Packet packet = null;
+		if (isBatchedWriteSupported()) {
+			// all waiting packets are encoded into a single output buffer and
+			// removed from the queue after they are written
+			writeData(waitingPackets, this::encodePacket);
+		} else {
+			Packet packet = null;
 
-		// int cnt = 0;
-		// while ((packet = waitingPackets.poll()) != null && (cnt < 1000)) {
+			// int cnt = 0;
+			// while ((packet = waitingPackets.poll()) != null && (cnt < 1000)) {
 
-		// we should only peek for packet now, and poll it after sending it
-		while ((packet = waitingPackets.peek()) != null) {
+			// we should only peek for packet now, and poll it after sending it
+			while ((packet = waitingPackets.peek()) != null) {
 
-			// ++cnt;
-			if (log.isLoggable(Level.FINEST)) {
-				log.log(Level.FINEST, "Sending packet: {1} [{0}]", new Object[]{toString(), packet});
-			}
-			writeRawData(packet.getElement().toString());
+				// ++cnt;
+				writeRawData(serializePacket(packet));
 
-			// and after sending it we should remove it to minimalize chances of lost packets
-			waitingPackets.poll();
-
-			if (log.isLoggable(Level.FINEST)) {
-				log.log(Level.FINEST, "SENT: {1} [{0}]", new Object[]{toString(), packet.getElement().toString()});
-			}
-		}    // end of while (packet = waitingPackets.poll() != null)
+				// and after sending it we should remove it to minimalize chances of lost packets
+				waitingPackets.poll();
+			}    // end of while (packet = waitingPackets.poll() != null)
+		}
 
 		// notify io processors that all waiting packets were sent
 		if (processors != null) {
@@ -262,6 +281,67 @@ public class XMPPIOService<RefObject>
 		}
 	}
 
+	/**
+	 * Method decides if waiting packets may be written to the socket in batches, bypassing
+	 * <code>writeRawData()</code> method. Services which need to wrap or frame each piece of data written to the socket
+	 * should return <code>false</code>.
+	 *
+	 * @return <code>true</code> if batched writes are supported
+	 */
+	protected boolean isBatchedWriteSupported() {
+		return true;
+	}
+
+	/**
+	 * Method decides if received data may be parsed directly from bytes, bypassing <code>readData()</code> and
+	 * <code>checkData()</code> methods. Services which need to unwrap or check received data before parsing should
+	 * return <code>false</code>.
+	 *
+	 * @return <code>true</code> if parsing of bytes is supported
+	 */
+	protected boolean isByteParserSupported() {
+		return true;
+	}
+
+	private ByteBuffer encodePacket(Packet packet, ByteBuffer buffer) throws IOException {
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Sending packet: {1} [{0}]", new Object[]{toString(), packet.getElement()});
+		}
+		return ElementEncoder.encode(packet.getElement(), buffer);
+	}
+
+	private String serializePacket(Packet packet) {
+		String data = packet.getElement().toString();
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Sending packet: {1} [{0}]", new Object[]{toString(), data});
+		}
+		return data;
+	}
+
+	@Override
+	public void startSSL(boolean clientMode, boolean wantClientAuth, boolean needClientAuth) throws IOException {
+		super.startSSL(clientMode, wantClientAuth, needClientAuth);
+		byteParserResetRequired = true;
+	}
+
+	@Override
+	public void startTLS(boolean clientMode, boolean wantClientAuth, boolean needClientAuth) throws IOException {
+		super.startTLS(clientMode, wantClientAuth, needClientAuth);
+		byteParserResetRequired = true;
+	}
+
+	@Override
+	public void startZLib(int level) {
+		super.startZLib(level);
+		byteParserResetRequired = true;
+	}
+
+	@Override
+	public void startZLib(AdaptiveCompressionPolicy policy, boolean useDictionary) {
+		super.startZLib(policy, useDictionary);
+		byteParserResetRequired = true;
+	}
+
 	@Override
 	public void stop() {
 
@@ -485,75 +565,194 @@ public class XMPPIOService<RefObject>
 		// readLock.lock();
 		// try {
 		if (isConnected()) {
+			if (byteParser != null) {
+				processSocketBytes();
+				return;
+			}
+
 			char[] data = readData();
 
 			while (isConnected() && (data != null) && (data.length > 0)) {
-				if (log.isLoggable(Level.FINEST)) {
-					log.log(Level.FINEST, "READ:{1} [{0}]", new Object[]{toString(), new String(data)});
+				if (!processData(data)) {
+					return;
 				}
+				data = readData();
+			}
+		} else {
+			if (log.isLoggable(Level.FINE)) {
+				log.log(Level.FINE, "Function called when the service is not connected! forceStop() [{0}]", toString());
+			}
+			forceStop();
+		}
+	}
 
-				boolean disconnect = checkData(data);
+	/**
+	 * Parses decoded data received from the socket.
+	 *
+	 * @return <code>false</code> if processing of data should be stopped
+	 */
+	private boolean processData(char[] data) throws IOException {
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "READ:{1} [{0}]", new Object[]{toString(), new String(data)});
+		}
 
-				if (disconnect) {
-					if (log.isLoggable(Level.FINE)) {
-						log.log(Level.FINE, "checkData says disconnect: {1} [{0}]",
-								new Object[]{toString(), new String(data)});
-					} else {
-						log.log(Level.CONFIG, "checkData says disconnect [{0}]", toString());
-					}
-					forceStop();
+		boolean disconnect = checkData(data);
 
-					return;
+		if (disconnect) {
+			if (log.isLoggable(Level.FINE)) {
+				log.log(Level.FINE, "checkData says disconnect: {1} [{0}]",
+						new Object[]{toString(), new String(data)});
+			} else {
+				log.log(Level.CONFIG, "checkData says disconnect [{0}]", toString());
+			}
+			forceStop();
+
+			return false;
+
+			// domHandler = new XMPPDomBuilderHandler<RefObject>(this);
+		}
 
-					// domHandler = new XMPPDomBuilderHandler<RefObject>(this);
+		// This is log for debugging only,
+		// in normal mode don't even call below code
+		assert debug(new String(data), "--RECEIVED:");
+
+		try {
+			parser.parse(domHandler, data, 0, data.length);
+			if (domHandler.parseError()) {
+				if (log.isLoggable(Level.FINE)) {
+					log.log(Level.FINE, "Data parsing error: {1} [{0}]",
+							new Object[]{toString(), StringUtilities.convertNonPrintableCharactersToLiterals(new String(data))});
+				} else {
+					log.log(Level.CONFIG, "Data parsing error, stopping connection [{0}]", toString());
+				}
+				if (serviceListener != null) {
+					Element err = new Element("not-well-formed", new String[]{"xmlns"},
+											  new String[]{"urn:ietf:params:xml:ns:xmpp-streams"});
+					String streamErrorStr = serviceListener.xmppStreamError(this,
+																			Collections.singletonList(err));
+					writeRawData(streamErrorStr);
 				}
+				forceStop();
 
-				// This is log for debugging only,
-				// in normal mode don't even call below code
-				assert debug(new String(data), "--RECEIVED:");
+				return false;
 
-				try {
-					parser.parse(domHandler, data, 0, data.length);
-					if (domHandler.parseError()) {
-						if (log.isLoggable(Level.FINE)) {
-							log.log(Level.FINE, "Data parsing error: {1} [{0}]",
-									new Object[]{toString(), StringUtilities.convertNonPrintableCharactersToLiterals(new String(data))});
-						} else {
-							log.log(Level.CONFIG, "Data parsing error, stopping connection [{0}]", toString());
-						}
-						if (serviceListener != null) {
-							Element err = new Element("not-well-formed", new String[]{"xmlns"},
-													  new String[]{"urn:ietf:params:xml:ns:xmpp-streams"});
-							String streamErrorStr = serviceListener.xmppStreamError(this,
-																					Collections.singletonList(err));
-							writeRawData(streamErrorStr);
-						}
-						forceStop();
+				// domHandler = new XMPPDomBuilderHandler<RefObject>(this);
+			}
 
-						return;
+			moveParsedPacketsToReceived(true);
+		} catch (Exception ex) {
+			log.log(Level.INFO,
+					"Incorrect XML data: " + new String(data) + ", stopping connection " + " [" + toString() +
+							"] exception: ", ex);
+			forceStop();
+		} finally {
+			if (domHandler.isStreamClosed()) {
+				xmppStreamClosed();
+			}
+		}  // end of try-catch
 
-						// domHandler = new XMPPDomBuilderHandler<RefObject>(this);
-					}
+		return true;
+	}
+
+	/**
+	 * Reads data from the socket and parses them directly from bytes. If received data do not look like an XML stream,
+	 * ie. when TLS handshake is started on a plain socket, connection switches to parsing of decoded data.
+	 */
+	private void processSocketBytes() throws IOException {
+		ByteBuffer buffer = readBytes();
 
-					moveParsedPacketsToReceived(true);
+		while (isConnected() && (buffer != null)) {
+			if (!buffer.hasRemaining()) {
+				// not enough data to decode TLS or compressed data
+				buffer.clear();
+				return;
+			}
+			if (byteParserResetRequired) {
+				byteParserResetRequired = false;
+				if (byteParser != null) {
+					byteParser.reset();
+				}
+			}
+			if (byteParser == null) {
+				char[] data;
+				try {
+					data = decodeData(buffer);
 				} catch (Exception ex) {
-					log.log(Level.INFO,
-							"Incorrect XML data: " + new String(data) + ", stopping connection " + " [" + toString() +
-									"] exception: ", ex);
-					forceStop();
-				} finally {
-					if (domHandler.isStreamClosed()) {
-						xmppStreamClosed();
+					if (log.isLoggable(Level.FINEST)) {
+						log.log(Level.FINEST, "Exception decoding data [" + toString() + "] " + ex);
 					}
-				}  // end of try-catch
-				data = readData();
+					forceStop();
+					return;
+				}
+				if ((data != null) && (data.length > 0) && !processData(data)) {
+					return;
+				}
+			} else if (!byteParser.isStarted() && !XMPPByteStreamParser.isXmlStart(buffer)) {
+				if (log.isLoggable(Level.FINEST)) {
+					log.log(Level.FINEST, "Received data is not XML, switching to decoded data parsing [{0}]",
+							toString());
+				}
+				byteParser = null;
+				continue;
+			} else if (!processBytes(buffer)) {
+				return;
 			}
-		} else {
-			if (log.isLoggable(Level.FINE)) {
-				log.log(Level.FINE, "Function called when the service is not connected! forceStop() [{0}]", toString());
+			buffer = readBytes();
+		}
+	}
+
+	/**
+	 * Parses bytes received from the socket.
+	 *
+	 * @return <code>false</code> if processing of data should be stopped
+	 */
+	private boolean processBytes(ByteBuffer buffer) throws IOException {
+		ByteBuffer data = buffer.duplicate();
+
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "READ:{1} [{0}]",
+					new Object[]{toString(), StandardCharsets.UTF_8.decode(data.duplicate())});
+		}
+
+		// This is log for debugging only,
+		// in normal mode don't even call below code
+		assert debug(StandardCharsets.UTF_8.decode(data.duplicate()).toString(), "--RECEIVED:");
+
+		try {
+			byteParser.parse(domHandler, buffer);
+			if (domHandler.parseError()) {
+				if (log.isLoggable(Level.FINE)) {
+					String str = StandardCharsets.UTF_8.decode(data).toString();
+					log.log(Level.FINE, "Data parsing error: {1} [{0}]",
+							new Object[]{toString(), StringUtilities.convertNonPrintableCharactersToLiterals(str)});
+				} else {
+					log.log(Level.CONFIG, "Data parsing error, stopping connection [{0}]", toString());
+				}
+				if (serviceListener != null) {
+					Element err = new Element("not-well-formed", new String[]{"xmlns"},
+											  new String[]{"urn:ietf:params:xml:ns:xmpp-streams"});
+					String streamErrorStr = serviceListener.xmppStreamError(this, Collections.singletonList(err));
+					writeRawData(streamErrorStr);
+				}
+				forceStop();
+
+				return false;
 			}
+
+			moveParsedPacketsToReceived(true);
+		} catch (Exception ex) {
+			log.log(Level.INFO,
+					"Incorrect XML data: " + StandardCharsets.UTF_8.decode(data) + ", stopping connection " + " [" +
+							toString() + "] exception: ", ex);
 			forceStop();
+		} finally {
+			buffer.clear();
+			if (domHandler.isStreamClosed()) {
+				xmppStreamClosed();
+			}
 		}
+
+		return true;
 	}
 
 	@Override
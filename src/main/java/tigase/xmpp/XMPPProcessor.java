@@ -59,6 +59,10 @@ public abstract class XMPPProcessor
 	private Integer queueSize = null;
 	@ConfigField(desc = "Numbers of threads which should be used by processor")
 	private int threadsNo = concurrentQueuesNo();
+	@ConfigField(desc = "Process packets using virtual threads")
+	private boolean virtualThreads = false;
+	@ConfigField(desc = "Allow idle threads to take over queues of users from busy threads")
+	private boolean workStealing = false;
 
 	{
 		cmpInfo = new ComponentInfo(id(), this.getClass());
@@ -159,6 +163,16 @@ public abstract class XMPPProcessor
 		return queueSize;
 	}
 
+	@Override
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	@Override
+	public boolean isWorkStealing() {
+		return workStealing;
+	}
+
 	private Authorization checkPacket(Packet packet, String[][] elemPaths, String[] elemXMLNS, Set<StanzaType> types) {
 		Authorization result = null;
 		boolean names_ok = elemPaths == ALL_PATHS;
@@ -26,4 +26,20 @@ public interface XMPPProcessorConcurrencyAwareIfc {
 
 	Integer getQueueSize();
 
+	/**
+	 * Returns <code>true</code> if packets for the processor should be processed using virtual threads, which is
+	 * useful for processors blocking on I/O, ie. waiting for a database.
+	 */
+	default boolean isVirtualThreads() {
+		return false;
+	}
+
+	/**
+	 * Returns <code>true</code> if idle threads of the processor should take over queues of users waiting for a busy
+	 * thread, so a single very active user does not delay processing of packets of other users.
+	 */
+	default boolean isWorkStealing() {
+		return false;
+	}
+
 }
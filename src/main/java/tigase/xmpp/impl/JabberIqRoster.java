@@ -75,6 +75,8 @@ public class JabberIqRoster
 	private boolean emptyNameAllowed = false;
 	@ConfigField(desc = "Max roster size", alias = "max_roster_size")
 	private int maxRosterSize = 0;
+	@ConfigField(desc = "Max number of removed roster items remembered for roster versioning", alias = "max_removed_roster_items")
+	private int maxRemovedRosterItems = RosterIncremental.MAX_REMOVED_ITEMS_PROP_VAL;
 
 	/**
 	 * Method processes roster <code>get</code> request related to dynamic roster. Generates output packet with data
@@ -194,6 +196,14 @@ public class JabberIqRoster
 		roster_util.setMaxRosterSize(maxRosterSize);
 	}
 
+	public int getMaxRemovedRosterItems() {
+		return RosterIncremental.getMaxRemovedItems();
+	}
+
+	public void setMaxRemovedRosterItems(int maxRemovedRosterItems) {
+		RosterIncremental.setMaxRemovedItems(maxRemovedRosterItems);
+	}
+
 	/**
 	 * {@inheritDoc}
 	 * <br>
@@ -422,6 +432,17 @@ public class JabberIqRoster
 
 				return;
 			}
+
+			// If roster implementation knows what was changed since the version
+			// provided by client, only changed items are pushed to the client.
+			List<RosterAbstract.RosterChange> changes = roster_util.getRosterChanges(session, incomingHash);
+
+			if (changes != null) {
+				results.offer(packet.okResult((String) null, 0));
+				pushRosterChanges(packet, session, changes, results);
+
+				return;
+			}
 		}
 		
 		// Retrieve standard roster items.
@@ -474,6 +495,44 @@ public class JabberIqRoster
 		}
 	}
 
+	/**
+	 * Sends roster items changed since the roster version known to the client as roster pushes, as described in <a
+	 * href="https://xmpp.org/extensions/xep-0237.html">XEP-0237: Roster Versioning</a>.
+	 *
+	 * @param packet roster <code>get</code> request.
+	 * @param session user session which keeps all the user session data.
+	 * @param changes list of roster changes ordered from the oldest one.
+	 * @param results this a collection with packets which have been generated as input packet processing results.
+	 */
+	protected void pushRosterChanges(Packet packet, XMPPResourceConnection session,
+									 List<RosterAbstract.RosterChange> changes, Queue<Packet> results)
+			throws NotAuthorizedException {
+		try {
+			for (RosterAbstract.RosterChange change : changes) {
+				Element iq = new Element("iq", new String[]{"type", "id", "to"},
+										 new String[]{"set", session.nextStanzaId(), session.getJID().toString()});
+
+				iq.setXMLNS(CLIENT_XMLNS);
+
+				Element query = new Element("query");
+
+				query.setXMLNS(RosterAbstract.XMLNS);
+				query.setAttribute(RosterAbstract.VER_ATT, change.ver());
+				query.addChild(change.item());
+				iq.addChild(query);
+
+				Packet push = Packet.packetInstance(iq, null, session.getJID());
+
+				push.setPacketTo(session.getConnectionId());
+				push.setPacketFrom(packet.getTo());
+				results.offer(push);
+			}
+		} catch (NoConnectionIdException ex) {
+			log.log(Level.WARNING, "Problem with roster request, no connection ID for session: {0}, request: {1}",
+					new Object[]{session, packet});
+		}
+	}
+
 	/**
 	 * Method processes roster <code>set</code> request. Performs modifications of user roster.
 	 *
@@ -236,18 +236,7 @@ public class MessageAmp
 			case "presence":
 				if ((offlineProcessor != null) && offlineProcessor.loadOfflineMessages(packet, session)) {
 					try {
-						Queue<Packet> packets = offlineProcessor.restorePacketForOffLineUser(session, msg_repo);
-
-						if (packets != null) {
-							if (log.isLoggable(Level.FINER)) {
-								log.finer("Sending off-line messages: " + packets.size());
-							}
-							results.addAll(packets);
-
-							if (!packets.isEmpty()) {
-								offlineProcessor.notifyOfflineMessagesRetrieved(session, results);
-							}
-						}    // end of if (packets != null)
+						offlineProcessor.deliverOfflineMessages(session, msg_repo, results);
 					} catch (TigaseDBException e) {
 						log.log(Level.CONFIG, "Something wrong, DB problem, cannot load offline messages. " + e);
 					}      // end of try-catch
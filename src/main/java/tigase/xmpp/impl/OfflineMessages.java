@@ -25,9 +25,12 @@ import tigase.kernel.beans.Bean;
 import tigase.kernel.beans.Inject;
 import tigase.kernel.beans.config.ConfigField;
 import tigase.osgi.ModulesManagerImpl;
+import tigase.server.Command;
 import tigase.server.Iq;
 import tigase.server.Packet;
+import tigase.server.ReceiverTimeoutHandler;
 import tigase.server.amp.db.MsgRepository;
+import tigase.server.xmppclient.StreamManagementCommand;
 import tigase.server.xmppsession.SessionManager;
 import tigase.util.dns.DNSResolverFactory;
 import tigase.util.stringprep.TigaseStringprepException;
@@ -40,6 +43,7 @@ import tigase.xmpp.jid.JID;
 
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -115,6 +119,12 @@ public class OfflineMessages
 	 * Field holds class for formatting and parsing dates in a locale-sensitive manner
 	 */
 	private final SimpleDateFormat formatter;
+	@ConfigField(desc = "Time to wait for client to acknowledge delivered offline messages (in seconds)", alias = "delivery-ack-timeout")
+	private long deliveryAckTimeout = 60;
+	@ConfigField(desc = "Number of offline messages delivered at once (0 to deliver all at once)", alias = "delivery-chunk-size")
+	private int deliveryChunkSize = 100;
+	@ConfigField(desc = "Number of unacknowledged messages after which next chunk of offline messages is delivered", alias = "delivery-max-unacked")
+	private int deliveryMaxUnacked = 50;
 	@Inject
 	private MessageDeliveryLogic message;
 	@Inject(nullAllowed = true)
@@ -125,6 +135,8 @@ public class OfflineMessages
 	private List<Notifier> notifiers;
 	@ConfigField(desc = "Store offline messages with mathing paths", alias = MSG_OFFLINE_STORAGE_PATHS)
 	private ElementMatcher[] offlineStorageMatchers = new ElementMatcher[0];
+	@Inject(bean = "service", nullAllowed = true)
+	private SessionManager sessionManager;
 
 	{
 		this.formatter = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
@@ -211,18 +223,7 @@ public class OfflineMessages
 				if (loadOfflineMessages(packet, conn)) {
 					try {
 						OfflineMsgRepositoryIfc msg_repo = getMsgRepoImpl(repo, conn);
-						Queue<Packet> packets = restorePacketForOffLineUser(conn, msg_repo);
-
-						if (packets != null) {
-							if (log.isLoggable(Level.FINER)) {
-								log.finer("Sending off-line messages: " + packets.size());
-							}
-							results.addAll(packets);
-
-							if (!packets.isEmpty()) {
-								notifyOfflineMessagesRetrieved(conn, results);
-							}
-						}    // end of if (packets != null)
+						deliverOfflineMessages(conn, msg_repo, results);
 					} catch (TigaseDBException e) {
 						log.log(Level.CONFIG, "Something wrong, DB problem, cannot load offline messages. " + e);
 					}      // end of try-catch
@@ -295,6 +296,44 @@ public class OfflineMessages
 		}
 	}
 
+	/**
+	 * Method loads messages from repository for the JID of the current session and passes them for delivery.
+	 * <br>
+	 * If repository supports paged loading of messages, messages (already ordered by the repository) are sent in
+	 * chunks. Each next chunk is loaded and sent when client acknowledges delivery of the previous chunk (with
+	 * XEP-0198: Stream Management, if enabled). Otherwise all messages restored by {@link
+	 * #restorePacketForOffLineUser(XMPPResourceConnection, tigase.db.OfflineMsgRepositoryIfc)} are added to {@code
+	 * results}.
+	 *
+	 * @param conn user session which keeps all the user session data and also gives an access to the user's repository
+	 * data.
+	 * @param repo an implementation of {@link MsgRepositoryIfc} interface
+	 * @param results queue to which loaded messages are added, if they are not sent in chunks
+	 *
+	 */
+	public void deliverOfflineMessages(XMPPResourceConnection conn, tigase.db.OfflineMsgRepositoryIfc repo,
+									   Queue<Packet> results)
+			throws UserNotFoundException, NotAuthorizedException, TigaseDBException {
+		if (deliveryChunkSize > 0 && sessionManager != null && repo instanceof MsgRepositoryIfc) {
+			if (new OfflineMessagesStream(conn, (MsgRepositoryIfc) repo).sendNextChunk()) {
+				return;
+			}
+		}
+
+		Queue<Packet> packets = restorePacketForOffLineUser(conn, repo);
+
+		if (packets != null) {
+			if (log.isLoggable(Level.FINER)) {
+				log.finer("Sending off-line messages: " + packets.size());
+			}
+			results.addAll(packets);
+
+			if (!packets.isEmpty()) {
+				notifyOfflineMessagesRetrieved(conn, results);
+			}
+		}    // end of if (packets != null)
+	}
+
 	/**
 	 * Method restores all messages from repository for the JID of the current session. All retrieved elements are then
 	 * instantiated as {@code Packet} objects added to {@code LinkedList} collection and, if possible, sorted by
@@ -314,20 +353,7 @@ public class OfflineMessages
 		Queue<Element> elems = repo.loadMessagesToJID(conn, true);
 
 		if (elems != null) {
-			LinkedList<Packet> pacs = new LinkedList<Packet>();
-			Element elem = null;
-
-			while ((elem = elems.poll()) != null) {
-				try {
-					Packet p = Packet.packetInstance(elem);
-					if (p.getElemName() == Iq.ELEM_NAME) {
-						p.initVars(p.getStanzaFrom(), conn.getJID());
-					}
-					pacs.offer(p);
-				} catch (TigaseStringprepException ex) {
-					log.warning("Packet addressing problem, stringprep failed: " + elem);
-				}
-			}    // end of while (elem = elems.poll() != null)
+			LinkedList<Packet> pacs = toPackets(conn, elems);
 			try {
 				Collections.sort(pacs, new StampComparator());
 			} catch (NullPointerException e) {
@@ -344,6 +370,25 @@ public class OfflineMessages
 		return null;
 	}
 
+	private LinkedList<Packet> toPackets(XMPPResourceConnection conn, Queue<Element> elems)
+			throws NotAuthorizedException {
+		LinkedList<Packet> pacs = new LinkedList<Packet>();
+		Element elem = null;
+
+		while ((elem = elems.poll()) != null) {
+			try {
+				Packet p = Packet.packetInstance(elem);
+				if (p.getElemName() == Iq.ELEM_NAME) {
+					p.initVars(p.getStanzaFrom(), conn.getJID());
+				}
+				pacs.offer(p);
+			} catch (TigaseStringprepException ex) {
+				log.warning("Packet addressing problem, stringprep failed: " + elem);
+			}
+		}    // end of while (elem = elems.poll() != null)
+		return pacs;
+	}
+
 	/**
 	 * Method stores messages to offline repository with the following rules applied, i.e. saves only: <ul> <li> message
 	 * stanza with either nonempty {@code <body>}, {@code <event>} or {@code <header>} child element and only messages
@@ -610,6 +655,112 @@ public class OfflineMessages
 
 	}
 
+	/**
+	 * Delivers offline messages in chunks loaded from the repository page by page. Each chunk is removed from the
+	 * repository when it is passed for delivery (as done when all messages are loaded at once) and next chunk is loaded
+	 * after client connection manager reports that client acknowledged enough of already sent packets. If it does not
+	 * happen in time, remaining messages are kept in the repository.
+	 */
+	private class OfflineMessagesStream
+			implements MsgRepository.OfflineMessagesProcessor, ReceiverTimeoutHandler {
+
+		private final XMPPResourceConnection conn;
+		private final MsgRepositoryIfc repo;
+		private boolean hasMore = false;
+		private long lastMsgId = 0;
+		private int loadedRows = 0;
+
+		private OfflineMessagesStream(XMPPResourceConnection conn, MsgRepositoryIfc repo) {
+			this.conn = conn;
+			this.repo = repo;
+		}
+
+		/**
+		 * Loads next chunk of messages and sends it to the user. If there are more messages in the repository, request
+		 * to wait for acknowledgement of sent messages is sent to the client connection manager after the chunk.
+		 *
+		 * @return {@code false} if repository does not support paged loading of messages
+		 */
+		public boolean sendNextChunk() throws UserNotFoundException, NotAuthorizedException, TigaseDBException {
+			Queue<Packet> pacs;
+			do {
+				long afterMsgId = lastMsgId;
+				loadedRows = 0;
+				Queue<Element> elems = repo.loadMessagesPageToJID(conn, afterMsgId, deliveryChunkSize, this);
+				if (elems == null) {
+					return false;
+				}
+				hasMore = loadedRows >= deliveryChunkSize;
+				if (lastMsgId > afterMsgId) {
+					repo.deleteMessagesUpToId(conn, lastMsgId);
+				}
+				pacs = toPackets(conn, elems);
+				// page without any valid message should not stop delivery
+			} while (pacs.isEmpty() && hasMore);
+
+			if (!pacs.isEmpty()) {
+				if (log.isLoggable(Level.FINER)) {
+					log.finer("Sending off-line messages: " + pacs.size());
+				}
+				notifyOfflineMessagesRetrieved(conn, pacs);
+				for (Packet packet : pacs) {
+					sessionManager.addOutPacket(packet);
+				}
+			}
+			if (hasMore) {
+				// sent after the chunk, so client connection manager waits for acknowledgement of its packets
+				try {
+					waitForAck();
+				} catch (NoConnectionIdException ex) {
+					log.log(Level.FINE, "No connection id, remaining offline messages kept for {0}", conn);
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public void responseReceived(Packet data, Packet response) {
+			if (response.getType() == StanzaType.error || !conn.isAuthorized()) {
+				if (log.isLoggable(Level.FINE)) {
+					log.log(Level.FINE, "Connection gone, stopping delivery of offline messages for {0}", conn);
+				}
+				return;
+			}
+			try {
+				sendNextChunk();
+			} catch (NotAuthorizedException ex) {
+				log.log(Level.FINE, "Session closed, stopping delivery of offline messages for {0}", conn);
+			} catch (TigaseDBException e) {
+				log.log(Level.CONFIG, "Something wrong, DB problem, cannot load offline messages. " + e);
+			}
+		}
+
+		@Override
+		public void rowLoaded(String msgID) {
+			++loadedRows;
+			lastMsgId = Math.max(lastMsgId, Long.parseLong(msgID));
+		}
+
+		@Override
+		public void stamp(Element msg, String msgID) {
+		}
+
+		@Override
+		public void timeOutExpired(Packet data) {
+			if (log.isLoggable(Level.FINE)) {
+				log.log(Level.FINE, "Offline messages not acknowledged in time, remaining messages kept for {0}",
+						conn);
+			}
+		}
+
+		private void waitForAck() throws NoConnectionIdException {
+			Packet request = StreamManagementCommand.WAIT_FOR_ACK.create(conn.getSMComponentId(),
+																		 conn.getConnectionId());
+			Command.addFieldValue(request, "max-unacked", String.valueOf(deliveryMaxUnacked));
+			sessionManager.addOutPacketWithTimeout(request, this, deliveryAckTimeout, TimeUnit.SECONDS);
+		}
+	}
+
 	@Bean(name = "msg-offline-pubsub-publisher-notifier", parent = SessionManager.class, active = false, exportable = true)
 	public static class PubSubPublisherNotifier
 			implements Notifier {
@@ -55,6 +55,8 @@ public abstract class PresenceAbstract
 
 	public static final String SKIP_OFFLINE_SYS_PROP_KEY = "skip-offline-sys";
 
+	public static final String SHARED_PRESENCE_FANOUT_KEY = "shared-presence-fanout";
+
 	public static final String USERS_STATUS_CHANGES = "Users status changes";
 
 	protected static final String XMLNS = CLIENT_XMLNS;
@@ -70,6 +72,9 @@ public abstract class PresenceAbstract
 	@ConfigField(desc = "Skip offline sys", alias = SKIP_OFFLINE_SYS_PROP_KEY)
 	// Setting this option to true will cause issues with PEP support!
 	private static boolean skipOfflineSys = false;
+	@ConfigField(desc = "Share presence payload between recipients of presence broadcast", alias = SHARED_PRESENCE_FANOUT_KEY)
+	// Child elements of broadcasted presence are shared by all sent stanzas and must not be modified in place
+	protected static boolean sharedPresenceFanout = false;
 
 	protected RosterAbstract roster_util = getRosterUtil();
 
@@ -108,6 +113,22 @@ public abstract class PresenceAbstract
 		return RosterFactory.getRosterImplementation(true);
 	}
 
+	/**
+	 * Returns new instance of {@link PresenceFanout} to be used for broadcast of presence {@code pres} if sharing of
+	 * presence payload is enabled.
+	 *
+	 * @param pres an Object of type {@link Element} holding Presence stanza to be broadcasted.
+	 *
+	 * @return instance of {@link PresenceFanout} or {@code null} if presence should be sent separately to each
+	 * recipient.
+	 */
+	protected static PresenceFanout createPresenceFanout(Element pres) {
+		if (!sharedPresenceFanout || pres == null) {
+			return null;
+		}
+		return new PresenceFanout();
+	}
+
 	protected static Element prepareProbe(XMPPResourceConnection session) throws NotAuthorizedException {
 		Element presProbe = new Element(PRESENCE_ELEMENT_NAME);
 		presProbe.setXMLNS(XMLNS);
@@ -237,6 +258,44 @@ public abstract class PresenceAbstract
 		sendPresence(t, JID.jidInstance(from), JID.jidInstance(to), results, pres);
 	}
 
+	/**
+	 * Sends Presence stanza in the same way as {@link #sendPresence(StanzaType, BareJID, BareJID, Queue, Element)}
+	 * using {@link PresenceFanout} if {@code fanout} is not {@code null}.
+	 *
+	 * @param fanout instance of {@link PresenceFanout} or {@code null}.
+	 * @param t specifies type of the presence to be send.
+	 * @param from is a <code>JID</code> instance with stanza source address.
+	 * @param to is a <code>JID</code> instance with stanza destination address.
+	 * @param results this a collection with packets which have been generated as input packet processing results.
+	 * @param pres an Object of type {@link Element} holding Presence stanza to be sent.
+	 */
+	protected static void sendPresence(PresenceFanout fanout, StanzaType t, BareJID from, BareJID to,
+									   Queue<Packet> results, Element pres) {
+		sendPresence(fanout, t, JID.jidInstance(from), JID.jidInstance(to), results, pres);
+	}
+
+	/**
+	 * Sends Presence stanza in the same way as {@link #sendPresence(StanzaType, JID, JID, Queue, Element)} but if
+	 * {@code fanout} is not {@code null} the stanza is created by {@link PresenceFanout} sharing the {@code pres}
+	 * payload and is added to {@code results} when {@link PresenceFanout#flush(Queue)} is called.
+	 *
+	 * @param fanout instance of {@link PresenceFanout} or {@code null}.
+	 * @param t specifies type of the presence to be send.
+	 * @param from is a <code>JID</code> instance with stanza source address.
+	 * @param to is a <code>JID</code> instance with stanza destination address.
+	 * @param results this a collection with packets which have been generated as input packet processing results.
+	 * @param pres an Object of type {@link Element} holding Presence stanza to be sent.
+	 *
+	 * @return an instance of {@link Packet} holding Presence stanza created from provided parameters.
+	 */
+	protected static Packet sendPresence(PresenceFanout fanout, StanzaType t, JID from, JID to, Queue<Packet> results,
+										 Element pres) {
+		if (fanout != null && pres != null) {
+			return fanout.add(pres, to);
+		}
+		return sendPresence(t, from, to, results, pres);
+	}
+
 	/**
 	 * <code>updatePresenceChange</code> method is used to broadcast to all active resources presence stanza received
 	 * from other users, like incoming availability presence, subscription presence and so on... Initial presences are
@@ -461,6 +520,9 @@ public abstract class PresenceAbstract
 		Element presInit = session.getPresence();
 		Element presProbe = prepareProbe(session);
 
+		// Initial presence and probes are sent to the same contacts so they share the same batches
+		PresenceFanout fanout = createPresenceFanout(presInit);
+
 		JID[] buddies = roster_util.getBuddies(session, SUB_BOTH);
 
 		try {
@@ -475,11 +537,11 @@ public abstract class PresenceAbstract
 					if (log.isLoggable(Level.FINEST)) {
 						log.log(Level.FINEST, session.getBareJID() + " | Sending presence probe to: " + buddy);
 					}
-					sendPresence(null, session.getBareJID(), buddy.getBareJID(), results, presProbe);
+					sendPresence(fanout, null, session.getBareJID(), buddy.getBareJID(), results, presProbe);
 					if (log.isLoggable(Level.FINEST)) {
 						log.log(Level.FINEST, session.getBareJID() + " | Sending initial presence to: " + buddy);
 					}
-					sendPresence(null, session.getBareJID(), buddy.getBareJID(), results, presInit);
+					sendPresence(fanout, null, session.getBareJID(), buddy.getBareJID(), results, presInit);
 					roster_util.setPresenceSent(session, buddy, true);
 				} else {
 					if (log.isLoggable(Level.FINEST)) {
@@ -504,7 +566,7 @@ public abstract class PresenceAbstract
 					if (log.isLoggable(Level.FINEST)) {
 						log.log(Level.FINEST, session.getBareJID() + " | Sending probe to: " + buddy);
 					}
-					sendPresence(null, session.getBareJID(), buddy.getBareJID(), results, presProbe);
+					sendPresence(fanout, null, session.getBareJID(), buddy.getBareJID(), results, presProbe);
 				} else {
 					if (log.isLoggable(Level.FINEST)) {
 						log.log(Level.FINEST, session.getBareJID() + " | Skipping sending presence probe to: " + buddy);
@@ -529,7 +591,7 @@ public abstract class PresenceAbstract
 					if (log.isLoggable(Level.FINEST)) {
 						log.log(Level.FINEST, session.getBareJID() + " | Sending initial presence to: " + buddy);
 					}
-					sendPresence(null, session.getBareJID(), buddy.getBareJID(), results, presInit);
+					sendPresence(fanout, null, session.getBareJID(), buddy.getBareJID(), results, presInit);
 					roster_util.setPresenceSent(session, buddy, true);
 				} else {
 					if (log.isLoggable(Level.FINEST)) {
@@ -539,6 +601,9 @@ public abstract class PresenceAbstract
 				}
 			}    // end of for (String buddy: buddies)
 		}      // end of if (buddies == null)
+		if (fanout != null) {
+			fanout.flush(results);
+		}
 	}
 
 	@Override
@@ -0,0 +1,138 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xmpp.impl;
+
+import tigase.server.Packet;
+import tigase.util.stringprep.TigaseStringprepException;
+import tigase.xml.Element;
+import tigase.xmpp.jid.JID;
+
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Helper used to send the same presence to many recipients, ie. during presence broadcast to all roster contacts.
+ * <br>
+ * Each presence payload is prepared only once: its attributes, child elements and the sender address are read and
+ * parsed when the payload is used for the first time. Stanza for each recipient is a new top level element with its
+ * own attributes (so the <code>to</code> attribute may be set) while the child elements (status, priority, caps, etc.)
+ * are shared by all of the generated stanzas instead of being deep copied for every recipient. Shared child elements
+ * must be treated as read-only - code which needs to modify them has to make its own copy, ie. by
+ * {@link Packet#copyElementOnly()}.
+ * <br>
+ * Generated packets are grouped by the domain of the recipient, as packets for the same domain are routed to the same
+ * component (local session manager, s2s or cluster connection), and offered to the results queue group by group in
+ * {@link #flush(Queue)}, so each group is added to the destination queue as a single batch.
+ */
+public class PresenceFanout {
+
+	private static final Logger log = Logger.getLogger(PresenceFanout.class.getName());
+
+	private final Map<String, List<Packet>> batches = new LinkedHashMap<>();
+	private final Map<Element, Payload> payloads = new IdentityHashMap<>(4);
+	private int size = 0;
+
+	/**
+	 * Creates stanza with presence <code>pres</code> addressed to <code>to</code> and adds it to the batch of packets
+	 * for domain of the recipient.
+	 *
+	 * @param pres presence payload, which is not modified and may be used for many recipients.
+	 * @param to is a <code>JID</code> instance with stanza destination address.
+	 *
+	 * @return an instance of {@link Packet} holding presence stanza or <code>null</code> if presence could not be
+	 * created.
+	 */
+	public Packet add(Element pres, JID to) {
+		Payload payload = payloads.get(pres);
+		if (payload == null) {
+			payload = new Payload(pres);
+			payloads.put(pres, payload);
+		}
+		if (payload.invalid) {
+			return null;
+		}
+
+		Element presence = new Element(payload.name);
+		if (payload.attributes != null) {
+			presence.setAttributes(payload.attributes);
+		}
+		if (payload.xmlns != null) {
+			presence.setXMLNS(payload.xmlns);
+		}
+		if (payload.children != null) {
+			presence.addChildren(payload.children);
+		}
+		presence.setAttribute("to", to.toString());
+
+		Packet result = Packet.packetInstance(presence, payload.from, to);
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Sending presence info: {0}", result);
+		}
+		batches.computeIfAbsent(to.getDomain(), domain -> new ArrayList<>()).add(result);
+		++size;
+		return result;
+	}
+
+	/**
+	 * Offers all collected packets to <code>results</code>, grouped by the domain of the recipient.
+	 *
+	 * @param results this a collection with packets which have been generated as input packet processing results.
+	 *
+	 * @return number of packets added to <code>results</code>.
+	 */
+	public int flush(Queue<Packet> results) {
+		int count = size;
+		for (List<Packet> batch : batches.values()) {
+			results.addAll(batch);
+		}
+		batches.clear();
+		size = 0;
+		return count;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	private static class Payload {
+
+		private final Map<String, String> attributes;
+		private final List<Element> children;
+		private final String name;
+		private final String xmlns;
+		private JID from;
+		private boolean invalid = false;
+
+		private Payload(Element pres) {
+			name = pres.getName();
+			xmlns = pres.getXMLNS();
+			attributes = pres.getAttributes();
+			children = pres.getChildren();
+			String fromStr = pres.getAttributeStaticStr(Packet.FROM_ATT);
+			if (fromStr != null) {
+				try {
+					from = JID.jidInstance(fromStr);
+				} catch (TigaseStringprepException ex) {
+					log.log(Level.FINE, "Packet stringprep addressing problem, skipping presence send: {0}", pres);
+					invalid = true;
+				}
+			}
+		}
+	}
+}
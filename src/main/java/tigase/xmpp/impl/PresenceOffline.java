@@ -48,18 +48,15 @@ import tigase.xmpp.impl.annotation.Handles;
 import tigase.xmpp.impl.annotation.Id;
 import tigase.xmpp.impl.roster.RosterAbstract;
 import tigase.xmpp.impl.roster.RosterElement;
-import tigase.xmpp.impl.roster.RosterFlat;
 import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
 
 import java.io.Serializable;
 import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import static tigase.xmpp.impl.roster.RosterAbstract.ROSTER;
 
 @Id(PresenceOffline.ID)
 @Handles({@Handle(path = {PresenceAbstract.PRESENCE_ELEMENT_NAME}, xmlns = PresenceAbstract.CLIENT_XMLNS),
@@ -338,19 +335,17 @@ public class PresenceOffline
 		}
 
 		if (roster == null) {
-			String rosterString = null;
 			try {
-				rosterString = userRepository.getData(owner, ROSTER);
+				roster = roster_util.loadStoredRoster(userRepository, owner);
 			} catch (TigaseDBException ex) {
 				log.log(Level.WARNING, "Problem reading roster from DB: ", ex);
 			}
 
-			if (rosterString != null) {
-				roster = new ConcurrentHashMap<BareJID, RosterElement>(100, 0.25f, 1);
-				RosterFlat.parseRosterUtil(rosterString, roster, null);
-				if (log.isLoggable(Level.FINEST)) {
-					log.log(Level.FINEST, "Loaded roster from DB: {0}", roster);
-				}
+			if (roster != null && roster.isEmpty()) {
+				roster = null;
+			}
+			if (roster != null && log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Loaded roster from DB: {0}", roster);
 			}
 		}
 
@@ -258,10 +258,11 @@ public class PresenceState
 
 			Priority pack_priority = Priority.PRESENCE;
 			int pres_cnt = 0;
+			PresenceFanout fanout = createPresenceFanout(pres);
 
 			for (JID buddy : buddies) {
 				if (requiresPresenceSending(roster, buddy, session, false)) {
-					Packet pack = sendPresence(t, session.getJID(), buddy, results, pres);
+					Packet pack = sendPresence(fanout, t, session.getJID(), buddy, results, pres);
 
 					if (pres_cnt == HIGH_PRIORITY_PRESENCES_NO) {
 						++pres_cnt;
@@ -277,6 +278,9 @@ public class PresenceState
 					}
 				}
 			}    // end of for (String buddy: buddies)
+			if (fanout != null) {
+				fanout.flush(results);
+			}
 		} else {
 			if (log.isLoggable(Level.FINEST)) {
 				log.log(Level.FINEST, "No buddies found!!!!");
@@ -30,10 +30,8 @@ import tigase.xmpp.XMPPResourceConnection;
 import tigase.xmpp.impl.roster.RosterAbstract;
 import tigase.xmpp.impl.roster.RosterElement;
 import tigase.xmpp.impl.roster.RosterFactory;
-import tigase.xmpp.impl.roster.RosterFlat;
 import tigase.xmpp.jid.BareJID;
 
-import java.util.HashMap;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -106,11 +104,6 @@ public class IgnoreFromUnknownFilter
 	}
 
 	protected Map<BareJID, RosterElement> getRoster(BareJID jid) throws TigaseDBException {
-		String tmp = userRepository.getData(jid, "roster");
-		Map<BareJID, RosterElement> roster = new HashMap<BareJID, RosterElement>();
-		if (tmp != null) {
-			RosterFlat.parseRosterUtil(tmp, roster, null);
-		}
-		return roster;
+		return roster_util.loadStoredRoster(userRepository, jid);
 	}
 }
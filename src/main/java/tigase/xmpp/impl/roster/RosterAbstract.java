@@ -537,6 +537,28 @@ public abstract class RosterAbstract {
 		throw new UnsupportedOperationException("Feature not implemented in " + this.getClass().getCanonicalName());
 	}
 
+	/**
+	 * Loads roster of the user directly from the repository, ie. for a user without an active session.
+	 *
+	 * @return roster of the user, empty if user has no roster stored
+	 */
+	public Map<BareJID, RosterElement> loadStoredRoster(UserRepository repository, BareJID owner)
+			throws TigaseDBException {
+		throw new UnsupportedOperationException("Feature not implemented in " + this.getClass().getCanonicalName());
+	}
+
+	/**
+	 * Returns roster items changed since roster version <code>ver</code> known to the client as described in <a
+	 * href="https://xmpp.org/extensions/xep-0237.html">XEP-0237: Roster Versioning</a>, ordered from the oldest change.
+	 *
+	 * @return list of changes or <code>null</code> if changes since this version are not known and the whole roster has
+	 * to be sent
+	 */
+	public List<RosterChange> getRosterChanges(XMPPResourceConnection session, String ver)
+			throws NotAuthorizedException, TigaseDBException {
+		return null;
+	}
+
 	@Deprecated
 	@TigaseDeprecated(since = "8.2.0", removeIn = "9.0.0", note = "We should only allow BareJIDs")
 	public abstract void addBuddy(XMPPResourceConnection session, JID jid, String name, String[] groups,
@@ -1076,6 +1098,13 @@ public abstract class RosterAbstract {
 		// end of for (XMPPResourceConnection conn: sessions)
 	}
 
+	/**
+	 * Roster item to be pushed to the client together with roster version after the change.
+	 */
+	public record RosterChange(String ver, Element item) {
+
+	}
+
 	public static class RosterModifiedEvent
 			extends UserSessionEventWithProcessorResultWriter {
 
@@ -52,6 +52,7 @@ public class RosterElement {
 	private static final String OTHER_ATT = "other";
 	private static final String STRINGPREP_ATT = "preped";
 	private static final String SUBS_ATT = "subs";
+	private static final String VERSION_ATT = "ver";
 	private static final String WEIGHT_ATT = "weight";
 	private static final String MIX_PARTICIPANT_ID_ATT = "mix-id";
 
@@ -70,6 +71,7 @@ public class RosterElement {
 	private boolean presence_sent = false;
 	private String stringpreped = null;
 	private SubscriptionType subscription = null;
+	private long version = 0;
 	private double weight = INITIAL_WEIGHT_VAL;
 
 	public RosterElement(Element roster_el) throws TigaseStringprepException {
@@ -125,6 +127,15 @@ public class RosterElement {
 					lastSeen = INITIAL_LAST_SEEN_VAL;
 				}
 			}
+			num_str = roster_el.getAttributeStaticStr(VERSION_ATT);
+			if (num_str != null) {
+				try {
+					version = Long.parseLong(num_str);
+				} catch (NumberFormatException nfe) {
+					log.warning("Incorrect version field: " + num_str);
+					version = 0;
+				}
+			}
 			// how roster can be modified as it is read from DB?
 			modified = false;
 		} else {
@@ -259,6 +270,9 @@ public class RosterElement {
 		elem.setAttribute(ACTIVITY_ATT, Double.toString(activity));
 		elem.setAttribute(WEIGHT_ATT, Double.toString(weight));
 		elem.setAttribute(LAST_SEEN_ATT, Long.toString(lastSeen));
+		if (version > 0) {
+			elem.setAttribute(VERSION_ATT, Long.toString(version));
+		}
 		modified = false;
 
 		return elem;
@@ -370,6 +384,18 @@ public class RosterElement {
 		modified = true;
 	}
 
+	/**
+	 * Returns version of the roster in which this item was modified for the last time or <code>0</code> if roster
+	 * storage does not support versioning.
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	public void setVersion(long version) {
+		this.version = version;
+	}
+
 	private void setJid(JID jid) {
 		this.jid = jid;
 		modified = true;
@@ -274,7 +274,7 @@ public class RosterFlat
 		return relem.getRosterItem();
 	}
 
-	private Element getBuddyItem(final XMPPResourceConnection session, RosterElement relem) {
+	protected Element getBuddyItem(final XMPPResourceConnection session, RosterElement relem) {
 		Element item = getBuddyItem(relem);
 		if (Boolean.TRUE.equals(session.getSessionData("urn:xmpp:mix:roster:0"))) {
 			String participantId = relem.getMixParticipantId();
@@ -617,13 +617,20 @@ public class RosterFlat
 	}
 
 	@Override
-	public void modifyStoredRoster(UserRepository repository, BareJID owner,
-								   Consumer<Map<BareJID, RosterElement>> modifyRoster) throws TigaseDBException {
+	public Map<BareJID, RosterElement> loadStoredRoster(UserRepository repository, BareJID owner)
+			throws TigaseDBException {
 		String rosterStr = repository.getData(owner, null, RosterAbstract.ROSTER, null);
 		Map<BareJID, RosterElement> roster = new LinkedHashMap<>();
 		if (rosterStr != null) {
 			RosterFlat.parseRosterUtil(rosterStr, roster, null);
 		}
+		return roster;
+	}
+
+	@Override
+	public void modifyStoredRoster(UserRepository repository, BareJID owner,
+								   Consumer<Map<BareJID, RosterElement>> modifyRoster) throws TigaseDBException {
+		Map<BareJID, RosterElement> roster = loadStoredRoster(repository, owner);
 		modifyRoster.accept(roster);
 		StringBuilder sb = new StringBuilder();
 		for (RosterElement relem : roster.values()) {
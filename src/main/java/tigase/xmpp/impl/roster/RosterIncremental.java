@@ -0,0 +1,553 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xmpp.impl.roster;
+
+import tigase.db.TigaseDBException;
+import tigase.db.UserRepository;
+import tigase.util.Algorithms;
+import tigase.xml.DomBuilderHandler;
+import tigase.xml.Element;
+import tigase.xml.SimpleParser;
+import tigase.xml.SingletonFactory;
+import tigase.xmpp.NotAuthorizedException;
+import tigase.xmpp.XMPPResourceConnection;
+import tigase.xmpp.jid.BareJID;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Roster implementation which stores every roster item separately instead of the whole roster as a single value.
+ * <br>
+ * Items are stored in <code>roster-items</code> subnode with bare JID of the contact as a key, so a change of a single
+ * item writes only this item and the roster is loaded with a single query without parsing one large XML string. Every
+ * change increases roster version, which is stored with changed items and with removed items in
+ * <code>roster-removed</code> subnode, so a client with a cached roster receives only items changed since its version
+ * as described in <a href="https://xmpp.org/extensions/xep-0237.html">XEP-0237: Roster Versioning</a>.
+ * <br>
+ * Roster stored by {@link RosterFlat} is converted to this format when it is loaded for the first time.
+ */
+public class RosterIncremental
+		extends RosterFlat {
+
+	public static final String ROSTER_ITEMS_NODE = ROSTER + "-items";
+	public static final String ROSTER_MIN_VERSION_KEY = "min-version";
+	public static final String ROSTER_REMOVED_NODE = ROSTER + "-removed";
+	public static final String ROSTER_VERSION_KEY = "version";
+	/** Default maximal number of removed items remembered to provide roster changes */
+	public static final int MAX_REMOVED_ITEMS_PROP_VAL = 1000;
+
+	private static final String MIX_ANNOTATE = "urn:xmpp:mix:roster:0";
+	private static final String ROSTER_HASH_SUFFIX = "roster-hash-suffix";
+	private static final String ROSTER_STATE = "roster-state";
+	private static final Logger log = Logger.getLogger(RosterIncremental.class.getName());
+	private static final SimpleParser parser = SingletonFactory.getParserInstance();
+
+	protected static int maxRemovedItems = MAX_REMOVED_ITEMS_PROP_VAL;
+
+	public static int getMaxRemovedItems() {
+		return maxRemovedItems;
+	}
+
+	public static void setMaxRemovedItems(int maxRemovedItems) {
+		RosterIncremental.maxRemovedItems = maxRemovedItems;
+	}
+
+	private static long parseVersion(String value) {
+		if (value == null) {
+			return 0;
+		}
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException ex) {
+			log.log(Level.WARNING, "Incorrect roster version: {0}", value);
+			return 0;
+		}
+	}
+
+	private static RosterElement parseItem(String item) {
+		DomBuilderHandler domHandler = new DomBuilderHandler();
+
+		parser.parse(domHandler, item.toCharArray(), 0, item.length());
+
+		Queue<Element> elems = domHandler.getParsedElements();
+		Element elem = elems == null ? null : elems.poll();
+
+		if (elem == null) {
+			log.log(Level.WARNING, "Can't parse roster element: {0}", item);
+			return null;
+		}
+		try {
+			return new RosterElement(elem);
+		} catch (Exception e) {
+			log.log(Level.WARNING, "Can't load roster element: " + elem, e);
+			return null;
+		}
+	}
+
+	private static Element removedItem(BareJID jid) {
+		return new Element("item", new String[]{"jid", SUBSCRIPTION}, new String[]{jid.toString(), "remove"});
+	}
+
+	@Override
+	public Map<BareJID, RosterElement> loadUserRoster(XMPPResourceConnection session)
+			throws NotAuthorizedException, TigaseDBException {
+		Map<BareJID, RosterElement> roster = new ConcurrentHashMap<BareJID, RosterElement>(100, 0.25f, 1);
+		RosterState state = new RosterState();
+
+		session.putCommonSessionData(ROSTER_STATE, state);
+		session.putCommonSessionData(ROSTER, roster);
+		synchronized (state) {
+			loadRoster(new SessionStore(session), state, roster);
+		}
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Loaded user {0} roster, version: {1}, items: {2}",
+					new Object[]{session.getjid(), state.version, roster.size()});
+		}
+
+		return roster;
+	}
+
+	@Override
+	public Map<BareJID, RosterElement> loadStoredRoster(UserRepository repository, BareJID owner)
+			throws TigaseDBException {
+		RepositoryStore store = new RepositoryStore(repository, owner);
+
+		if (store.getData(ROSTER, ROSTER_VERSION_KEY) == null) {
+			// roster was not converted yet
+			return super.loadStoredRoster(repository, owner);
+		}
+
+		Map<BareJID, RosterElement> roster = new LinkedHashMap<>();
+
+		readItems(store, new RosterState(), roster);
+
+		return roster;
+	}
+
+	@Override
+	public void modifyStoredRoster(UserRepository repository, BareJID owner,
+								   Consumer<Map<BareJID, RosterElement>> modifyRoster) throws TigaseDBException {
+		RepositoryStore store = new RepositoryStore(repository, owner);
+		RosterState state = new RosterState();
+		Map<BareJID, RosterElement> roster = new LinkedHashMap<>();
+
+		try {
+			loadRoster(store, state, roster);
+			modifyRoster.accept(roster);
+			storeChanges(store, state, roster);
+		} catch (NotAuthorizedException ex) {
+			throw new TigaseDBException("Could not modify roster of " + owner, ex);
+		}
+	}
+
+	@Override
+	public List<RosterChange> getRosterChanges(XMPPResourceConnection session, String ver)
+			throws NotAuthorizedException, TigaseDBException {
+		if (ver == null || ver.isEmpty()) {
+			return null;
+		}
+
+		int idx = ver.indexOf('-');
+		String suffix = idx < 0 ? "" : ver.substring(idx);
+		String currentSuffix = (String) session.getSessionData(ROSTER_HASH_SUFFIX);
+
+		// dynamic roster or MIX annotations changed, so changes of the stored roster are not enough
+		if (!suffix.equals(currentSuffix == null ? "" : currentSuffix)) {
+			return null;
+		}
+
+		long since;
+
+		try {
+			since = Long.parseLong(idx < 0 ? ver : ver.substring(0, idx));
+		} catch (NumberFormatException ex) {
+			return null;
+		}
+
+		Map<BareJID, RosterElement> roster = getUserRoster(session);
+		RosterState state = getRosterState(session);
+		Map<BareJID, Long> removed;
+
+		synchronized (state) {
+			if (since < state.minVersion || since > state.version) {
+				return null;
+			}
+			removed = new HashMap<>(getRemoved(new SessionStore(session), state));
+		}
+
+		List<Map.Entry<Long, Element>> changes = new ArrayList<>();
+
+		for (RosterElement relem : roster.values()) {
+			if (relem.isPersistent() && relem.getVersion() > since) {
+				// the same items as in RosterFlat.getRosterItems() are visible to the client
+				Element item = SubscriptionType.none_pending_in.equals(relem.getSubscription())
+							   ? removedItem(relem.getJid().getBareJID())
+							   : getBuddyItem(session, relem);
+				changes.add(Map.entry(relem.getVersion(), item));
+			}
+		}
+		for (Map.Entry<BareJID, Long> e : removed.entrySet()) {
+			if (e.getValue() <= since) {
+				continue;
+			}
+
+			RosterElement relem = roster.get(e.getKey());
+
+			// item was added again after it was removed
+			if (relem != null && relem.isPersistent() && relem.getVersion() > e.getValue()) {
+				continue;
+			}
+			changes.add(Map.entry(e.getValue(), removedItem(e.getKey())));
+		}
+		changes.sort(Map.Entry.comparingByKey());
+
+		List<RosterChange> result = new ArrayList<>(changes.size());
+
+		for (Map.Entry<Long, Element> change : changes) {
+			result.add(new RosterChange(change.getKey() + suffix, change.getValue()));
+		}
+
+		return result;
+	}
+
+	@Override
+	protected void saveUserRoster(XMPPResourceConnection session) throws NotAuthorizedException, TigaseDBException {
+		Map<BareJID, RosterElement> roster = getUserRoster(session);
+		RosterState state = getRosterState(session);
+		long version;
+
+		synchronized (state) {
+			if (!storeChanges(new SessionStore(session), state, roster)) {
+				return;
+			}
+			version = state.version;
+		}
+		updateRosterVersion(session, version);
+	}
+
+	@Override
+	protected void updateRosterHashForConnection(XMPPResourceConnection conn)
+			throws NotAuthorizedException, TigaseDBException {
+		RosterState state = getRosterState(conn);
+		StringBuilder suffix = new StringBuilder();
+
+		if (Boolean.TRUE.equals(conn.getSessionData(MIX_ANNOTATE))) {
+			suffix.append("-mix");
+		}
+		try {
+			List<Element> its = DynamicRoster.getRosterItems(conn, Collections.emptyMap());
+
+			if (its != null && !its.isEmpty()) {
+				StringBuilder sb = new StringBuilder(4096);
+
+				for (Element item : its) {
+					item.toString(sb);
+				}
+				suffix.append('-').append(Algorithms.hexDigest("", sb.toString(), "MD5"));
+			}
+		} catch (RosterRetrievingException | RepositoryAccessException ex) {
+			throw new TigaseDBException("Could not load dynamic roster", ex);
+		} catch (Exception ex) {
+			log.log(Level.WARNING, "Could not calculate dynamic roster hash", ex);
+		}
+
+		long version;
+
+		synchronized (state) {
+			version = state.version;
+		}
+		conn.putSessionData(ROSTER_HASH_SUFFIX, suffix.toString());
+		conn.putSessionData(ROSTERHASH, version + suffix.toString());
+	}
+
+	@Override
+	protected void updateRosterItem(XMPPResourceConnection session, RosterModifiedEvent event)
+			throws NotAuthorizedException, TigaseDBException {
+		// item was already stored by the cluster node which sent the event
+		super.updateRosterItem(session, event);
+
+		Map<BareJID, RosterElement> roster = getUserRoster(session);
+		RosterState state = getRosterState(session);
+		BareJID jid = event.getJid().getBareJID();
+		long version;
+
+		synchronized (state) {
+			state.version = Math.max(state.version + 1,
+									 parseVersion(session.getData(ROSTER, ROSTER_VERSION_KEY, null)));
+			version = state.version;
+			if (event.getSubscription() == SubscriptionType.remove) {
+				state.stored.remove(jid);
+				getRemoved(new SessionStore(session), state).put(jid, version);
+			} else {
+				RosterElement relem = roster.get(jid);
+				if (relem != null) {
+					relem.setVersion(version);
+					state.stored.add(jid);
+				}
+			}
+		}
+		updateRosterVersion(session, version);
+	}
+
+	protected RosterState getRosterState(XMPPResourceConnection session)
+			throws NotAuthorizedException, TigaseDBException {
+		getUserRoster(session);
+
+		return (RosterState) session.getCommonSessionData(ROSTER_STATE);
+	}
+
+	private void loadRoster(RosterStore store, RosterState state, Map<BareJID, RosterElement> roster)
+			throws NotAuthorizedException, TigaseDBException {
+		if (store.getData(ROSTER, ROSTER_VERSION_KEY) != null) {
+			if (readItems(store, state, roster)) {
+				storeChanges(store, state, roster);
+			}
+			return;
+		}
+
+		// roster stored by RosterFlat is converted to separate items
+		String rosterStr = store.getData(null, ROSTER);
+
+		if (rosterStr != null && !rosterStr.isEmpty()) {
+			parseRosterUtil(rosterStr, roster, null);
+		}
+		storeChanges(store, state, roster);
+		store.setData(ROSTER, ROSTER_VERSION_KEY, String.valueOf(state.version));
+		if (rosterStr != null) {
+			store.removeData(null, ROSTER);
+		}
+		if (log.isLoggable(Level.FINE)) {
+			log.log(Level.FINE, "Converted roster with {0} items to separate items", roster.size());
+		}
+	}
+
+	private boolean readItems(RosterStore store, RosterState state, Map<BareJID, RosterElement> roster)
+			throws NotAuthorizedException, TigaseDBException {
+		state.version = parseVersion(store.getData(ROSTER, ROSTER_VERSION_KEY));
+		state.minVersion = parseVersion(store.getData(ROSTER, ROSTER_MIN_VERSION_KEY));
+
+		Map<String, String> items = store.getDataMap(ROSTER_ITEMS_NODE);
+		boolean modified = false;
+
+		if (items != null) {
+			for (Map.Entry<String, String> e : items.entrySet()) {
+				RosterElement relem = parseItem(e.getValue());
+
+				if (relem == null) {
+					continue;
+				}
+				if (!addBuddy(relem, roster)) {
+					break;
+				}
+				// item is tracked with the key it was stored, so it is removed if stringprep changed the JID
+				state.stored.add(BareJID.bareJIDInstanceNS(e.getKey()));
+				modified |= relem.isModified();
+			}
+		}
+
+		return modified;
+	}
+
+	private boolean storeChanges(RosterStore store, RosterState state, Map<BareJID, RosterElement> roster)
+			throws NotAuthorizedException, TigaseDBException {
+		long version = state.version + 1;
+		boolean changed = false;
+
+		for (RosterElement relem : roster.values()) {
+			if (!relem.isPersistent()) {
+				continue;
+			}
+
+			BareJID jid = relem.getJid().getBareJID();
+
+			if (relem.isModified() || !state.stored.contains(jid)) {
+				relem.setVersion(version);
+				store.setData(ROSTER_ITEMS_NODE, jid.toString(), relem.getRosterElement().toString());
+				state.stored.add(jid);
+				changed = true;
+			}
+		}
+		for (Iterator<BareJID> it = state.stored.iterator(); it.hasNext(); ) {
+			BareJID jid = it.next();
+			RosterElement relem = roster.get(jid);
+
+			if (relem == null || !relem.isPersistent()) {
+				store.removeData(ROSTER_ITEMS_NODE, jid.toString());
+				it.remove();
+				addRemoved(store, state, jid, version);
+				changed = true;
+			}
+		}
+		if (changed) {
+			state.version = version;
+			store.setData(ROSTER, ROSTER_VERSION_KEY, String.valueOf(version));
+		}
+
+		return changed;
+	}
+
+	private void addRemoved(RosterStore store, RosterState state, BareJID jid, long version)
+			throws NotAuthorizedException, TigaseDBException {
+		Map<BareJID, Long> removed = getRemoved(store, state);
+
+		removed.put(jid, version);
+		if (removed.size() > maxRemovedItems) {
+			// removals are forgotten, so clients with older roster versions will receive the whole roster
+			store.removeSubnode(ROSTER_REMOVED_NODE);
+			removed.clear();
+			state.minVersion = version;
+			store.setData(ROSTER, ROSTER_MIN_VERSION_KEY, String.valueOf(version));
+		} else {
+			store.setData(ROSTER_REMOVED_NODE, jid.toString(), String.valueOf(version));
+		}
+	}
+
+	private Map<BareJID, Long> getRemoved(RosterStore store, RosterState state)
+			throws NotAuthorizedException, TigaseDBException {
+		// removed items are needed only to provide roster changes, so they are loaded only when needed
+		if (state.removed == null) {
+			Map<BareJID, Long> removed = new HashMap<>();
+			Map<String, String> data = store.getDataMap(ROSTER_REMOVED_NODE);
+
+			if (data != null) {
+				for (Map.Entry<String, String> e : data.entrySet()) {
+					removed.put(BareJID.bareJIDInstanceNS(e.getKey()), parseVersion(e.getValue()));
+				}
+			}
+			state.removed = removed;
+		}
+
+		return state.removed;
+	}
+
+	private void updateRosterVersion(XMPPResourceConnection session, long version) throws NotAuthorizedException {
+		for (XMPPResourceConnection conn : session.getActiveSessions()) {
+			String suffix = (String) conn.getSessionData(ROSTER_HASH_SUFFIX);
+
+			// hash is calculated when client requests the roster
+			if (suffix != null) {
+				conn.putSessionData(ROSTERHASH, version + suffix);
+			}
+		}
+	}
+
+	private interface RosterStore {
+
+		String getData(String subnode, String key) throws NotAuthorizedException, TigaseDBException;
+
+		Map<String, String> getDataMap(String subnode) throws NotAuthorizedException, TigaseDBException;
+
+		void setData(String subnode, String key, String value) throws NotAuthorizedException, TigaseDBException;
+
+		void removeData(String subnode, String key) throws NotAuthorizedException, TigaseDBException;
+
+		void removeSubnode(String subnode) throws NotAuthorizedException, TigaseDBException;
+
+	}
+
+	/**
+	 * Stored state of the user roster shared by all user sessions.
+	 */
+	protected static class RosterState {
+
+		private final Set<BareJID> stored = new HashSet<>();
+		private long minVersion = 0;
+		private Map<BareJID, Long> removed = null;
+		private long version = 0;
+
+		public synchronized long getVersion() {
+			return version;
+		}
+	}
+
+	private static class SessionStore
+			implements RosterStore {
+
+		private final XMPPResourceConnection session;
+
+		private SessionStore(XMPPResourceConnection session) {
+			this.session = session;
+		}
+
+		@Override
+		public String getData(String subnode, String key) throws NotAuthorizedException, TigaseDBException {
+			return session.getData(subnode, key, null);
+		}
+
+		@Override
+		public Map<String, String> getDataMap(String subnode) throws NotAuthorizedException, TigaseDBException {
+			return session.getDataMap(subnode);
+		}
+
+		@Override
+		public void setData(String subnode, String key, String value) throws NotAuthorizedException, TigaseDBException {
+			session.setData(subnode, key, value);
+		}
+
+		@Override
+		public void removeData(String subnode, String key) throws NotAuthorizedException, TigaseDBException {
+			session.removeData(subnode, key);
+		}
+
+		@Override
+		public void removeSubnode(String subnode) throws NotAuthorizedException, TigaseDBException {
+			session.removeDataGroup(subnode);
+		}
+	}
+
+	private static class RepositoryStore
+			implements RosterStore {
+
+		private final BareJID owner;
+		private final UserRepository repository;
+
+		private RepositoryStore(UserRepository repository, BareJID owner) {
+			this.repository = repository;
+			this.owner = owner;
+		}
+
+		@Override
+		public String getData(String subnode, String key) throws TigaseDBException {
+			return repository.getData(owner, subnode, key);
+		}
+
+		@Override
+		public Map<String, String> getDataMap(String subnode) throws TigaseDBException {
+			return repository.getDataMap(owner, subnode);
+		}
+
+		@Override
+		public void setData(String subnode, String key, String value) throws TigaseDBException {
+			repository.setData(owner, subnode, key, value);
+		}
+
+		@Override
+		public void removeData(String subnode, String key) throws TigaseDBException {
+			repository.removeData(owner, subnode, key);
+		}
+
+		@Override
+		public void removeSubnode(String subnode) throws TigaseDBException {
+			repository.removeSubnode(owner, subnode);
+		}
+	}
+}
@@ -24,7 +24,7 @@ import tigase.kernel.DefaultTypesConverter;
 import tigase.xml.Element;
 import tigase.xmpp.jid.BareJID;
 
-import java.util.HashMap;
+import java.util.List;
 
 public class BruteForceLockerBeanTest {
 
@@ -158,7 +158,6 @@ public class BruteForceLockerBeanTest {
 	@Test
 	public void test3InvalidLoginsAndWait() {
 		BruteForceLockerBean bean = new BruteForceLockerBean();
-		bean.setMap(new HashMap<>());
 		bean.clearAll();
 
 		bean.addInvalidLogin(null, "1.2.3.4", BareJID.bareJIDInstanceNS("a@bc.d"), 100000);
@@ -219,7 +218,6 @@ public class BruteForceLockerBeanTest {
 	@Test
 	public void test4InvalidLogins() {
 		BruteForceLockerBean bean = new BruteForceLockerBean();
-		bean.setMap(new HashMap<>());
 		bean.clearAll();
 
 		Assert.assertTrue(bean.isLoginAllowed(null, "1.2.3.4", BareJID.bareJIDInstanceNS("a@bc.d"), 99999));
@@ -243,4 +241,92 @@ public class BruteForceLockerBeanTest {
 
 	}
 
-}
\ No newline at end of file
+	@Test
+	public void testStoreExpiration() {
+		BruteForceLockerStore store = new BruteForceLockerStore(4);
+		final long start = 1_000_000;
+		// entries expiring in seconds, minutes and hours to use all levels of timing wheel
+		long[] lifetimes = {5_000, 50_000, 500_000, 5_000_000, 50_000_000, 500_000_000};
+		for (int i = 0; i < 1000; i++) {
+			BruteForceLockerBean.Key key = new BruteForceLockerBean.Key("10.0.0." + i, "user-" + i + "@a.b", "a.b");
+			long lifetime = lifetimes[i % lifetimes.length];
+			store.addInvalidLogin(key, key.getIp(), null, start, 3, lifetime, lifetime);
+		}
+		Assert.assertEquals(1000, store.size());
+
+		int expected = 1000;
+		long time = start;
+		for (long lifetime : lifetimes) {
+			// nothing expires before its time
+			for (; time < start + lifetime; time += Math.max(1000, lifetime / 100)) {
+				Assert.assertEquals(0, store.removeOutdated(time));
+			}
+			time = start + lifetime + 1000;
+			int removed = store.removeOutdated(time);
+			expected -= removed;
+			Assert.assertTrue("nothing removed after " + lifetime, removed > 0);
+			Assert.assertEquals(expected, store.size());
+		}
+		Assert.assertEquals(0, store.size());
+	}
+
+	@Test
+	public void testStoreExtendedLock() {
+		BruteForceLockerStore store = new BruteForceLockerStore(1);
+		BruteForceLockerBean.Key key = new BruteForceLockerBean.Key("1.2.3.4", "a@b.c", "b.c");
+		for (int i = 1; i <= 4; i++) {
+			Assert.assertEquals(i, store.addInvalidLogin(key, "1.2.3.4", null, 100_000, 3, 10_000, 600_000));
+		}
+		// entry was scheduled to expire after period time, but lock time extended it
+		Assert.assertEquals(0, store.removeOutdated(100_000 + 20_000));
+		Assert.assertEquals(4, store.getBadLoginCounter(key, 100_000 + 20_000));
+		Assert.assertEquals(1, store.removeOutdated(100_000 + 601_000));
+		Assert.assertEquals(-1, store.getBadLoginCounter(key, 0));
+	}
+
+	@Test
+	public void testClusterDelta() {
+		BruteForceLockerBean node1 = new BruteForceLockerBean();
+		BruteForceLockerBean node2 = new BruteForceLockerBean();
+		long now = System.currentTimeMillis();
+		BareJID jid = BareJID.bareJIDInstanceNS("a@bc.d");
+
+		node1.addInvalidLogin(null, "1.2.3.4", jid, now);
+		node1.addInvalidLogin(null, "1.2.3.4", jid, now);
+		node2.addInvalidLogin(null, "1.2.3.4", jid, now);
+		node2.addInvalidLogin(null, "1.2.3.4", jid, now);
+
+		BruteForceLockerStore store1 = node1.getStore();
+		BruteForceLockerStore store2 = node2.getStore();
+		List<BruteForceLockerStore.Change> changes1 = store1.drainChanges();
+		List<BruteForceLockerStore.Change> changes2 = store2.drainChanges();
+		Assert.assertEquals(1, changes1.size());
+		Assert.assertTrue(store1.drainChanges().isEmpty());
+
+		DefaultTypesConverter converter = new DefaultTypesConverter();
+		BruteForceLockerBean.InvalidLoginsDelta delta1 = converter.convert(
+				converter.toString(new BruteForceLockerBean.InvalidLoginsDelta(changes1)),
+				BruteForceLockerBean.InvalidLoginsDelta.class);
+		BruteForceLockerBean.InvalidLoginsDelta delta2 = converter.convert(
+				converter.toString(new BruteForceLockerBean.InvalidLoginsDelta(changes2)),
+				BruteForceLockerBean.InvalidLoginsDelta.class);
+		Assert.assertEquals(1, delta1.getItems().size());
+
+		Assert.assertTrue(node1.isLoginAllowed(null, "1.2.3.4", jid, now + 1));
+		node1.handleInvalidLoginsDeltaEvent(new BruteForceLockerBean.InvalidLoginsDeltaEvent("node2", delta2));
+		node2.handleInvalidLoginsDeltaEvent(new BruteForceLockerBean.InvalidLoginsDeltaEvent("node1", delta1));
+		// 4 invalid logins in total on both nodes
+		Assert.assertFalse(node1.isLoginAllowed(null, "1.2.3.4", jid, now + 1));
+		Assert.assertFalse(node2.isLoginAllowed(null, "1.2.3.4", jid, now + 1));
+		Assert.assertTrue(node2.isLoginAllowed(null, "1.2.3.5", jid, now + 1));
+		// changes received from other nodes are not sent again
+		Assert.assertTrue(store1.drainChanges().isEmpty());
+
+		// clearing locks on one node clears them on other nodes as well
+		node1.clearAll();
+		node2.handleClearAllEvent(new BruteForceLockerBean.ClearAllEvent("node1"));
+		Assert.assertTrue(node1.isLoginAllowed(null, "1.2.3.4", jid, now + 1));
+		Assert.assertTrue(node2.isLoginAllowed(null, "1.2.3.4", jid, now + 1));
+	}
+
+}
@@ -157,4 +157,56 @@ public class ClusterConnectionSelectorTest
 		assertSame(serv3, selector.selectConnection(p, conn));
 	}
 
+	@Test
+	public void testSelectConnectionLanes() throws Exception {
+		ClusterConnection conn = new ClusterConnection("test");
+		ClusterConnectionSelector selector = new ClusterConnectionSelector();
+		selector.setClusterConnectionHandler(new ClusterConnectionHandler() {
+
+			@Override
+			public int hashCodeForPacket(Packet packet) {
+				return packet.getStanzaFrom().hashCode();
+			}
+		});
+		selector.setLanes(new String[]{"system:SYSTEM:1", "normal:HIGH:0", "bulk:LOW:1"});
+
+		List<XMPPIOService<Object>> servs = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			XMPPIOService<Object> serv = new XMPPIOService<Object>();
+			servs.add(serv);
+			conn.addConn(serv);
+		}
+		Set<XMPPIOService<Object>> normalServs = new HashSet<>(servs.subList(1, 4));
+
+		for (int i = 0; i < 20; i++) {
+			Element el = new Element("iq", new String[]{"from"}, new String[]{"test" + i});
+			Packet p = Packet.packetInstance(el);
+
+			p.setPriority(Priority.CLUSTER);
+			assertSame(servs.get(0), selector.selectConnection(p, conn));
+
+			p.setPriority(null);
+			XMPPIOService<Object> serv = selector.selectConnection(p, conn);
+			assertTrue(normalServs.contains(serv));
+			// packets of the same user are sent over the same connection
+			p.setPriority(Priority.HIGH);
+			assertSame(serv, selector.selectConnection(p, conn));
+
+			p.setPriority(Priority.PRESENCE);
+			assertSame(servs.get(4), selector.selectConnection(p, conn));
+		}
+
+		// not enough connections for the bulk lane
+		conn.removeConn(servs.get(4));
+		conn.removeConn(servs.get(3));
+		conn.removeConn(servs.get(2));
+		conn.removeConn(servs.get(1));
+		Element el = new Element("iq", new String[]{"from"}, new String[]{"test1"});
+		Packet p = Packet.packetInstance(el);
+		p.setPriority(Priority.LOWEST);
+		assertSame(servs.get(0), selector.selectConnection(p, conn));
+		p.setPriority(null);
+		assertSame(servs.get(0), selector.selectConnection(p, conn));
+	}
+
 }
@@ -86,9 +86,14 @@ public class DefaultClusterStrategyTest extends AbstractKernelTestCase {
 		assertEquals(null, strategy.getNodesForPacketForward(sm.getComponentId(), null, packet));
 	}
 
-	private class DummyClusterController implements ClusterControllerIfc {
+	protected class DummyClusterController implements ClusterControllerIfc {
 
 		private List<String> nodes = new ArrayList<>();
+		private JID[] lastToNodes = null;
+
+		public JID[] getLastToNodes() {
+			return lastToNodes;
+		}
 
 		@Override
 		public void handleClusterPacket(Element packet) {
@@ -148,7 +153,7 @@ public class DefaultClusterStrategyTest extends AbstractKernelTestCase {
 		@Override
 		public void sendToNodes(String command, Map<String, String> data, Element packet, JID fromNode,
 								Set<JID> visitedNodes, JID... toNodes) {
-
+			lastToNodes = toNodes;
 		}
 
 		@Override
@@ -157,7 +162,7 @@ public class DefaultClusterStrategyTest extends AbstractKernelTestCase {
 		}
 	}
 
-	private class DummySessionManagerClustered
+	protected class DummySessionManagerClustered
 			implements SessionManagerClusteredIfc {
 
 		@Override
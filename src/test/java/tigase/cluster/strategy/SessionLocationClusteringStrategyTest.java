@@ -0,0 +1,119 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.cluster.strategy;
+
+import org.junit.Test;
+import tigase.server.Packet;
+import tigase.util.stringprep.TigaseStringprepException;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class SessionLocationClusteringStrategyTest
+		extends DefaultClusterStrategyTest {
+
+	private static final String DIRECTORY_ROUTED_KEY = "directory-routed";
+
+	@Override
+	protected Class<? extends DefaultClusteringStrategyAbstract> getStrategyClass() {
+		return SessionLocationClusteringStrategy.class;
+	}
+
+	@Test
+	public void testDirectedForward() throws TigaseStringprepException {
+		SessionLocationClusteringStrategy strategy = getInstance(SessionLocationClusteringStrategy.class);
+		DummySessionManagerClustered sm = getInstance(DummySessionManagerClustered.class);
+		List<JID> nodes = connectNodes(strategy, sm, 3);
+
+		Packet packet = createMessage();
+		BareJID recipient = packet.getStanzaTo().getBareJID();
+		strategy.getDirectory().addConnection(recipient, "res-1", nodes.get(1));
+
+		assertEquals(Collections.singletonList(nodes.get(1)),
+					 strategy.getNodesForPacketForward(sm.getComponentId(), null, packet));
+
+		// packet was not delivered on the node from directory and there is no other node with the session
+		DummyClusterController cluster = getInstance(DummyClusterController.class);
+		Map<String, String> data = new HashMap<>();
+		data.put(DIRECTORY_ROUTED_KEY, "true");
+		Set<JID> visitedNodes = new LinkedHashSet<>(Arrays.asList(nodes.get(0), nodes.get(1)));
+		completeDirectory(strategy, nodes);
+		assertTrue(strategy.sendToNextNode(nodes.get(0), visitedNodes, data, packet));
+		assertArrayEquals(new JID[]{nodes.get(0)}, cluster.getLastToNodes());
+
+		// user is connected to one more node, packet is passed to it
+		strategy.getDirectory().addConnection(recipient, "res-2", nodes.get(2));
+		assertTrue(strategy.sendToNextNode(nodes.get(0), visitedNodes, data, packet));
+		assertArrayEquals(new JID[]{nodes.get(2)}, cluster.getLastToNodes());
+	}
+
+	@Test
+	public void testFallbackWhenDirectoryNotComplete() throws TigaseStringprepException {
+		SessionLocationClusteringStrategy strategy = getInstance(SessionLocationClusteringStrategy.class);
+		DummySessionManagerClustered sm = getInstance(DummySessionManagerClustered.class);
+		List<JID> nodes = connectNodes(strategy, sm, 3);
+
+		Packet packet = createMessage();
+		assertFalse(strategy.getDirectory().isComplete(nodes));
+
+		// directory does not know about the recipient, so packet has to go through the ring of nodes
+		List<JID> result = strategy.getNodesForPacketForward(sm.getComponentId(), null, packet);
+		assertNotNull(result);
+		assertEquals(1, result.size());
+		assertTrue(nodes.contains(result.get(0)));
+
+		// packet routed using the directory was not delivered, it has to visit remaining nodes
+		DummyClusterController cluster = getInstance(DummyClusterController.class);
+		Map<String, String> data = new HashMap<>();
+		data.put(DIRECTORY_ROUTED_KEY, "true");
+		Set<JID> visitedNodes = new LinkedHashSet<>(Arrays.asList(nodes.get(0), nodes.get(1)));
+		assertTrue(strategy.sendToNextNode(nodes.get(0), visitedNodes, data, packet));
+		assertArrayEquals(new JID[]{nodes.get(2)}, cluster.getLastToNodes());
+		assertFalse(data.containsKey(DIRECTORY_ROUTED_KEY));
+
+		// with complete directory there is no need to check other nodes
+		completeDirectory(strategy, nodes);
+		assertNull(strategy.getNodesForPacketForward(sm.getComponentId(), null, packet));
+	}
+
+	private void completeDirectory(SessionLocationClusteringStrategy strategy, List<JID> nodes) {
+		for (JID node : nodes) {
+			strategy.getDirectory().setSnapshot(node, SessionLocationDirectory.NodeFilter.create(Collections.emptyList()));
+		}
+	}
+
+	private List<JID> connectNodes(SessionLocationClusteringStrategy strategy, DummySessionManagerClustered sm,
+								   int count) throws TigaseStringprepException {
+		for (int i = 0; i < count; i++) {
+			String node = UUID.randomUUID().toString();
+			sm.nodeConnected(node);
+			strategy.nodeConnected(JID.jidInstance("sess-man", node));
+		}
+		return new ArrayList<>(sm.getNodesConnected());
+	}
+
+	private Packet createMessage() throws TigaseStringprepException {
+		JID from = JID.jidInstance(UUID.randomUUID().toString(), "localhost", "res-1");
+		JID to = JID.jidInstance(UUID.randomUUID().toString(), "localhost", "res-1");
+		return Packet.packetInstance(new Element("message").withAttribute("type", "chat"), from, to);
+	}
+}
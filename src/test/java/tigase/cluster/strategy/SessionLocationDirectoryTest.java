@@ -0,0 +1,91 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.cluster.strategy;
+
+import org.junit.Test;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class SessionLocationDirectoryTest {
+
+	private static final JID NODE1 = JID.jidInstanceNS("sess-man", "node1.example.com", null);
+	private static final JID NODE2 = JID.jidInstanceNS("sess-man", "node2.example.com", null);
+
+	@Test
+	public void testConnections() {
+		SessionLocationDirectory directory = new SessionLocationDirectory();
+		BareJID user = BareJID.bareJIDInstanceNS("user@example.com");
+
+		directory.addConnection(user, "res1", NODE1);
+		directory.addConnection(user, "res2", NODE1);
+		directory.addConnection(user, "res3", NODE2);
+		assertEquals(Set.of(NODE1, NODE2), directory.getNodes(user));
+
+		directory.removeConnection(user, "res1", NODE1);
+		assertEquals(Set.of(NODE1, NODE2), directory.getNodes(user));
+		directory.removeConnection(user, "res2", NODE1);
+		assertEquals(Set.of(NODE2), directory.getNodes(user));
+
+		directory.nodeDisconnected(NODE2);
+		assertTrue(directory.getNodes(user).isEmpty());
+		assertEquals(0, directory.size());
+	}
+
+	@Test
+	public void testSnapshot() {
+		SessionLocationDirectory directory = new SessionLocationDirectory();
+		List<BareJID> users = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			users.add(BareJID.bareJIDInstanceNS("user" + i + "@example.com"));
+		}
+		assertFalse(directory.isComplete(List.of(NODE1)));
+
+		SessionLocationDirectory.NodeFilter filter = SessionLocationDirectory.NodeFilter.create(users);
+		directory.setSnapshot(NODE1, SessionLocationDirectory.NodeFilter.decode(filter.encode(), filter.getHashes()));
+		directory.setSnapshot(NODE2, SessionLocationDirectory.NodeFilter.create(Collections.emptyList()));
+		assertTrue(directory.isComplete(List.of(NODE1, NODE2)));
+
+		for (BareJID user : users) {
+			assertEquals(Set.of(NODE1), directory.getNodes(user));
+		}
+		int falsePositives = 0;
+		for (int i = 0; i < 10000; i++) {
+			if (!directory.getNodes(BareJID.bareJIDInstanceNS("other" + i + "@example.com")).isEmpty()) {
+				falsePositives++;
+			}
+		}
+		assertTrue("Too many false positives: " + falsePositives, falsePositives < 300);
+
+		// user disconnected after snapshot was sent
+		directory.removeConnection(users.get(0), "res1", NODE1);
+		assertTrue(directory.getNodes(users.get(0)).isEmpty());
+		directory.addConnection(users.get(0), "res1", NODE1);
+		assertEquals(Set.of(NODE1), directory.getNodes(users.get(0)));
+
+		directory.nodeDisconnected(NODE1);
+		assertFalse(directory.isComplete(List.of(NODE1, NODE2)));
+		assertTrue(directory.getNodes(users.get(1)).isEmpty());
+	}
+}
@@ -0,0 +1,340 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import tigase.TestLogger;
+import tigase.db.jdbc.DataRepositoryImpl;
+import tigase.stats.LatencyHistogram;
+import tigase.stats.StatisticsList;
+import tigase.xmpp.jid.BareJID;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.*;
+
+public class AsyncStatementExecutorTest {
+
+	private static final Logger log = TestLogger.getLogger(AsyncStatementExecutorTest.class);
+
+	/**
+	 * Used by Derby as a stored function simulating a slow query.
+	 */
+	public static int sleep(int millis) throws InterruptedException {
+		Thread.sleep(millis);
+		return millis;
+	}
+
+	@Test
+	public void testPipelining() throws Exception {
+		AsyncStatementExecutor executor = new AsyncStatementExecutor(createRepositories(2), 2, 100, 10000);
+		Map<String, AtomicInteger> executing = new ConcurrentHashMap<>();
+		AtomicInteger maxInFlight = new AtomicInteger();
+		AtomicInteger inFlight = new AtomicInteger();
+		List<CompletableFuture<String>> futures = new ArrayList<>();
+		for (int i = 0; i < 40; i++) {
+			futures.add(executor.execute(BareJID.bareJIDInstanceNS("user" + i + "@example.com"), "st-" + (i % 3),
+										 stmt -> {
+											 maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+											 // the same statement is never executed twice at once on a connection
+											 assertEquals(1, executing.computeIfAbsent(stmt.toString(),
+																					   key -> new AtomicInteger())
+													 .incrementAndGet());
+											 LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(5));
+											 executing.get(stmt.toString()).decrementAndGet();
+											 inFlight.decrementAndGet();
+											 return stmt.toString();
+										 }));
+		}
+		for (CompletableFuture<String> future : futures) {
+			assertNotNull(future.get(10, TimeUnit.SECONDS));
+		}
+		assertTrue("max in flight: " + maxInFlight.get(), maxInFlight.get() > 2 && maxInFlight.get() <= 4);
+		assertEquals(0, executor.getInFlight());
+		assertEquals(0, executor.getQueueSize());
+
+		StatisticsList list = new StatisticsList(Level.FINEST);
+		executor.getStatistics("test", list);
+		assertEquals(40, list.getValue("test", "Async executed statements", 0L));
+		executor.stop();
+	}
+
+	@Test
+	public void testSlowStatementDoesNotBlockConnections() throws Exception {
+		AsyncStatementExecutor executor = new AsyncStatementExecutor(createRepositories(2), 1, 100, 10000);
+		CountDownLatch release = new CountDownLatch(1);
+		CompletableFuture<String> slow = executor.execute(null, "slow", stmt -> {
+			await(release);
+			return stmt.toString();
+		});
+		// all other statements are executed by the second connection while the first one is busy
+		for (int i = 0; i < 10; i++) {
+			String lane = executor.execute(null, "fast", stmt -> stmt.toString()).get(10, TimeUnit.SECONDS);
+			assertNotEquals(lane.substring(0, lane.indexOf(':')), "0");
+		}
+		assertFalse(slow.isDone());
+		release.countDown();
+		assertEquals("0:slow", slow.get(10, TimeUnit.SECONDS));
+		executor.stop();
+	}
+
+	@Test
+	public void testQueueLimitAndTimeout() throws Exception {
+		AsyncStatementExecutor executor = new AsyncStatementExecutor(createRepositories(1), 1, 1, 200);
+		CountDownLatch release = new CountDownLatch(1);
+		CompletableFuture<Integer> blocking = executor.execute(null, "a", stmt -> {
+			await(release);
+			return 1;
+		});
+		CompletableFuture<Integer> waiting = executor.execute(null, "b", stmt -> 2);
+		CompletableFuture<Integer> rejected = executor.execute(null, "c", stmt -> 3);
+		assertCause(SQLTransientException.class, rejected);
+		assertCause(SQLTimeoutException.class, waiting);
+
+		release.countDown();
+		assertEquals(Integer.valueOf(1), blocking.get(10, TimeUnit.SECONDS));
+		assertEquals(Integer.valueOf(4), executor.execute(null, "b", stmt -> 4).get(10, TimeUnit.SECONDS));
+
+		StatisticsList list = new StatisticsList(Level.FINEST);
+		executor.getStatistics("test", list);
+		assertEquals(1, list.getValue("test", "Async rejected statements", 0L));
+		assertEquals(1, list.getValue("test", "Async timed out statements", 0L));
+		executor.stop();
+	}
+
+	@Test
+	public void testFailure() throws Exception {
+		AsyncStatementExecutor executor = new AsyncStatementExecutor(createRepositories(1), 1, 10, 10000);
+		CompletableFuture<Integer> failed = executor.execute(null, "a", stmt -> {
+			throw new SQLException("test failure");
+		});
+		assertCause(SQLException.class, failed);
+		// connection is released after failure
+		assertEquals(Integer.valueOf(1), executor.execute(null, "a", stmt -> 1).get(10, TimeUnit.SECONDS));
+
+		StatisticsList list = new StatisticsList(Level.FINEST);
+		executor.getStatistics("test", list);
+		assertEquals(1, list.getValue("test", "Async failed statements", 0L));
+		executor.stop();
+	}
+
+	@Test
+	public void testPoolChanges() throws Exception {
+		List<DataRepository> repositories = createRepositories(2);
+		DataRepositoryPool pool = new DataRepositoryPool();
+		pool.addRepo(repositories.get(0));
+
+		CountDownLatch release = new CountDownLatch(1);
+		DataRepository.StatementTask<String> slowTask = stmt -> {
+			await(release);
+			return stmt.toString();
+		};
+		CompletableFuture<String> first = pool.executeAsync(null, "slow", slowTask);
+		// the same statement cannot be executed twice at once on the only connection
+		CompletableFuture<String> second = pool.executeAsync(null, "slow", slowTask);
+		assertFalse(second.isDone());
+
+		// connection added to the pool is used by already created executor
+		pool.addRepo(repositories.get(1));
+		CompletableFuture<String> third = pool.executeAsync(null, "slow", slowTask);
+
+		// executor is stopped when the pool is unregistered
+		pool.beforeUnregister();
+		assertCause(SQLTransientException.class, third);
+
+		release.countDown();
+		assertEquals("0:slow", first.get(10, TimeUnit.SECONDS));
+		assertEquals("1:slow", second.get(10, TimeUnit.SECONDS));
+	}
+
+	@Category(tigase.tests.SlowTest.class)
+	@Test
+	public void testDerbyThroughput() throws Exception {
+		String uri = "jdbc:derby:memory:async-executor;create=true";
+		try (Connection conn = DriverManager.getConnection(uri); Statement st = conn.createStatement()) {
+			// required by DataRepositoryImpl initialization
+			st.execute("CREATE procedure TigGetComponentVersion(component varchar(100)) PARAMETER STYLE JAVA " +
+							   "LANGUAGE JAVA MODIFIES SQL DATA DYNAMIC RESULT SETS 1 " +
+							   "EXTERNAL NAME 'tigase.db.derby.StoredProcedures.tigGetComponentVersion'");
+			st.execute("CREATE function tig_test_sleep(millis int) RETURNS int PARAMETER STYLE JAVA NO SQL " +
+							   "LANGUAGE JAVA EXTERNAL NAME '" + AsyncStatementExecutorTest.class.getName() +
+							   ".sleep'");
+			st.execute("CREATE table tig_test_async (id int primary key, val varchar(100))");
+			for (int i = 0; i < 1000; i++) {
+				st.execute("INSERT INTO tig_test_async VALUES (" + i + ", 'value-" + i + "')");
+			}
+		}
+
+		DataRepositoryPool pool = new DataRepositoryPool();
+		pool.initialize(uri);
+		for (int i = 0; i < 4; i++) {
+			DataRepositoryImpl repo = new DataRepositoryImpl();
+			repo.initialize(uri);
+			pool.addRepo(repo);
+		}
+		pool.initPreparedStatement("fast", "SELECT val FROM tig_test_async WHERE id = ?");
+		pool.initPreparedStatement("slow", "VALUES tig_test_sleep(?)");
+
+		for (int round = 0; round < 3; round++) {
+			for (boolean async : new boolean[]{false, true}) {
+				LatencyHistogram histogram = new LatencyHistogram("fast", Level.INFO);
+				long start = System.nanoTime();
+				List<Thread> threads = new ArrayList<>();
+				for (int t = 0; t < 16; t++) {
+					final int thread = t;
+					threads.add(new Thread(() -> runClient(pool, async, thread, 2000, histogram)));
+				}
+				threads.forEach(Thread::start);
+				for (Thread thread : threads) {
+					thread.join();
+				}
+				long time = System.nanoTime() - start;
+				histogram.everyMinute();
+				log.log(Level.INFO,
+						"round {0}, {1}: {2}ms, fast query p50 {3}us, p99 {4}us, max {5}us",
+						new Object[]{round, async ? "async" : "sync", TimeUnit.NANOSECONDS.toMillis(time),
+									 histogram.getValueAtPercentile(50), histogram.getValueAtPercentile(99),
+									 histogram.getValueAtPercentile(100)});
+			}
+		}
+		try {
+			DriverManager.getConnection("jdbc:derby:memory:async-executor;drop=true");
+		} catch (SQLException ex) {
+			// dropping database is always reported with an exception
+		}
+	}
+
+	private void runClient(DataRepositoryPool pool, boolean async, int thread, int requests,
+						   LatencyHistogram histogram) {
+		try {
+			for (int i = 0; i < requests; i++) {
+				BareJID user = BareJID.bareJIDInstanceNS("user" + thread + "-" + i + "@example.com");
+				// one of 100 requests is a slow query which blocks its connection for 20ms
+				boolean slow = (i + thread) % 100 == 0;
+				String stIdKey = slow ? "slow" : "fast";
+				int param = slow ? 20 : i % 1000;
+				long start = System.nanoTime();
+				if (async) {
+					pool.executeAsync(user, stIdKey, stmt -> query(stmt, param)).get();
+				} else {
+					PreparedStatement stmt = pool.getPreparedStatement(user, stIdKey);
+					synchronized (stmt) {
+						query(stmt, param);
+					}
+				}
+				if (!slow) {
+					histogram.record(System.nanoTime() - start);
+				}
+			}
+		} catch (Exception ex) {
+			log.log(Level.WARNING, "client failed", ex);
+		}
+	}
+
+	private static String query(PreparedStatement stmt, int param) throws SQLException {
+		stmt.setInt(1, param);
+		try (ResultSet rs = stmt.executeQuery()) {
+			return rs.next() ? rs.getString(1) : null;
+		}
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await();
+		} catch (InterruptedException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	private static void assertCause(Class<? extends Throwable> expected, CompletableFuture<?> future)
+			throws InterruptedException, java.util.concurrent.TimeoutException {
+		try {
+			future.get(10, TimeUnit.SECONDS);
+			fail("Expected " + expected.getSimpleName());
+		} catch (ExecutionException ex) {
+			assertEquals(expected, ex.getCause().getClass());
+		}
+	}
+
+	/**
+	 * Creates repositories returning statements which are described as <code>connection:key</code>.
+	 */
+	private static List<DataRepository> createRepositories(int count) {
+		List<DataRepository> repositories = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			final int connection = i;
+			Map<String, PreparedStatement> statements = new ConcurrentHashMap<>();
+			repositories.add((DataRepository) Proxy.newProxyInstance(DataRepository.class.getClassLoader(),
+																	 new Class[]{DataRepository.class},
+																	 (proxy, method, args) -> {
+				switch (method.getName()) {
+					case "getPreparedStatement":
+						return statements.computeIfAbsent((String) args[1],
+														  key -> createStatement(connection + ":" + key));
+					case "hashCode":
+						return System.identityHashCode(proxy);
+					case "equals":
+						return proxy == args[0];
+					case "toString":
+						return "repo-" + connection;
+					default:
+						return null;
+				}
+			}));
+		}
+		return repositories;
+	}
+
+	private static PreparedStatement createStatement(String name) {
+		return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+														  new Class[]{PreparedStatement.class},
+														  (proxy, method, args) -> {
+			switch (method.getName()) {
+				case "hashCode":
+					return System.identityHashCode(proxy);
+				case "equals":
+					return proxy == args[0];
+				case "toString":
+					return name;
+				default:
+					throw new UnsupportedOperationException(method.getName());
+			}
+		});
+	}
+}
@@ -0,0 +1,170 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db;
+
+import org.junit.Test;
+import tigase.stats.StatisticsList;
+import tigase.xmpp.jid.BareJID;
+
+import java.util.logging.Level;
+
+import static org.junit.Assert.*;
+
+public class UserDataCacheTest {
+
+	private static BareJID user(int i) {
+		return BareJID.bareJIDInstanceNS("user" + i + "@example.com");
+	}
+
+	@Test
+	public void testPutGetRemove() {
+		UserDataCache cache = new UserDataCache(1024 * 1024, 60000, 4);
+		BareJID user = user(1);
+		cache.put(user, null, "last-activity", "1");
+		cache.put(user, "roster", "version", "v1");
+		assertEquals("1", cache.get(user, null, "last-activity"));
+		assertEquals("v1", cache.get(user, "roster", "version"));
+		assertNull(cache.get(user, "roster", "last-activity"));
+		assertNull(cache.get(user(2), null, "last-activity"));
+
+		cache.put(user, "roster", "version", "v2");
+		assertEquals("v2", cache.get(user, "roster", "version"));
+		cache.remove(user, "roster", "version");
+		assertNull(cache.get(user, "roster", "version"));
+		// setting null value removes it
+		cache.put(user, null, "last-activity", null);
+		assertNull(cache.get(user, null, "last-activity"));
+
+		StatisticsList list = new StatisticsList(Level.FINEST);
+		cache.getStatistics("sess-man", list);
+		assertEquals(3, list.getValue("sess-man", "User data cache hits", 0L));
+		assertEquals(4, list.getValue("sess-man", "User data cache misses", 0L));
+	}
+
+	@Test
+	public void testRemoveSubnode() {
+		UserDataCache cache = new UserDataCache(1024 * 1024, 60000, 4);
+		BareJID user = user(1);
+		cache.put(user, null, "key", "root");
+		cache.put(user, "privacy", "key", "privacy");
+		cache.put(user, "privacy/list", "key", "list");
+		cache.put(user, "privacy-other", "key", "other");
+		long weight = cache.getWeight();
+
+		cache.removeSubnode(user, "privacy");
+		assertNull(cache.get(user, "privacy", "key"));
+		assertNull(cache.get(user, "privacy/list", "key"));
+		assertEquals("other", cache.get(user, "privacy-other", "key"));
+		assertEquals("root", cache.get(user, null, "key"));
+		assertTrue(cache.getWeight() < weight);
+
+		cache.removeUser(user);
+		assertNull(cache.get(user, null, "key"));
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getWeight());
+	}
+
+	@Test
+	public void testLoadedValueNotCachedAfterChange() {
+		UserDataCache cache = new UserDataCache(1024 * 1024, 60000, 1);
+		BareJID user = user(1);
+		long stamp = cache.getStamp(user);
+		// value is changed while the old one is loaded from the repository
+		cache.put(user, null, "key", "new");
+		cache.putLoaded(user, null, "key", "old", stamp);
+		assertEquals("new", cache.get(user, null, "key"));
+
+		stamp = cache.getStamp(user);
+		cache.remove(user, null, "key");
+		cache.putLoaded(user, null, "key", "old", stamp);
+		assertNull(cache.get(user, null, "key"));
+
+		stamp = cache.getStamp(user);
+		cache.putLoaded(user, null, "key", "loaded", stamp);
+		assertEquals("loaded", cache.get(user, null, "key"));
+	}
+
+	@Test
+	public void testExpiration() throws InterruptedException {
+		UserDataCache cache = new UserDataCache(1024 * 1024, 50, 1);
+		cache.put(user(1), null, "key", "value");
+		assertEquals("value", cache.get(user(1), null, "key"));
+		Thread.sleep(100);
+		assertNull(cache.get(user(1), null, "key"));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testWeightBound() {
+		long maxWeight = 64 * 1024;
+		UserDataCache cache = new UserDataCache(maxWeight, 60000, 1);
+		for (int i = 0; i < 10000; i++) {
+			cache.put(user(i), "presence", "status", "some status text of user " + i);
+			assertTrue(cache.getWeight() <= maxWeight);
+		}
+		assertTrue(cache.size() > 100);
+		assertTrue(cache.size() < 10000);
+
+		StatisticsList list = new StatisticsList(Level.FINEST);
+		cache.getStatistics("sess-man", list);
+		assertEquals(10000 - cache.size(), list.getValue("sess-man", "User data cache evictions", 0L));
+	}
+
+	@Test
+	public void testFrequentUsersSurviveScan() {
+		UserDataCache cache = new UserDataCache(64 * 1024, 60000, 1);
+		// frequently used users
+		for (int round = 0; round < 5; round++) {
+			for (int i = 0; i < 50; i++) {
+				if (cache.get(user(i), null, "key") == null) {
+					cache.put(user(i), null, "key", "value " + i);
+				}
+			}
+		}
+		// many users used only once
+		for (int i = 1000; i < 20000; i++) {
+			if (cache.get(user(i), null, "key") == null) {
+				cache.put(user(i), null, "key", "value " + i);
+			}
+		}
+		int hits = 0;
+		for (int i = 0; i < 50; i++) {
+			if (cache.get(user(i), null, "key") != null) {
+				hits++;
+			}
+		}
+		assertTrue("only " + hits + " frequently used users are cached", hits > 45);
+	}
+
+	@Test
+	public void testFrequencySketch() {
+		UserDataCache.FrequencySketch sketch = new UserDataCache.FrequencySketch(1024);
+		for (int i = 0; i < 10; i++) {
+			sketch.increment(123);
+		}
+		sketch.increment(456);
+		assertEquals(10, sketch.frequency(123));
+		assertEquals(1, sketch.frequency(456));
+		assertEquals(0, sketch.frequency(789));
+		// counters are limited to 4 bits
+		for (int i = 0; i < 20; i++) {
+			sketch.increment(123);
+		}
+		assertEquals(15, sketch.frequency(123));
+	}
+}
@@ -20,6 +20,7 @@ package tigase.db.jdbc;
 import org.junit.Assume;
 import org.junit.BeforeClass;
 import org.junit.ClassRule;
+import org.junit.Test;
 import org.junit.rules.TestRule;
 import org.junit.runner.Description;
 import org.junit.runners.model.Statement;
@@ -27,8 +28,17 @@ import tigase.db.AbstractUserRepositoryTest;
 import tigase.db.DBInitException;
 import tigase.db.DataRepository;
 import tigase.db.Schema;
+import tigase.db.TigaseDBException;
+import tigase.stats.StatisticsList;
+import tigase.xmpp.jid.BareJID;
 
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 /**
  * @author Wojtek
@@ -55,5 +65,29 @@ public class JDBCRepositoryTest extends AbstractUserRepositoryTest<DataRepositor
 	public static void loadSchema() throws DBInitException {
 		loadSchema(Schema.SERVER_SCHEMA_ID, "8.0.0", Collections.emptySet());
 	}
-	
+
+	@Test
+	public void testWriteBufferedDataWithNotExistingUser() throws TigaseDBException {
+		Assume.assumeFalse("Users are created automatically", uri.contains("autoCreateUser=true"));
+		JDBCRepository jdbcRepo = (JDBCRepository) repo;
+		BareJID existing = BareJID.bareJIDInstanceNS("buffered-existing", "domain");
+		BareJID missing = BareJID.bareJIDInstanceNS("buffered-missing", "domain");
+		repo.addUser(existing);
+		try {
+			Map<BareJID, Map<UserDataWriteBuffer.DataKey, Object>> changes = new LinkedHashMap<>();
+			changes.put(missing, Collections.singletonMap(new UserDataWriteBuffer.DataKey("buffered", "key"), "1"));
+			changes.put(existing, Collections.singletonMap(new UserDataWriteBuffer.DataKey("buffered", "key"), "2"));
+
+			// changes of not existing user are dropped without affecting other users of the batch
+			assertTrue(jdbcRepo.writeBufferedData(changes).isEmpty());
+			assertEquals("2", repo.getData(existing, "buffered", "key"));
+
+			StatisticsList list = new StatisticsList(Level.FINEST);
+			jdbcRepo.getStatistics("test", list);
+			assertEquals(1, list.getValue("test", "Buffered user data write failures", 0L));
+		} finally {
+			repo.removeUser(existing);
+		}
+	}
+
 }
@@ -0,0 +1,187 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.jdbc;
+
+import org.junit.Test;
+import tigase.xmpp.jid.BareJID;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class UserDataWriteBufferTest {
+
+	private static final BareJID USER_1 = BareJID.bareJIDInstanceNS("user1@example.com");
+	private static final BareJID USER_2 = BareJID.bareJIDInstanceNS("user2@example.com");
+
+	private final List<Map<BareJID, Map<UserDataWriteBuffer.DataKey, Object>>> written = new ArrayList<>();
+
+	@Test
+	public void testCoalescing() {
+		UserDataWriteBuffer buffer = new UserDataWriteBuffer(this::write, 60000, 100, 1000);
+		buffer.put(USER_1, "presence", "status", "away");
+		buffer.put(USER_1, "presence", "status", "online");
+		buffer.put(USER_1, null, "last-activity", "1");
+		buffer.put(USER_2, "presence", "status", "dnd");
+		buffer.put(USER_2, "presence", "status", null);
+		assertEquals(3, buffer.size());
+
+		// read-your-writes
+		assertEquals("online", buffer.get(USER_1, "presence", "status"));
+		assertEquals("1", buffer.get(USER_1, null, "last-activity"));
+		assertSame(UserDataWriteBuffer.REMOVED, buffer.get(USER_2, "presence", "status"));
+		assertNull(buffer.get(USER_2, null, "last-activity"));
+
+		buffer.flush();
+		assertEquals(1, written.size());
+		assertEquals("online", written.get(0).get(USER_1).get(new UserDataWriteBuffer.DataKey("presence", "status")));
+		assertSame(UserDataWriteBuffer.REMOVED,
+				   written.get(0).get(USER_2).get(new UserDataWriteBuffer.DataKey("presence", "status")));
+		assertEquals(0, buffer.size());
+		assertNull(buffer.get(USER_1, "presence", "status"));
+
+		// nothing to write
+		buffer.flush();
+		assertEquals(1, written.size());
+		buffer.stop();
+	}
+
+	@Test
+	public void testFlushUser() {
+		UserDataWriteBuffer buffer = new UserDataWriteBuffer(this::write, 60000, 100, 1000);
+		buffer.put(USER_1, null, "a", "1");
+		buffer.put(USER_2, null, "a", "2");
+		buffer.flush(USER_1);
+		assertEquals(1, written.size());
+		assertEquals(1, written.get(0).size());
+		assertTrue(written.get(0).containsKey(USER_1));
+		assertEquals("2", buffer.get(USER_2, null, "a"));
+
+		buffer.discard(USER_2);
+		assertEquals(0, buffer.size());
+		buffer.flush();
+		assertEquals(1, written.size());
+		buffer.stop();
+	}
+
+	@Test
+	public void testWriteTriggers() throws InterruptedException {
+		CountDownLatch latch = new CountDownLatch(1);
+		UserDataWriteBuffer buffer = new UserDataWriteBuffer(changes -> {
+			latch.countDown();
+			return write(changes);
+		}, 100, 100, 1000);
+		buffer.put(USER_1, null, "a", "1");
+		// written after the delay
+		assertTrue(latch.await(10, TimeUnit.SECONDS));
+		buffer.stop();
+
+		CountDownLatch batchLatch = new CountDownLatch(1);
+		buffer = new UserDataWriteBuffer(changes -> {
+			batchLatch.countDown();
+			return write(changes);
+		}, 60000, 10, 1000);
+		for (int i = 0; i < 10; i++) {
+			buffer.put(USER_1, null, "key-" + i, "value");
+		}
+		// written at once when batch is full
+		assertTrue(batchLatch.await(10, TimeUnit.SECONDS));
+		buffer.stop();
+
+		buffer = new UserDataWriteBuffer(this::write, 60000, 20, 20);
+		written.clear();
+		for (int i = 0; i < 20; i++) {
+			buffer.put(USER_2, null, "key-" + i, "value");
+		}
+		// written by the calling thread when buffer is full
+		assertEquals(0, buffer.size());
+		assertFalse(written.isEmpty());
+		buffer.stop();
+	}
+
+	@Test
+	public void testChangeDuringWrite() throws InterruptedException {
+		CountDownLatch writing = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		UserDataWriteBuffer buffer = new UserDataWriteBuffer(changes -> {
+			writing.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException ex) {
+				throw new RuntimeException(ex);
+			}
+			return write(changes);
+		}, 60000, 100, 1000);
+		buffer.put(USER_1, null, "a", "1");
+		Thread flusher = new Thread(buffer::flush);
+		flusher.start();
+		assertTrue(writing.await(10, TimeUnit.SECONDS));
+
+		// value which is being written is still visible
+		assertEquals("1", buffer.get(USER_1, null, "a"));
+		buffer.put(USER_1, null, "a", "2");
+		release.countDown();
+		flusher.join();
+
+		// value changed during write is kept for the next write
+		assertEquals(1, buffer.size());
+		assertEquals("2", buffer.get(USER_1, null, "a"));
+		buffer.stop();
+		assertEquals(0, buffer.size());
+		assertEquals("2", written.get(written.size() - 1).get(USER_1).get(new UserDataWriteBuffer.DataKey(null, "a")));
+	}
+
+	@Test
+	public void testFailedWriteRetried() {
+		UserDataWriteBuffer buffer = new UserDataWriteBuffer(changes -> {
+			write(changes);
+			return Collections.singleton(USER_2);
+		}, 60000, 100, 1000);
+		buffer.put(USER_1, null, "a", "1");
+		buffer.put(USER_2, null, "a", "2");
+		buffer.flush();
+
+		// only changes of the failed user are kept for the next write
+		assertEquals(1, buffer.size());
+		assertNull(buffer.get(USER_1, null, "a"));
+		assertEquals("2", buffer.get(USER_2, null, "a"));
+
+		for (int i = 0; i < UserDataWriteBuffer.MAX_RETRIES; i++) {
+			buffer.flush();
+			assertEquals(1, written.get(written.size() - 1).size());
+			assertTrue(written.get(written.size() - 1).containsKey(USER_2));
+		}
+		// dropped after the last retry failed
+		assertEquals(0, buffer.size());
+		assertEquals(1, buffer.getDropped());
+		assertEquals(UserDataWriteBuffer.MAX_RETRIES + 1, written.size());
+		buffer.stop();
+	}
+
+	private synchronized Set<BareJID> write(Map<BareJID, Map<UserDataWriteBuffer.DataKey, Object>> changes) {
+		written.add(new HashMap<>(changes));
+		return Collections.emptySet();
+	}
+}
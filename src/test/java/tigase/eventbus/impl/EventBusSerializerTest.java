@@ -19,6 +19,7 @@ package tigase.eventbus.impl;
 
 import org.junit.Assert;
 import org.junit.Test;
+import org.junit.experimental.categories.Category;
 import tigase.auth.BruteForceLockerBean;
 import tigase.util.stringprep.TigaseStringprepException;
 import tigase.xml.DomBuilderHandler;
@@ -113,6 +114,100 @@ public class EventBusSerializerTest {
 		assertEquals(xmlString, xmlString2);
 	}
 
+	@Test
+	public void testBinaryRoundTrip() throws Exception {
+		EventBusSerializer serializer = new EventBusSerializer();
+
+		Event1 eo = new Event1();
+		eo.setJid(JID.jidInstanceNS("a@b.c/d"));
+		eo.setTransientField("123");
+		eo.setV1("message <&> \u017c\u00f3\u0142w");
+		eo.setV2(-9898);
+		eo.setElementField(new Element("x", "v", new String[]{"a"}, new String[]{"b"}));
+		eo.setStrArrField(new String[]{"ala", "m,a", "kota"});
+		eo.setSetField(new HashSet<>(Arrays.asList("test123")));
+
+		Element ex = serializer.serialize(eo, true);
+		assertEquals("event", ex.getName());
+		assertEquals("tigase.eventbus.impl.Event1", ex.getAttributeStaticStr("class"));
+		assertEquals(EventBusSerializer.BINARY_CODEC, ex.getAttributeStaticStr(EventBusSerializer.CODEC_ATTR_NAME));
+		assertTrue(ex.getChildren() == null || ex.getChildren().isEmpty());
+
+		// element is sent over the cluster connection as XML
+		Element parsed = parse(ex.toString());
+		Event1 ed = serializer.deserialize(parsed);
+
+		assertNotNull(ed);
+		assertEquals(JID.jidInstanceNS("a@b.c/d"), ed.getJid());
+		assertNull(ed.getTransientField());
+		assertNull(ed.getEmptyField());
+		assertEquals("message <&> \u017c\u00f3\u0142w", ed.getV1());
+		assertEquals(-9898, ed.getV2());
+		assertEquals(new Element("x", "v", new String[]{"a"}, new String[]{"b"}), ed.getElementField());
+		assertArrayEquals(new String[]{"ala", "m,a", "kota"}, ed.getStrArrField());
+		assertEquals(new HashSet<>(Arrays.asList("test123")), ed.getSetField());
+
+		// binary form is smaller than XML
+		assertTrue(serializer.serializeBinary(eo).length < serializer.serialize(eo).toString().length());
+	}
+
+	@Test
+	public void testBinaryFallbackToXml() throws TigaseStringprepException {
+		EventBusSerializer serializer = new EventBusSerializer();
+
+		BruteForceLockerBean.StatHolder statHolder = new BruteForceLockerBean.StatHolder();
+		statHolder.addIP("192.168.0.1");
+		statHolder.addJID(BareJID.bareJIDInstance("test@zeus"));
+		BruteForceLockerBean.StatisticsEmitEvent eo = new BruteForceLockerBean.StatisticsEmitEvent("test", statHolder);
+
+		// both forms are accepted by the same deserializer
+		BruteForceLockerBean.StatisticsEmitEvent fromXml = serializer.deserialize(serializer.serialize(eo, false));
+		BruteForceLockerBean.StatisticsEmitEvent fromBinary = serializer.deserialize(serializer.serialize(eo, true));
+		assertEquals(serializer.serialize(fromXml).toString(), serializer.serialize(fromBinary).toString());
+	}
+
+	@Test
+	@Category(tigase.tests.SlowTest.class)
+	public void benchmarkCodecs() throws Exception {
+		EventBusSerializer serializer = new EventBusSerializer();
+
+		Event1 eo = new Event1();
+		eo.setJid(JID.jidInstanceNS("user@example.com/resource-1"));
+		eo.setV1("session opened");
+		eo.setV2(12345);
+		eo.setStrArrField(new String[]{"node1.example.com", "node2.example.com"});
+		eo.setSetField(new HashSet<>(Arrays.asList("presence", "roster")));
+
+		for (boolean binary : new boolean[]{false, true, false, true}) {
+			int rounds = 100000;
+			String data = null;
+			long start = System.nanoTime();
+			for (int i = 0; i < rounds; i++) {
+				data = serializer.serialize(eo, binary).toString();
+			}
+			long encode = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < rounds; i++) {
+				Event1 ed = serializer.deserialize(parse(data));
+				assertNotNull(ed);
+			}
+			long decode = System.nanoTime() - start;
+
+			System.out.println(String.format("%s, size: %d, encode: %.0f ops/s, decode: %.0f ops/s",
+											 binary ? "binary" : "xml", data.length(),
+											 rounds * 1000000000.0 / encode, rounds * 1000000000.0 / decode));
+		}
+	}
+
+	private static Element parse(String data) {
+		SimpleParser parser = SingletonFactory.getParserInstance();
+		TestDomBuilderHandler domHandler = new TestDomBuilderHandler();
+		parser.parse(domHandler, data.toCharArray(), 0, data.length());
+		assertFalse(domHandler.isError());
+		return domHandler.getParsedElements().poll();
+	}
+
 	private static class TestDomBuilderHandler extends DomBuilderHandler {
 
 		private boolean error = false;
@@ -0,0 +1,132 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.io;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public class AdaptiveZLibIOTest {
+
+	private static final String STANZA =
+			"<message type=\"chat\" xmlns=\"jabber:client\" id=\"%d\" from=\"user%d@example.com/res\" " +
+					"to=\"buddy@example.com\"><body>Hello %d</body><active " +
+					"xmlns=\"http://jabber.org/protocol/chatstates\"/></message>";
+
+	@Test
+	public void testPolicy() {
+		AdaptiveCompressionPolicy policy = new AdaptiveCompressionPolicy(() -> 0f);
+		long fast = policy.getFastLinkThroughput() * 10;
+
+		// not enough data to decide
+		Assert.assertEquals(Deflater.BEST_SPEED, policy.selectLevel(Deflater.BEST_SPEED, 0, 100, 50, 1000, 10f));
+		// slow link with idle CPU
+		Assert.assertEquals(Deflater.BEST_COMPRESSION,
+							policy.selectLevel(Deflater.BEST_SPEED, 0, 100_000, 20_000, 10_000, 10f));
+		Assert.assertEquals(6, policy.selectLevel(Deflater.BEST_SPEED, 0, 100_000, 20_000, 10_000, 60f));
+		// fast link
+		Assert.assertEquals(Deflater.BEST_SPEED,
+							policy.selectLevel(Deflater.BEST_COMPRESSION, 0, fast, fast / 5, 1000, 10f));
+		// CPU overloaded
+		Assert.assertEquals(Deflater.NO_COMPRESSION,
+							policy.selectLevel(Deflater.BEST_COMPRESSION, 0, fast, fast / 5, 1000, 90f));
+		Assert.assertEquals(Deflater.BEST_SPEED,
+							policy.selectLevel(Deflater.BEST_COMPRESSION, 0, 100_000, 20_000, 10_000, 90f));
+		// data does not compress
+		Assert.assertEquals(Deflater.NO_COMPRESSION,
+							policy.selectLevel(Deflater.BEST_SPEED, 0, 100_000, 95_000, 10_000, 10f));
+		Assert.assertEquals(Deflater.NO_COMPRESSION,
+							policy.selectLevel(Deflater.NO_COMPRESSION, 1, 100_000, 100_100, 10_000, 10f));
+		// ratio is measured again after a while
+		Assert.assertEquals(Deflater.BEST_SPEED,
+							policy.selectLevel(Deflater.NO_COMPRESSION, policy.getProbeWindows(), 100_000, 100_100,
+											   10_000, 10f));
+	}
+
+	@Test
+	public void testRoundTripWithLevelChanges() throws Exception {
+		float[] cpu = new float[]{10f};
+		AdaptiveCompressionPolicy policy = new AdaptiveCompressionPolicy(() -> cpu[0]);
+		policy.setWindow(0);
+
+		AdaptiveZLibIO sender = new AdaptiveZLibIO(null, policy, false);
+		AdaptiveZLibIO receiver = new AdaptiveZLibIO(null, policy, false);
+		// stream without dictionary may be read by standard inflater (as used by ZLibIO)
+		Inflater inflater = new Inflater();
+
+		Random random = new Random(1);
+		for (int i = 0; i < 200; i++) {
+			if (i == 100) {
+				cpu[0] = 95f;
+			}
+			byte[] data;
+			if (i % 50 < 10) {
+				data = new byte[8192];
+				random.nextBytes(data);
+			} else {
+				data = stanzas(i, 100);
+			}
+			ByteBuffer compressed = sender.compress(ByteBuffer.wrap(data));
+			byte[] compressedBytes = new byte[compressed.remaining()];
+			compressed.duplicate().get(compressedBytes);
+
+			Assert.assertArrayEquals(data, toArray(receiver.decompress(compressed)));
+
+			inflater.setInput(compressedBytes);
+			byte[] inflated = new byte[data.length + 1];
+			Assert.assertEquals(data.length, inflater.inflate(inflated));
+		}
+		Assert.assertEquals(Deflater.NO_COMPRESSION, sender.getLevel());
+	}
+
+	@Test
+	public void testDictionary() throws Exception {
+		AdaptiveCompressionPolicy policy = new AdaptiveCompressionPolicy(() -> 0f);
+		policy.setInitialLevel(Deflater.BEST_COMPRESSION);
+		AdaptiveZLibIO withDictionary = new AdaptiveZLibIO(null, policy, true);
+		AdaptiveZLibIO withoutDictionary = new AdaptiveZLibIO(null, policy, false);
+		AdaptiveZLibIO receiver = new AdaptiveZLibIO(null, policy, false);
+
+		byte[] data = stanzas(0, 1);
+		ByteBuffer compressed = withDictionary.compress(ByteBuffer.wrap(data));
+		int dictionarySize = compressed.remaining();
+		Assert.assertArrayEquals(data, toArray(receiver.decompress(compressed)));
+		int plainSize = withoutDictionary.compress(ByteBuffer.wrap(data)).remaining();
+		Assert.assertTrue("Dictionary did not help: " + dictionarySize + " >= " + plainSize,
+						  dictionarySize < plainSize);
+	}
+
+	private static byte[] stanzas(int start, int count) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = start; i < start + count; i++) {
+			sb.append(String.format(STANZA, i, i % 7, i));
+		}
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static byte[] toArray(ByteBuffer buffer) {
+		byte[] result = new byte[buffer.remaining()];
+		buffer.get(result);
+		return result;
+	}
+}
@@ -22,6 +22,8 @@ import org.junit.Test;
 import tigase.eventbus.EventBus;
 import tigase.eventbus.impl.EventBusImplementation;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 public class ClusterMapFactoryTest {
@@ -87,6 +89,7 @@ public class ClusterMapFactoryTest {
 
 		final ClusterMapFactory factory = new ClusterMapFactory();
 		factory.setEventBus(new EventBusImplementation());
+		factory.setBatchWindow(0);
 		final EventBus eventBus = factory.getEventBus();
 
 		final boolean[] received = new boolean[]{false};
@@ -197,4 +200,190 @@ public class ClusterMapFactoryTest {
 		}
 		Assert.assertTrue(received[0]);
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void testBatchedPuts() throws Exception {
+		final ClusterMapFactory factory = new ClusterMapFactory();
+		EventBusImplementation eventBusImpl = new EventBusImplementation();
+		eventBusImpl.setExecutor(Runnable::run);
+		factory.setEventBus(eventBusImpl);
+		factory.setBatchWindow(10_000);
+
+		final List<ClusterMapFactory.ElementsBatchEvent> batches = new ArrayList<>();
+		factory.getEventBus().addListener(ClusterMapFactory.ElementsBatchEvent.class, event -> batches.add(event));
+		factory.getEventBus()
+				.addListener(ClusterMapFactory.ElementAddEvent.class, event -> Assert.fail("Unexpected event"));
+
+		final Map<String, String> map = factory.createMap("batch", String.class, String.class);
+		map.put("k1", "v1");
+		map.put("k2", "v2");
+		map.put("k1", "v1-new");
+		map.remove("k2");
+		map.put("k3", "v3");
+		Assert.assertTrue(batches.isEmpty());
+
+		factory.flush(map);
+		Assert.assertEquals(1, batches.size());
+		ClusterMapFactory.ElementsBatchEvent event = batches.get(0);
+		Assert.assertEquals(factory.getNodeId(), event.getNode());
+		Assert.assertEquals(0, event.getBaseVersion());
+		Assert.assertEquals(5, event.getVersion());
+		Assert.assertArrayEquals(new String[]{"k1", "k3"}, event.getKeys());
+		Assert.assertArrayEquals(new String[]{"v1-new", "v3"}, event.getValues());
+		Assert.assertArrayEquals(new String[]{"k2"}, event.getRemovedKeys());
+
+		// nothing more to send
+		factory.flush(map);
+		Assert.assertEquals(1, batches.size());
+
+		// batch is applied on other node
+		final ClusterMapFactory remote = new ClusterMapFactory();
+		remote.setEventBus(new EventBusImplementation());
+		final Map<String, String> remoteMap = remote.createMap("batch", String.class, String.class);
+		remote.onMapElementsBatch(event);
+		Assert.assertEquals(Map.of("k1", "v1-new", "k3", "v3"), Map.copyOf(remoteMap));
+		Assert.assertEquals(5, ((DMap<?, ?>) remoteMap).versions.getVersion(factory.getNodeId()));
+	}
+
+	@Test
+	public void testShutdownSendsCollectedChanges() throws Exception {
+		final ClusterMapFactory factory = new ClusterMapFactory();
+		EventBusImplementation eventBusImpl = new EventBusImplementation();
+		eventBusImpl.setExecutor(Runnable::run);
+		factory.setEventBus(eventBusImpl);
+		// batching is disabled by default, so older nodes receive changes during rolling upgrade
+		Assert.assertEquals(0, factory.getBatchWindow());
+		factory.setBatchWindow(10_000);
+
+		final List<ClusterMapFactory.ElementsBatchEvent> batches = new ArrayList<>();
+		factory.getEventBus().addListener(ClusterMapFactory.ElementsBatchEvent.class, event -> batches.add(event));
+
+		final Map<String, String> map = factory.createMap("shutdown", String.class, String.class);
+		map.put("k1", "v1");
+		Assert.assertTrue(batches.isEmpty());
+
+		factory.shutdown();
+		Assert.assertEquals(1, batches.size());
+		Assert.assertArrayEquals(new String[]{"k1"}, batches.get(0).getKeys());
+
+		// changes collected after shutdown are sent as well
+		map.put("k2", "v2");
+		factory.flush(map);
+		Assert.assertEquals(2, batches.size());
+		factory.destroyMap(map);
+	}
+
+	@Test
+	public void testResyncAfterMissedBatch() throws Exception {
+		final ClusterMapFactory node1 = new ClusterMapFactory();
+		EventBusImplementation eventBus1 = new EventBusImplementation();
+		eventBus1.setExecutor(Runnable::run);
+		node1.setEventBus(eventBus1);
+		node1.setBatchWindow(10_000);
+		final ClusterMapFactory node2 = new ClusterMapFactory();
+		EventBusImplementation eventBus2 = new EventBusImplementation();
+		eventBus2.setExecutor(Runnable::run);
+		node2.setEventBus(eventBus2);
+
+		final List<ClusterMapFactory.ElementsBatchEvent> batches = new ArrayList<>();
+		eventBus1.addListener(ClusterMapFactory.ElementsBatchEvent.class, event -> batches.add(event));
+		final List<ClusterMapFactory.ElementsSyncEvent> syncs = new ArrayList<>();
+		eventBus1.addListener(ClusterMapFactory.ElementsSyncEvent.class, event -> syncs.add(event));
+		final List<ClusterMapFactory.MapSyncRequestEvent> requests = new ArrayList<>();
+		eventBus2.addListener(ClusterMapFactory.MapSyncRequestEvent.class, event -> requests.add(event));
+
+		final Map<String, String> map1 = node1.createMap("sync", String.class, String.class);
+		final Map<String, String> map2 = node2.createMap("sync", String.class, String.class);
+
+		map1.put("k1", "v1");
+		map1.put("k2", "v2");
+		node1.flush(map1);
+		map1.remove("k1");
+		map1.put("k3", "v3");
+		node1.flush(map1);
+		Assert.assertEquals(2, batches.size());
+
+		// first batch was lost, so node2 asks for missing changes
+		node2.onMapElementsBatch(batches.get(1));
+		Assert.assertEquals(1, requests.size());
+		Assert.assertEquals(node2.getNodeId(), requests.get(0).getNode());
+
+		node1.onMapSyncRequest(requests.get(0));
+		Assert.assertEquals(1, syncs.size());
+		Assert.assertFalse(syncs.get(0).isFull());
+		Assert.assertEquals(node2.getNodeId(), syncs.get(0).getTarget());
+
+		// event targeted to other node is ignored
+		node1.onMapElementsSync(syncs.get(0));
+		Assert.assertEquals(2, map1.size());
+
+		node2.onMapElementsSync(syncs.get(0));
+		Assert.assertEquals(Map.of("k2", "v2", "k3", "v3"), Map.copyOf(map2));
+		Assert.assertEquals(((DMap<?, ?>) map1).versions.getVector(), ((DMap<?, ?>) map2).versions.getVector());
+
+		// node is up to date, nothing to send
+		ClusterMapFactory.MapSyncRequestEvent request = new ClusterMapFactory.MapSyncRequestEvent();
+		request.setUid("sync");
+		request.setNode(node2.getNodeId());
+		request.setVector(DMapVersions.vectorToArray(((DMap<?, ?>) map2).versions.getVector()));
+		node1.onMapSyncRequest(request);
+		Assert.assertEquals(1, syncs.size());
+	}
+
+	@Test
+	public void testVersionsOfSingleChanges() throws Exception {
+		final ClusterMapFactory node1 = new ClusterMapFactory();
+		EventBusImplementation eventBus1 = new EventBusImplementation();
+		eventBus1.setExecutor(Runnable::run);
+		node1.setEventBus(eventBus1);
+		node1.setBatchWindow(0);
+		final ClusterMapFactory node2 = new ClusterMapFactory();
+		EventBusImplementation eventBus2 = new EventBusImplementation();
+		eventBus2.setExecutor(Runnable::run);
+		node2.setEventBus(eventBus2);
+
+		final List<ClusterMapFactory.ElementAddEvent> added = new ArrayList<>();
+		eventBus1.addListener(ClusterMapFactory.ElementAddEvent.class, event -> added.add(event));
+		final List<ClusterMapFactory.ElementRemoveEvent> removed = new ArrayList<>();
+		eventBus1.addListener(ClusterMapFactory.ElementRemoveEvent.class, event -> removed.add(event));
+		final List<ClusterMapFactory.ElementsSyncEvent> syncs = new ArrayList<>();
+		eventBus1.addListener(ClusterMapFactory.ElementsSyncEvent.class, event -> syncs.add(event));
+		final List<ClusterMapFactory.MapSyncRequestEvent> requests = new ArrayList<>();
+		eventBus2.addListener(ClusterMapFactory.MapSyncRequestEvent.class, event -> requests.add(event));
+
+		final Map<String, String> map1 = node1.createMap("single", String.class, String.class);
+		final Map<String, String> map2 = node2.createMap("single", String.class, String.class);
+
+		map1.put("k1", "v1");
+		map1.put("k2", "v2");
+		map1.remove("k1");
+		Assert.assertEquals(2, added.size());
+		Assert.assertEquals(1, removed.size());
+		Assert.assertEquals(node1.getNodeId(), added.get(0).getNode());
+		Assert.assertEquals(3, removed.get(0).getVersion());
+
+		added.forEach(node2::onMapElementAdd);
+		removed.forEach(node2::onMapElementRemove);
+		Assert.assertEquals(Map.of("k2", "v2"), Map.copyOf(map2));
+		Assert.assertTrue(requests.isEmpty());
+		Assert.assertEquals(((DMap<?, ?>) map1).versions.getVector(), ((DMap<?, ?>) map2).versions.getVector());
+
+		// node2 is up to date, so there is nothing to send after reconnection
+		ClusterMapFactory.MapSyncRequestEvent request = new ClusterMapFactory.MapSyncRequestEvent();
+		request.setUid("single");
+		request.setNode(node2.getNodeId());
+		request.setVector(DMapVersions.vectorToArray(((DMap<?, ?>) map2).versions.getVector()));
+		node1.onMapSyncRequest(request);
+		Assert.assertTrue(syncs.isEmpty());
+
+		// change was lost, so node2 asks for missing changes
+		map1.put("k3", "v3");
+		map1.put("k4", "v4");
+		node2.onMapElementAdd(added.get(3));
+		Assert.assertEquals(1, requests.size());
+		node1.onMapSyncRequest(requests.get(0));
+		Assert.assertEquals(1, syncs.size());
+		node2.onMapElementsSync(syncs.get(0));
+		Assert.assertEquals(Map.of("k2", "v2", "k3", "v3", "k4", "v4"), Map.copyOf(map2));
+	}
+}
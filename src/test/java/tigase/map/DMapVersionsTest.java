@@ -0,0 +1,93 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+public class DMapVersionsTest {
+
+	@Test
+	public void testDelta() {
+		DMapVersions<String> versions = new DMapVersions<>("node1");
+		versions.localPut("k1");
+		versions.localPut("k2");
+		versions.localRemove("k1");
+		versions.applyBatch("node2", 0, 2, List.of("k3"), List.of());
+
+		Assert.assertEquals(Map.of("node1", 3L, "node2", 2L), versions.getVector());
+		Assert.assertNull(versions.delta(Map.of("node1", 3L, "node2", 2L)));
+
+		DMapVersions.Delta<String> delta = versions.delta(Map.of("node1", 1L));
+		Assert.assertFalse(delta.full);
+		Assert.assertEquals(Map.of("k2", new DMapVersions.Version("node1", 2), "k3",
+								   new DMapVersions.Version("node2", 2)), delta.put);
+		Assert.assertEquals(Map.of("k1", new DMapVersions.Version("node1", 3)), delta.removed);
+
+		// batch with missing previous changes
+		Assert.assertTrue(versions.applyBatch("node2", 5, 6, List.of("k4"), List.of()));
+		Assert.assertEquals(2L, versions.getVersion("node2"));
+	}
+
+	@Test
+	public void testApplyEntry() {
+		DMapVersions<String> versions = new DMapVersions<>("node1");
+		versions.localPut("k1");
+
+		Assert.assertFalse(versions.applyEntry("k1", new DMapVersions.Version("node1", 1), false));
+		Assert.assertTrue(versions.applyEntry("k1", new DMapVersions.Version("node2", 4), false));
+		Assert.assertTrue(versions.applyEntry("k1", new DMapVersions.Version("node2", 5), true));
+		Assert.assertNull(versions.getEntryVersion("k1"));
+		Assert.assertFalse(versions.applyEntry("k1", new DMapVersions.Version("node2", 4), false));
+	}
+
+	@Test
+	public void testFullSnapshotAfterCompaction() {
+		int maxTombstones = DMapVersions.getMaxTombstones();
+		DMapVersions.setMaxTombstones(2);
+		try {
+			DMapVersions<String> versions = new DMapVersions<>("node1");
+			for (int i = 0; i < 4; i++) {
+				versions.localPut("k" + i);
+			}
+			versions.localRemove("k0");
+			versions.localRemove("k1");
+			Assert.assertEquals(2, versions.tombstonesSize());
+			Assert.assertFalse(versions.delta(Map.of("node1", 4L)).full);
+
+			versions.localRemove("k2");
+			Assert.assertEquals(0, versions.tombstonesSize());
+			DMapVersions.Delta<String> delta = versions.delta(Map.of("node1", 4L));
+			Assert.assertTrue(delta.full);
+			Assert.assertEquals(Map.of("k3", new DMapVersions.Version("node1", 4)), delta.put);
+			// node which knows all changes does not need full snapshot
+			Assert.assertNull(versions.delta(Map.of("node1", 7L)));
+
+			// item missing in the full snapshot was removed on the other node
+			DMapVersions<String> remote = new DMapVersions<>("node2");
+			remote.applyBatch("node1", 0, 2, List.of("k0", "k1"), List.of());
+			Assert.assertTrue(remote.removeIfCovered("k0", delta.vector));
+			Assert.assertFalse(remote.removeIfCovered("k5", delta.vector));
+		} finally {
+			DMapVersions.setMaxTombstones(maxTombstones);
+		}
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.net;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class ByteBufferPoolTest {
+
+	@Test
+	public void testCapacityFor() {
+		assertEquals(512, ByteBufferPool.capacityFor(1));
+		assertEquals(512, ByteBufferPool.capacityFor(512));
+		assertEquals(1024, ByteBufferPool.capacityFor(513));
+		assertEquals(2048, ByteBufferPool.capacityFor(2048));
+		assertEquals(65536, ByteBufferPool.capacityFor(40000));
+		assertEquals(100000, ByteBufferPool.capacityFor(100000));
+	}
+
+	@Test
+	public void testReuse() {
+		ByteBufferPool pool = new ByteBufferPool("test", false, 4);
+		ByteBuffer buffer = pool.acquire(2000);
+		assertEquals(2048, buffer.capacity());
+		assertEquals(0, pool.getHits());
+		assertEquals(1, pool.getMisses());
+
+		buffer.put((byte) 1);
+		pool.release(buffer);
+		assertEquals(1, pool.getPooledBuffers());
+		assertEquals(2048, pool.getPooledBytes());
+
+		ByteBuffer reused = pool.acquire(1500);
+		assertSame(buffer, reused);
+		assertEquals(0, reused.position());
+		assertEquals(reused.capacity(), reused.limit());
+		assertEquals(1, pool.getHits());
+		assertEquals(0, pool.getPooledBuffers());
+
+		// buffer from a different size class must not be returned
+		pool.release(reused);
+		assertNotSame(reused, pool.acquire(100));
+	}
+
+	@Test
+	public void testForeignBuffersAreDropped() {
+		ByteBufferPool pool = new ByteBufferPool("test", false, 4);
+		pool.release(ByteBuffer.allocate(3000));
+		pool.release(ByteBuffer.allocateDirect(2048));
+		pool.release(ByteBuffer.allocate(1 << 20));
+		pool.release(ByteBuffer.allocate(1024).asReadOnlyBuffer());
+		assertEquals(0, pool.getPooledBuffers());
+
+		ByteBuffer big = pool.acquire(1 << 20);
+		assertEquals(1 << 20, big.capacity());
+		assertFalse(big.isDirect());
+	}
+
+	@Test
+	public void testPoolLimit() {
+		ByteBufferPool pool = new ByteBufferPool("test", true, 2);
+		ByteBuffer[] buffers = new ByteBuffer[4];
+		for (int i = 0; i < buffers.length; i++) {
+			buffers[i] = pool.acquire(1024);
+			assertTrue(buffers[i].isDirect());
+		}
+		for (ByteBuffer buffer : buffers) {
+			pool.release(buffer);
+		}
+		assertEquals(2, pool.getPooledBuffers());
+	}
+}
@@ -0,0 +1,106 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.server;
+
+import org.junit.Test;
+import tigase.cluster.ClusterConnectionManager;
+import tigase.server.xmppsession.SessionManager;
+
+import java.util.Queue;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static tigase.server.AbstractMessageReceiver.isOverriddenWithoutBatch;
+
+public class AbstractMessageReceiverTest {
+
+	@Test
+	public void testOverriddenWithoutBatch() {
+		assertFalse(isOverriddenWithoutBatch(NoOverrides.class, "addOutPacket", "addOutPackets"));
+		assertFalse(isOverriddenWithoutBatch(NoOverrides.class, "processOutPacket", "processOutPackets"));
+
+		assertTrue(isOverriddenWithoutBatch(SingleOverride.class, "addOutPacket", "addOutPackets"));
+		assertTrue(isOverriddenWithoutBatch(SingleOverride.class, "addPacket", "addPackets"));
+		assertTrue(isOverriddenWithoutBatch(SingleOverride.class, "processOutPacket", "processOutPackets"));
+
+		assertFalse(isOverriddenWithoutBatch(BothOverridden.class, "addOutPacket", "addOutPackets"));
+		// batch method overridden in a subclass knows about per-packet method of its superclass
+		assertFalse(isOverriddenWithoutBatch(BatchInSubclass.class, "addOutPacket", "addOutPackets"));
+		// per-packet method overridden again in a subclass, batch method of the superclass does not know about it
+		assertTrue(isOverriddenWithoutBatch(SingleInSubclass.class, "addOutPacket", "addOutPackets"));
+
+		assertFalse(isOverriddenWithoutBatch(SessionManager.class, "addOutPacket", "addOutPackets"));
+		assertFalse(isOverriddenWithoutBatch(ClusterConnectionManager.class, "processOutPacket", "processOutPackets"));
+	}
+
+	private static abstract class NoOverrides
+			extends AbstractMessageReceiver {
+
+	}
+
+	private static abstract class SingleOverride
+			extends AbstractMessageReceiver {
+
+		@Override
+		public boolean addPacket(Packet packet) {
+			return super.addPacket(packet);
+		}
+
+		@Override
+		public void processOutPacket(Packet packet) {
+			super.processOutPacket(packet);
+		}
+
+		@Override
+		protected boolean addOutPacket(Packet packet) {
+			return super.addOutPacket(packet);
+		}
+	}
+
+	private static abstract class BothOverridden
+			extends AbstractMessageReceiver {
+
+		@Override
+		protected boolean addOutPacket(Packet packet) {
+			return super.addOutPacket(packet);
+		}
+
+		@Override
+		protected boolean addOutPackets(Queue<Packet> packets) {
+			return super.addOutPackets(packets);
+		}
+	}
+
+	private static abstract class BatchInSubclass
+			extends SingleOverride {
+
+		@Override
+		protected boolean addOutPackets(Queue<Packet> packets) {
+			return super.addOutPackets(packets);
+		}
+	}
+
+	private static abstract class SingleInSubclass
+			extends BothOverridden {
+
+		@Override
+		protected boolean addOutPacket(Packet packet) {
+			return super.addOutPacket(packet);
+		}
+	}
+}
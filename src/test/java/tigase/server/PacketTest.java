@@ -20,12 +20,16 @@ package tigase.server;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.junit.experimental.categories.Category;
 import tigase.util.stringprep.TigaseStringprepException;
 import tigase.xml.Element;
 import tigase.xmpp.StanzaType;
 import tigase.xmpp.jid.JID;
 
-import static org.junit.Assert.assertEquals;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+import static org.junit.Assert.*;
 
 /**
  * @author Wojciech Kapcia
@@ -147,4 +151,105 @@ public class PacketTest {
 		Assert.assertTrue("Output secured in default Packet.toStringFull(): " + result.toStringFull(),
 						  result.toStringFull().contains("mySuperSecretPassword"));
 	}
+
+	@Test
+	public void testProcessorsIds() {
+		assertFalse(packetInstance.wasProcessed());
+		assertFalse(packetInstance.wasSkipped());
+		assertTrue(packetInstance.getProcessorsIds().isEmpty());
+
+		ProcessorIds.register("test-proc-1");
+		packetInstance.processedBy("test-proc-1");
+		packetInstance.processedBy("test-proc-1");
+		packetInstance.notProcessedBy("test-proc-2");
+		assertTrue(packetInstance.wasProcessed());
+		assertTrue(packetInstance.wasSkipped());
+		assertTrue(packetInstance.wasProcessedBy("test-proc-1"));
+		assertFalse(packetInstance.wasProcessedBy("test-proc-2"));
+		assertFalse(packetInstance.wasProcessedBy("test-proc-unknown"));
+		assertEquals(Collections.singleton("test-proc-1"), packetInstance.getProcessorsIds());
+		assertEquals(Collections.singleton("test-proc-2"), packetInstance.getSkippedProcessorsIds());
+
+		// identifiers which do not fit in inline bits
+		Set<String> expected = new HashSet<>();
+		expected.add("test-proc-1");
+		for (int i = 0; i < ProcessorIds.INLINE_BITS * 2; i++) {
+			String id = "test-many-" + i;
+			expected.add(id);
+			packetInstance.processedBy(id);
+		}
+		assertEquals(expected, packetInstance.getProcessorsIds());
+		assertEquals(expected.size(), packetInstance.getProcessorsIds().size());
+		assertTrue(packetInstance.wasProcessedBy("test-many-" + (ProcessorIds.INLINE_BITS * 2 - 1)));
+		assertEquals(Collections.singleton("test-proc-2"), packetInstance.getSkippedProcessorsIds());
+
+		// packet copies do not share processing state
+		Packet copy = packetInstance.copyElementOnly();
+		assertFalse(copy.wasProcessed());
+		assertFalse(copy.wasSkipped());
+	}
+
+	@Test
+	@Category(tigase.tests.SlowTest.class)
+	public void benchmarkPacketProcessing() throws TigaseStringprepException {
+		JID from = JID.jidInstance("user1@example.com/res1");
+		JID to = JID.jidInstance("user2@example.com");
+		Element message = new Element("message", new String[]{"from", "to", "xmlns", "type"},
+									  new String[]{from.toString(), to.toString(), Packet.CLIENT_XMLNS, "chat"});
+		message.addChild(new Element("body", "Hello"));
+		String[] ids = {"message", "amp", "message-archive", "offline-messages"};
+		for (String id : ids) {
+			ProcessorIds.register(id);
+		}
+
+		int packets = 1000000;
+		for (boolean legacy : new boolean[]{true, false}) {
+			// warm up
+			processPackets(legacy, message, from, to, ids, packets);
+
+			long allocated = allocatedBytes();
+			long start = System.nanoTime();
+			int processed = processPackets(legacy, message, from, to, ids, packets);
+			long time = System.nanoTime() - start;
+			allocated = allocatedBytes() - allocated;
+			assertEquals(packets, processed);
+
+			System.out.println(String.format("%s, time per packet: %dns, allocated per packet: %dB",
+											 legacy ? "processor ids sets" : "processor ids bits", time / packets,
+											 allocated / packets));
+		}
+	}
+
+	// 'legacy' emulates per packet sets allocated and filled before processor ids were kept in bits
+	private static int processPackets(boolean legacy, Element message, JID from, JID to, String[] ids, int packets) {
+		int processed = 0;
+		for (int i = 0; i < packets; i++) {
+			Packet packet = Packet.packetInstance(message, from, to);
+			if (legacy) {
+				Set<String> processorsIds = new LinkedHashSet<>(4, 0.9f);
+				Set<String> skippedProcessorsIds = new LinkedHashSet<>(4, 0.9f);
+				for (int j = 0; j < ids.length - 1; j++) {
+					processorsIds.add(ids[j]);
+				}
+				skippedProcessorsIds.add(ids[ids.length - 1]);
+				if (!processorsIds.isEmpty() && processorsIds.contains(ids[0])) {
+					processed++;
+				}
+			} else {
+				for (int j = 0; j < ids.length - 1; j++) {
+					packet.processedBy(ids[j]);
+				}
+				packet.notProcessedBy(ids[ids.length - 1]);
+				if (packet.wasProcessed() && packet.wasProcessedBy(ids[0])) {
+					processed++;
+				}
+			}
+		}
+		return processed;
+	}
+
+	private static long allocatedBytes() {
+		return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(
+				Thread.currentThread().getId());
+	}
 }
@@ -0,0 +1,337 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.server;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import tigase.vhosts.DummyVHostManager;
+import tigase.vhosts.VHostListener;
+import tigase.vhosts.VHostManagerIfc;
+import tigase.xmpp.jid.JID;
+
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.*;
+
+public class RoutingTableTest {
+
+	private static final Logger log = Logger.getLogger(RoutingTableTest.class.getName());
+	private static final int VHOSTS = 10000;
+
+	private TestComponent c2s;
+	private Map<String, ServerComponent> components;
+	private Map<JID, ServerComponent> componentsById;
+	private TestComponent muc;
+	private TestComponent s2s;
+	private TestComponent sessMan;
+	private TestVHostManager vHostManager;
+
+	@Before
+	public void setUp() {
+		sessMan = new TestComponent("sess-man", true, false, false);
+		c2s = new TestComponent("c2s", false, false, false);
+		s2s = new TestComponent("s2s", false, true, false);
+		muc = new TestComponent("muc", false, false, true);
+		components = new HashMap<>();
+		componentsById = new HashMap<>();
+		for (TestComponent comp : Arrays.asList(sessMan, c2s, s2s, muc)) {
+			components.put(comp.getName(), comp);
+			componentsById.put(comp.getComponentId(), comp);
+		}
+		vHostManager = new TestVHostManager(components.values());
+		for (int i = 0; i < VHOSTS; i++) {
+			vHostManager.addVhost("vhost-" + i + ".example.com");
+		}
+	}
+
+	@Test
+	public void testComponentsForLocalDomain() {
+		RoutingTable table = createTable(new MessageReceiver[0]);
+
+		assertArrayEquals(new ServerComponent[]{sessMan}, table.getComponentsForLocalDomain("vhost-1.example.com"));
+		assertArrayEquals(new ServerComponent[]{muc}, table.getComponentsForLocalDomain("muc.vhost-1.example.com"));
+		// c2s does not handle name subdomains
+		assertNull(table.getComponentsForLocalDomain("c2s.vhost-1.example.com"));
+		assertNull(table.getComponentsForLocalDomain("muc.other.com"));
+		assertNull(table.getComponentsForLocalDomain("other.com"));
+		// default hostname is not a virtual host
+		assertNull(table.getComponentsForLocalDomain("default.example.com"));
+		assertTrue(table.isLocalDomain("vhost-1.example.com"));
+		assertFalse(table.isLocalDomain("muc.vhost-1.example.com"));
+		assertFalse(table.isLocalDomain("default.example.com"));
+		assertArrayEquals(new ServerComponent[]{s2s}, table.getComponentsForNonLocalDomain());
+	}
+
+	@Test
+	public void testLocalComponent() {
+		RoutingTable table = createTable(new MessageReceiver[0]);
+
+		assertSame(c2s, table.getLocalComponent(c2s.getComponentId()));
+		assertSame(c2s, table.getLocalComponent(JID.jidInstanceNS("c2s", "vhost-2.example.com", null)));
+		assertSame(c2s, table.getLocalComponent(JID.jidInstanceNS("c2s", "default.example.com", "res")));
+		assertSame(muc, table.getLocalComponent(JID.jidInstanceNS("muc.vhost-3.example.com")));
+		assertSame(muc, table.getLocalComponent(JID.jidInstanceNS("room", "muc.vhost-3.example.com", null)));
+		assertNull(table.getLocalComponent(JID.jidInstanceNS("c2s", "other.com", null)));
+		assertNull(table.getLocalComponent(JID.jidInstanceNS("user", "vhost-3.example.com", null)));
+		assertNull(table.getLocalComponent(JID.jidInstanceNS("pubsub.vhost-3.example.com")));
+		assertNull(table.getLocalComponent(JID.jidInstanceNS("vhost-3.example.com")));
+	}
+
+	@Test
+	public void testRegionMap() {
+		Map<String, Integer> entries = new HashMap<>();
+		for (int i = 0; i < 100; i++) {
+			entries.put("key-" + i, i);
+		}
+		RoutingTable.RegionMap<Integer> map = new RoutingTable.RegionMap<>(entries);
+		assertEquals(100, map.size());
+		for (int i = 0; i < 100; i++) {
+			assertEquals(Integer.valueOf(i), map.get("key-" + i));
+			String str = "prefix.key-" + i + ".suffix";
+			assertEquals(Integer.valueOf(i), map.get(str, 7, str.length() - 7));
+		}
+		assertNull(map.get("key-100"));
+		assertNull(map.get("prefix.key-1", 0, 10));
+	}
+
+	@Test
+	public void testRegexRoutings() {
+		TestReceiver receiver = new TestReceiver("^.*@ext\\.example\\.com$");
+		RoutingTable table = createTable(new MessageReceiver[]{receiver});
+
+		assertArrayEquals(new ServerComponent[]{receiver}, table.getServerComponentsForRegex("user@ext.example.com"));
+		assertNull(table.getServerComponentsForRegex("user@other.com"));
+	}
+
+	@Category(tigase.tests.SlowTest.class)
+	@Test
+	public void testLookupPerformance() {
+		RoutingTable table = createTable(new MessageReceiver[0]);
+		List<JID> jids = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			String domain = "vhost-" + ((i * 7919) % VHOSTS) + ".example.com";
+			jids.add(JID.jidInstanceNS("user-" + i, domain, "res"));
+			jids.add(JID.jidInstanceNS("muc." + domain));
+			jids.add(JID.jidInstanceNS("c2s", domain, null));
+		}
+
+		int iterations = 200;
+		long legacyTime = 0;
+		long tableTime = 0;
+		int found = 0;
+		for (int round = 0; round < 5; round++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				for (JID jid : jids) {
+					if (legacyLookup(jid) != null) {
+						found++;
+					}
+				}
+			}
+			long legacyEnd = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				for (JID jid : jids) {
+					if (tableLookup(table, jid) != null) {
+						found--;
+					}
+				}
+			}
+			long tableEnd = System.nanoTime();
+			// first round is used as a warmup
+			if (round > 0) {
+				legacyTime += legacyEnd - start;
+				tableTime += tableEnd - legacyEnd;
+			}
+		}
+		assertEquals(0, found);
+		long lookups = 4L * iterations * jids.size();
+		log.log(Level.INFO, "{0} vhosts, lookup by components and vhost manager: {1}ns/packet, routing table: {2}ns/packet",
+				new Object[]{VHOSTS, legacyTime / lookups, tableTime / lookups});
+	}
+
+	private RoutingTable createTable(MessageReceiver[] receivers) {
+		return new RoutingTable(components, componentsById, vHostManager, "default.example.com", receivers);
+	}
+
+	// resolution done by MessageRouter before routing table was introduced
+	private Object legacyLookup(JID jid) {
+		ServerComponent comp = componentsById.get(jid);
+		if (comp != null) {
+			return comp;
+		}
+		if (jid.getLocalpart() != null) {
+			comp = components.get(jid.getLocalpart());
+			if (comp != null && (vHostManager.isLocalDomain(jid.getDomain()) ||
+					jid.getDomain().equals("default.example.com"))) {
+				return comp;
+			}
+		}
+		int idx = jid.getDomain().indexOf('.');
+		if (idx > 0) {
+			String cmpName = jid.getDomain().substring(0, idx);
+			String basename = jid.getDomain().substring(idx + 1);
+			comp = components.get(cmpName);
+			if (comp != null && (vHostManager.isLocalDomain(basename) || basename.equals("default.example.com"))) {
+				return comp;
+			}
+		}
+		return vHostManager.getComponentsForLocalDomain(jid.getDomain());
+	}
+
+	private Object tableLookup(RoutingTable table, JID jid) {
+		ServerComponent comp = table.getLocalComponent(jid);
+		if (comp != null) {
+			return comp;
+		}
+		return table.getComponentsForLocalDomain(jid.getDomain());
+	}
+
+	private static class TestComponent
+			implements ServerComponent, VHostListener {
+
+		private final JID componentId;
+		private final boolean localDomains;
+		private final boolean nameSubdomains;
+		private final boolean nonLocalDomains;
+		private String name;
+
+		TestComponent(String name, boolean localDomains, boolean nonLocalDomains, boolean nameSubdomains) {
+			this.name = name;
+			this.componentId = JID.jidInstanceNS(name, "default.example.com", null);
+			this.localDomains = localDomains;
+			this.nonLocalDomains = nonLocalDomains;
+			this.nameSubdomains = nameSubdomains;
+		}
+
+		@Override
+		public JID getComponentId() {
+			return componentId;
+		}
+
+		@Override
+		public ComponentInfo getComponentInfo() {
+			return null;
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public void setName(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public boolean handlesLocalDomains() {
+			return localDomains;
+		}
+
+		@Override
+		public boolean handlesNameSubdomains() {
+			return nameSubdomains;
+		}
+
+		@Override
+		public boolean handlesNonLocalDomains() {
+			return nonLocalDomains;
+		}
+
+		@Override
+		public void initializationCompleted() {
+		}
+
+		@Override
+		public boolean isInitializationComplete() {
+			return true;
+		}
+
+		@Override
+		public void processPacket(Packet packet, Queue<Packet> results) {
+		}
+
+		@Override
+		public void release() {
+		}
+
+		@Override
+		public void setVHostManager(VHostManagerIfc manager) {
+		}
+	}
+
+	private static class TestReceiver
+			extends AbstractMessageReceiver {
+
+		TestReceiver(String regex) {
+			addRegexRouting(regex);
+		}
+
+		@Override
+		public void processPacket(Packet packet) {
+		}
+	}
+
+	/**
+	 * Returns components for local domains in the same way as {@link tigase.vhosts.VHostManager} does.
+	 */
+	private static class TestVHostManager
+			extends DummyVHostManager {
+
+		private final Collection<ServerComponent> components;
+
+		TestVHostManager(Collection<ServerComponent> components) {
+			this.components = components;
+		}
+
+		@Override
+		public ServerComponent[] getComponentsForLocalDomain(String domain) {
+			if (!isLocalDomain(domain)) {
+				int idx = domain.indexOf('.');
+				if (idx > 0) {
+					String name = domain.substring(0, idx);
+					String basedomain = domain.substring(idx + 1);
+					for (ServerComponent comp : components) {
+						if (comp.getName().equals(name) && ((VHostListener) comp).handlesNameSubdomains() &&
+								isLocalDomain(basedomain)) {
+							return new ServerComponent[]{comp};
+						}
+					}
+				}
+				return null;
+			}
+			LinkedHashSet<ServerComponent> results = new LinkedHashSet<>(10);
+			for (ServerComponent comp : components) {
+				if (((VHostListener) comp).handlesLocalDomains()) {
+					results.add(comp);
+				}
+			}
+			return results.isEmpty() ? null : results.toArray(new ServerComponent[results.size()]);
+		}
+
+		@Override
+		public ServerComponent[] getComponentsForNonLocalDomain(String domain) {
+			return components.stream()
+					.filter(comp -> ((VHostListener) comp).handlesNonLocalDomains())
+					.toArray(ServerComponent[]::new);
+		}
+	}
+}
@@ -129,6 +129,43 @@ public abstract class AbstractMsgRepositoryTest<DS extends DataSource, T>
 		assertEquals(0, count.size());
 	}
 
+	@Test
+	public void testStorageOfOfflineMessagePaged()
+			throws TigaseDBException, NotAuthorizedException, TigaseStringprepException {
+		List<Packet> messages = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			Packet message = Message.getMessage(sender, recipient, StanzaType.chat, generateRandomBody(), null, null,
+												UUID.randomUUID().toString());
+			assertTrue(repo.storeMessage(sender, recipient, null, message.getElement(), null));
+			messages.add(message);
+		}
+
+		List<Long> msgIds = new ArrayList<>();
+		MsgRepository.OfflineMessagesProcessor proc = (msg, msgId) -> msgIds.add(Long.parseLong(msgId));
+
+		Queue<Element> loaded = repo.loadMessagesPageToJID(recipientSession, 0, 3, proc);
+		assertNotNull(loaded);
+		assertEquals(3, loaded.size());
+		for (Packet message : messages.subList(0, 3)) {
+			assertEquals(message.getElement().getAttributeStaticStr("id"), loaded.poll().getAttributeStaticStr("id"));
+		}
+
+		repo.deleteMessagesUpToId(recipientSession, msgIds.get(msgIds.size() - 1));
+		assertEquals(2, repo.getMessagesCount(recipient).get(MsgRepository.MSG_TYPES.message).longValue());
+
+		loaded = repo.loadMessagesPageToJID(recipientSession, msgIds.get(msgIds.size() - 1), 3, proc);
+		assertEquals(2, loaded.size());
+		for (Packet message : messages.subList(3, 5)) {
+			assertEquals(message.getElement().getAttributeStaticStr("id"), loaded.poll().getAttributeStaticStr("id"));
+		}
+
+		loaded = repo.loadMessagesPageToJID(recipientSession, msgIds.get(msgIds.size() - 1), 3, proc);
+		assertTrue(loaded.isEmpty());
+
+		repo.deleteMessagesUpToId(recipientSession, msgIds.get(msgIds.size() - 1));
+		assertEquals(0, repo.getMessagesCount(recipient).size());
+	}
+
 	@Test
 	public void testStorageOfOfflineMessageWithExpiration1()
 			throws TigaseDBException, NotAuthorizedException, TigaseStringprepException {
@@ -22,6 +22,8 @@ import tigase.util.Algorithms;
 import tigase.xmpp.jid.BareJID;
 
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.UUID;
 
 import static junit.framework.TestCase.assertTrue;
@@ -71,4 +73,45 @@ public class RTBLTest {
 		assertTrue(rtbl.isBlocked(user1));
 		assertFalse(rtbl.isBlocked(user3));
 	}
+
+	@Test
+	public void testVerdictInvalidation() {
+		RTBL rtbl = new RTBL(pubsubJid, node, hash, Collections.emptySet());
+		BareJID user1 = BareJID.bareJIDInstanceNS(UUID.randomUUID().toString(), "domain-1");
+		String userHash = Algorithms.sha256(user1.toString());
+
+		assertFalse(rtbl.isBlocked(user1));
+		rtbl.getBlocked().add(userHash);
+		assertTrue(rtbl.isBlocked(user1));
+		assertTrue(rtbl.isBlocked(user1));
+		rtbl.getBlocked().remove(userHash);
+		assertFalse(rtbl.isBlocked(user1));
+
+		rtbl.getBlocked().add(userHash.toUpperCase());
+		assertTrue(rtbl.isBlocked(user1));
+		rtbl.getBlocked().clear();
+		assertFalse(rtbl.isBlocked(user1));
+		assertEquals(0, rtbl.getBlocked().size());
+	}
+
+	@Test
+	public void testManyBlocked() {
+		Set<String> hashes = new HashSet<>();
+		for (int i = 0; i < 1000; i++) {
+			hashes.add(Algorithms.sha256("user-" + i + "@domain-" + (i % 10)));
+		}
+		// invalid entries are ignored
+		hashes.add("not-a-hash");
+		hashes.add("abcd");
+		RTBL rtbl = new RTBL(pubsubJid, node, hash, hashes);
+		assertEquals(1002, rtbl.getBlocked().size());
+		for (int i = 0; i < 1000; i++) {
+			assertTrue(rtbl.isBlocked(BareJID.bareJIDInstanceNS("user-" + i, "domain-" + (i % 10))));
+			assertFalse(rtbl.isBlocked(BareJID.bareJIDInstanceNS("other-" + i, "domain-" + (i % 10))));
+		}
+		// non-ASCII JIDs are hashed using UTF-8
+		BareJID user = BareJID.bareJIDInstanceNS("użytkownik", "dömain");
+		rtbl.getBlocked().add(Algorithms.sha256(user.toString()));
+		assertTrue(rtbl.isBlocked(user));
+	}
 }
@@ -20,13 +20,23 @@ package tigase.server.xmppclient;
 import junit.framework.TestCase;
 import org.junit.Test;
 import tigase.TestLogger;
+import tigase.net.IOService;
+import tigase.server.Command;
+import tigase.server.ConnectionManager;
 import tigase.server.Message;
 import tigase.server.Packet;
 import tigase.server.xmppclient.StreamManagementIOProcessor.OutQueue;
 import tigase.util.stringprep.TigaseStringprepException;
 import tigase.xml.Element;
+import tigase.xmpp.StanzaType;
+import tigase.xmpp.XMPPIOService;
+import tigase.xmpp.jid.JID;
 
+import java.io.IOException;
 import java.lang.reflect.Field;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
@@ -235,6 +245,54 @@ public class StreamManagementIOProcessorTest
 		assertTrue("Request for ACK should be sent as over 20ms passed", processor.shouldRequestAck(null, outQueue));
 	}
 
+	@Test
+	public void testWaitForAck() throws Exception {
+		StreamManagementIOProcessor processor = new StreamManagementIOProcessor();
+		Queue<Packet> sent = new ArrayDeque<>();
+		Field connectionManagerField = StreamManagementIOProcessor.class.getDeclaredField("connectionManager");
+		connectionManagerField.setAccessible(true);
+		connectionManagerField.set(processor, newConnectionManager(sent));
+
+		Queue<String> written = new ArrayDeque<>();
+		XMPPIOService service = newXMPPIOService(written);
+		JID smJid = JID.jidInstance("sess-man@localhost");
+
+		// without stream management there is nothing to wait for
+		Packet request = createWaitForAck(smJid, service.getConnectionId(), 2);
+		processor.processCommand(service, request);
+		assertEquals(1, sent.size());
+		assertEquals(StanzaType.result, sent.poll().getType());
+
+		assertTrue(processor.processIncoming(service, Packet.packetInstance(
+				new Element("enable", new String[]{"xmlns"}, new String[]{StreamManagementIOProcessor.XMLNS}))));
+		sent.clear();
+		written.clear();
+
+		for (int i = 0; i < 5; i++) {
+			processor.processOutgoing(service, Packet.packetInstance(
+					new Element("message").withElement("body", null, "Test " + UUID.randomUUID().toString())));
+		}
+
+		request = createWaitForAck(smJid, service.getConnectionId(), 2);
+		processor.processCommand(service, request);
+		assertTrue("Response sent before client acknowledged packets", sent.isEmpty());
+		assertEquals("Ack should be requested", 1, written.size());
+		assertTrue(written.poll().startsWith("<r "));
+
+		processor.processIncoming(service, createAck(2));
+		assertTrue("Response sent while 3 packets are not acknowledged", sent.isEmpty());
+
+		processor.processIncoming(service, createAck(3));
+		assertEquals(1, sent.size());
+		Packet response = sent.poll();
+		assertEquals(StanzaType.result, response.getType());
+		assertEquals(request.getStanzaId(), response.getStanzaId());
+
+		// response is sent only once
+		processor.processIncoming(service, createAck(5));
+		assertTrue(sent.isEmpty());
+	}
+
 	@Test
 	public void testBurstLimitPeriodRatio() throws TigaseStringprepException {
 		OutQueue outQueue = new OutQueue();
@@ -292,4 +350,86 @@ public class StreamManagementIOProcessorTest
 		assertFalse(result);
 	}
 
+	private Packet createAck(int h) throws TigaseStringprepException {
+		return Packet.packetInstance(new Element("a", new String[]{"xmlns", "h"},
+												 new String[]{StreamManagementIOProcessor.XMLNS, String.valueOf(h)}));
+	}
+
+	private Packet createWaitForAck(JID from, JID to, int maxUnacked) {
+		Packet packet = StreamManagementCommand.WAIT_FOR_ACK.create(from, to);
+		Command.addFieldValue(packet, "max-unacked", String.valueOf(maxUnacked));
+		return packet;
+	}
+
+	private ConnectionManager newConnectionManager(Queue<Packet> sent) {
+		return new ConnectionManager() {
+			@Override
+			public void processOutPacket(Packet packet) {
+				sent.offer(packet);
+			}
+
+			@Override
+			public Queue<Packet> processSocketData(XMPPIOService serv) {
+				return null;
+			}
+
+			@Override
+			public boolean processUndeliveredPacket(Packet packet, Long stamp, String errorMessage) {
+				return false;
+			}
+
+			@Override
+			public void reconnectionFailed(Map port_props) {
+
+			}
+
+			@Override
+			public void xmppStreamClosed(XMPPIOService serv) {
+
+			}
+
+			@Override
+			public String[] xmppStreamOpened(XMPPIOService serv, Map attribs) {
+				return null;
+			}
+
+			@Override
+			public void packetsReady(IOService service) throws IOException {
+
+			}
+
+			@Override
+			public boolean serviceStopped(IOService service) {
+				return super.serviceStopped((XMPPIOService) service);
+			}
+
+			@Override
+			public void tlsHandshakeCompleted(IOService service) {
+
+			}
+
+			@Override
+			protected long getMaxInactiveTime() {
+				return 3 * MINUTE;
+			}
+
+			@Override
+			protected XMPPIOService<?> getXMPPIOServiceInstance() {
+				return null;
+			}
+		};
+	}
+
+	private XMPPIOService newXMPPIOService(Queue<String> written) throws TigaseStringprepException {
+		XMPPIOService service = new XMPPIOService() {
+			@Override
+			public void writeRawData(String data) throws IOException {
+				written.offer(data);
+			}
+		};
+		service.setConnectionId(JID.jidInstance("c2s@localhost/" + UUID.randomUUID().toString()));
+		service.setDataReceiver(JID.jidInstance("sess-man@localhost"));
+		return service;
+	}
+
 }
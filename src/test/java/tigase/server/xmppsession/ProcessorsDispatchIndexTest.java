@@ -0,0 +1,234 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.server.xmppsession;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import tigase.TestLogger;
+import tigase.db.NonAuthUserRepository;
+import tigase.server.Packet;
+import tigase.util.stringprep.TigaseStringprepException;
+import tigase.xml.Element;
+import tigase.xmpp.*;
+
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+
+public class ProcessorsDispatchIndexTest {
+
+	private static final Logger log = TestLogger.getLogger(ProcessorsDispatchIndexTest.class);
+
+	private static final String[] ELEM_NAMES = {"message", "presence", "iq"};
+	private static final StanzaType[] TYPES = {null, StanzaType.get, StanzaType.set, StanzaType.result,
+											   StanzaType.error, StanzaType.chat, StanzaType.unavailable};
+
+	private List<XMPPProcessorIfc> processors;
+	private List<Packet> packets;
+
+	@Before
+	public void setUp() throws TigaseStringprepException {
+		processors = new ArrayList<>();
+		for (int i = 0; i < 40; i++) {
+			String elemName = ELEM_NAMES[i % ELEM_NAMES.length];
+			String xmlns = "urn:test:" + i;
+			Set<StanzaType> types = (i % 4 == 0) ? null : EnumSet.of(StanzaType.get, StanzaType.set);
+			if ("iq".equals(elemName)) {
+				processors.add(new TestProcessor("proc-" + i, new String[][]{{"iq", "query"}, {"iq", "command"}},
+												 new String[]{xmlns.intern(), (xmlns + "#cmd").intern()}, types));
+			} else {
+				processors.add(new TestProcessor("proc-" + i, new String[][]{{elemName}},
+												 new String[]{Packet.CLIENT_XMLNS}, (i % 4 == 0) ? null : types));
+			}
+		}
+		processors.add(new AllPathsProcessor());
+		processors.add(new CustomCanHandleProcessor());
+
+		packets = new ArrayList<>();
+		for (String elemName : ELEM_NAMES) {
+			for (StanzaType type : TYPES) {
+				for (int i = 0; i < 40; i += 5) {
+					Element elem = new Element(elemName, new String[]{"from", "to", "id"},
+											   new String[]{"user@example.com/res", "other@example.com/res",
+															"id-" + i});
+					elem.setXMLNS(Packet.CLIENT_XMLNS);
+					if (type != null) {
+						elem.setAttribute("type", type.name());
+					}
+					if ("iq".equals(elemName)) {
+						elem.addChild(new Element("query", new String[]{"xmlns"}, new String[]{"urn:test:" + i}));
+					} else {
+						elem.addChild(new Element("body", "test"));
+					}
+					packets.add(Packet.packetInstance(elem));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testIndexMatchesWalk() {
+		ProcessorsDispatchIndex index = ProcessorsDispatchIndex.build(processors);
+		for (Packet packet : packets) {
+			assertEquals(packet.toString(), walk(packet), indexed(index, packet));
+		}
+	}
+
+	@Test
+	public void testIndexRebuild() {
+		ProcessorsDispatchIndex index = ProcessorsDispatchIndex.build(processors);
+		Packet packet = packets.get(0);
+		Set<String> before = indexed(index, packet);
+
+		List<XMPPProcessorIfc> reduced = new ArrayList<>(processors);
+		reduced.removeIf(proc -> before.contains(proc.id()));
+		index = ProcessorsDispatchIndex.build(reduced);
+		assertEquals(Collections.emptySet(), indexed(index, packet));
+	}
+
+	@Category(tigase.tests.SlowTest.class)
+	@Test
+	public void testPerformance() {
+		ProcessorsDispatchIndex index = ProcessorsDispatchIndex.build(processors);
+		int iterations = 20000;
+		long walkTime = 0;
+		long indexTime = 0;
+		int matched = 0;
+		for (int round = 0; round < 5; round++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				for (Packet packet : packets) {
+					for (XMPPProcessorIfc proc : processors) {
+						if (proc.canHandle(packet, null) == Authorization.AUTHORIZED) {
+							matched++;
+						}
+					}
+				}
+			}
+			long walkEnd = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				for (Packet packet : packets) {
+					for (ProcessorsDispatchIndex.Entry entry : index.getCandidates(packet)) {
+						if (entry.canHandle(packet, null) == Authorization.AUTHORIZED) {
+							matched--;
+						}
+					}
+				}
+			}
+			long indexEnd = System.nanoTime();
+			// first round is used as a warmup
+			if (round > 0) {
+				walkTime += walkEnd - start;
+				indexTime += indexEnd - walkEnd;
+			}
+		}
+		assertEquals(0, matched);
+		long dispatched = 4L * iterations * packets.size();
+		log.log(Level.INFO, "walk over {0} processors: {1}ns/packet, dispatch index: {2}ns/packet",
+				new Object[]{processors.size(), walkTime / dispatched, indexTime / dispatched});
+	}
+
+	private Set<String> walk(Packet packet) {
+		Set<String> result = new TreeSet<>();
+		for (XMPPProcessorIfc proc : processors) {
+			if (proc.canHandle(packet, null) == Authorization.AUTHORIZED) {
+				result.add(proc.id());
+			}
+		}
+		return result;
+	}
+
+	private Set<String> indexed(ProcessorsDispatchIndex index, Packet packet) {
+		Set<String> result = new TreeSet<>();
+		for (ProcessorsDispatchIndex.Entry entry : index.getCandidates(packet)) {
+			if (entry.canHandle(packet, null) == Authorization.AUTHORIZED) {
+				result.add(entry.getProcessor().id());
+			}
+		}
+		return result;
+	}
+
+	private static class TestProcessor
+			extends XMPPProcessor
+			implements XMPPProcessorIfc {
+
+		private final String id;
+		private final String[][] paths;
+		private final Set<StanzaType> types;
+		private final String[] xmlnss;
+
+		TestProcessor(String id, String[][] paths, String[] xmlnss, Set<StanzaType> types) {
+			this.id = id;
+			this.paths = paths;
+			this.xmlnss = xmlnss;
+			this.types = types;
+		}
+
+		@Override
+		public String id() {
+			return id;
+		}
+
+		@Override
+		public void process(Packet packet, XMPPResourceConnection session, NonAuthUserRepository repo,
+							Queue<Packet> results, Map<String, Object> settings) throws XMPPException {
+		}
+
+		@Override
+		public String[][] supElementNamePaths() {
+			return paths;
+		}
+
+		@Override
+		public String[] supNamespaces() {
+			return xmlnss;
+		}
+
+		@Override
+		public Set<StanzaType> supTypes() {
+			return types;
+		}
+	}
+
+	private static class AllPathsProcessor
+			extends TestProcessor {
+
+		AllPathsProcessor() {
+			super("all-paths", ALL_PATHS, new String[]{ALL_NAMES}, null);
+		}
+	}
+
+	private static class CustomCanHandleProcessor
+			extends TestProcessor {
+
+		CustomCanHandleProcessor() {
+			super("custom", new String[][]{{"message"}}, new String[]{Packet.CLIENT_XMLNS}, null);
+		}
+
+		@Override
+		public Authorization canHandle(Packet packet, XMPPResourceConnection conn) {
+			if (packet.getType() == StanzaType.error) {
+				return null;
+			}
+			return super.canHandle(packet, conn);
+		}
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.stats;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void testBuckets() {
+		int lastIdx = -1;
+		for (long value = 0; value < (1L << 42); value = value < 1000 ? value + 1 : value + value / 7) {
+			int idx = LatencyHistogram.bucketIndex(value);
+			assertTrue(idx >= lastIdx);
+			lastIdx = idx;
+
+			long reported = LatencyHistogram.bucketValue(idx);
+			if (value < (1L << 40)) {
+				assertTrue(value + " reported as " + reported, reported >= value);
+				// error is not bigger than a size of a single bucket
+				assertTrue(value + " reported as " + reported, reported - value <= Math.max(1, value / 32));
+				assertEquals(idx, LatencyHistogram.bucketIndex(reported));
+			}
+		}
+	}
+
+	@Test
+	public void testPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram("Test", Level.FINE);
+		for (int i = 1; i <= 1000; i++) {
+			histogram.record(TimeUnit.MICROSECONDS.toNanos(i));
+		}
+		// values are not visible before the end of a minute
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getValueAtPercentile(99));
+
+		histogram.everyMinute();
+		assertEquals(1000, histogram.getCount());
+		assertInRange(500, histogram.getValueAtPercentile(50));
+		assertInRange(990, histogram.getValueAtPercentile(99));
+		assertInRange(999, histogram.getValueAtPercentile(99.9));
+		assertInRange(1000, histogram.getValueAtPercentile(100));
+
+		// single stall is visible in the tail
+		histogram.record(TimeUnit.SECONDS.toNanos(2));
+		histogram.everyMinute();
+		assertEquals(1, histogram.getCount());
+		assertInRange(2000000, histogram.getValueAtPercentile(50));
+
+		histogram.everyMinute();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getValueAtPercentile(50));
+	}
+
+	@Test
+	public void testStatistics() {
+		LatencyHistogram histogram = new LatencyHistogram("Processing time", Level.FINE);
+		histogram.record(TimeUnit.MILLISECONDS.toNanos(5));
+		histogram.everyMinute();
+
+		StatisticsList list = new StatisticsList(Level.FINE);
+		histogram.getStatistics("sess-man", list);
+		assertEquals(1, list.getValue("sess-man", "Processing time last minute", 0L));
+		assertInRange(5000, list.getValue("sess-man", "Processing time p999 [us]", 0L));
+
+		list = new StatisticsList(Level.INFO);
+		histogram.getStatistics("sess-man", list);
+		assertEquals(-1, list.getValue("sess-man", "Processing time last minute", -1L));
+	}
+
+	private static void assertInRange(long expected, long value) {
+		assertTrue(expected + " reported as " + value, value >= expected && value <= expected + expected / 32);
+	}
+}
@@ -0,0 +1,316 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util.processing;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import tigase.TestLogger;
+import tigase.db.NonAuthUserRepository;
+import tigase.server.Packet;
+import tigase.stats.StatisticsList;
+import tigase.util.stringprep.TigaseStringprepException;
+import tigase.xml.Element;
+import tigase.xmpp.XMPPException;
+import tigase.xmpp.XMPPProcessor;
+import tigase.xmpp.XMPPProcessorIfc;
+import tigase.xmpp.XMPPResourceConnection;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ProcessingThreadsTest {
+
+	private static final Logger log = TestLogger.getLogger(ProcessingThreadsTest.class);
+
+	private final XMPPProcessorIfc processor = new TestProcessor();
+
+	@Test
+	public void testOrderingPreserved() throws Exception {
+		testOrderingPreserved(false);
+	}
+
+	@Test
+	public void testOrderingPreservedWithVirtualThreads() throws Exception {
+		testOrderingPreserved(true);
+	}
+
+	@Test
+	public void testOrderingPreservedWithWorkStealing() throws Exception {
+		testOrderingPreserved(false, true);
+	}
+
+	@Test
+	public void testBusyUserDoesNotBlockOthers() throws Exception {
+		CountDownLatch hotUserRelease = new CountDownLatch(1);
+		List<Packet> packets = createPackets(20, 5);
+		Map<String, List<Integer>> processed = new ConcurrentHashMap<>();
+		CountDownLatch latch = new CountDownLatch(packets.size());
+		ProcessingThreads<TestWorkerThread> pt = new ProcessingThreads<>(
+				new TestWorkerThread(new SlowRepository(0, "user-0@example.com", hotUserRelease), processed, latch),
+				2, 1000, "test", false, true);
+		try {
+			for (Packet packet : packets) {
+				assertTrue(pt.addItem(processor, packet, null));
+			}
+			// all packets except the ones of blocked user should be processed by the other worker
+			long deadline = System.currentTimeMillis() + 30000;
+			while (latch.getCount() > 5 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertEquals(5, latch.getCount());
+			// first packet of the blocked user is being processed
+			assertEquals(4, pt.getTotalQueueSize());
+
+			hotUserRelease.countDown();
+			assertTrue(latch.await(30, TimeUnit.SECONDS));
+			assertEquals(0, pt.getTotalQueueSize());
+			assertEquals(0, pt.getDroppedPackets());
+		} finally {
+			pt.shutdown();
+		}
+	}
+
+	@Test
+	public void testBusyUserQueueLimit() throws Exception {
+		CountDownLatch hotUserRelease = new CountDownLatch(1);
+		ProcessingThreads<TestWorkerThread> pt = new ProcessingThreads<>(
+				new TestWorkerThread(new SlowRepository(0, "user-0@example.com", hotUserRelease),
+									 new ConcurrentHashMap<>(), new CountDownLatch(0)), 2, 10, "test", false, true);
+		try {
+			List<Packet> hotUser = createPackets(1, 20);
+			int accepted = 0;
+			for (Packet packet : hotUser) {
+				if (pt.addItem(processor, packet, null)) {
+					accepted++;
+				}
+			}
+			// one packet may be already taken for processing
+			assertTrue(accepted >= 10 && accepted <= 11);
+			// other users are not affected by the overflow of the busy user
+			for (Packet packet : createPackets(5, 2)) {
+				if (!packet.getStanzaTo().getBareJID().toString().equals("user-0@example.com")) {
+					assertTrue(pt.addItem(processor, packet, null));
+				}
+			}
+		} finally {
+			hotUserRelease.countDown();
+			pt.shutdown();
+		}
+	}
+
+	@Test
+	public void testLatencyHistograms() throws Exception {
+		List<Packet> packets = createPackets(10, 5);
+		CountDownLatch latch = new CountDownLatch(packets.size());
+		ProcessingThreads<TestWorkerThread> pt = new ProcessingThreads<>(
+				new TestWorkerThread(new SlowRepository(1), new ConcurrentHashMap<>(), latch), 2, 1000, "test");
+		try {
+			for (Packet packet : packets) {
+				assertTrue(pt.addItem(processor, packet, null));
+			}
+			assertTrue(latch.await(30, TimeUnit.SECONDS));
+		} finally {
+			pt.shutdown();
+		}
+		// counter is updated after the packet is processed
+		Thread.sleep(100);
+		pt.everyMinute();
+		assertEquals(packets.size(), pt.getQueueWaitHistogram().getCount());
+		assertEquals(packets.size(), pt.getProcessingHistogram(processor.id()).getCount());
+		// each packet is processed at least 1ms
+		assertTrue(pt.getProcessingHistogram(processor.id()).getValueAtPercentile(50) >= 1000);
+
+		// runs skew is calculated once a minute and is not changed by reading statistics
+		float skew = getRunsSkew(pt);
+		assertTrue(skew >= 1f);
+		assertEquals(skew, getRunsSkew(pt), 0f);
+		pt.everyMinute();
+		assertEquals(1f, getRunsSkew(pt), 0f);
+	}
+
+	private float getRunsSkew(ProcessingThreads<?> pt) {
+		StatisticsList list = new StatisticsList(Level.FINE);
+		pt.getStatistics("test", list);
+		return list.getValue("test", "Processor: test runs skew", -1f);
+	}
+
+	@Category(tigase.tests.SlowTest.class)
+	@Test
+	public void testSlowRepositoryThroughput() throws Exception {
+		int threads = Runtime.getRuntime().availableProcessors();
+		List<Packet> packets = createPackets(1000, 2);
+		for (int round = 0; round < 2; round++) {
+			long platform = measure(packets, threads, false);
+			long virtual = measure(packets, threads * 16, true);
+			log.log(Level.INFO,
+					"round {0}, platform threads ({1}): {2} packets/s, virtual threads ({3}): {4} packets/s",
+					new Object[]{round, threads, packets.size() * 1000L / platform, threads * 16,
+								 packets.size() * 1000L / virtual});
+		}
+	}
+
+	private void testOrderingPreserved(boolean virtualThreads) throws Exception {
+		testOrderingPreserved(virtualThreads, false);
+	}
+
+	private void testOrderingPreserved(boolean virtualThreads, boolean workStealing) throws Exception {
+		List<Packet> packets = createPackets(10, 50);
+		Map<String, List<Integer>> processed = new ConcurrentHashMap<>();
+		CountDownLatch latch = new CountDownLatch(packets.size());
+		ProcessingThreads<TestWorkerThread> pt = new ProcessingThreads<>(
+				new TestWorkerThread(new SlowRepository(0), processed, latch), 4, 1000, "test", virtualThreads,
+				workStealing);
+		try {
+			for (Packet packet : packets) {
+				assertTrue(pt.addItem(processor, packet, null));
+			}
+			assertTrue(latch.await(30, TimeUnit.SECONDS));
+		} finally {
+			pt.shutdown();
+		}
+
+		assertEquals(10, processed.size());
+		for (List<Integer> seq : processed.values()) {
+			assertEquals(50, seq.size());
+			for (int i = 0; i < seq.size(); i++) {
+				assertEquals(Integer.valueOf(i), seq.get(i));
+			}
+		}
+	}
+
+	private long measure(List<Packet> packets, int queues, boolean virtualThreads) throws Exception {
+		CountDownLatch latch = new CountDownLatch(packets.size());
+		ProcessingThreads<TestWorkerThread> pt = new ProcessingThreads<>(
+				new TestWorkerThread(new SlowRepository(5), new ConcurrentHashMap<>(), latch), queues, 10000, "bench",
+				virtualThreads);
+		try {
+			long start = System.currentTimeMillis();
+			for (Packet packet : packets) {
+				assertTrue(pt.addItem(processor, packet, null));
+			}
+			assertTrue(latch.await(5, TimeUnit.MINUTES));
+			return Math.max(1, System.currentTimeMillis() - start);
+		} finally {
+			pt.shutdown();
+		}
+	}
+
+	private List<Packet> createPackets(int users, int perUser) throws TigaseStringprepException {
+		List<Packet> packets = new ArrayList<>();
+		for (int i = 0; i < perUser; i++) {
+			for (int u = 0; u < users; u++) {
+				Element elem = new Element("message", new String[]{"to", "id"},
+										   new String[]{"user-" + u + "@example.com", String.valueOf(i)});
+				packets.add(Packet.packetInstance(elem));
+			}
+		}
+		return packets;
+	}
+
+	/**
+	 * Stand-in for a user repository which blocks for a while on each call, like a repository waiting for a database.
+	 */
+	private static class SlowRepository {
+
+		private final CountDownLatch blockedUserRelease;
+		private final String blockedUser;
+		private final long delay;
+
+		private SlowRepository(long delay) {
+			this(delay, null, null);
+		}
+
+		private SlowRepository(long delay, String blockedUser, CountDownLatch blockedUserRelease) {
+			this.delay = delay;
+			this.blockedUser = blockedUser;
+			this.blockedUserRelease = blockedUserRelease;
+		}
+
+		String getData(String user) {
+			if (user.equals(blockedUser)) {
+				try {
+					blockedUserRelease.await();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			if (delay > 0) {
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			return user;
+		}
+	}
+
+	private static class TestProcessor
+			extends XMPPProcessor
+			implements XMPPProcessorIfc {
+
+		@Override
+		public String id() {
+			return "test";
+		}
+
+		@Override
+		public void process(Packet packet, XMPPResourceConnection session, NonAuthUserRepository repo,
+							Queue<Packet> results, Map<String, Object> settings) throws XMPPException {
+		}
+	}
+
+	private static class TestWorkerThread
+			extends WorkerThread {
+
+		private final CountDownLatch latch;
+		private final Map<String, List<Integer>> processed;
+		private final SlowRepository repository;
+
+		private TestWorkerThread(SlowRepository repository, Map<String, List<Integer>> processed,
+								 CountDownLatch latch) {
+			this.repository = repository;
+			this.processed = processed;
+			this.latch = latch;
+		}
+
+		@Override
+		public WorkerThread getNewInstance() {
+			return new TestWorkerThread(repository, processed, latch);
+		}
+
+		@Override
+		public void process(QueueItem item) {
+			Packet packet = item.getPacket();
+			String user = repository.getData(packet.getStanzaTo().getBareJID().toString());
+			processed.computeIfAbsent(user, key -> new ArrayList<>())
+					.add(Integer.parseInt(packet.getStanzaId()));
+			latch.countDown();
+		}
+	}
+}
@@ -0,0 +1,169 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util.workqueue;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import tigase.TestLogger;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.function.ToIntFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.*;
+
+public class PriorityQueueBatchTest {
+
+	private static final Logger log = TestLogger.getLogger(PriorityQueueBatchTest.class);
+
+	private static final List<Class<? extends PriorityQueueAbstract>> IMPLEMENTATIONS = List.of(
+			PriorityQueueRelaxed.class, PriorityQueueStrict.class, PriorityQueueLockFree.class,
+			NonpriorityQueue.class);
+
+	// values below 100 have priority 0, values below 200 priority 1, other values priority 2
+	private static final ToIntFunction<Integer> PRIORITY = value -> Math.min(value / 100, 2);
+
+	@Test
+	public void testPutAllAndDrain() throws InterruptedException {
+		for (Class<? extends PriorityQueueAbstract> cls : IMPLEMENTATIONS) {
+			PriorityQueueAbstract<Integer> queue = PriorityQueueAbstract.getPriorityQueue(3, 100, cls);
+			Queue<Integer> batch = new ArrayDeque<>(List.of(200, 100, 1, 201, 2, 101));
+			queue.putAll(batch, PRIORITY);
+			assertTrue(cls.getSimpleName(), batch.isEmpty());
+			assertEquals(cls.getSimpleName(), 6, queue.totalSize());
+
+			List<Integer> drained = new ArrayList<>();
+			drained.add(queue.take());
+			assertEquals(cls.getSimpleName(), 2, queue.drainTo(drained, 2));
+			assertEquals(cls.getSimpleName(), 3, queue.drainTo(drained, 10));
+			assertEquals(cls.getSimpleName(), 0, queue.drainTo(drained, 10));
+			assertEquals(cls.getSimpleName(), 0, queue.totalSize());
+
+			if (cls == NonpriorityQueue.class) {
+				assertEquals(List.of(200, 100, 1, 201, 2, 101), drained);
+			} else {
+				assertEquals(cls.getSimpleName(), List.of(1, 2, 100, 101, 200, 201), drained);
+			}
+		}
+	}
+
+	@Test
+	public void testPutAllWaitsForSpace() throws InterruptedException {
+		for (Class<? extends PriorityQueueAbstract> cls : IMPLEMENTATIONS) {
+			PriorityQueueAbstract<Integer> queue = PriorityQueueAbstract.getPriorityQueue(3, 4, cls);
+			List<Integer> taken = new ArrayList<>();
+			Thread consumer = new Thread(() -> {
+				try {
+					for (int i = 0; i < 50; i++) {
+						taken.add(queue.take());
+					}
+				} catch (InterruptedException ex) {
+					log.log(Level.WARNING, "consumer interrupted", ex);
+				}
+			});
+			consumer.start();
+
+			Queue<Integer> batch = new ArrayDeque<>();
+			for (int i = 0; i < 50; i++) {
+				batch.offer(i);
+			}
+			// batch is bigger than the queue, consumer has to be woken up before the whole batch is added
+			queue.putAll(batch, PRIORITY);
+			consumer.join(10000);
+			assertFalse(cls.getSimpleName(), consumer.isAlive());
+			assertEquals(cls.getSimpleName(), 50, taken.size());
+			for (int i = 0; i < 50; i++) {
+				assertEquals(cls.getSimpleName(), Integer.valueOf(i), taken.get(i));
+			}
+		}
+	}
+
+	@Test
+	public void testPutAllInterrupted() throws InterruptedException {
+		PriorityQueueAbstract<Integer> queue = new PriorityQueueRelaxed<>(3, 2);
+		Queue<Integer> batch = new ArrayDeque<>(List.of(1, 2, 3, 4));
+		Thread.currentThread().interrupt();
+		try {
+			queue.putAll(batch, PRIORITY);
+			fail("Adding to full queue should be interrupted");
+		} catch (InterruptedException ex) {
+			// expected
+		}
+		// only elements which were not added are left in the batch
+		assertEquals(List.of(3, 4), new ArrayList<>(batch));
+		assertEquals(2, queue.totalSize());
+		assertEquals(Integer.valueOf(1), queue.take());
+	}
+
+	@Category(tigase.tests.SlowTest.class)
+	@Test
+	public void testBatchThroughput() throws InterruptedException {
+		final int batchSize = 16;
+		final int batches = 100000;
+		for (int round = 0; round < 3; round++) {
+			for (Class<? extends PriorityQueueAbstract> cls : IMPLEMENTATIONS) {
+				long single = measure(cls, batchSize, batches, false);
+				long batched = measure(cls, batchSize, batches, true);
+				log.log(Level.INFO, "round {0}, {1}: put() {2}ns per element, putAll() {3}ns per element",
+						new Object[]{round, cls.getSimpleName(), single / (batchSize * batches),
+									 batched / (batchSize * batches)});
+			}
+		}
+	}
+
+	private long measure(Class<? extends PriorityQueueAbstract> cls, int batchSize, int batches, boolean putAll)
+			throws InterruptedException {
+		PriorityQueueAbstract<Integer> queue = PriorityQueueAbstract.getPriorityQueue(3, 10000, cls);
+		Thread consumer = new Thread(() -> {
+			List<Integer> drained = new ArrayList<>(batchSize);
+			try {
+				int remaining = batchSize * batches;
+				while (remaining > 0) {
+					queue.take();
+					drained.clear();
+					remaining -= 1 + queue.drainTo(drained, batchSize);
+				}
+			} catch (InterruptedException ex) {
+				log.log(Level.WARNING, "consumer interrupted", ex);
+			}
+		});
+		consumer.start();
+
+		long start = System.nanoTime();
+		Queue<Integer> batch = new ArrayDeque<>(batchSize);
+		for (int i = 0; i < batches; i++) {
+			for (int j = 0; j < batchSize; j++) {
+				batch.offer(200 + j);
+			}
+			if (putAll) {
+				queue.putAll(batch, PRIORITY);
+			} else {
+				Integer element;
+				while ((element = batch.poll()) != null) {
+					queue.put(element, PRIORITY.applyAsInt(element));
+				}
+			}
+		}
+		consumer.join();
+		return System.nanoTime() - start;
+	}
+}
@@ -0,0 +1,169 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util.workqueue;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import tigase.TestLogger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.*;
+
+public class PriorityQueueLockFreeTest {
+
+	private static final Logger log = TestLogger.getLogger(PriorityQueueLockFreeTest.class);
+
+	@Test
+	public void testPriorityOrder() throws InterruptedException {
+		PriorityQueueAbstract<Integer> queue = new PriorityQueueLockFree<>(3, 10);
+		queue.offer(20, 2);
+		queue.offer(10, 1);
+		queue.offer(0, 0);
+		queue.offer(11, 1);
+
+		assertEquals(4, queue.totalSize());
+		assertArrayEquals(new int[]{1, 2, 1}, queue.size());
+		assertEquals(Integer.valueOf(0), queue.take());
+		assertEquals(Integer.valueOf(10), queue.take());
+		assertEquals(Integer.valueOf(11), queue.take());
+		assertEquals(Integer.valueOf(20), queue.take());
+		assertEquals(0, queue.totalSize());
+	}
+
+	@Test
+	public void testOverflowToNextPriority() throws InterruptedException {
+		PriorityQueueAbstract<Integer> queue = new PriorityQueueLockFree<>(2, 2);
+		assertTrue(queue.offer(1, 0));
+		assertTrue(queue.offer(2, 0));
+		assertTrue(queue.offer(3, 0));
+		assertTrue(queue.offer(4, 1));
+		assertFalse(queue.offer(5, 0));
+		assertArrayEquals(new int[]{2, 2}, queue.size());
+	}
+
+	@Test
+	public void testSetMaxSize() throws InterruptedException {
+		PriorityQueueAbstract<Integer> queue = new PriorityQueueLockFree<>(1, 2);
+		assertTrue(queue.offer(1, 0));
+		assertTrue(queue.offer(2, 0));
+		assertFalse(queue.offer(3, 0));
+
+		queue.setMaxSize(100);
+		for (int i = 3; i <= 100; i++) {
+			assertTrue(queue.offer(i, 0));
+		}
+		assertEquals(100, queue.totalSize());
+		for (int i = 1; i <= 100; i++) {
+			assertEquals(Integer.valueOf(i), queue.take());
+		}
+	}
+
+	@Test
+	public void testConcurrentProducers() throws InterruptedException {
+		final int producers = 4;
+		final int perProducer = 50000;
+		PriorityQueueAbstract<Integer> queue = new PriorityQueueLockFree<>(3, 1000);
+		List<Thread> threads = startProducers(queue, producers, perProducer, false,
+													 new CountDownLatch(0));
+
+		long[] lastSeen = new long[producers];
+		for (int i = 0; i < producers * perProducer; i++) {
+			int value = queue.take();
+			int producer = value % producers;
+			// order of elements added by a single producer must be kept
+			assertTrue(value > lastSeen[producer] || lastSeen[producer] == 0);
+			lastSeen[producer] = value;
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(0, queue.totalSize());
+	}
+
+	@Test
+	public void testTakeInterrupted() throws InterruptedException {
+		PriorityQueueAbstract<Integer> queue = new PriorityQueueLockFree<>(3, 10);
+		final boolean[] interrupted = new boolean[1];
+		Thread consumer = new Thread(() -> {
+			try {
+				queue.take();
+			} catch (InterruptedException ex) {
+				interrupted[0] = true;
+			}
+		});
+		consumer.start();
+		Thread.sleep(100);
+		consumer.interrupt();
+		consumer.join(1000);
+		assertTrue(interrupted[0]);
+	}
+
+	@Category(tigase.tests.SlowTest.class)
+	@Test
+	public void testContention() throws InterruptedException {
+		final int producers = Math.max(2, Runtime.getRuntime().availableProcessors() - 1);
+		final int perProducer = 500000;
+		for (int round = 0; round < 3; round++) {
+			for (Class<? extends PriorityQueueAbstract> cls : List.of(PriorityQueueRelaxed.class,
+																	   PriorityQueueStrict.class,
+																	   PriorityQueueLockFree.class)) {
+				PriorityQueueAbstract<Integer> queue = PriorityQueueAbstract.getPriorityQueue(3, 10000, cls);
+				CountDownLatch start = new CountDownLatch(1);
+				List<Thread> threads = startProducers(queue, producers, perProducer, true, start);
+				long startTime = System.nanoTime();
+				start.countDown();
+				for (int i = 0; i < producers * perProducer; i++) {
+					queue.take();
+				}
+				long time = System.nanoTime() - startTime;
+				for (Thread thread : threads) {
+					thread.join();
+				}
+				log.log(Level.INFO, "round {0}, {1}: {2} producers, {3}ns per element, {4} elements/s",
+						new Object[]{round, cls.getSimpleName(), producers, time / (producers * perProducer),
+									 (long) (producers * perProducer / (time / 1e9))});
+			}
+		}
+	}
+
+	private List<Thread> startProducers(PriorityQueueAbstract<Integer> queue, int producers, int perProducer,
+										boolean mixedPriorities, CountDownLatch start) {
+		List<Thread> threads = new ArrayList<>();
+		for (int p = 0; p < producers; p++) {
+			final int producer = p;
+			Thread thread = new Thread(() -> {
+				try {
+					start.await();
+					for (int i = 1; i <= perProducer; i++) {
+						queue.put(i * producers + producer, (mixedPriorities && i % 3 == 0) ? 1 : 2);
+					}
+				} catch (InterruptedException ex) {
+					log.log(Level.WARNING, "producer interrupted", ex);
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		return threads;
+	}
+}
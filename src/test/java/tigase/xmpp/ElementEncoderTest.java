@@ -0,0 +1,85 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xmpp;
+
+import org.junit.Test;
+import tigase.xml.DomBuilderHandler;
+import tigase.xml.Element;
+import tigase.xml.SimpleParser;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.MalformedInputException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ElementEncoderTest {
+
+	private static final String[] STANZAS = {
+			"<message to='juliet@example.com/balcony' from='romeo@example.net/orchard' type='chat' id='ktx72v49'>" +
+					"<body>Art thou not Romeo, and a Montague?</body>" +
+					"<active xmlns='http://jabber.org/protocol/chatstates'/></message>",
+			"<presence from='romeo@example.net/orchard' id='pres1'><show>away</show><status>Za\u017c\u00f3\u0142\u0107 g\u0119\u015bl\u0105 ja\u017a\u0144 \u65e5\u672c\u8a9e \ud83d\ude00</status>" +
+					"<c xmlns='http://jabber.org/protocol/caps' hash='sha-1' node='http://tigase.org' " +
+					"ver='QgayPKawpkPSDYmwT/WM94uAlu0='/></presence>",
+			"<iq type='get' id='roster_1'><query xmlns='jabber:iq:roster'/></iq>",
+			"<message to='hecate@example.com/broom' id='a&amp;b'><body>Thrice the brinded cat hath mew'd &amp; &lt;purr&gt;.</body></message>",
+			"<message to='juliet@example.com'><html xmlns='http://jabber.org/protocol/xhtml-im'>" +
+					"<body xmlns='http://www.w3.org/1999/xhtml'><p>Hello <strong>world</strong>!</p></body></html></message>",
+			"<a xmlns='urn:xmpp:sm:3' h='42'/>"};
+
+	@Test
+	public void testSameResultAsToString() throws Exception {
+		for (String stanza : STANZAS) {
+			Element element = parse(stanza);
+			ByteBuffer buffer = ElementEncoder.encode(element, ByteBuffer.allocate(8 * 1024));
+			assertArrayEquals(stanza, element.toString().getBytes(StandardCharsets.UTF_8), toBytes(buffer));
+		}
+	}
+
+	@Test
+	public void testBufferResized() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (String stanza : STANZAS) {
+			sb.append(parse(stanza).toString());
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(16);
+		buffer.put((byte) 'x');
+		for (String stanza : STANZAS) {
+			buffer = ElementEncoder.encode(parse(stanza), buffer);
+		}
+		assertArrayEquals(("x" + sb).getBytes(StandardCharsets.UTF_8), toBytes(buffer));
+	}
+
+	@Test(expected = MalformedInputException.class)
+	public void testUnpairedSurrogate() throws Exception {
+		ElementEncoder.encode(new Element("body", "broken \ud83d"), ByteBuffer.allocate(64));
+	}
+
+	private static Element parse(String data) {
+		DomBuilderHandler handler = new DomBuilderHandler();
+		new SimpleParser().parse(handler, data);
+		return handler.getParsedElements().poll();
+	}
+
+	private static byte[] toBytes(ByteBuffer buffer) {
+		return Arrays.copyOf(buffer.array(), buffer.position());
+	}
+}
@@ -0,0 +1,281 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xmpp;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import tigase.TestLogger;
+import tigase.xml.Element;
+import tigase.xml.SimpleParser;
+import tigase.xml.SingletonFactory;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.*;
+
+public class XMPPByteStreamParserTest {
+
+	private static final String STREAM_OPEN = "<?xml version='1.0'?><stream:stream xmlns='jabber:client' " +
+			"xmlns:stream='http://etherx.jabber.org/streams' to='example.com' version='1.0'>";
+
+	private static final String[] STANZAS = {
+			"<message to='juliet@example.com/balcony' from='romeo@example.net/orchard' type='chat' id='ktx72v49'>" +
+					"<body>Art thou not Romeo, and a Montague?</body><thread>e0ffe42b28561960c6b12b944a092794b9683a38</thread>" +
+					"<active xmlns='http://jabber.org/protocol/chatstates'/></message>",
+			"<presence from='romeo@example.net/orchard' id='pres1'><show>away</show><status>Za\u017c\u00f3\u0142\u0107 g\u0119\u015bl\u0105 ja\u017a\u0144 \u65e5\u672c\u8a9e \ud83d\ude00</status>" +
+					"<priority>5</priority><c xmlns='http://jabber.org/protocol/caps' hash='sha-1' node='http://tigase.org' " +
+					"ver='QgayPKawpkPSDYmwT/WM94uAlu0='/></presence>",
+			"<iq type='get' id='roster_1'><query xmlns='jabber:iq:roster'/></iq>",
+			"<iq type='set' id='bind_1'><bind xmlns='urn:ietf:params:xml:ns:xmpp-bind'><resource>balcony</resource></bind></iq>",
+			"<message from='coven@chat.example.com/thirdwitch' to='hecate@example.com/broom' type='groupchat' " +
+					"id='162BEBB1-F6DB-4D9A-9BD8-CFDCC801A0B2'><body>Thrice the brinded cat hath mew'd &amp; &lt;purr&gt;.</body>" +
+					"<delay xmlns='urn:xmpp:delay' from='coven@chat.example.com' stamp='2002-10-13T23:58:37Z'/>" +
+					"<stanza-id xmlns='urn:xmpp:sid:0' id='5f3dbc5e-e1d3-4077-a492-693f3769c7ad' by='coven@chat.example.com'/>" +
+					"</message>",
+			"<r xmlns='urn:xmpp:sm:3'/>",
+			"<a xmlns='urn:xmpp:sm:3' h='42'/>"};
+
+	private static final String STANZA_WITH_CDATA_SECTION =
+			"<message from='pubsub.shakespeare.lit' to='francisco@denmark.lit' id='foo'><event xmlns='http://jabber.org/protocol/pubsub#event'>" +
+					"<items node='princely_musings'><item id='ae890ac52d0df67ed7cfdf51b644e901'><entry xmlns='http://www.w3.org/2005/Atom'>" +
+					"<title>Soliloquy</title><summary><![CDATA[To be, or not to be: <that> is the question]]></summary>" +
+					"</entry></item></items></event></message>";
+
+	private static final Logger log = TestLogger.getLogger(XMPPByteStreamParserTest.class);
+
+	@Test
+	public void testSameResultAsSimpleParser() {
+		String data = STREAM_OPEN + String.join("\n", STANZAS);
+
+		List<String> expected = parseWithSimpleParser(data);
+		List<String> result = parseWithByteParser(data.getBytes(StandardCharsets.UTF_8), Integer.MAX_VALUE);
+
+		assertEquals(STANZAS.length, expected.size());
+		assertEquals(expected, result);
+	}
+
+	@Test
+	public void testDataSplitAtEveryByte() {
+		String data = STREAM_OPEN + STANZAS[1] + STANZA_WITH_CDATA_SECTION;
+		byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+		List<String> expected = parseWithByteParser(bytes, Integer.MAX_VALUE);
+
+		for (int chunk = 1; chunk < 8; chunk++) {
+			assertEquals("chunk size: " + chunk, expected, parseWithByteParser(bytes, chunk));
+		}
+	}
+
+	@Test
+	public void testCDataSection() {
+		byte[] bytes = (STREAM_OPEN + STANZA_WITH_CDATA_SECTION).getBytes(StandardCharsets.UTF_8);
+		List<String> result = parseWithByteParser(bytes, Integer.MAX_VALUE);
+		assertEquals(1, result.size());
+		assertTrue(result.get(0), result.get(0).contains("To be, or not to be: &lt;that&gt; is the question"));
+	}
+
+	@Test
+	public void testCommonNamesInterned() {
+		byte[] bytes = "message".getBytes(StandardCharsets.UTF_8);
+		int hash = 0;
+		for (byte b : bytes) {
+			hash = 31 * hash + b;
+		}
+		assertSame("message", XMPPByteStreamParser.toName(bytes, bytes.length, hash));
+
+		bytes = "custom".getBytes(StandardCharsets.UTF_8);
+		hash = 0;
+		for (byte b : bytes) {
+			hash = 31 * hash + b;
+		}
+		assertEquals("custom", XMPPByteStreamParser.toName(bytes, bytes.length, hash));
+	}
+
+	@Test
+	public void testMalformedUtf8() {
+		XMPPDomBuilderHandler<Object> handler = createHandler();
+		XMPPByteStreamParser parser = new XMPPByteStreamParser();
+		byte[] open = (STREAM_OPEN + "<message><body>").getBytes(StandardCharsets.UTF_8);
+		parser.parse(handler, open, 0, open.length);
+		assertFalse(handler.parseError());
+
+		// overlong encoding of '/'
+		parser.parse(handler, new byte[]{(byte) 0xC0, (byte) 0xAF}, 0, 2);
+		assertTrue(handler.parseError());
+	}
+
+	@Test
+	public void testNotWellFormed() {
+		for (String data : new String[]{"<message to='a@b'><body>test</message>", "<message to=a@b/>",
+										"<message to='a<b'/>", "<message>\u0001</message>"}) {
+			XMPPDomBuilderHandler<Object> handler = createHandler();
+			byte[] bytes = (STREAM_OPEN + data).getBytes(StandardCharsets.UTF_8);
+			new XMPPByteStreamParser().parse(handler, ByteBuffer.wrap(bytes));
+			assertTrue(data, handler.parseError());
+		}
+	}
+
+	@Test
+	public void testTooManyAttributes() {
+		StringBuilder sb = new StringBuilder(STREAM_OPEN).append("<message");
+		for (int i = 0; i <= XMPPByteStreamParser.MAX_ATTRIBS_NUMBER; i++) {
+			sb.append(" a").append(i).append("='").append(i).append("'");
+		}
+		sb.append("/>");
+		XMPPDomBuilderHandler<Object> handler = createHandler();
+		new XMPPByteStreamParser().parse(handler, ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8)));
+		assertTrue(handler.parseError());
+	}
+
+	@Test
+	public void testDirectBuffer() {
+		byte[] bytes = (STREAM_OPEN + STANZAS[0]).getBytes(StandardCharsets.UTF_8);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+		buffer.put(bytes).flip();
+
+		XMPPDomBuilderHandler<Object> handler = createHandler();
+		new XMPPByteStreamParser().parse(handler, buffer);
+		assertFalse(buffer.hasRemaining());
+		assertEquals("message", handler.getParsedElements().poll().getName());
+	}
+
+	@Test
+	public void testIsXmlStart() {
+		assertTrue(XMPPByteStreamParser.isXmlStart(ByteBuffer.wrap(" \n<stream".getBytes(StandardCharsets.UTF_8))));
+		assertFalse(XMPPByteStreamParser.isXmlStart(ByteBuffer.wrap(new byte[]{0x16, 0x03, 0x01})));
+	}
+
+	@Test
+	public void testReset() {
+		XMPPDomBuilderHandler<Object> handler = createHandler();
+		XMPPByteStreamParser parser = new XMPPByteStreamParser();
+		byte[] bytes = (STREAM_OPEN + "<mess").getBytes(StandardCharsets.UTF_8);
+		parser.parse(handler, bytes, 0, bytes.length);
+		assertTrue(parser.isStarted());
+
+		// stream restarted, ie. after TLS handshake, incomplete data of the previous stream have to be dropped
+		parser.reset();
+		assertFalse(parser.isStarted());
+		bytes = (STREAM_OPEN + STANZAS[2]).getBytes(StandardCharsets.UTF_8);
+		parser.parse(handler, bytes, 0, bytes.length);
+		assertFalse(handler.parseError());
+		assertEquals(parseWithSimpleParser(STREAM_OPEN + STANZAS[2]), toStrings(handler));
+	}
+
+	@Category(tigase.tests.SlowTest.class)
+	@Test
+	public void testParsingPerformance() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			sb.append(STANZAS[i % STANZAS.length]);
+		}
+		byte[] data = sb.toString().getBytes(StandardCharsets.UTF_8);
+		byte[] open = STREAM_OPEN.getBytes(StandardCharsets.UTF_8);
+		int iterations = 20000;
+
+		for (int round = 0; round < 5; round++) {
+			// current pipeline: decoding bytes to characters and parsing them with SimpleParser
+			SimpleParser simpleParser = SingletonFactory.getParserInstance();
+			CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
+			CharBuffer cb = CharBuffer.allocate(data.length * 2);
+			XMPPDomBuilderHandler<Object> handler = createHandler();
+			handler.setElementsLimit(Integer.MAX_VALUE);
+			char[] chars = STREAM_OPEN.toCharArray();
+			simpleParser.parse(handler, chars, 0, chars.length);
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				decoder.decode(ByteBuffer.wrap(data), cb, false);
+				cb.flip();
+				chars = new char[cb.remaining()];
+				cb.get(chars);
+				cb.clear();
+				simpleParser.parse(handler, chars, 0, chars.length);
+				handler.getParsedElements().clear();
+			}
+			long simpleTime = System.nanoTime() - start;
+
+			XMPPByteStreamParser byteParser = new XMPPByteStreamParser();
+			handler = createHandler();
+			handler.setElementsLimit(Integer.MAX_VALUE);
+			byteParser.parse(handler, open, 0, open.length);
+			start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				byteParser.parse(handler, data, 0, data.length);
+				handler.getParsedElements().clear();
+			}
+			long byteTime = System.nanoTime() - start;
+			assertFalse(handler.parseError());
+
+			log.log(Level.INFO,
+					"round {0}: SimpleParser {1} MB/s, {2} stanzas/s; XMPPByteStreamParser {3} MB/s, {4} stanzas/s",
+					new Object[]{round, mbPerSecond(data.length, iterations, simpleTime),
+								 100L * iterations * 1000000000L / simpleTime,
+								 mbPerSecond(data.length, iterations, byteTime),
+								 100L * iterations * 1000000000L / byteTime});
+		}
+	}
+
+	private static long mbPerSecond(int size, int iterations, long time) {
+		return ((long) size) * iterations * 1000L / time;
+	}
+
+	private XMPPDomBuilderHandler<Object> createHandler() {
+		XMPPIOService<Object> ioserv = new XMPPIOService<Object>() {
+			@Override
+			protected void xmppStreamOpened(Map attribs) {
+			}
+		};
+		XMPPDomBuilderHandler<Object> handler = new XMPPDomBuilderHandler<>(ioserv);
+		handler.setElementsLimit(1000);
+		return handler;
+	}
+
+	private List<String> parseWithSimpleParser(String data) {
+		XMPPDomBuilderHandler<Object> handler = createHandler();
+		char[] chars = data.toCharArray();
+		SingletonFactory.getParserInstance().parse(handler, chars, 0, chars.length);
+		assertFalse(handler.parseError());
+		return toStrings(handler);
+	}
+
+	private List<String> parseWithByteParser(byte[] data, int chunkSize) {
+		XMPPDomBuilderHandler<Object> handler = createHandler();
+		XMPPByteStreamParser parser = new XMPPByteStreamParser();
+		for (int off = 0; off < data.length; off += chunkSize) {
+			parser.parse(handler, data, off, Math.min(chunkSize, data.length - off));
+		}
+		assertFalse(handler.parseError());
+		return toStrings(handler);
+	}
+
+	private List<String> toStrings(XMPPDomBuilderHandler<Object> handler) {
+		List<String> result = new ArrayList<>();
+		Element elem;
+		while ((elem = handler.getParsedElements().poll()) != null) {
+			result.add(elem.toString());
+		}
+		return result;
+	}
+}
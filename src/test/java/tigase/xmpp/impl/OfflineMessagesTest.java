@@ -21,16 +21,26 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import tigase.db.DBInitException;
+import tigase.db.DataSource;
+import tigase.db.MsgRepositoryIfc;
 import tigase.db.NonAuthUserRepository;
 import tigase.db.UserNotFoundException;
 import tigase.kernel.core.Kernel;
 import tigase.server.Packet;
+import tigase.server.ReceiverTimeoutHandler;
+import tigase.server.amp.db.MsgRepository;
+import tigase.server.xmppclient.StreamManagementCommand;
+import tigase.server.xmppsession.SessionManager;
 import tigase.xml.Element;
 import tigase.xmpp.XMPPResourceConnection;
 import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
 
+import java.lang.reflect.Field;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static org.junit.Assert.*;
 
@@ -175,6 +185,60 @@ public class OfflineMessagesTest
 		msgRepo.getStored().clear();
 	}
 
+	@Test
+	public void testPagedDeliveryOfOfflineMessages() throws Exception {
+		BareJID userJid = BareJID.bareJIDInstance("user1@example.com");
+		JID res1 = JID.jidInstance(userJid, "res1");
+		XMPPResourceConnection session1 = getSession(JID.jidInstance("c2s@example.com/" + UUID.randomUUID().toString()),
+													 res1);
+
+		PagedMsgRepositoryIfcImpl pagedRepo = new PagedMsgRepositoryIfcImpl();
+		for (int i = 0; i < 5; i++) {
+			if (i == 1) {
+				// row which cannot be parsed
+				pagedRepo.addRow(null);
+				continue;
+			}
+			Element packetEl = new Element("message", new String[]{"type", "from", "to", "id"},
+										   new String[]{"chat", "remote-user@test.com/res1", userJid.toString(),
+														"msg-" + i});
+			packetEl.addChild(new Element("body", "Test message " + i));
+			pagedRepo.addRow(packetEl);
+		}
+		offlineProcessor.msgRepo = pagedRepo;
+
+		MockSessionManager sessionManager = new MockSessionManager();
+		setField(offlineProcessor, "sessionManager", sessionManager);
+		setField(offlineProcessor, "deliveryChunkSize", 2);
+
+		Packet presence = Packet.packetInstance(
+				new Element("presence", new String[]{"from"}, new String[]{res1.toString()}));
+		Queue<Packet> results = new ArrayDeque<Packet>();
+		offlineProcessor.process(presence, session1, null, results, null);
+		assertTrue("messages should be sent in chunks, not as results", results.isEmpty());
+
+		// page with a row which could not be parsed is still a full page, so delivery is not stopped
+		assertEquals("msg-0", sessionManager.getOutQueue().poll().getStanzaId());
+		Packet request = sessionManager.getOutQueue().poll();
+		assertEquals("request to wait for ack should be sent after the chunk", StreamManagementCommand.WAIT_FOR_ACK,
+					 StreamManagementCommand.fromPacket(request));
+		assertTrue(sessionManager.getOutQueue().isEmpty());
+		assertEquals(3, pagedRepo.getRows().size());
+
+		sessionManager.respond(request);
+		assertEquals("msg-2", sessionManager.getOutQueue().poll().getStanzaId());
+		assertEquals("msg-3", sessionManager.getOutQueue().poll().getStanzaId());
+		request = sessionManager.getOutQueue().poll();
+		assertEquals(StreamManagementCommand.WAIT_FOR_ACK, StreamManagementCommand.fromPacket(request));
+		assertTrue(sessionManager.getOutQueue().isEmpty());
+		assertEquals(1, pagedRepo.getRows().size());
+
+		sessionManager.respond(request);
+		assertEquals("msg-4", sessionManager.getOutQueue().poll().getStanzaId());
+		assertTrue("no more messages, there is nothing to wait for", sessionManager.getOutQueue().isEmpty());
+		assertTrue(pagedRepo.getRows().isEmpty());
+	}
+
 	@Test
 	public void testLoadOfflineMessages() throws Exception {
 		BareJID userJid = BareJID.bareJIDInstance("user1@example.com");
@@ -302,6 +366,109 @@ public class OfflineMessagesTest
 		}
 	}
 
+	private static void setField(Object obj, String name, Object value) throws Exception {
+		Field field = OfflineMessages.class.getDeclaredField(name);
+		field.setAccessible(true);
+		field.set(obj, value);
+	}
+
+	private static class PagedMsgRepositoryIfcImpl
+			extends MsgRepositoryIfcImpl
+			implements MsgRepositoryIfc<DataSource> {
+
+		private final TreeMap<Long, Element> rows = new TreeMap<>();
+		private long nextId = 1;
+
+		public void addRow(Element msg) {
+			rows.put(nextId++, msg);
+		}
+
+		public TreeMap<Long, Element> getRows() {
+			return rows;
+		}
+
+		@Override
+		public Queue<Element> loadMessagesPageToJID(XMPPResourceConnection session, long afterId, int limit,
+													MsgRepository.OfflineMessagesProcessor proc) {
+			Queue<Element> result = new LinkedList<>();
+			for (Map.Entry<Long, Element> e : rows.tailMap(afterId, false).entrySet()) {
+				if (limit-- == 0) {
+					break;
+				}
+				if (e.getValue() != null) {
+					proc.stamp(e.getValue(), String.valueOf(e.getKey()));
+					result.add(e.getValue().clone());
+				}
+				proc.rowLoaded(String.valueOf(e.getKey()));
+			}
+			return result;
+		}
+
+		@Override
+		public int deleteMessagesUpToId(XMPPResourceConnection session, long msgId) {
+			SortedMap<Long, Element> removed = rows.headMap(msgId, true);
+			int count = removed.size();
+			removed.clear();
+			return count;
+		}
+
+		@Override
+		public Map<Enum, Long> getMessagesCount(JID to) {
+			throw new UnsupportedOperationException("Not supported yet.");
+		}
+
+		@Override
+		public List<Element> getMessagesList(JID to) {
+			throw new UnsupportedOperationException("Not supported yet.");
+		}
+
+		@Override
+		public void setCondition(ReentrantLock lock, Condition condition) {
+		}
+
+		@Override
+		public Queue<Element> loadMessagesToJID(List<String> db_ids, XMPPResourceConnection session, boolean delete,
+												MsgRepository.OfflineMessagesProcessor proc) {
+			throw new UnsupportedOperationException("Not supported yet.");
+		}
+
+		@Override
+		public int deleteMessagesToJID(List<String> db_ids, XMPPResourceConnection session) {
+			throw new UnsupportedOperationException("Not supported yet.");
+		}
+
+		@Override
+		public void setDataSource(DataSource dataSource) {
+		}
+	}
+
+	private static class MockSessionManager
+			extends SessionManager {
+
+		private final Queue<Packet> outQueue = new ArrayDeque<>();
+		private final Map<String, ReceiverTimeoutHandler> handlers = new HashMap<>();
+
+		@Override
+		public boolean addOutPacket(Packet packet) {
+			return outQueue.add(packet);
+		}
+
+		@Override
+		public boolean addOutPacketWithTimeout(Packet packet, ReceiverTimeoutHandler handler, long delay,
+											   TimeUnit unit) {
+			handlers.put(packet.getStanzaId(), handler);
+			return outQueue.add(packet);
+		}
+
+		public Queue<Packet> getOutQueue() {
+			return outQueue;
+		}
+
+		public void respond(Packet request) {
+			handlers.remove(request.getStanzaId()).responseReceived(request, request.okResult((Element) null, 0));
+		}
+	}
+
 	public static class OfflineMessagesTestImpl
 			extends OfflineMessages {
 
@@ -0,0 +1,157 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xmpp.impl;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import tigase.server.Packet;
+import tigase.xml.Element;
+import tigase.xmpp.jid.JID;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+
+import static org.junit.Assert.*;
+
+public class PresenceFanoutTest {
+
+	private static Element createPresence() {
+		Element pres = new Element("presence", new String[]{"from", "xmlns"},
+								   new String[]{"user@example.com/res1", "jabber:client"});
+		pres.addChild(new Element("status", "Available"));
+		pres.addChild(new Element("priority", "5"));
+		pres.addChild(new Element("c", new String[]{"xmlns", "node", "ver"},
+								  new String[]{"http://jabber.org/protocol/caps", "http://tigase.org",
+											   "QgayPKawpkPSDYmwT/WM94uAlu0="}));
+		return pres;
+	}
+
+	@Test
+	public void testSharedPayload() throws Exception {
+		Element pres = createPresence();
+		String presStr = pres.toString();
+		PresenceFanout fanout = new PresenceFanout();
+
+		Packet p1 = fanout.add(pres, JID.jidInstance("buddy1@example.com"));
+		Packet p2 = fanout.add(pres, JID.jidInstance("buddy2@example.com"));
+		assertEquals(2, fanout.size());
+
+		// presence used as payload is not modified
+		assertEquals(presStr, pres.toString());
+		assertEquals(JID.jidInstance("user@example.com/res1"), p1.getStanzaFrom());
+		assertEquals(JID.jidInstance("buddy1@example.com"), p1.getStanzaTo());
+		assertEquals("buddy1@example.com", p1.getElement().getAttributeStaticStr("to"));
+		assertEquals("buddy2@example.com", p2.getElement().getAttributeStaticStr("to"));
+		assertEquals("jabber:client", p2.getElement().getXMLNS());
+		assertEquals("Available", p2.getElemCDataStaticStr(new String[]{"presence", "status"}));
+
+		// child elements are shared, top level elements are not
+		assertNotSame(p1.getElement(), p2.getElement());
+		assertSame(p1.getElement().getChild("c"), p2.getElement().getChild("c"));
+		assertSame(pres.getChild("status"), p1.getElement().getChild("status"));
+
+		// packets are equal to ones created by deep copy of the presence
+		Queue<Packet> results = new ArrayDeque<>();
+		PresenceAbstract.sendPresence(null, JID.jidInstance("user@example.com/res1"),
+									  JID.jidInstance("buddy1@example.com"), results, pres);
+		Element expected = results.poll().getElement();
+		assertEquals(expected.getAttributes(), p1.getElement().getAttributes());
+		assertEquals(expected.getChildren().toString(), p1.getElement().getChildren().toString());
+	}
+
+	@Test
+	public void testBatchesByDomain() throws Exception {
+		Element pres = createPresence();
+		Element probe = new Element("presence", new String[]{"from", "type"},
+									new String[]{"user@example.com", "probe"});
+		PresenceFanout fanout = new PresenceFanout();
+		fanout.add(probe, JID.jidInstance("buddy1@example.com"));
+		fanout.add(pres, JID.jidInstance("buddy1@example.com"));
+		fanout.add(pres, JID.jidInstance("buddy2@remote.com"));
+		fanout.add(pres, JID.jidInstance("buddy3@example.com"));
+		fanout.add(pres, JID.jidInstance("buddy4@remote.com"));
+
+		Queue<Packet> results = new ArrayDeque<>();
+		assertEquals(5, fanout.flush(results));
+		assertEquals(0, fanout.size());
+
+		List<String> order = new ArrayList<>();
+		for (Packet packet : results) {
+			order.add(packet.getStanzaTo().toString() + "/" + packet.getType());
+		}
+		// packets for the same domain are grouped, order for the same recipient is kept
+		assertEquals(List.of("buddy1@example.com/probe", "buddy1@example.com/null", "buddy3@example.com/null",
+							 "buddy2@remote.com/null", "buddy4@remote.com/null"), order);
+
+		results.clear();
+		assertEquals(0, fanout.flush(results));
+		assertTrue(results.isEmpty());
+	}
+
+	@Test
+	@Category(tigase.tests.SlowTest.class)
+	public void benchmarkBroadcast() throws Exception {
+		Element pres = createPresence();
+		JID from = JID.jidInstance("user@example.com/res1");
+		for (int size : new int[]{100, 1000, 5000}) {
+			JID[] buddies = new JID[size];
+			for (int i = 0; i < size; i++) {
+				buddies[i] = JID.jidInstance("buddy" + i + "@domain" + (i % 10) + ".com");
+			}
+			for (boolean shared : new boolean[]{false, true}) {
+				int rounds = 50;
+				Queue<Packet> results = new ArrayDeque<>(size);
+				// warm up
+				broadcast(shared, from, buddies, results, pres);
+				results.clear();
+
+				long allocated = allocatedBytes();
+				long start = System.nanoTime();
+				for (int i = 0; i < rounds; i++) {
+					broadcast(shared, from, buddies, results, pres);
+					results.clear();
+				}
+				long time = (System.nanoTime() - start) / rounds;
+				allocated = (allocatedBytes() - allocated) / rounds;
+
+				System.out.println(
+						String.format("%s, roster size: %d, time per broadcast: %.3fms, allocated per broadcast: %dkB",
+									  shared ? "shared payload" : "deep copy", size, time / 1000000.0,
+									  allocated / 1024));
+			}
+		}
+	}
+
+	private static void broadcast(boolean shared, JID from, JID[] buddies, Queue<Packet> results, Element pres) {
+		PresenceFanout fanout = shared ? new PresenceFanout() : null;
+		for (JID buddy : buddies) {
+			PresenceAbstract.sendPresence(fanout, null, from, buddy, results, pres);
+		}
+		if (fanout != null) {
+			fanout.flush(results);
+		}
+	}
+
+	private static long allocatedBytes() {
+		return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(
+				Thread.currentThread().getId());
+	}
+}
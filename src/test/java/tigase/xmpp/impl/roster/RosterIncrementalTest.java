@@ -0,0 +1,235 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xmpp.impl.roster;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import tigase.db.UserRepository;
+import tigase.xmpp.XMPPResourceConnection;
+import tigase.xmpp.impl.ProcessorTestCase;
+import tigase.xmpp.impl.roster.RosterAbstract.SubscriptionType;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class RosterIncrementalTest
+		extends ProcessorTestCase {
+
+	private RosterIncremental roster;
+	private XMPPResourceConnection session;
+	private JID userJID;
+
+	@Before
+	@Override
+	public void setUp() throws Exception {
+		super.setUp();
+		roster = new RosterIncremental();
+		userJID = JID.jidInstanceNS(UUID.randomUUID().toString(), "localhost", "res1");
+		session = getSession(JID.jidInstanceNS(UUID.randomUUID().toString(), "localhost"), userJID);
+	}
+
+	@Test
+	public void testItemsStoredSeparately() throws Exception {
+		JID buddy1 = JID.jidInstanceNS("buddy1@example.com");
+		JID buddy2 = JID.jidInstanceNS("buddy2@example.com");
+		UserRepository repo = getUserRepository();
+		BareJID user = userJID.getBareJID();
+
+		roster.addBuddy(session, buddy1, "Buddy 1", null, SubscriptionType.none, null);
+		roster.addBuddy(session, buddy2, "Buddy 2", new String[]{"Friends"}, SubscriptionType.none, null);
+		assertNotNull(repo.getData(user, RosterIncremental.ROSTER_ITEMS_NODE, buddy1.toString()));
+		assertNotNull(repo.getData(user, RosterIncremental.ROSTER_ITEMS_NODE, buddy2.toString()));
+		assertNull(repo.getData(user, RosterAbstract.ROSTER));
+		assertEquals("2", repo.getData(user, RosterAbstract.ROSTER, RosterIncremental.ROSTER_VERSION_KEY));
+
+		String item2 = repo.getData(user, RosterIncremental.ROSTER_ITEMS_NODE, buddy2.toString());
+		roster.setBuddySubscription(session, SubscriptionType.both, buddy1);
+		// only changed item is written
+		assertEquals(item2, repo.getData(user, RosterIncremental.ROSTER_ITEMS_NODE, buddy2.toString()));
+		assertEquals("3", repo.getData(user, RosterAbstract.ROSTER, RosterIncremental.ROSTER_VERSION_KEY));
+
+		roster.removeBuddy(session, buddy2);
+		assertNull(repo.getData(user, RosterIncremental.ROSTER_ITEMS_NODE, buddy2.toString()));
+		assertEquals("4", repo.getData(user, RosterIncremental.ROSTER_REMOVED_NODE, buddy2.toString()));
+
+		relogin();
+		assertEquals(SubscriptionType.both, roster.getBuddySubscription(session, buddy1));
+		assertEquals("Buddy 1", roster.getBuddyName(session, buddy1));
+		assertNull(roster.getRosterElement(session, buddy2));
+		assertEquals(1, roster.getRosterItems(session).size());
+		assertEquals(4, roster.getRosterState(session).getVersion());
+	}
+
+	@Test
+	public void testConversionFromFlatRoster() throws Exception {
+		JID buddy1 = JID.jidInstanceNS("buddy1@example.com");
+		JID buddy2 = JID.jidInstanceNS("buddy2@example.com");
+		UserRepository repo = getUserRepository();
+		BareJID user = userJID.getBareJID();
+
+		RosterElement relem1 = new RosterElement(buddy1, "Buddy 1", null);
+		relem1.setSubscription(SubscriptionType.both);
+		RosterElement relem2 = new RosterElement(buddy2, "Buddy 2", new String[]{"Friends"});
+		repo.setData(user, RosterAbstract.ROSTER,
+					 relem1.getRosterElement().toString() + relem2.getRosterElement().toString());
+
+		assertEquals(SubscriptionType.both, roster.getBuddySubscription(session, buddy1));
+		assertArrayEquals(new String[]{"Friends"}, roster.getBuddyGroups(session, buddy2));
+		assertNull(repo.getData(user, RosterAbstract.ROSTER));
+		assertNotNull(repo.getData(user, RosterIncremental.ROSTER_ITEMS_NODE, buddy1.toString()));
+		assertNotNull(repo.getData(user, RosterIncremental.ROSTER_ITEMS_NODE, buddy2.toString()));
+		assertEquals("1", repo.getData(user, RosterAbstract.ROSTER, RosterIncremental.ROSTER_VERSION_KEY));
+
+		relogin();
+		assertEquals(2, roster.getRosterItems(session).size());
+		assertEquals(2, roster.loadStoredRoster(repo, user).size());
+	}
+
+	@Test
+	public void testRosterChanges() throws Exception {
+		JID buddy1 = JID.jidInstanceNS("buddy1@example.com");
+		JID buddy2 = JID.jidInstanceNS("buddy2@example.com");
+		JID buddy3 = JID.jidInstanceNS("buddy3@example.com");
+
+		roster.addBuddy(session, buddy1, "Buddy 1", null, SubscriptionType.none, null);
+		roster.addBuddy(session, buddy2, "Buddy 2", null, SubscriptionType.none, null);
+		roster.addBuddy(session, buddy3, "Buddy 3", null, SubscriptionType.none, null);
+		assertTrue(roster.getRosterChanges(session, "3").isEmpty());
+
+		roster.setBuddyName(session, buddy1, "Buddy one");
+		roster.removeBuddy(session, buddy2);
+		relogin();
+
+		List<RosterAbstract.RosterChange> changes = roster.getRosterChanges(session, "3");
+		assertEquals(2, changes.size());
+		assertEquals("4", changes.get(0).ver());
+		assertEquals(buddy1.toString(), changes.get(0).item().getAttributeStaticStr("jid"));
+		assertEquals("Buddy one", changes.get(0).item().getAttributeStaticStr("name"));
+		assertEquals("5", changes.get(1).ver());
+		assertEquals(buddy2.toString(), changes.get(1).item().getAttributeStaticStr("jid"));
+		assertEquals("remove", changes.get(1).item().getAttributeStaticStr("subscription"));
+
+		// item added again after removal is sent as a new item
+		roster.addBuddy(session, buddy2, "Buddy 2", null, SubscriptionType.none, null);
+		changes = roster.getRosterChanges(session, "4");
+		assertEquals(1, changes.size());
+		assertEquals("6", changes.get(0).ver());
+		assertNotEquals("remove", changes.get(0).item().getAttributeStaticStr("subscription"));
+
+		assertEquals(3, roster.getRosterChanges(session, "0").size());
+		// unknown versions require sending the whole roster
+		assertNull(roster.getRosterChanges(session, "7"));
+		assertNull(roster.getRosterChanges(session, "d41d8cd98f00b204e9800998ecf8427e"));
+		assertNull(roster.getRosterChanges(session, "3-mix"));
+		assertNull(roster.getRosterChanges(session, ""));
+	}
+
+	@Test
+	public void testRemovedItemsLimit() throws Exception {
+		int maxRemovedItems = RosterIncremental.getMaxRemovedItems();
+		RosterIncremental.setMaxRemovedItems(2);
+		try {
+			for (int i = 0; i < 4; i++) {
+				roster.addBuddy(session, JID.jidInstanceNS("buddy" + i + "@example.com"), null, null,
+								SubscriptionType.none, null);
+			}
+			roster.removeBuddy(session, JID.jidInstanceNS("buddy0@example.com"));
+			roster.removeBuddy(session, JID.jidInstanceNS("buddy1@example.com"));
+			assertEquals(2, roster.getRosterChanges(session, "4").size());
+
+			roster.removeBuddy(session, JID.jidInstanceNS("buddy2@example.com"));
+			assertNull(roster.getRosterChanges(session, "4"));
+			assertTrue(roster.getRosterChanges(session, "7").isEmpty());
+			assertEquals("7", getUserRepository().getData(userJID.getBareJID(), RosterAbstract.ROSTER,
+														  RosterIncremental.ROSTER_MIN_VERSION_KEY));
+		} finally {
+			RosterIncremental.setMaxRemovedItems(maxRemovedItems);
+		}
+	}
+
+	@Test
+	public void testModifyStoredRoster() throws Exception {
+		JID buddy1 = JID.jidInstanceNS("buddy1@example.com");
+		JID buddy2 = JID.jidInstanceNS("buddy2@example.com");
+		BareJID user = userJID.getBareJID();
+
+		roster.addBuddy(session, buddy1, "Buddy 1", null, SubscriptionType.none, null);
+		roster.modifyStoredRoster(getUserRepository(), user, items -> {
+			items.get(buddy1.getBareJID()).setSubscription(SubscriptionType.from);
+			items.put(buddy2.getBareJID(), new RosterElement(buddy2, "Buddy 2", null));
+		});
+
+		Map<BareJID, RosterElement> stored = roster.loadStoredRoster(getUserRepository(), user);
+		assertEquals(2, stored.size());
+		assertEquals(SubscriptionType.from, stored.get(buddy1.getBareJID()).getSubscription());
+		assertEquals(2, stored.get(buddy1.getBareJID()).getVersion());
+
+		relogin();
+		assertEquals(SubscriptionType.from, roster.getBuddySubscription(session, buddy1));
+		assertEquals(2, roster.getRosterChanges(session, "1").size());
+	}
+
+	@Test
+	@Category(tigase.tests.SlowTest.class)
+	public void benchmarkRosterSize() throws Exception {
+		for (int size : new int[]{100, 1000, 5000}) {
+			benchmark(new RosterFlat(), size);
+			benchmark(new RosterIncremental(), size);
+		}
+	}
+
+	private void benchmark(RosterFlat rosterImpl, int size) throws Exception {
+		userJID = JID.jidInstanceNS(UUID.randomUUID().toString(), "localhost", "res1");
+		session = getSession(JID.jidInstanceNS(UUID.randomUUID().toString(), "localhost"), userJID);
+		for (int i = 0; i < size; i++) {
+			rosterImpl.getUserRoster(session)
+					.put(BareJID.bareJIDInstanceNS("buddy" + i + "@example.com"),
+						 new RosterElement(JID.jidInstanceNS("buddy" + i + "@example.com"), "Buddy " + i, null));
+		}
+		rosterImpl.saveUserRoster(session);
+
+		int rounds = 20;
+		long start = System.nanoTime();
+		for (int i = 0; i < rounds; i++) {
+			relogin();
+			rosterImpl.getRosterItems(session);
+		}
+		long login = (System.nanoTime() - start) / rounds;
+
+		start = System.nanoTime();
+		for (int i = 0; i < rounds; i++) {
+			rosterImpl.setBuddySubscription(session, i % 2 == 0 ? SubscriptionType.both : SubscriptionType.to,
+											JID.jidInstanceNS("buddy" + (i * 7 % size) + "@example.com"));
+		}
+		long change = (System.nanoTime() - start) / rounds;
+
+		System.out.println(String.format("%s, roster size: %d, login: %.3fms, subscription change: %.3fms",
+										 rosterImpl.getClass().getSimpleName(), size, login / 1000000.0,
+										 change / 1000000.0));
+	}
+
+	private void relogin() {
+		session.removeCommonSessionData(RosterAbstract.ROSTER);
+	}
+}